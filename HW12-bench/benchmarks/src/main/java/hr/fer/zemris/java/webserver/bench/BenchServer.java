@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.HttpRequest;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Creates a {@link SmartHttpServer} over a temporary document root, so that benchmarks can exercise the whole
+ * request path in memory, without sockets and without depending on the configuration of the HW12 module.
+ * <p>
+ * The document root contains a small and a large static file, a smart script and the private script of
+ * {@link hr.fer.zemris.java.webserver.workers.SumWorker}, which is mapped to <code>/calc</code>.
+ * </p>
+ */
+public final class BenchServer {
+
+    /**
+     * The size of the large static file, which is above the limit of the static content cache.
+     */
+    public static final int LARGE_FILE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Prevents instantiation.
+     */
+    private BenchServer() {
+    }
+
+    /**
+     * Creates the document root and the configuration files in the given directory and creates a server which
+     * uses them. The server is not started.
+     *
+     * @param dir the directory.
+     * @return the server.
+     * @throws IOException if an error occurred while creating the files.
+     */
+    public static SmartHttpServer create(Path dir) throws IOException {
+        Path root = Files.createDirectories(dir.resolve("webroot"));
+        Files.createDirectories(root.resolve("private"));
+        Files.createDirectories(root.resolve("scripts"));
+
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>Bench</title></head><body>");
+        for (int i = 0; i < 20; i++) {
+            html.append("<p>Paragraph ").append(i).append(" of the benchmark page.</p>");
+        }
+        html.append("</body></html>");
+        write(root.resolve("index.html"), html.toString());
+        byte[] large = new byte[LARGE_FILE_SIZE];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        Files.write(root.resolve("large.bin"), large);
+        write(root.resolve("scripts/loop.smscr"), "{$= \"text/plain\" @setMimeType $}Sample text.\n"
+                + "{$ FOR i 1 10 1 $}This is {$= i $}-th line.\n{$END$}"
+                + "{$FOR i 0 10 2 $}sin({$=i$}^2) = {$= i i * @sin \"0.000\" @decfmt $}\n{$END$}");
+        write(root.resolve("private/calc.smscr"), "{$= \"text/html\" @setMimeType $}<html><body>"
+                + "a={$= \"a\" \"0\" @tparamGet $} b={$= \"b\" \"0\" @tparamGet $} "
+                + "a+b={$= \"zbroj\" \"0\" @tparamGet $}</body></html>");
+
+        Path mime = dir.resolve("mime.properties");
+        write(mime, "html = text/html\ntxt = text/plain\n");
+        Path workers = dir.resolve("workers.properties");
+        write(workers, "/calc = hr.fer.zemris.java.webserver.workers.SumWorker\n");
+
+        Properties properties = new Properties();
+        properties.setProperty("server.address", "127.0.0.1");
+        properties.setProperty("server.domainName", "localhost");
+        properties.setProperty("server.port", "0");
+        properties.setProperty("server.workerThreads", "1");
+        properties.setProperty("session.timeout", "600");
+        properties.setProperty("server.documentRoot", root.toString());
+        properties.setProperty("server.mimeConfig", mime.toString());
+        properties.setProperty("server.workers", workers.toString());
+        return new SmartHttpServer(properties);
+    }
+
+    /**
+     * Creates a GET request for the given target.
+     *
+     * @param target the request target.
+     * @param sid    the session identifier sent in a cookie, or null.
+     * @return the request.
+     */
+    public static HttpRequest get(String target, String sid) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost");
+        headers.put("user-agent", "bench");
+        headers.put("accept", "*/*");
+        if (sid != null) {
+            headers.put("cookie", "sid=\"" + sid + "\"");
+        }
+        return new HttpRequest("GET", target, "HTTP/1.1", headers);
+    }
+
+    /**
+     * Serves a request without a session and returns the identifier of the session which was created for it.
+     *
+     * @param server the server.
+     * @return the session identifier.
+     * @throws Exception if an error occurred while serving the request.
+     */
+    public static String createSession(SmartHttpServer server) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        server.serve(get("/index.html", null), bos);
+        String response = new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+        int start = response.indexOf("sid=\"") + 5;
+        return response.substring(start, response.indexOf('"', start));
+    }
+
+    /**
+     * Deletes the given directory with all its content.
+     *
+     * @param dir the directory.
+     * @throws IOException if an error occurred while deleting.
+     */
+    public static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Writes the given text to a file.
+     *
+     * @param file the file.
+     * @param text the text.
+     * @throws IOException if an error occurred while writing.
+     */
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
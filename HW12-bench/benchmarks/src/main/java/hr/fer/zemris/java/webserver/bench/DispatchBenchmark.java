@@ -0,0 +1,173 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.HttpRequest;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the full request path of {@link SmartHttpServer}: session lookup, query parsing, routing, the
+ * response header and the body, through {@link SmartHttpServer#serve(HttpRequest, java.io.OutputStream)}.
+ * Responses are written to memory, so no time is spent in the network stack.
+ * <p>
+ * <code>extWithQuery</code> is dominated by the parsing of the query string and <code>newSession</code> by the
+ * creation of a session; all other requests carry the cookie of an existing session.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DispatchBenchmark {
+
+    /**
+     * The temporary directory with the document root.
+     */
+    private Path dir;
+
+    /**
+     * The server.
+     */
+    private SmartHttpServer server;
+
+    /**
+     * The request for a small cached static file.
+     */
+    private HttpRequest staticFile;
+
+    /**
+     * The request for a static file which is too large to be cached.
+     */
+    private HttpRequest largeFile;
+
+    /**
+     * The request for a configured worker which dispatches to a smart script.
+     */
+    private HttpRequest worker;
+
+    /**
+     * The request for a smart script.
+     */
+    private HttpRequest script;
+
+    /**
+     * The request for a worker named by its path, with a long query string.
+     */
+    private HttpRequest extWithQuery;
+
+    /**
+     * The request without a session cookie.
+     */
+    private HttpRequest newSession;
+
+    /**
+     * Creates the server and the requests.
+     *
+     * @throws Exception if the server can not be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("smarthttp-bench");
+        server = BenchServer.create(dir);
+        String sid = BenchServer.createSession(server);
+        staticFile = BenchServer.get("/index.html", sid);
+        largeFile = BenchServer.get("/large.bin", sid);
+        worker = BenchServer.get("/calc?a=3&b=4", sid);
+        script = BenchServer.get("/scripts/loop.smscr", sid);
+        extWithQuery = BenchServer.get("/ext/EchoParams?name=bench&a=1&b=2&color=ff0000&page=17&sort=asc", sid);
+        newSession = BenchServer.get("/index.html", null);
+    }
+
+    /**
+     * Deletes the document root.
+     *
+     * @throws Exception if the document root can not be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchServer.delete(dir);
+    }
+
+    /**
+     * The stream which receives the responses of one thread.
+     */
+    @State(Scope.Thread)
+    public static class Output {
+
+        /**
+         * The stream.
+         */
+        private final ByteArrayOutputStream bos = new ByteArrayOutputStream(1 << 16);
+
+        /**
+         * Returns the emptied stream.
+         *
+         * @return the stream.
+         */
+        private ByteArrayOutputStream reset() {
+            bos.reset();
+            return bos;
+        }
+    }
+
+    @Benchmark
+    public int staticFile(Output out) throws Exception {
+        return serve(staticFile, out);
+    }
+
+    @Benchmark
+    public int largeFile(Output out) throws Exception {
+        return serve(largeFile, out);
+    }
+
+    @Benchmark
+    public int worker(Output out) throws Exception {
+        return serve(worker, out);
+    }
+
+    @Benchmark
+    public int script(Output out) throws Exception {
+        return serve(script, out);
+    }
+
+    @Benchmark
+    public int extWithQuery(Output out) throws Exception {
+        return serve(extWithQuery, out);
+    }
+
+    @Benchmark
+    public int newSession(Output out) throws Exception {
+        return serve(newSession, out);
+    }
+
+    /**
+     * Serves the given request.
+     *
+     * @param request the request.
+     * @param out     the stream which receives the response.
+     * @return the size of the response.
+     * @throws Exception if an error occurred while serving the request.
+     */
+    private int serve(HttpRequest request, Output out) throws Exception {
+        ByteArrayOutputStream bos = out.reset();
+        server.serve(request, bos);
+        return bos.size();
+    }
+}
@@ -0,0 +1,124 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the generation of response headers and the writing of bodies through {@link RequestContext}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestContextBenchmark {
+
+    /**
+     * The small body, written as text.
+     */
+    private static final String SMALL_BODY = "<html><body><h1>Hello!!!</h1><p>Now is 2026-10-18</p></body></html>";
+
+    /**
+     * The large body, written as bytes.
+     */
+    private static final byte[] LARGE_BODY = new byte[64 * 1024];
+
+    /**
+     * The stream which receives the responses.
+     */
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128 * 1024);
+
+    /**
+     * The request parameters.
+     */
+    private final Map<String, String> parameters = new HashMap<>();
+
+    /**
+     * The persistent parameters.
+     */
+    private final Map<String, String> persistentParameters = new HashMap<>();
+
+    @Benchmark
+    public int headerWithCookie() throws IOException {
+        RequestContext context = newContext();
+        context.addRCCookie(new RequestContext.RCCookie("sid", "ABCDEFGHIJKLMNOPQRST", null, "localhost", "/",
+                true));
+        context.setMimeType("text/plain");
+        context.setContentLength(0);
+        context.finish();
+        return bos.size();
+    }
+
+    @Benchmark
+    public int smallChunkedBody() throws IOException {
+        RequestContext context = newContext();
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.write(SMALL_BODY);
+        context.finish();
+        return bos.size();
+    }
+
+    @Benchmark
+    public int smallGzipBody() throws IOException {
+        RequestContext context = newContext();
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setGzipAllowed(true);
+        context.setCompressionThreshold(32);
+        context.write(SMALL_BODY);
+        context.finish();
+        return bos.size();
+    }
+
+    @Benchmark
+    public int manySmallWrites() throws IOException {
+        RequestContext context = newContext();
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setBufferSize(8192);
+        for (int i = 0; i < 2000; i++) {
+            context.write(SMALL_BODY);
+        }
+        context.finish();
+        return bos.size();
+    }
+
+    @Benchmark
+    public int largeBody() throws IOException {
+        RequestContext context = newContext();
+        context.setMimeType("application/octet-stream");
+        context.setContentLength(LARGE_BODY.length);
+        context.write(LARGE_BODY);
+        context.finish();
+        return bos.size();
+    }
+
+    /**
+     * Creates a new context writing to the emptied stream.
+     *
+     * @return the context.
+     */
+    private RequestContext newContext() {
+        bos.reset();
+        List<RequestContext.RCCookie> cookies = new ArrayList<>();
+        return new RequestContext(bos, parameters, persistentParameters, cookies, null, null);
+    }
+}
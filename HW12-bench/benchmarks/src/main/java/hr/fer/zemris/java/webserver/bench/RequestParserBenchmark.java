@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.HttpRequest;
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of request heads by {@link HttpRequestParser}: finding the end of the head, splitting it
+ * into lines and decoding the request line and the headers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestParserBenchmark {
+
+    /**
+     * The kind of request head: a minimal one or one which a browser sends.
+     */
+    @Param({"minimal", "browser"})
+    public String head;
+
+    /**
+     * The bytes of the request head.
+     */
+    private byte[] bytes;
+
+    /**
+     * The parser which is reused between requests, as on a persistent connection.
+     */
+    private HttpRequestParser parser;
+
+    /**
+     * Creates the request head.
+     */
+    @Setup
+    public void setUp() {
+        String text;
+        if (head.equals("minimal")) {
+            text = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        } else {
+            text = "GET /ext/EchoParams?name=bench&a=1&b=2 HTTP/1.1\r\n"
+                    + "Host: www.localhost.com:5721\r\n"
+                    + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+                    + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,*/*;q=0.8\r\n"
+                    + "Accept-Language: hr,en-US;q=0.7,en;q=0.3\r\n"
+                    + "Accept-Encoding: gzip, deflate, br\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "Cookie: sid=\"ABCDEFGHIJKLMNOPQRST\"; theme=dark\r\n"
+                    + "Upgrade-Insecure-Requests: 1\r\n"
+                    + "Sec-Fetch-Dest: document\r\n"
+                    + "Sec-Fetch-Mode: navigate\r\n"
+                    + "Sec-Fetch-Site: none\r\n"
+                    + "If-None-Match: \"2c2-17e912ca040\"\r\n"
+                    + "\r\n";
+        }
+        bytes = text.getBytes(StandardCharsets.US_ASCII);
+        parser = new HttpRequestParser(16384, 100);
+    }
+
+    @Benchmark
+    public HttpRequest newParser() throws IOException {
+        return new HttpRequestParser(16384, 100).readRequest(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public HttpRequest reusedParser() throws IOException {
+        return parser.readRequest(new ByteArrayInputStream(bytes));
+    }
+}
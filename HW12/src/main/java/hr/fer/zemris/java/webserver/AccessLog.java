@@ -0,0 +1,524 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Represents the access log of the server, in the Common or the Combined Log Format followed by the duration of
+ * the request in microseconds. The bytes field holds all bytes sent for the request, including the header.
+ * <p>
+ * The threads serving requests put their entries into a ring buffer without locking and a single thread of the
+ * log formats and writes them in batches, so that no request waits for the disk. When the buffer is full, an
+ * entry is either dropped or its thread waits for room, as configured. The file is rolled over when it grows too
+ * large or too old, and forced to disk at intervals only.
+ */
+public class AccessLog {
+
+    /**
+     * The number of characters after which a batch is written even if more entries are waiting.
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /**
+     * The time in nanoseconds for which the writer sleeps when no entries are waiting.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The time in nanoseconds for which a thread waits before it checks again whether the full buffer has room.
+     */
+    private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * The format of the request time.
+     */
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * The format of the suffix of a rolled over file.
+     */
+    private static final DateTimeFormatter ROLL_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * The entries of the ring buffer.
+     */
+    private final Entry[] entries;
+
+    /**
+     * The sequence numbers of the slots of the ring buffer. A slot whose sequence number equals a position may
+     * be claimed by the producer of that position; once filled, its sequence number is the position plus one.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask which maps a position to its slot.
+     */
+    private final int mask;
+
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The number of dropped entries.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The log file.
+     */
+    private final Path file;
+
+    /**
+     * The flag indicating whether the Combined Log Format is written instead of the Common one.
+     */
+    private final boolean combined;
+
+    /**
+     * The flag indicating whether a thread waits for room when the buffer is full instead of dropping its entry.
+     */
+    private final boolean blockWhenFull;
+
+    /**
+     * The size in bytes after which the file is rolled over, 0 if never.
+     */
+    private final long maxSize;
+
+    /**
+     * The time in milliseconds after which the file is rolled over, 0 if never.
+     */
+    private final long rollInterval;
+
+    /**
+     * The interval in milliseconds at which the file is forced to disk, 0 if never.
+     */
+    private final long fsyncInterval;
+
+    /**
+     * The thread which writes the entries.
+     */
+    private final Thread writerThread;
+
+    /**
+     * The flag indicating whether the log is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The channel of the current file; used by the writer thread only.
+     */
+    private FileChannel channel;
+
+    /**
+     * The writer of the current file; used by the writer thread only.
+     */
+    private Writer writer;
+
+    /**
+     * The time in milliseconds at which the current file is rolled over; used by the writer thread only.
+     */
+    private long rollAt;
+
+    /**
+     * The time in milliseconds when the file was last forced to disk; used by the writer thread only.
+     */
+    private long lastSync;
+
+    /**
+     * The flag indicating whether bytes were written since the file was last forced to disk.
+     */
+    private boolean unsynced;
+
+    /**
+     * The batch of formatted entries; used by the writer thread only.
+     */
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE + 1024);
+
+    /**
+     * The second whose formatted time is cached; used by the writer thread only.
+     */
+    private long cachedSecond = Long.MIN_VALUE;
+
+    /**
+     * The formatted time of the cached second; used by the writer thread only.
+     */
+    private String cachedTime;
+
+    /**
+     * Creates an instance of {@link AccessLog}, opens the file and starts the writer thread.
+     *
+     * @param file          the log file.
+     * @param combined      flag indicating whether the Combined Log Format is written instead of the Common one.
+     * @param capacity      the number of entries which may wait to be written, rounded up to a power of two.
+     * @param blockWhenFull flag indicating whether a thread waits for room when the buffer is full instead of
+     *                      dropping its entry.
+     * @param maxSize       the size in bytes after which the file is rolled over, 0 if never.
+     * @param rollInterval  the time in milliseconds after which the file is rolled over, 0 if never.
+     * @param fsyncInterval the interval in milliseconds at which the file is forced to disk, 0 if never.
+     * @throws IOException              if the file can not be opened.
+     * @throws IllegalArgumentException if the capacity is not between 1 and 2^30.
+     */
+    public AccessLog(Path file, boolean combined, int capacity, boolean blockWhenFull, long maxSize,
+                     long rollInterval, long fsyncInterval) throws IOException {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.file = file;
+        this.combined = combined;
+        this.blockWhenFull = blockWhenFull;
+        this.maxSize = maxSize;
+        this.rollInterval = rollInterval;
+        this.fsyncInterval = fsyncInterval;
+        open();
+        this.writerThread = new Thread(this::drain, "access-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Logs a served request.
+     *
+     * @param client  the address of the client, or null if unknown.
+     * @param request the request.
+     * @param status  the status code of the response.
+     * @param bytes   the number of bytes sent for the request.
+     * @param micros  the duration of the request in microseconds.
+     * @return true if the entry was logged, false if it was dropped.
+     */
+    public boolean log(String client, HttpRequest request, int status, long bytes, long micros) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long available = sequences.get((int) position & mask) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                if (closed || !blockWhenFull) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_NANOS);
+            }
+        }
+        int index = (int) position & mask;
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis() - micros / 1000;
+        entry.client = client;
+        entry.method = request.getMethod();
+        entry.target = request.getTarget();
+        entry.version = request.getVersion();
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.micros = micros;
+        if (combined) {
+            entry.referer = request.getHeader("referer");
+            entry.userAgent = request.getHeader("user-agent");
+        }
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Returns the number of entries which were dropped because the buffer was full.
+     *
+     * @return the number of dropped entries.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the waiting entries, forces the file to disk and closes it. Entries logged afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the entries from the ring buffer and writes them in batches until the log is closed. A batch is
+     * written when it is large enough or when no more entries are waiting.
+     */
+    private void drain() {
+        long head = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) == head + 1) {
+                Entry entry = entries[index];
+                format(entry);
+                entry.clear();
+                sequences.lazySet(index, head + entries.length);
+                head++;
+                if (batch.length() >= BATCH_SIZE) {
+                    flushBatch();
+                }
+                continue;
+            }
+            flushBatch();
+            if (closed) {
+                break;
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+        try {
+            if (unsynced) {
+                channel.force(false);
+            }
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the batch and maintains the file. If that fails, the batch is lost, but the writer goes on with the
+     * next entries.
+     */
+    private void flushBatch() {
+        try {
+            write();
+            maintain();
+        } catch (IOException e) {
+            e.printStackTrace();
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * Appends the given entry to the batch.
+     *
+     * @param entry the entry.
+     */
+    private void format(Entry entry) {
+        long second = Math.floorDiv(entry.time, 1000);
+        if (second != cachedSecond) {
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+            cachedSecond = second;
+        }
+        StringBuilder sb = batch;
+        sb.append(entry.client == null ? "-" : entry.client).append(" - - [").append(cachedTime).append("] \"");
+        escape(sb, entry.method).append(' ');
+        escape(sb, entry.target).append(' ');
+        escape(sb, entry.version).append("\" ").append(entry.status).append(' ').append(entry.bytes);
+        if (combined) {
+            quote(sb.append(' '), entry.referer);
+            quote(sb.append(' '), entry.userAgent);
+        }
+        sb.append(' ').append(entry.micros).append('\n');
+    }
+
+    /**
+     * Appends the given value in quotes, or "-" if there is no value.
+     *
+     * @param sb    the builder.
+     * @param value the value, or null.
+     */
+    private static void quote(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append('-');
+            return;
+        }
+        escape(sb.append('"'), value).append('"');
+    }
+
+    /**
+     * Appends the given value, escaping quotes, backslashes and control characters.
+     *
+     * @param sb    the builder.
+     * @param value the value.
+     * @return the given builder.
+     */
+    private static StringBuilder escape(StringBuilder sb, String value) {
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Writes the batch to the file.
+     *
+     * @throws IOException if an error occurred while writing.
+     */
+    private void write() throws IOException {
+        if (batch.length() == 0) {
+            return;
+        }
+        writer.append(batch);
+        writer.flush();
+        batch.setLength(0);
+        unsynced = true;
+    }
+
+    /**
+     * Forces the file to disk if the interval is over and rolls it over if it is too large or too old.
+     *
+     * @throws IOException if an error occurred while forcing or rolling over the file.
+     */
+    private void maintain() throws IOException {
+        long now = System.currentTimeMillis();
+        if (unsynced && fsyncInterval > 0 && now - lastSync >= fsyncInterval) {
+            channel.force(false);
+            unsynced = false;
+            lastSync = now;
+        }
+        if (maxSize > 0 && channel.size() >= maxSize || rollAt > 0 && now >= rollAt) {
+            if (channel.size() > 0) {
+                roll(now);
+            } else {
+                rollAt = rollInterval > 0 ? now + rollInterval : 0;
+            }
+        }
+    }
+
+    /**
+     * Closes the current file, renames it with the given time as a suffix and opens a new one.
+     *
+     * @param now the current time in milliseconds.
+     * @throws IOException if an error occurred while rolling over the file.
+     */
+    private void roll(long now) throws IOException {
+        channel.force(false);
+        unsynced = false;
+        writer.close();
+        String name = file.getFileName() + "." + ROLL_FORMAT.format(Instant.ofEpochMilli(now));
+        Path target = file.resolveSibling(name);
+        for (int i = 1; Files.exists(target); i++) {
+            target = file.resolveSibling(name + "-" + i);
+        }
+        Files.move(file, target);
+        open();
+    }
+
+    /**
+     * Opens the log file for appending.
+     *
+     * @throws IOException if the file can not be opened.
+     */
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.WRITE);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                StandardCharsets.UTF_8), BATCH_SIZE);
+        long now = System.currentTimeMillis();
+        rollAt = rollInterval > 0 ? now + rollInterval : 0;
+        lastSync = now;
+    }
+
+    /**
+     * Represents a slot of the ring buffer, which is reused for the entries put into it.
+     */
+    private static class Entry {
+
+        /**
+         * The time in milliseconds when the request started.
+         */
+        private long time;
+
+        /**
+         * The address of the client, or null.
+         */
+        private String client;
+
+        /**
+         * The request method.
+         */
+        private String method;
+
+        /**
+         * The request target.
+         */
+        private String target;
+
+        /**
+         * The protocol version.
+         */
+        private String version;
+
+        /**
+         * The status code of the response.
+         */
+        private int status;
+
+        /**
+         * The number of bytes sent.
+         */
+        private long bytes;
+
+        /**
+         * The duration of the request in microseconds.
+         */
+        private long micros;
+
+        /**
+         * The value of the "Referer" header, or null.
+         */
+        private String referer;
+
+        /**
+         * The value of the "User-Agent" header, or null.
+         */
+        private String userAgent;
+
+        /**
+         * Drops the references of the entry once it is written.
+         */
+        private void clear() {
+            client = null;
+            method = null;
+            target = null;
+            version = null;
+            referer = null;
+            userAgent = null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Represents a part of a request body: a file uploaded through a multipart form or a body which is not a form at
+ * all. The bytes of a part are kept in memory up to a threshold; a larger part is written to a temporary file, so
+ * that a large upload never sits in the heap. The temporary file is deleted when the request is done, unless the
+ * part is saved with {@link #saveTo(Path)} before.
+ */
+public class BodyPart {
+
+    /**
+     * The name of the form field, or null if the part is the whole body.
+     */
+    private final String name;
+
+    /**
+     * The name of the uploaded file, or null.
+     */
+    private final String fileName;
+
+    /**
+     * The content type, or null if it is not known.
+     */
+    private final String contentType;
+
+    /**
+     * The number of bytes which are kept in memory.
+     */
+    private final int memoryThreshold;
+
+    /**
+     * The directory of temporary files, or null for the default one.
+     */
+    private final Path tempDir;
+
+    /**
+     * The bytes of a part kept in memory, or null if the part is in a file.
+     */
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    /**
+     * The temporary file, or null if the part is kept in memory.
+     */
+    private Path file;
+
+    /**
+     * The stream which writes the temporary file while the part is received.
+     */
+    private OutputStream fileStream;
+
+    /**
+     * The number of bytes of the part.
+     */
+    private long size;
+
+    /**
+     * The flag indicating whether the temporary file was saved and must not be deleted.
+     */
+    private boolean saved;
+
+    /**
+     * Creates an instance of {@link BodyPart}.
+     *
+     * @param name            the name of the form field, or null if the part is the whole body.
+     * @param fileName        the name of the uploaded file, or null.
+     * @param contentType     the content type, or null if it is not known.
+     * @param memoryThreshold the number of bytes which are kept in memory.
+     * @param tempDir         the directory of temporary files, or null for the default one.
+     */
+    BodyPart(String name, String fileName, String contentType, int memoryThreshold, Path tempDir) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.memoryThreshold = memoryThreshold;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Returns the name of the form field.
+     *
+     * @return the name of the form field, or null if the part is the whole body.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the name of the uploaded file as given by the client. It must not be used as a path without being
+     * checked.
+     *
+     * @return the name of the uploaded file, or null.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the content type.
+     *
+     * @return the content type, or null if it is not known.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the number of bytes of the part.
+     *
+     * @return the number of bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if the part is kept in memory.
+     *
+     * @return true if the part is kept in memory.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Returns a stream which reads the bytes of the part.
+     *
+     * @return the stream.
+     * @throws IOException if the temporary file can not be opened.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Returns the bytes of the part. A large part should be read through {@link #getInputStream()} instead.
+     *
+     * @return the bytes.
+     * @throws IOException if the temporary file can not be read.
+     */
+    public byte[] getBytes() throws IOException {
+        return file == null ? memory.toByteArray() : Files.readAllBytes(file);
+    }
+
+    /**
+     * Saves the part to the given file. A part in a temporary file is moved, so it is not copied again.
+     *
+     * @param target the file.
+     * @throws IOException if the part can not be saved.
+     */
+    public void saveTo(Path target) throws IOException {
+        if (file == null) {
+            Files.write(target, memory.toByteArray());
+            return;
+        }
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        file = target;
+        memory = null;
+        saved = true;
+    }
+
+    /**
+     * Appends the given bytes to the part, moving it to a temporary file once it grows over the threshold.
+     *
+     * @param b   the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @throws IOException if the temporary file can not be written.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        size += len;
+        if (file == null) {
+            if (memory.size() + len <= memoryThreshold) {
+                memory.write(b, off, len);
+                return;
+            }
+            file = tempDir == null ? Files.createTempFile("upload", ".tmp")
+                    : Files.createTempFile(tempDir, "upload", ".tmp");
+            fileStream = new BufferedOutputStream(Files.newOutputStream(file), 8192);
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+        fileStream.write(b, off, len);
+    }
+
+    /**
+     * Completes the part after its last byte.
+     *
+     * @throws IOException if the temporary file can not be written.
+     */
+    void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Deletes the temporary file of the part, unless it was saved.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException ignorable) {
+            // the file is deleted anyway
+        }
+        if (file != null && !saved) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
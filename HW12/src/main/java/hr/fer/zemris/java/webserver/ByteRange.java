@@ -0,0 +1,157 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Represents a range of bytes of a file, requested through the "Range" header.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc9110#name-range-requests">Range requests</a>
+ */
+public class ByteRange {
+
+    /**
+     * The maximum number of ranges in one request. A request for more ranges is ignored and the whole file is
+     * sent, so that a client can not make the server send a file in many small pieces.
+     */
+    public static final int MAX_RANGES = 16;
+
+    /**
+     * The position of the first byte.
+     */
+    private final long start;
+
+    /**
+     * The position of the last byte.
+     */
+    private final long end;
+
+    /**
+     * Creates an instance of {@link ByteRange}.
+     *
+     * @param start the position of the first byte.
+     * @param end   the position of the last byte.
+     */
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the position of the first byte.
+     *
+     * @return the position of the first byte.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the position of the last byte.
+     *
+     * @return the position of the last byte.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of bytes in this range.
+     *
+     * @return the number of bytes in this range.
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the value of the "Content-Range" header for this range.
+     *
+     * @param length the length of the file.
+     * @return the value of the "Content-Range" header.
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    /**
+     * Parses the value of the "Range" header. The ranges which are not satisfiable are dropped and the others are
+     * sorted, with overlapping and adjacent ranges merged.
+     *
+     * @param value  the value of the "Range" header.
+     * @param length the length of the file.
+     * @return the satisfiable ranges, which is an empty list if none of the ranges is satisfiable, or null if the
+     * header is invalid or asks for too many ranges and should be ignored.
+     */
+    public static List<ByteRange> parse(String value, long length) {
+        value = value.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * Sorts the given ranges and merges the overlapping and adjacent ones.
+     *
+     * @param ranges the ranges.
+     * @return the merged ranges.
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return Collections.unmodifiableList(merged);
+    }
+}
@@ -0,0 +1,68 @@
+package hr.fer.zemris.java.webserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Represents the limit on the number of connections which one client address may have open at the same time, so
+ * that a single client can not occupy all connections of the server.
+ */
+public class ConnectionLimiter {
+
+    /**
+     * The maximum number of open connections of one address.
+     */
+    private final int limit;
+
+    /**
+     * The numbers of open connections, by client address. Addresses without connections are removed.
+     */
+    private final ConcurrentMap<InetAddress, Integer> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance of {@link ConnectionLimiter}.
+     *
+     * @param limit the maximum number of open connections of one address.
+     * @throws IllegalArgumentException if the limit is not positive.
+     */
+    public ConnectionLimiter(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The connection limit must be positive.");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Counts a new connection of the given address, unless the address already has as many connections as
+     * allowed.
+     *
+     * @param address the client address.
+     * @return true if the connection is allowed, false if it must be refused.
+     */
+    public boolean tryAcquire(InetAddress address) {
+        if (counts.merge(address, 1, Integer::sum) > limit) {
+            release(address);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts off a closed connection of the given address, which was allowed by {@link #tryAcquire(InetAddress)}.
+     *
+     * @param address the client address.
+     */
+    public void release(InetAddress address) {
+        counts.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Returns the number of addresses with open connections.
+     *
+     * @return the number of addresses.
+     */
+    public int size() {
+        return counts.size();
+    }
+}
@@ -0,0 +1,212 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Represents a region of a file which is sent as the body of a response. The region is transferred straight
+ * from the file to a channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)}; when the
+ * target is only an output stream, it is copied through large direct buffers.
+ * <p>
+ * A region may be preceded by a few bytes which are sent before it (e.g. the header of a part of a multipart
+ * body) and followed by another region, so that a body made of several parts is sent as one chain.
+ * </p>
+ */
+class FileRegion implements Closeable {
+
+    /**
+     * The size of buffers used when copying to an output stream.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of buffers kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    /**
+     * The direct buffers kept for reuse.
+     */
+    private static final Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The file channel.
+     */
+    private FileChannel channel;
+
+    /**
+     * The position of the next byte to send.
+     */
+    private long position;
+
+    /**
+     * The position after the last byte to send.
+     */
+    private long end;
+
+    /**
+     * The bytes sent before the region, or null.
+     */
+    private ByteBuffer prefix;
+
+    /**
+     * The region sent after this one, or null.
+     */
+    private FileRegion next;
+
+    /**
+     * Creates an instance of {@link FileRegion}.
+     *
+     * @param channel  the file channel.
+     * @param position the position of the first byte.
+     * @param count    the number of bytes.
+     */
+    public FileRegion(FileChannel channel, long position, long count) {
+        this(channel, position, count, null);
+    }
+
+    /**
+     * Creates an instance of {@link FileRegion} which is preceded by the given bytes.
+     *
+     * @param channel  the file channel.
+     * @param position the position of the first byte.
+     * @param count    the number of bytes.
+     * @param prefix   the bytes sent before the region, or null.
+     */
+    public FileRegion(FileChannel channel, long position, long count, byte[] prefix) {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + count;
+        this.prefix = prefix == null ? null : ByteBuffer.wrap(prefix);
+    }
+
+    /**
+     * Sets the region which is sent after this one.
+     *
+     * @param next the next region.
+     * @return the next region.
+     */
+    public FileRegion setNext(FileRegion next) {
+        this.next = next;
+        return next;
+    }
+
+    /**
+     * Returns the number of bytes which are not sent yet, including the following regions.
+     *
+     * @return the number of bytes which are not sent yet.
+     */
+    public long remaining() {
+        long remaining = end - position + (prefix == null ? 0 : prefix.remaining());
+        return next == null ? remaining : remaining + next.remaining();
+    }
+
+    /**
+     * Transfers the region to the given channel. A blocking channel receives the whole region; a non-blocking
+     * one receives as much as it accepts.
+     *
+     * @param target the target channel.
+     * @return true if the whole region has been transferred.
+     * @throws IOException if an error occurred while transferring or the file was truncated.
+     */
+    public boolean transferTo(WritableByteChannel target) throws IOException {
+        while (prefix != null && prefix.hasRemaining()) {
+            if (target.write(prefix) <= 0) {
+                return false;
+            }
+        }
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                if (position >= channel.size()) {
+                    throw new EOFException("The file was truncated.");
+                }
+                return false;
+            }
+            position += n;
+        }
+        return next == null || next.transferTo(target);
+    }
+
+    /**
+     * Copies the region to the given output stream.
+     *
+     * @param os the output stream.
+     * @throws IOException if an error occurred while copying or the file was truncated.
+     */
+    public void copyTo(OutputStream os) throws IOException {
+        if (prefix != null && prefix.hasRemaining()) {
+            os.write(prefix.array(), prefix.position(), prefix.remaining());
+            prefix.position(prefix.limit());
+        }
+        WritableByteChannel target = Channels.newChannel(os);
+        ByteBuffer buffer = BUFFERS.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int r = channel.read(buffer, position);
+                if (r < 0) {
+                    throw new EOFException("The file was truncated.");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += r;
+            }
+        } finally {
+            if (BUFFERS.size() < MAX_POOLED_BUFFERS) {
+                BUFFERS.add(buffer);
+            }
+        }
+        if (next != null) {
+            next.copyTo(os);
+        }
+    }
+
+    /**
+     * Reads the next bytes of the region into the given array, e.g. to send them in frames of a limited size.
+     *
+     * @param b   the array.
+     * @param off the offset of the first byte.
+     * @param len the maximum number of bytes.
+     * @return the number of bytes read, or -1 if the whole region has been read.
+     * @throws IOException if an error occurred while reading or the file was truncated.
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (prefix != null && prefix.hasRemaining()) {
+            int n = Math.min(len, prefix.remaining());
+            prefix.get(b, off, n);
+            return n;
+        }
+        if (position < end) {
+            int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (r < 0) {
+                throw new EOFException("The file was truncated.");
+            }
+            position += r;
+            return r;
+        }
+        return next == null ? -1 : next.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (next != null) {
+            next.close();
+        }
+    }
+}
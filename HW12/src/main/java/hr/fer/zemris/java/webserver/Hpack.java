@@ -0,0 +1,677 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Represents the header compression of HTTP/2 (HPACK, RFC 7541). A header block is a sequence of references to
+ * a static table of common headers and to a dynamic table which both ends build from the headers they exchange,
+ * and of literal names and values which may be Huffman coded. Each direction of a connection has its own
+ * {@link Encoder} and {@link Decoder}; they are stateful and must see every header block of their direction in
+ * order.
+ * <p>
+ * Header names and values are handled as ISO-8859-1 strings, so every octet maps to one character and the sizes
+ * of the tables are the lengths of the strings.
+ * </p>
+ */
+public final class Hpack {
+
+    /**
+     * The default maximum size of a dynamic table in octets.
+     */
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * The overhead of an entry of a dynamic table in octets.
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * The longest string which is decoded, so that a malicious length can not exhaust the memory.
+     */
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+
+    /**
+     * The entries of the static table; index 0 is unused.
+     */
+    private static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /**
+     * The index of the first entry with the given name in the static table.
+     */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /**
+     * The index of the entry with the given name and value in the static table, keyed by
+     * <code>name + '\0' + value</code>.
+     */
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    /**
+     * The Huffman codes of the octets, right aligned.
+     */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    /**
+     * The lengths in bits of the Huffman codes of the octets.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /**
+     * The Huffman code of the end of string symbol, whose most significant bits pad a coded string.
+     */
+    private static final int EOS_CODE = 0x3fffffff;
+
+    /**
+     * The length in bits of the Huffman code of the end of string symbol.
+     */
+    private static final int EOS_LENGTH = 30;
+
+    /**
+     * The decoding tree of Huffman codes. Node <code>n</code> has its children at <code>2n</code> (bit 0) and
+     * <code>2n + 1</code> (bit 1); a positive child is the index of an inner node, a negative one is the leaf
+     * of the symbol <code>-child - 1</code>, and 0 is a missing child. The root is node 0.
+     */
+    private static final int[] HUFFMAN_TREE = new int[2 * 257];
+
+    /**
+     * The headers which are never added to the dynamic table, because their values differ from response to
+     * response or must not be exposed to compression based attacks.
+     */
+    private static final Set<String> NOT_INDEXED = new HashSet<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i > 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+            STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+        }
+        int nodes = 1;
+        for (int symbol = 0; symbol <= 256; symbol++) {
+            int code = symbol == 256 ? EOS_CODE : HUFFMAN_CODES[symbol];
+            int length = symbol == 256 ? EOS_LENGTH : HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -symbol - 1;
+        }
+        NOT_INDEXED.add("content-length");
+        NOT_INDEXED.add("content-range");
+        NOT_INDEXED.add("etag");
+        NOT_INDEXED.add("last-modified");
+        NOT_INDEXED.add("date");
+    }
+
+    /**
+     * Prevents the creation of instances.
+     */
+    private Hpack() {
+    }
+
+    /**
+     * Represents the decoder of the header blocks received over one connection.
+     */
+    public static class Decoder {
+
+        /**
+         * The dynamic table.
+         */
+        private final DynamicTable table;
+
+        /**
+         * The largest size of the dynamic table which the encoder may choose.
+         */
+        private final int maxTableSize;
+
+        /**
+         * Creates an instance of {@link Decoder}.
+         *
+         * @param maxTableSize the largest size of the dynamic table which the encoder may choose, as announced to
+         *                     it in the settings.
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block and hands each header to the given consumer in order.
+         *
+         * @param block    the bytes of the block.
+         * @param off      the offset of the first byte.
+         * @param len      the number of bytes.
+         * @param consumer the consumer of header names and values.
+         * @throws IllegalArgumentException if the block is malformed.
+         */
+        public void decode(byte[] block, int off, int len, BiConsumer<String, String> consumer) {
+            int[] pos = {off};
+            int end = off + len;
+            boolean headerSeen = false;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    String[] entry = entry(decodeInt(block, pos, end, 7));
+                    consumer.accept(entry[0], entry[1]);
+                    headerSeen = true;
+                } else if ((b & 0xC0) == 0x40) {
+                    String[] header = literal(block, pos, end, 6);
+                    table.add(header[0], header[1]);
+                    consumer.accept(header[0], header[1]);
+                    headerSeen = true;
+                } else if ((b & 0xE0) == 0x20) {
+                    int size = decodeInt(block, pos, end, 5);
+                    if (headerSeen || size > maxTableSize) {
+                        throw new IllegalArgumentException("Invalid dynamic table size update.");
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    String[] header = literal(block, pos, end, 4);
+                    consumer.accept(header[0], header[1]);
+                    headerSeen = true;
+                }
+            }
+        }
+
+        /**
+         * Decodes a literal header, whose name is either indexed or literal.
+         *
+         * @param block  the bytes of the block.
+         * @param pos    the position of the first byte, advanced past the header.
+         * @param end    the end of the block.
+         * @param prefix the number of bits of the prefix of the name index.
+         * @return the name and the value.
+         */
+        private String[] literal(byte[] block, int[] pos, int end, int prefix) {
+            int index = decodeInt(block, pos, end, prefix);
+            String name = index == 0 ? decodeString(block, pos, end) : entry(index)[0];
+            return new String[]{name, decodeString(block, pos, end)};
+        }
+
+        /**
+         * Returns the entry of the static or the dynamic table with the given index.
+         *
+         * @param index the index.
+         * @return the name and the value of the entry.
+         */
+        private String[] entry(int index) {
+            if (index <= 0) {
+                throw new IllegalArgumentException("Invalid index " + index + ".");
+            }
+            if (index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            String[] entry = table.get(index - STATIC_TABLE.length + 1);
+            if (entry == null) {
+                throw new IllegalArgumentException("Invalid index " + index + ".");
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Represents the encoder of the header blocks sent over one connection.
+     */
+    public static class Encoder {
+
+        /**
+         * The dynamic table.
+         */
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+        /**
+         * The smallest table size which was set since the last header block, or -1 if the size was not changed.
+         */
+        private int minSizeUpdate = -1;
+
+        /**
+         * Sets the maximum size of the dynamic table, as limited by the settings of the decoder. The change is
+         * announced at the start of the next header block.
+         *
+         * @param size the maximum size in octets.
+         */
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize && minSizeUpdate == -1) {
+                return;
+            }
+            minSizeUpdate = minSizeUpdate == -1 ? size : Math.min(minSizeUpdate, size);
+            table.setMaxSize(size);
+        }
+
+        /**
+         * Encodes one header. The first header of a block also announces a pending change of the table size.
+         *
+         * @param name  the name of the header, in lower case.
+         * @param value the value.
+         * @param out   the stream of the header block.
+         */
+        public void encode(String name, String value, ByteArrayOutputStream out) {
+            if (minSizeUpdate != -1) {
+                if (minSizeUpdate < table.maxSize) {
+                    encodeInt(out, 0x20, 5, minSizeUpdate);
+                }
+                encodeInt(out, 0x20, 5, table.maxSize);
+                minSizeUpdate = -1;
+            }
+            Integer index = STATIC_ENTRIES.get(name + '\0' + value);
+            if (index == null) {
+                int dynamic = table.indexOf(name, value);
+                index = dynamic > 0 ? dynamic + STATIC_TABLE.length - 1 : null;
+            }
+            if (index != null) {
+                encodeInt(out, 0x80, 7, index);
+                return;
+            }
+            Integer nameIndex = STATIC_NAMES.get(name);
+            if (nameIndex == null) {
+                int dynamic = table.indexOf(name, null);
+                nameIndex = dynamic > 0 ? dynamic + STATIC_TABLE.length - 1 : 0;
+            }
+            if (name.equals("set-cookie") || name.equals("cookie") || name.equals("authorization")) {
+                encodeInt(out, 0x10, 4, nameIndex);
+            } else if (NOT_INDEXED.contains(name)) {
+                encodeInt(out, 0x00, 4, nameIndex);
+            } else {
+                encodeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                encodeString(out, name);
+            }
+            encodeString(out, value);
+        }
+    }
+
+    /**
+     * Represents a dynamic table: a list of headers, the most recently added first, whose total size is bounded.
+     * The oldest entries are evicted to make room for new ones.
+     */
+    private static class DynamicTable {
+
+        /**
+         * The ring of entries; the newest is at <code>head - 1</code>.
+         */
+        private String[][] entries = new String[16][];
+
+        /**
+         * The index after the newest entry in the ring.
+         */
+        private int head;
+
+        /**
+         * The number of entries.
+         */
+        private int count;
+
+        /**
+         * The size of the entries in octets.
+         */
+        private int size;
+
+        /**
+         * The maximum size of the entries in octets.
+         */
+        private int maxSize;
+
+        /**
+         * Creates an instance of {@link DynamicTable}.
+         *
+         * @param maxSize the maximum size of the entries in octets.
+         */
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Returns the entry with the given index.
+         *
+         * @param index the index, 1 for the newest entry.
+         * @return the name and the value of the entry, or null if there is no such entry.
+         */
+        String[] get(int index) {
+            if (index < 1 || index > count) {
+                return null;
+            }
+            return entries[(head - index + entries.length) % entries.length];
+        }
+
+        /**
+         * Finds the newest entry with the given name and value.
+         *
+         * @param name  the name.
+         * @param value the value, or null to match only the name.
+         * @return the index of the entry, or 0 if there is no such entry.
+         */
+        int indexOf(String name, String value) {
+            for (int i = 1; i <= count; i++) {
+                String[] entry = get(i);
+                if (entry[0].equals(name) && (value == null || entry[1].equals(value))) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Adds an entry, evicting the oldest entries as needed. An entry larger than the table empties it.
+         *
+         * @param name  the name.
+         * @param value the value.
+         */
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (count == entries.length) {
+                String[][] larger = new String[entries.length * 2][];
+                for (int i = 0; i < count; i++) {
+                    larger[count - 1 - i] = get(i + 1);
+                }
+                entries = larger;
+                head = count;
+            }
+            entries[head] = new String[]{name, value};
+            head = (head + 1) % entries.length;
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * Sets the maximum size, evicting the oldest entries which do not fit any more.
+         *
+         * @param maxSize the maximum size in octets.
+         */
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Evicts the oldest entries until the size is at most the given one.
+         *
+         * @param limit the size.
+         */
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                String[] oldest = entries[(head - count + entries.length) % entries.length];
+                size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Decodes an integer with the given prefix (RFC 7541, section 5.1).
+     *
+     * @param block  the bytes.
+     * @param pos    the position of the first byte, advanced past the integer.
+     * @param end    the end of the bytes.
+     * @param prefix the number of bits of the prefix.
+     * @return the integer.
+     * @throws IllegalArgumentException if the integer is truncated or too large.
+     */
+    private static int decodeInt(byte[] block, int[] pos, int end, int prefix) {
+        int max = (1 << prefix) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; ; shift += 7) {
+            if (pos[0] >= end || shift > 21) {
+                throw new IllegalArgumentException("Invalid integer.");
+            }
+            int b = block[pos[0]++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Decodes a string literal, which may be Huffman coded (RFC 7541, section 5.2).
+     *
+     * @param block the bytes.
+     * @param pos   the position of the first byte, advanced past the string.
+     * @param end   the end of the bytes.
+     * @return the string.
+     * @throws IllegalArgumentException if the string is truncated, too long or badly coded.
+     */
+    private static String decodeString(byte[] block, int[] pos, int end) {
+        if (pos[0] >= end) {
+            throw new IllegalArgumentException("Missing string.");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = decodeInt(block, pos, end, 7);
+        if (length > end - pos[0] || length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Invalid string length.");
+        }
+        int start = pos[0];
+        pos[0] += length;
+        if (!huffman) {
+            return new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int bits = 0;
+        boolean ones = true;
+        for (int i = start; i < start + length; i++) {
+            int b = block[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + one];
+                bits++;
+                ones &= one == 1;
+                if (child > 0) {
+                    node = child;
+                    continue;
+                }
+                if (child == 0 || child == -257) {
+                    throw new IllegalArgumentException("Invalid Huffman code.");
+                }
+                sb.append((char) (-child - 1));
+                node = 0;
+                bits = 0;
+                ones = true;
+            }
+        }
+        if (bits > 7 || !ones) {
+            throw new IllegalArgumentException("Invalid Huffman padding.");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes an integer with the given prefix (RFC 7541, section 5.1).
+     *
+     * @param out    the stream.
+     * @param flags  the bits of the first byte above the prefix.
+     * @param prefix the number of bits of the prefix.
+     * @param value  the integer.
+     */
+    private static void encodeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Encodes a string literal, Huffman coded if that makes it shorter (RFC 7541, section 5.2).
+     *
+     * @param out   the stream.
+     * @param value the string.
+     */
+    private static void encodeString(ByteArrayOutputStream out, String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            encodeInt(out, 0x00, 7, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                out.write(value.charAt(i));
+            }
+            return;
+        }
+        encodeInt(out, 0x80, 7, huffmanLength);
+        long buffer = 0;
+        int buffered = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.charAt(i) & 0xFF;
+            buffer = (buffer << HUFFMAN_LENGTHS[c]) | HUFFMAN_CODES[c];
+            buffered += HUFFMAN_LENGTHS[c];
+            while (buffered >= 8) {
+                buffered -= 8;
+                out.write((int) (buffer >>> buffered));
+            }
+        }
+        if (buffered > 0) {
+            out.write((int) ((buffer << (8 - buffered)) | (0xFF >>> buffered)));
+        }
+    }
+}
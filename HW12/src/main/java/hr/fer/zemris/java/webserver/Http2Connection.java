@@ -0,0 +1,1590 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Future;
+
+/**
+ * Represents the HTTP/2 protocol of one cleartext connection (h2c, RFC 7540), independent of how the connection is
+ * read and written. The transport hands the received bytes to {@link #feed(byte[], int, int)} and writes what
+ * {@link #takeOutput()} returns; both transports of the server drive it the same way.
+ * <p>
+ * Each stream carries one request. Once its headers and body are received, it is handed to the {@link Handler},
+ * which serves it on another thread through the usual request path and passes the response back to
+ * {@link #respond(Stream, byte[], FileRegion)}. Many streams are served at the same time over the one
+ * connection, and their responses are sent interleaved in frames as the flow control windows of the client allow,
+ * so a large response does not hold up the small ones.
+ * </p>
+ * <p>
+ * A connection starts either with the preface of a client which knows that the server speaks HTTP/2, or with an
+ * HTTP/1.1 request which asks to upgrade to it ("Upgrade: h2c"); the upgraded request becomes stream 1. Server push
+ * and priorities are not supported. All methods are synchronized, so the connection may be used from the thread
+ * which reads it and from the threads which serve its streams.
+ * </p>
+ */
+public class Http2Connection {
+
+    /**
+     * The type of a frame which carries the body of a request or a response.
+     */
+    private static final int DATA = 0x0;
+
+    /**
+     * The type of a frame which opens a stream with a header block.
+     */
+    private static final int HEADERS = 0x1;
+
+    /**
+     * The type of a frame which sets the priority of a stream.
+     */
+    private static final int PRIORITY = 0x2;
+
+    /**
+     * The type of a frame which terminates a stream.
+     */
+    private static final int RST_STREAM = 0x3;
+
+    /**
+     * The type of a frame which carries settings.
+     */
+    private static final int SETTINGS = 0x4;
+
+    /**
+     * The type of a frame which promises a pushed stream.
+     */
+    private static final int PUSH_PROMISE = 0x5;
+
+    /**
+     * The type of a frame which measures the round trip time.
+     */
+    private static final int PING = 0x6;
+
+    /**
+     * The type of a frame which shuts the connection down.
+     */
+    private static final int GOAWAY = 0x7;
+
+    /**
+     * The type of a frame which widens a flow control window.
+     */
+    private static final int WINDOW_UPDATE = 0x8;
+
+    /**
+     * The type of a frame which continues a header block.
+     */
+    private static final int CONTINUATION = 0x9;
+
+    /**
+     * The flag of the last frame of a stream.
+     */
+    private static final int FLAG_END_STREAM = 0x1;
+
+    /**
+     * The flag of a frame which acknowledges settings or a ping.
+     */
+    private static final int FLAG_ACK = 0x1;
+
+    /**
+     * The flag of the last frame of a header block.
+     */
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    /**
+     * The flag of a padded frame.
+     */
+    private static final int FLAG_PADDED = 0x8;
+
+    /**
+     * The flag of a header frame which carries a priority.
+     */
+    private static final int FLAG_PRIORITY = 0x20;
+
+    /**
+     * The setting of the size of the dynamic header table.
+     */
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    /**
+     * The setting which enables server push.
+     */
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    /**
+     * The setting of the maximum number of concurrent streams.
+     */
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    /**
+     * The setting of the initial flow control window of streams.
+     */
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    /**
+     * The setting of the maximum frame size.
+     */
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    /**
+     * The setting of the maximum size of a header list.
+     */
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * The error code of a graceful shutdown.
+     */
+    private static final int NO_ERROR = 0x0;
+
+    /**
+     * The error code of a protocol violation.
+     */
+    private static final int PROTOCOL_ERROR = 0x1;
+
+    /**
+     * The error code of an unexpected failure of the server.
+     */
+    private static final int INTERNAL_ERROR = 0x2;
+
+    /**
+     * The error code of a violation of flow control.
+     */
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+
+    /**
+     * The error code of a frame received on a closed stream.
+     */
+    private static final int STREAM_CLOSED = 0x5;
+
+    /**
+     * The error code of a frame of an invalid size.
+     */
+    private static final int FRAME_SIZE_ERROR = 0x6;
+
+    /**
+     * The error code of a stream which was refused before it was processed.
+     */
+    private static final int REFUSED_STREAM = 0x7;
+
+    /**
+     * The error code of a header block which can not be decoded.
+     */
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    /**
+     * The error code of a peer which behaves in a way that might be abusive.
+     */
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * The connection preface sent by clients.
+     */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The length of the first part of the preface, which reads as an HTTP/1 request head.
+     */
+    private static final int PREFACE_HEAD_LENGTH = 18;
+
+    /**
+     * The response which accepts an upgrade to HTTP/2.
+     */
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Upgrade: h2c\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The length of a frame header.
+     */
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    /**
+     * The initial flow control window defined by the protocol.
+     */
+    private static final int DEFAULT_WINDOW = 65535;
+
+    /**
+     * The largest frame which is received, the default of the protocol.
+     */
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * The flow control window of the connection and of each stream for received bodies.
+     */
+    private static final int RECEIVE_WINDOW = 1 << 20;
+
+    /**
+     * The number of buffered output bytes above which no more body frames are produced until the output is taken.
+     */
+    private static final int HIGH_WATER = 64 * 1024;
+
+    /**
+     * The largest flow control window.
+     */
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    /**
+     * The headers which are specific to an HTTP/1 connection and are not used in HTTP/2.
+     */
+    private static final List<String> CONNECTION_HEADERS = List.of("connection", "keep-alive",
+            "proxy-connection", "transfer-encoding", "upgrade");
+
+    /**
+     * Represents the part of the server which serves the streams of a connection.
+     */
+    public interface Handler {
+
+        /**
+         * Creates the body of the given request, which is followed by data frames.
+         *
+         * @param request the request.
+         * @return the body, or null if the body of the request is ignored.
+         * @throws HttpRequestException if the body can not be accepted.
+         */
+        RequestBody openBody(HttpRequest request);
+
+        /**
+         * Serves a request whose headers and body have been received. The response must be passed to
+         * {@link #respond(Stream, byte[], FileRegion)}, or the stream must be refused with
+         * {@link #refuse(Stream)}. The method is called while the connection is locked, so the request should be
+         * served on another thread.
+         *
+         * @param stream  the stream of the request.
+         * @param request the request.
+         * @param body    the body of the request, or null if it has none.
+         */
+        void handle(Stream stream, HttpRequest request, RequestBody body);
+    }
+
+    /**
+     * Represents a stream of the connection: one request and its response.
+     */
+    public class Stream {
+
+        /**
+         * The stream identifier.
+         */
+        private final int id;
+
+        /**
+         * The body of the request which is being received, or null.
+         */
+        private RequestBody body;
+
+        /**
+         * The request whose body is being received, or null.
+         */
+        private HttpRequest request;
+
+        /**
+         * The flag indicating whether the client has sent its last frame on the stream.
+         */
+        private boolean remoteClosed;
+
+        /**
+         * The flag indicating whether the request was handed to the handler.
+         */
+        private boolean dispatched;
+
+        /**
+         * The flag indicating whether the stream was closed before its response was sent.
+         */
+        private boolean reset;
+
+        /**
+         * The number of bytes which may be sent on the stream.
+         */
+        private long sendWindow = peerInitialWindow;
+
+        /**
+         * The number of bytes which the client may still send on the stream.
+         */
+        private long receiveWindow = RECEIVE_WINDOW;
+
+        /**
+         * The number of received bytes which were not yet returned to the client through a window update.
+         */
+        private int receivedUnacknowledged;
+
+        /**
+         * The response bytes, of which those from {@link #dataOffset} on are the body which is not sent yet.
+         */
+        private byte[] data;
+
+        /**
+         * The offset of the first body byte which is not sent yet.
+         */
+        private int dataOffset;
+
+        /**
+         * The file region which is sent after the response bytes, or null.
+         */
+        private FileRegion region;
+
+        /**
+         * The work which serves the request, cancelled if the stream is reset.
+         */
+        private Future<?> work;
+
+        /**
+         * Creates an instance of {@link Stream}.
+         *
+         * @param id the stream identifier.
+         */
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns the stream identifier.
+         *
+         * @return the stream identifier.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Sets the asynchronous work which serves the request, so that it is cancelled if the client resets the
+         * stream or the connection is closed first.
+         *
+         * @param work the work.
+         */
+        public void setWork(Future<?> work) {
+            synchronized (Http2Connection.this) {
+                if (reset) {
+                    work.cancel(false);
+                    return;
+                }
+                this.work = work;
+            }
+        }
+
+        /**
+         * Checks whether some of the response is not sent yet.
+         *
+         * @return true if some of the response is not sent yet.
+         */
+        private boolean hasData() {
+            return data != null && dataOffset < data.length || region != null && region.remaining() > 0;
+        }
+
+        /**
+         * Releases the resources of a stream which is closed before its response was sent.
+         */
+        private void release() {
+            reset = true;
+            if (work != null) {
+                work.cancel(false);
+                work = null;
+            }
+            if (body != null && !dispatched) {
+                body.delete();
+            }
+            body = null;
+            data = null;
+            closeRegion();
+        }
+
+        /**
+         * Closes the file region of the response.
+         */
+        private void closeRegion() {
+            if (region != null) {
+                try {
+                    region.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                region = null;
+            }
+        }
+    }
+
+    /**
+     * Represents an error which closes the connection.
+     */
+    private static class ConnectionException extends Exception {
+
+        /**
+         * The serial version UID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The error code sent to the client.
+         */
+        private final int errorCode;
+
+        /**
+         * Creates an instance of {@link ConnectionException}.
+         *
+         * @param errorCode the error code sent to the client.
+         * @param message   the description of the error.
+         */
+        ConnectionException(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * The handler which serves the streams.
+     */
+    private final Handler handler;
+
+    /**
+     * The maximum number of streams which are open at the same time.
+     */
+    private final int maxConcurrentStreams;
+
+    /**
+     * The maximum size of the headers of a request, counted as defined for HTTP/2 settings.
+     */
+    private final int maxHeaderListSize;
+
+    /**
+     * The decoder of received header blocks.
+     */
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    /**
+     * The encoder of sent header blocks.
+     */
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    /**
+     * The received bytes which are not processed yet.
+     */
+    private byte[] input = new byte[MAX_FRAME_SIZE + FRAME_HEADER_LENGTH];
+
+    /**
+     * The number of bytes in {@link #input}.
+     */
+    private int inputLength;
+
+    /**
+     * The number of bytes of the client preface which were received.
+     */
+    private int prefaceReceived;
+
+    /**
+     * The flag indicating whether the first settings of the client were received.
+     */
+    private boolean settingsReceived;
+
+    /**
+     * The bytes which are not taken by the transport yet.
+     */
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * The open streams by identifier.
+     */
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    /**
+     * The streams with response bodies which are not sent yet, served in turn.
+     */
+    private final Queue<Stream> ready = new ArrayDeque<>();
+
+    /**
+     * The largest identifier of a stream opened by the client.
+     */
+    private int lastStreamId;
+
+    /**
+     * The stream whose header block is continued by the next frame, or 0.
+     */
+    private int continuedStream;
+
+    /**
+     * The flags of the header frame whose block is continued.
+     */
+    private int continuedFlags;
+
+    /**
+     * The header block which is being received.
+     */
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * The initial flow control window of streams, set by the client.
+     */
+    private long peerInitialWindow = DEFAULT_WINDOW;
+
+    /**
+     * The largest frame which the client receives.
+     */
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+
+    /**
+     * The number of bytes which may be sent on the connection.
+     */
+    private long sendWindow = DEFAULT_WINDOW;
+
+    /**
+     * The number of bytes which the client may still send on the connection.
+     */
+    private long receiveWindow = RECEIVE_WINDOW;
+
+    /**
+     * The number of received bytes which were not yet returned to the client through a window update.
+     */
+    private int receivedUnacknowledged;
+
+    /**
+     * The flag indicating whether the server has announced that it does not accept new streams.
+     */
+    private boolean goAwaySent;
+
+    /**
+     * The flag indicating whether the client has announced that it opens no new streams.
+     */
+    private boolean goAwayReceived;
+
+    /**
+     * The flag indicating whether the connection failed and must be closed.
+     */
+    private boolean failed;
+
+    /**
+     * Creates an instance of {@link Http2Connection}.
+     *
+     * @param handler              the handler which serves the streams.
+     * @param maxConcurrentStreams the maximum number of streams which are open at the same time.
+     * @param maxHeaderListSize    the maximum size of the headers of a request.
+     */
+    public Http2Connection(Handler handler, int maxConcurrentStreams, int maxHeaderListSize) {
+        this.handler = handler;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Checks whether the given request head is the start of the preface of a client which speaks HTTP/2 without
+     * an upgrade.
+     *
+     * @param request the request.
+     * @return true if the head is the start of the preface.
+     */
+    public static boolean isPreface(HttpRequest request) {
+        return request.getMethod().equals("PRI") && request.getTarget().equals("*")
+                && request.getVersion().equals("HTTP/2.0") && request.getHeaders().isEmpty();
+    }
+
+    /**
+     * Checks whether the given request asks to upgrade the connection to HTTP/2. Only requests without a body
+     * are upgraded.
+     *
+     * @param request the request.
+     * @return true if the request asks for the upgrade.
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.getHeader("upgrade");
+        String settings = request.getHeader("http2-settings");
+        if (upgrade == null || settings == null || !request.getVersion().equalsIgnoreCase("HTTP/1.1")
+                || request.getHeader("content-length") != null || request.getHeader("transfer-encoding") != null) {
+            return false;
+        }
+        boolean h2c = false;
+        for (String protocol : upgrade.split(",")) {
+            h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        }
+        return h2c && decodeSettings(settings) != null;
+    }
+
+    /**
+     * Starts the connection with the given request: either the start of the client preface, or the request which
+     * asks for the upgrade. The settings of the server are sent; an upgraded request is answered with
+     * "101 Switching Protocols" and handed to the handler as stream 1.
+     *
+     * @param request the request.
+     */
+    public synchronized void start(HttpRequest request) {
+        boolean upgrade = !isPreface(request);
+        if (upgrade) {
+            output.write(SWITCHING_PROTOCOLS, 0, SWITCHING_PROTOCOLS.length);
+        } else {
+            prefaceReceived = PREFACE_HEAD_LENGTH;
+        }
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListSize);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+        writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+        if (!upgrade) {
+            return;
+        }
+        try {
+            byte[] clientSettings = decodeSettings(request.getHeader("http2-settings"));
+            applySettings(clientSettings, 0, clientSettings.length);
+        } catch (ConnectionException e) {
+            fail(e);
+            return;
+        }
+        Map<String, String> headers = new HashMap<>(request.getHeaders());
+        headers.keySet().removeAll(CONNECTION_HEADERS);
+        headers.remove("http2-settings");
+        Stream stream = new Stream(1);
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        lastStreamId = 1;
+        dispatch(stream, new HttpRequest(request.getMethod(), request.getTarget(), "HTTP/2.0", headers), null);
+    }
+
+    /**
+     * Processes the given received bytes. Complete frames are processed at once; the rest is kept until more
+     * bytes arrive. A violation of the protocol closes the connection, see {@link #isClosed()}.
+     *
+     * @param b   the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     */
+    public synchronized void feed(byte[] b, int off, int len) {
+        if (failed) {
+            return;
+        }
+        while (prefaceReceived < PREFACE.length && len > 0) {
+            if (b[off++] != PREFACE[prefaceReceived++]) {
+                fail(new ConnectionException(PROTOCOL_ERROR, "Invalid preface."));
+                return;
+            }
+            len--;
+        }
+        if (inputLength + len > input.length) {
+            byte[] larger = new byte[Math.max(input.length * 2, inputLength + len)];
+            System.arraycopy(input, 0, larger, 0, inputLength);
+            input = larger;
+        }
+        System.arraycopy(b, off, input, inputLength, len);
+        inputLength += len;
+
+        int pos = 0;
+        try {
+            while (!failed && inputLength - pos >= FRAME_HEADER_LENGTH) {
+                int length = (input[pos] & 0xFF) << 16 | (input[pos + 1] & 0xFF) << 8 | input[pos + 2] & 0xFF;
+                if (length > MAX_FRAME_SIZE) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "Frame too large.");
+                }
+                if (inputLength - pos < FRAME_HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = input[pos + 3] & 0xFF;
+                int flags = input[pos + 4] & 0xFF;
+                int streamId = readInt(input, pos + 5) & Integer.MAX_VALUE;
+                frame(type, flags, streamId, pos + FRAME_HEADER_LENGTH, length);
+                pos += FRAME_HEADER_LENGTH + length;
+            }
+        } catch (ConnectionException e) {
+            fail(e);
+            return;
+        }
+        System.arraycopy(input, pos, input, 0, inputLength - pos);
+        inputLength -= pos;
+        writePending();
+    }
+
+    /**
+     * Sends the response of the given stream. The response is given as the server writes it for HTTP/1.1: its
+     * head is translated into a header block and the rest of the bytes, followed by the file region, is sent as
+     * the body. Nothing is sent if the stream was reset meanwhile.
+     *
+     * @param stream   the stream.
+     * @param response the bytes of the response head, followed by body bytes.
+     * @param region   the file region sent after the response bytes, or null.
+     */
+    public synchronized void respond(Stream stream, byte[] response, FileRegion region) {
+        stream.work = null;
+        stream.region = region;
+        if (stream.reset || failed) {
+            stream.closeRegion();
+            return;
+        }
+        int headEnd = indexOfHeadEnd(response);
+        if (headEnd < 0) {
+            sendStatus(stream, 500);
+            return;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        String head = new String(response, 0, headEnd, StandardCharsets.ISO_8859_1);
+        String[] lines = head.split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        encoder.encode(":status", statusLine.length > 1 ? statusLine[1] : "500", block);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                encoder.encode(name, lines[i].substring(colon + 1).trim(), block);
+            }
+        }
+        stream.data = response;
+        stream.dataOffset = headEnd + 4;
+        boolean hasData = stream.hasData();
+        writeHeaders(stream.id, block, !hasData);
+        if (hasData) {
+            ready.add(stream);
+            writePending();
+        } else {
+            stream.data = null;
+            stream.closeRegion();
+            sent(stream);
+        }
+    }
+
+    /**
+     * Refuses the given stream without processing it, e.g. when the server is saturated. The client may retry
+     * the request.
+     *
+     * @param stream the stream.
+     */
+    public synchronized void refuse(Stream stream) {
+        if (!stream.reset && !failed) {
+            writeRstStream(stream.id, REFUSED_STREAM);
+        }
+        closeStream(stream);
+    }
+
+    /**
+     * Resets the given stream because its response failed and can not be sent, e.g. because it is incomplete.
+     *
+     * @param stream the stream.
+     */
+    public synchronized void abort(Stream stream) {
+        stream.work = null;
+        if (!stream.reset && !failed) {
+            writeRstStream(stream.id, INTERNAL_ERROR);
+        }
+        closeStream(stream);
+    }
+
+    /**
+     * Returns the bytes which must be written to the connection, producing more body frames if the flow control
+     * windows allow it.
+     *
+     * @return the bytes, or null if there is nothing to write.
+     */
+    public synchronized byte[] takeOutput() {
+        if (output.size() == 0) {
+            writePending();
+        }
+        if (output.size() == 0) {
+            return null;
+        }
+        byte[] bytes = output.toByteArray();
+        output.reset();
+        return bytes;
+    }
+
+    /**
+     * Checks whether the connection is over: it failed, or it is shut down and all its streams are done. The
+     * transport closes the connection once it has written the output.
+     *
+     * @return true if the connection is over.
+     */
+    public synchronized boolean isClosed() {
+        return failed || (goAwaySent || goAwayReceived) && streams.isEmpty();
+    }
+
+    /**
+     * Checks whether some streams are open.
+     *
+     * @return true if some streams are open.
+     */
+    public synchronized boolean hasOpenStreams() {
+        return !streams.isEmpty();
+    }
+
+    /**
+     * Shuts the connection down gracefully: no new streams are accepted, while the open ones are completed.
+     */
+    public synchronized void shutdown() {
+        if (!goAwaySent && !failed) {
+            writeGoAway(NO_ERROR);
+        }
+    }
+
+    /**
+     * Releases the resources of all streams when the connection is closed. The work of the streams which are
+     * being served is cancelled.
+     */
+    public synchronized void close() {
+        for (Stream stream : streams.values()) {
+            stream.release();
+        }
+        streams.clear();
+        ready.clear();
+        failed = true;
+    }
+
+    /**
+     * Processes one frame.
+     *
+     * @param type     the frame type.
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void frame(int type, int flags, int streamId, int pos, int length) throws ConnectionException {
+        if (!settingsReceived && type != SETTINGS) {
+            throw new ConnectionException(PROTOCOL_ERROR, "The preface must end with settings.");
+        }
+        if (continuedStream != 0 && (type != CONTINUATION || streamId != continuedStream)) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Interrupted header block.");
+        }
+        switch (type) {
+            case DATA:
+                data(flags, streamId, pos, length);
+                break;
+            case HEADERS:
+                headers(flags, streamId, pos, length);
+                break;
+            case PRIORITY:
+                if (length != 5) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid priority frame.");
+                }
+                break;
+            case RST_STREAM:
+                rstStream(streamId, length);
+                break;
+            case SETTINGS:
+                settings(flags, streamId, pos, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionException(PROTOCOL_ERROR, "Clients do not push.");
+            case PING:
+                if (streamId != 0 || length != 8) {
+                    throw new ConnectionException(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Invalid ping.");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, input, pos, 8);
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "Invalid go away.");
+                }
+                goAwayReceived = true;
+                break;
+            case WINDOW_UPDATE:
+                windowUpdate(streamId, pos, length);
+                break;
+            case CONTINUATION:
+                continuation(flags, streamId, pos, length);
+                break;
+            default:
+                // frames of unknown types are ignored
+                break;
+        }
+    }
+
+    /**
+     * Processes a data frame: the body of a request.
+     *
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void data(int flags, int streamId, int pos, int length) throws ConnectionException {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Data on an idle stream.");
+        }
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new ConnectionException(FLOW_CONTROL_ERROR, "The connection window was exceeded.");
+        }
+        receivedUnacknowledged += length;
+        if (receivedUnacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(0, receivedUnacknowledged);
+            receiveWindow += receivedUnacknowledged;
+            receivedUnacknowledged = 0;
+        }
+        int[] payload = unpad(flags, pos, length);
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // the stream was closed by the server; its remaining frames are ignored
+            return;
+        }
+        if (stream.remoteClosed) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        boolean end = (flags & FLAG_END_STREAM) != 0;
+        stream.receivedUnacknowledged += length;
+        if (!end && stream.receivedUnacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(streamId, stream.receivedUnacknowledged);
+            stream.receiveWindow += stream.receivedUnacknowledged;
+            stream.receivedUnacknowledged = 0;
+        }
+        try {
+            if (stream.body != null && stream.body.feed(input, payload[0], payload[1]) < payload[1]) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            if (end) {
+                stream.remoteClosed = true;
+                if (stream.body != null) {
+                    stream.body.end();
+                }
+                dispatch(stream, stream.request, stream.body);
+            }
+        } catch (HttpRequestException e) {
+            sendStatus(stream, e.getStatusCode());
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendStatus(stream, 500);
+        }
+    }
+
+    /**
+     * Processes a header frame, which opens a stream or carries the trailer of a request.
+     *
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void headers(int flags, int streamId, int pos, int length) throws ConnectionException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Headers on stream 0.");
+        }
+        int[] payload = unpad(flags, pos, length);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload[1] < 5) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid priority.");
+            }
+            payload[0] += 5;
+            payload[1] -= 5;
+        }
+        headerBlock.reset();
+        headerBlock.write(input, payload[0], payload[1]);
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            continuedStream = streamId;
+            continuedFlags = flags;
+            return;
+        }
+        headerBlock(flags, streamId);
+    }
+
+    /**
+     * Processes a continuation frame, which carries more of a header block.
+     *
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void continuation(int flags, int streamId, int pos, int length) throws ConnectionException {
+        if (continuedStream == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Unexpected continuation.");
+        }
+        headerBlock.write(input, pos, length);
+        if (headerBlock.size() > maxHeaderListSize + MAX_FRAME_SIZE) {
+            throw new ConnectionException(ENHANCE_YOUR_CALM, "Header block too large.");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            continuedStream = 0;
+            headerBlock(continuedFlags, streamId);
+        }
+    }
+
+    /**
+     * Decodes a complete header block and opens its stream, or completes the request if the block is a trailer.
+     *
+     * @param flags    the flags of the header frame.
+     * @param streamId the stream identifier.
+     * @throws ConnectionException if the block can not be decoded or violates the protocol.
+     */
+    private void headerBlock(int flags, int streamId) throws ConnectionException {
+        List<String[]> fields = new ArrayList<>();
+        try {
+            byte[] block = headerBlock.toByteArray();
+            decoder.decode(block, 0, block.length, (name, value) -> fields.add(new String[]{name, value}));
+        } catch (IllegalArgumentException e) {
+            throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean end = (flags & FLAG_END_STREAM) != 0;
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (stream.remoteClosed || !end) {
+                resetStream(stream, stream.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+                return;
+            }
+            stream.remoteClosed = true;
+            try {
+                if (stream.body != null) {
+                    stream.body.end();
+                }
+                dispatch(stream, stream.request, stream.body);
+            } catch (HttpRequestException e) {
+                sendStatus(stream, e.getStatusCode());
+            } catch (IOException e) {
+                e.printStackTrace();
+                sendStatus(stream, 500);
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            // the stream was closed by the server; its remaining frames are ignored
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Clients open odd streams.");
+        }
+        lastStreamId = streamId;
+        if (goAwaySent) {
+            return;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            writeRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        stream = new Stream(streamId);
+        streams.put(streamId, stream);
+        stream.remoteClosed = end;
+
+        long size = 0;
+        for (String[] field : fields) {
+            size += field[0].length() + field[1].length() + 32;
+        }
+        HttpRequest request = toRequest(fields);
+        if (request == null) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (size > maxHeaderListSize) {
+            sendStatus(stream, 431);
+            return;
+        }
+        if (end) {
+            dispatch(stream, request, null);
+            return;
+        }
+        try {
+            stream.request = request;
+            stream.body = handler.openBody(request);
+        } catch (HttpRequestException e) {
+            sendStatus(stream, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Builds a request from the decoded header fields. The pseudo-headers become the method and the target, and
+     * ":authority" the "Host" header. Repeated headers are joined into one value.
+     *
+     * @param fields the names and values of the header fields.
+     * @return the request, or null if it is malformed.
+     */
+    private static HttpRequest toRequest(List<String[]> fields) {
+        Map<String, String> pseudo = new HashMap<>();
+        Map<String, String> headers = new HashMap<>();
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (name.startsWith(":")) {
+                if (!headers.isEmpty() || pseudo.put(name, value) != null || !(name.equals(":method")
+                        || name.equals(":path") || name.equals(":scheme") || name.equals(":authority"))) {
+                    return null;
+                }
+                continue;
+            }
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name)
+                    || name.equals("te") && !value.equalsIgnoreCase("trailers")) {
+                return null;
+            }
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + (name.equals("cookie") ? "; " : ", ") + value);
+        }
+        String method = pseudo.get(":method");
+        String path = pseudo.get(":path");
+        if (method == null || path == null || path.isEmpty() || pseudo.get(":scheme") == null) {
+            return null;
+        }
+        if (pseudo.containsKey(":authority") && !headers.containsKey("host")) {
+            headers.put("host", pseudo.get(":authority"));
+        }
+        return new HttpRequest(method, path, "HTTP/2.0", headers);
+    }
+
+    /**
+     * Processes a frame which resets a stream.
+     *
+     * @param streamId the stream identifier.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void rstStream(int streamId, int length) throws ConnectionException {
+        if (length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid reset.");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Reset of an idle stream.");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    /**
+     * Processes a settings frame.
+     *
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void settings(int flags, int streamId, int pos, int length) throws ConnectionException {
+        if (streamId != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Settings on a stream.");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid settings acknowledgement.");
+            }
+            return;
+        }
+        applySettings(input, pos, length);
+        settingsReceived = true;
+        writeFrame(SETTINGS, FLAG_ACK, 0, input, 0, 0);
+    }
+
+    /**
+     * Applies the settings of the client.
+     *
+     * @param b      the bytes of the settings.
+     * @param pos    the position of the first setting.
+     * @param length the length of the settings.
+     * @throws ConnectionException if a setting is invalid.
+     */
+    private void applySettings(byte[] b, int pos, int length) throws ConnectionException {
+        if (length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid settings.");
+        }
+        for (int i = pos; i < pos + length; i += 6) {
+            int id = (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+            long value = readInt(b, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid push setting.");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ConnectionException(FLOW_CONTROL_ERROR, "Invalid initial window.");
+                    }
+                    long delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW) {
+                            throw new ConnectionException(FLOW_CONTROL_ERROR, "Stream window too large.");
+                        }
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid maximum frame size.");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // the maximum number of streams and header list size limit only what the server sends,
+                    // which is within them; unknown settings are ignored
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Processes a frame which widens a flow control window.
+     *
+     * @param streamId the stream identifier, or 0 for the connection.
+     * @param pos      the position of the payload in the input.
+     * @param length   the length of the payload.
+     * @throws ConnectionException if the frame violates the protocol.
+     */
+    private void windowUpdate(int streamId, int pos, int length) throws ConnectionException {
+        if (length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid window update.");
+        }
+        int increment = readInt(input, pos) & Integer.MAX_VALUE;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR, "Empty window update.");
+            }
+            sendWindow += increment;
+            if (sendWindow > MAX_WINDOW) {
+                throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window too large.");
+            }
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (increment == 0) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > MAX_WINDOW) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Returns the position and the length of the content of a frame which may be padded.
+     *
+     * @param flags  the frame flags.
+     * @param pos    the position of the payload in the input.
+     * @param length the length of the payload.
+     * @return the position and the length of the content.
+     * @throws ConnectionException if the padding is longer than the frame.
+     */
+    private int[] unpad(int flags, int pos, int length) throws ConnectionException {
+        if ((flags & FLAG_PADDED) == 0) {
+            return new int[]{pos, length};
+        }
+        int padding = length == 0 ? Integer.MAX_VALUE : input[pos] & 0xFF;
+        if (padding >= length) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid padding.");
+        }
+        return new int[]{pos + 1, length - 1 - padding};
+    }
+
+    /**
+     * Hands a complete request to the handler.
+     *
+     * @param stream  the stream.
+     * @param request the request.
+     * @param body    the body of the request, or null.
+     */
+    private void dispatch(Stream stream, HttpRequest request, RequestBody body) {
+        stream.dispatched = true;
+        stream.request = null;
+        stream.body = null;
+        handler.handle(stream, request, body);
+    }
+
+    /**
+     * Answers a request which can not be processed with the given status and no body. If the client is still
+     * sending the request, the stream is reset, so that it stops.
+     *
+     * @param stream     the stream.
+     * @param statusCode the status code.
+     */
+    private void sendStatus(Stream stream, int statusCode) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(16);
+        encoder.encode(":status", String.valueOf(statusCode), block);
+        encoder.encode("content-length", "0", block);
+        writeHeaders(stream.id, block, true);
+        if (!stream.remoteClosed) {
+            writeRstStream(stream.id, NO_ERROR);
+        }
+        closeStream(stream);
+    }
+
+    /**
+     * Resets a stream because of an error.
+     *
+     * @param stream    the stream.
+     * @param errorCode the error code.
+     */
+    private void resetStream(Stream stream, int errorCode) {
+        writeRstStream(stream.id, errorCode);
+        closeStream(stream);
+    }
+
+    /**
+     * Closes a stream before its response was sent.
+     *
+     * @param stream the stream.
+     */
+    private void closeStream(Stream stream) {
+        stream.release();
+        streams.remove(stream.id);
+        ready.remove(stream);
+    }
+
+    /**
+     * Closes a stream whose response was sent completely.
+     *
+     * @param stream the stream.
+     */
+    private void sent(Stream stream) {
+        streams.remove(stream.id);
+        if (!stream.remoteClosed) {
+            writeRstStream(stream.id, NO_ERROR);
+        }
+    }
+
+    /**
+     * Produces body frames of the ready streams in turn, as long as the flow control windows allow it and the
+     * output is not too large.
+     */
+    private void writePending() {
+        boolean progress = true;
+        while (progress && output.size() < HIGH_WATER && sendWindow > 0 && !ready.isEmpty()) {
+            progress = false;
+            for (int i = ready.size(); i > 0 && output.size() < HIGH_WATER && sendWindow > 0; i--) {
+                Stream stream = ready.poll();
+                try {
+                    progress |= writeData(stream);
+                    if (stream.hasData()) {
+                        ready.add(stream);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    resetStream(stream, PROTOCOL_ERROR);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes one body frame of the given stream, as large as the windows and the frame size allow.
+     *
+     * @param stream the stream.
+     * @return true if a frame was written.
+     * @throws IOException if the file region can not be read.
+     */
+    private boolean writeData(Stream stream) throws IOException {
+        int size = (int) Math.min(peerMaxFrameSize, Math.min(sendWindow, stream.sendWindow));
+        if (size <= 0) {
+            return false;
+        }
+        byte[] frame = new byte[FRAME_HEADER_LENGTH + size];
+        int length = 0;
+        if (stream.data != null && stream.dataOffset < stream.data.length) {
+            length = Math.min(size, stream.data.length - stream.dataOffset);
+            System.arraycopy(stream.data, stream.dataOffset, frame, FRAME_HEADER_LENGTH, length);
+            stream.dataOffset += length;
+        }
+        while (length < size && stream.region != null) {
+            int r = stream.region.read(frame, FRAME_HEADER_LENGTH + length, size - length);
+            if (r < 0) {
+                stream.closeRegion();
+                break;
+            }
+            length += r;
+        }
+        boolean end = !stream.hasData();
+        putFrameHeader(frame, length, DATA, end ? FLAG_END_STREAM : 0, stream.id);
+        output.write(frame, 0, FRAME_HEADER_LENGTH + length);
+        sendWindow -= length;
+        stream.sendWindow -= length;
+        if (end) {
+            stream.data = null;
+            stream.closeRegion();
+            sent(stream);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a header block in a header frame and as many continuation frames as the frame size requires.
+     *
+     * @param streamId  the stream identifier.
+     * @param block     the header block.
+     * @param endStream flag indicating whether the block ends the stream.
+     */
+    private void writeHeaders(int streamId, ByteArrayOutputStream block, boolean endStream) {
+        byte[] bytes = block.toByteArray();
+        int pos = 0;
+        int type = HEADERS;
+        do {
+            int length = Math.min(peerMaxFrameSize, bytes.length - pos);
+            int flags = (type == HEADERS && endStream ? FLAG_END_STREAM : 0)
+                    | (pos + length == bytes.length ? FLAG_END_HEADERS : 0);
+            writeFrame(type, flags, streamId, bytes, pos, length);
+            pos += length;
+            type = CONTINUATION;
+        } while (pos < bytes.length);
+    }
+
+    /**
+     * Writes a frame which resets a stream.
+     *
+     * @param streamId  the stream identifier.
+     * @param errorCode the error code.
+     */
+    private void writeRstStream(int streamId, int errorCode) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Writes a frame which widens a flow control window.
+     *
+     * @param streamId  the stream identifier, or 0 for the connection.
+     * @param increment the increment.
+     */
+    private void writeWindowUpdate(int streamId, int increment) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Writes a frame which shuts the connection down.
+     *
+     * @param errorCode the error code.
+     */
+    private void writeGoAway(int errorCode) {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+        goAwaySent = true;
+    }
+
+    /**
+     * Closes the connection because of the given error, telling the client why.
+     *
+     * @param e the error.
+     */
+    private void fail(ConnectionException e) {
+        writeGoAway(e.errorCode);
+        for (Stream stream : streams.values()) {
+            stream.release();
+        }
+        streams.clear();
+        ready.clear();
+        failed = true;
+    }
+
+    /**
+     * Writes a frame to the output.
+     *
+     * @param type     the frame type.
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param b        the bytes of the payload.
+     * @param off      the offset of the payload.
+     * @param len      the length of the payload.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] b, int off, int len) {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        putFrameHeader(header, len, type, flags, streamId);
+        output.write(header, 0, FRAME_HEADER_LENGTH);
+        output.write(b, off, len);
+    }
+
+    /**
+     * Puts a frame header at the start of the given array.
+     *
+     * @param b        the array.
+     * @param length   the length of the payload.
+     * @param type     the frame type.
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     */
+    private static void putFrameHeader(byte[] b, int length, int type, int flags, int streamId) {
+        b[0] = (byte) (length >>> 16);
+        b[1] = (byte) (length >>> 8);
+        b[2] = (byte) length;
+        b[3] = (byte) type;
+        b[4] = (byte) flags;
+        putInt(b, 5, streamId);
+    }
+
+    /**
+     * Puts a setting into the given array.
+     *
+     * @param b     the array.
+     * @param pos   the position of the setting.
+     * @param id    the identifier of the setting.
+     * @param value the value.
+     */
+    private static void putSetting(byte[] b, int pos, int id, int value) {
+        b[pos] = (byte) (id >>> 8);
+        b[pos + 1] = (byte) id;
+        putInt(b, pos + 2, value);
+    }
+
+    /**
+     * Puts a 32-bit integer into the given array.
+     *
+     * @param b     the array.
+     * @param pos   the position of the integer.
+     * @param value the integer.
+     */
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a 32-bit integer from the given array.
+     *
+     * @param b   the array.
+     * @param pos the position of the integer.
+     * @return the integer.
+     */
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | b[pos + 3] & 0xFF;
+    }
+
+    /**
+     * Decodes the value of the "HTTP2-Settings" header of an upgrade request.
+     *
+     * @param value the header value.
+     * @return the settings, or null if the value is invalid.
+     */
+    private static byte[] decodeSettings(String value) {
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the blank line which ends the head of the given response.
+     *
+     * @param response the bytes of the response.
+     * @return the index of the first CR of the blank line, or -1 if the head is not complete.
+     */
+    private static int indexOfHeadEnd(byte[] response) {
+        for (int i = 0; i + 3 < response.length; i++) {
+            if (response[i] == '\r' && response[i + 1] == '\n' && response[i + 2] == '\r'
+                    && response[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
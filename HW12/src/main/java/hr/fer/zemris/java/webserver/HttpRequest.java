@@ -0,0 +1,95 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Represents the head of one HTTP request: the request line and the headers. Header names are stored in
+ * lower case, so lookups are case-insensitive.
+ *
+ * @see HttpRequestParser
+ */
+public class HttpRequest {
+
+    /**
+     * The request method, as sent by the client.
+     */
+    private final String method;
+
+    /**
+     * The request target (path and query string).
+     */
+    private final String target;
+
+    /**
+     * The HTTP version, as sent by the client.
+     */
+    private final String version;
+
+    /**
+     * The headers keyed by their lower case names.
+     */
+    private final Map<String, String> headers;
+
+    /**
+     * Creates an instance of {@link HttpRequest}.
+     *
+     * @param method  the request method.
+     * @param target  the request target.
+     * @param version the HTTP version.
+     * @param headers the headers keyed by their lower case names.
+     */
+    public HttpRequest(String method, String target, String version, Map<String, String> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Returns the request method.
+     *
+     * @return the request method.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the request target.
+     *
+     * @return the request target.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the HTTP version.
+     *
+     * @return the HTTP version.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value of the header with the given name. Repeated headers are joined into one value.
+     *
+     * @param name the case-insensitive header name.
+     * @return the header value or null if there is no such header.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns an unmodifiable view of the headers keyed by their lower case names.
+     *
+     * @return the headers.
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+}
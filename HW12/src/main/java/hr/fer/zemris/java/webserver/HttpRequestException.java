@@ -0,0 +1,48 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * Thrown to indicate that a request head is malformed or exceeds the configured limits. The exception
+ * carries the status with which the server should answer before closing the connection.
+ */
+public class HttpRequestException extends RuntimeException {
+
+    /**
+     * The status code of the error response.
+     */
+    private final int statusCode;
+
+    /**
+     * The status text of the error response.
+     */
+    private final String statusText;
+
+    /**
+     * Constructs an {@code HttpRequestException} with the given response status.
+     *
+     * @param statusCode the status code of the error response.
+     * @param statusText the status text of the error response.
+     */
+    public HttpRequestException(int statusCode, String statusText) {
+        super(statusCode + " " + statusText);
+        this.statusCode = statusCode;
+        this.statusText = statusText;
+    }
+
+    /**
+     * Returns the status code of the error response.
+     *
+     * @return the status code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the status text of the error response.
+     *
+     * @return the status text.
+     */
+    public String getStatusText() {
+        return statusText;
+    }
+}
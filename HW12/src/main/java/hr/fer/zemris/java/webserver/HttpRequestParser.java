@@ -0,0 +1,564 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses request heads of one connection from a reusable byte buffer. Received bytes are scanned only once:
+ * while looking for the blank line which ends the head, the boundaries of every line are recorded, so the
+ * request line and the headers are then decoded straight from the buffer without intermediate strings.
+ * <p>
+ * Bytes which follow a complete head stay in the buffer, so pipelined requests are parsed from it without
+ * reading the connection again. Both CRLF and bare LF line endings are accepted and empty lines before the
+ * request line are ignored. A head longer than the maximum size or with more headers than allowed is
+ * rejected with "431 Request Header Fields Too Large"; a malformed head with "400 Bad request".
+ * <p>
+ * Methods, versions and the names of common headers are returned as shared constants, and a request target or
+ * header value which repeats the one of the previous request of the connection is returned as the same string,
+ * so that the requests of a persistent connection decode little more than the strings which changed.
+ * <p>
+ * The parser is not thread-safe; it is used by one connection at a time.
+ */
+public class HttpRequestParser {
+
+    /**
+     * The initial capacity of the buffer.
+     */
+    private static final int INITIAL_CAPACITY = 2048;
+
+    /**
+     * The methods, versions and lower case header names which are returned as constants.
+     */
+    private static final String[] KNOWN_TOKENS = {
+            "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "HTTP/1.1", "HTTP/1.0",
+            "host", "connection", "user-agent", "accept", "accept-encoding", "accept-language", "cookie",
+            "cache-control", "pragma", "content-length", "content-type", "transfer-encoding", "expect",
+            "if-none-match", "if-modified-since", "range", "if-range", "referer", "origin", "upgrade",
+            "upgrade-insecure-requests", "http2-settings", "dnt", "sec-fetch-site", "sec-fetch-mode",
+            "sec-fetch-dest", "sec-fetch-user"
+    };
+
+    /**
+     * The maximum size of a request head in bytes.
+     */
+    private final int maxHeaderSize;
+
+    /**
+     * The maximum number of header lines.
+     */
+    private final int maxHeaderCount;
+
+    /**
+     * The buffer with received bytes.
+     */
+    private byte[] buffer;
+
+    /**
+     * The view of the buffer used when reading from a channel.
+     */
+    private ByteBuffer view;
+
+    /**
+     * The index of the first unconsumed byte in the buffer.
+     */
+    private int start;
+
+    /**
+     * The index after the last received byte in the buffer.
+     */
+    private int end;
+
+    /**
+     * The number of unconsumed bytes which were already scanned.
+     */
+    private int scanned;
+
+    /**
+     * The offset of the current line from the first unconsumed byte.
+     */
+    private int lineStart;
+
+    /**
+     * The offsets of the start and of the end of each complete line of the current head.
+     */
+    private int[] lines = new int[32];
+
+    /**
+     * The number of complete lines of the current head.
+     */
+    private int lineCount;
+
+    /**
+     * The request target of the previous request, or null.
+     */
+    private String lastTarget;
+
+    /**
+     * The values of the known headers of the previous requests, by header name.
+     */
+    private final Map<String, String> lastValues = new HashMap<>();
+
+    /**
+     * The flag indicating whether the heads are timed.
+     */
+    private boolean timed;
+
+    /**
+     * The time in nanoseconds when the first byte of the current head was scanned.
+     */
+    private long headStart;
+
+    /**
+     * The time in nanoseconds from the first scanned byte of the last parsed head until it was parsed.
+     */
+    private long headNanos;
+
+    /**
+     * Creates an instance of {@link HttpRequestParser}.
+     *
+     * @param maxHeaderSize  the maximum size of a request head in bytes.
+     * @param maxHeaderCount the maximum number of header lines.
+     * @throws IllegalArgumentException if any of the limits is not positive.
+     */
+    public HttpRequestParser(int maxHeaderSize, int maxHeaderCount) {
+        if (maxHeaderSize < 1 || maxHeaderCount < 1) {
+            throw new IllegalArgumentException("Header limits must be positive.");
+        }
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxHeaderSize + 1)];
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Sets whether the heads are timed, see {@link #getHeadNanos()}.
+     *
+     * @param timed flag indicating whether the heads are timed.
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * Returns the time it took to receive and parse the last parsed head, from the moment its first byte was
+     * scanned. It is 0 unless the heads are timed.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getHeadNanos() {
+        return headNanos;
+    }
+
+    /**
+     * Reads from the given stream until the next request head is complete. Bytes which are already buffered
+     * are parsed first.
+     *
+     * @param in the stream of the connection.
+     * @return the request or null if the stream ended before a complete head was received.
+     * @throws IOException          if an error occurred while reading.
+     * @throws HttpRequestException if the head is malformed or too large.
+     */
+    public HttpRequest readRequest(InputStream in) throws IOException {
+        while (true) {
+            HttpRequest request = parse();
+            if (request != null) {
+                return request;
+            }
+            ensureSpace();
+            int r = in.read(buffer, end, buffer.length - end);
+            if (r == -1) {
+                return null;
+            }
+            end += r;
+        }
+    }
+
+    /**
+     * Reads the bytes which are available on the given stream into the buffer, blocking until at least one byte
+     * is available.
+     *
+     * @param in the stream of the connection.
+     * @return the number of bytes read, or -1 if the stream has ended.
+     * @throws IOException if an error occurred while reading.
+     */
+    public int read(InputStream in) throws IOException {
+        ensureSpace();
+        int r = in.read(buffer, end, buffer.length - end);
+        if (r > 0) {
+            end += r;
+        }
+        return r;
+    }
+
+    /**
+     * Hands the buffered bytes which follow the last parsed head to the given body, which consumes the ones that
+     * belong to it. The others stay buffered as the beginning of the next request.
+     *
+     * @param body the body of the last parsed request.
+     * @throws IOException          if the body can not store its bytes.
+     * @throws HttpRequestException if the body is malformed or too large.
+     */
+    public void transferTo(RequestBody body) throws IOException {
+        if (end > start) {
+            consume(body.feed(buffer, start, end - start));
+        }
+    }
+
+    /**
+     * Reads the bytes which are available on the given channel into the buffer.
+     *
+     * @param channel the channel of the connection.
+     * @return the number of bytes read, or -1 if the channel has reached end-of-stream.
+     * @throws IOException if an error occurred while reading.
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        view.limit(buffer.length).position(end);
+        int r = channel.read(view);
+        if (r > 0) {
+            end += r;
+        }
+        return r;
+    }
+
+    /**
+     * Returns the number of received bytes which were not consumed by a parsed request head yet.
+     *
+     * @return the number of buffered bytes.
+     */
+    public int buffered() {
+        return end - start;
+    }
+
+    /**
+     * Parses the next request head from the buffered bytes. The bytes of a parsed head are consumed.
+     *
+     * @return the request or null if the head is not complete yet.
+     * @throws HttpRequestException if the head is malformed or too large.
+     */
+    public HttpRequest parse() {
+        int length = end - start;
+        byte[] data = buffer;
+        int base = start;
+        if (timed && scanned == 0) {
+            headStart = System.nanoTime();
+        }
+        for (int i = scanned; i < length; i++) {
+            if (data[base + i] != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (lineEnd > lineStart && data[base + lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (i >= maxHeaderSize) {
+                throw new HttpRequestException(431, "Request Header Fields Too Large");
+            }
+            if (lineEnd == lineStart) {
+                lineStart = i + 1;
+                if (lineCount > 0) {
+                    HttpRequest request = decode();
+                    consume(i + 1);
+                    if (timed) {
+                        headNanos = System.nanoTime() - headStart;
+                    }
+                    return request;
+                }
+                continue;
+            }
+            if (lineCount > maxHeaderCount) {
+                throw new HttpRequestException(431, "Request Header Fields Too Large");
+            }
+            if (lineCount * 2 == lines.length) {
+                int[] larger = new int[lines.length * 2];
+                System.arraycopy(lines, 0, larger, 0, lines.length);
+                lines = larger;
+            }
+            lines[lineCount * 2] = lineStart;
+            lines[lineCount * 2 + 1] = lineEnd;
+            lineCount++;
+            lineStart = i + 1;
+        }
+        scanned = length;
+        if (length > maxHeaderSize) {
+            throw new HttpRequestException(431, "Request Header Fields Too Large");
+        }
+        return null;
+    }
+
+    /**
+     * Removes the buffered bytes which follow the parsed requests, e.g. when the connection switches to another
+     * protocol.
+     *
+     * @return the buffered bytes.
+     */
+    public byte[] takeBuffered() {
+        byte[] rest = new byte[end - start];
+        System.arraycopy(buffer, start, rest, 0, rest.length);
+        consume(rest.length);
+        return rest;
+    }
+
+    /**
+     * Decodes the recorded lines of a complete head.
+     *
+     * @return the request.
+     * @throws HttpRequestException if the head is malformed.
+     */
+    private HttpRequest decode() {
+        int lineEnd = start + lines[1];
+        int methodEnd = indexOf(' ', start + lines[0], lineEnd);
+        int targetEnd = methodEnd < 0 ? -1 : indexOf(' ', methodEnd + 1, lineEnd);
+        if (methodEnd <= start + lines[0] || targetEnd <= methodEnd + 1 || targetEnd == lineEnd - 1
+                || indexOf(' ', targetEnd + 1, lineEnd) >= 0) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+        String method = token(start + lines[0], methodEnd);
+        String target = matches(lastTarget, methodEnd + 1, targetEnd) ? lastTarget
+                : (lastTarget = string(methodEnd + 1, targetEnd));
+        String version = token(targetEnd + 1, lineEnd);
+
+        Map<String, String> headers = new HashMap<>(lineCount * 2);
+        String lastName = null;
+        for (int i = 1; i < lineCount; i++) {
+            int from = start + lines[i * 2];
+            int to = start + lines[i * 2 + 1];
+            if (buffer[from] == ' ' || buffer[from] == '\t') {
+                if (lastName == null) {
+                    throw new HttpRequestException(400, "Bad request");
+                }
+                headers.put(lastName, headers.get(lastName) + " " + trimmed(from, to));
+                continue;
+            }
+            int colon = indexOf(':', from, to);
+            if (colon <= from) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            String name = lowerCaseName(from, colon);
+            String value = value(name, colon + 1, to);
+            String previous = headers.get(name);
+            if (previous != null) {
+                value = previous + (name.equals("cookie") ? "; " : ", ") + value;
+            }
+            headers.put(name, value);
+            lastName = name;
+        }
+        return new HttpRequest(method, target, version, headers);
+    }
+
+    /**
+     * Consumes the given number of bytes and resets the state of the scan.
+     *
+     * @param count the number of bytes of the parsed head.
+     */
+    private void consume(int count) {
+        start += count;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        scanned = 0;
+        lineStart = 0;
+        lineCount = 0;
+    }
+
+    /**
+     * Makes room for at least one more byte at the end of the buffer, either by moving the unconsumed bytes
+     * to its beginning or by growing it.
+     */
+    private void ensureSpace() {
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+            return;
+        }
+        byte[] larger = new byte[Math.max(buffer.length * 2, maxHeaderSize + 1)];
+        System.arraycopy(buffer, 0, larger, 0, end);
+        buffer = larger;
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Returns the index of the first occurrence of the given byte in the given range.
+     *
+     * @param b    the byte.
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the index or -1 if the range does not contain the byte.
+     */
+    private int indexOf(char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the given range of the buffer.
+     *
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the decoded string.
+     */
+    private String string(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes the given range of the buffer without leading and trailing spaces and tabs.
+     *
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the decoded string.
+     */
+    private String trimmed(int from, int to) {
+        while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) {
+            from++;
+        }
+        while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) {
+            to--;
+        }
+        return string(from, to);
+    }
+
+    /**
+     * Decodes the value of the given header in the given range of the buffer without leading and trailing
+     * spaces and tabs. The value of a known header which equals its previous value is not decoded again.
+     *
+     * @param name the lower case header name.
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the decoded value.
+     */
+    private String value(String name, int from, int to) {
+        while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) {
+            from++;
+        }
+        while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) {
+            to--;
+        }
+        if (!isKnown(name)) {
+            return string(from, to);
+        }
+        String previous = lastValues.get(name);
+        if (matches(previous, from, to)) {
+            return previous;
+        }
+        String value = string(from, to);
+        lastValues.put(name, value);
+        return value;
+    }
+
+    /**
+     * Checks whether the given string is one of the known tokens itself, not just an equal string.
+     *
+     * @param text the string.
+     * @return true if the string is a known token.
+     */
+    private static boolean isKnown(String text) {
+        for (String token : KNOWN_TOKENS) {
+            if (token == text) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the given range of the buffer, returning a constant if it is a known token.
+     *
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the decoded string.
+     */
+    private String token(int from, int to) {
+        for (String token : KNOWN_TOKENS) {
+            if (matches(token, from, to)) {
+                return token;
+            }
+        }
+        return string(from, to);
+    }
+
+    /**
+     * Checks whether the given range of the buffer holds exactly the given string.
+     *
+     * @param text the string, or null.
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return true if the range holds the string.
+     */
+    private boolean matches(String text, int from, int to) {
+        if (text == null || text.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if ((buffer[i] & 0xFF) != text.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the known header name which the given range of the buffer holds, ignoring case.
+     *
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the lower case name, or null if the name is not known.
+     */
+    private String knownName(int from, int to) {
+        for (String token : KNOWN_TOKENS) {
+            if (token.length() != to - from) {
+                continue;
+            }
+            int i = from;
+            while (i < to) {
+                int c = buffer[i] & 0xFF;
+                if ((c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c) != token.charAt(i - from)) {
+                    break;
+                }
+                i++;
+            }
+            if (i == to) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the header name in the given range of the buffer and converts it to lower case.
+     *
+     * @param from the start of the range, inclusive.
+     * @param to   the end of the range, exclusive.
+     * @return the lower case name.
+     * @throws HttpRequestException if the name contains whitespace or control characters.
+     */
+    private String lowerCaseName(int from, int to) {
+        String known = knownName(from, to);
+        if (known != null) {
+            return known;
+        }
+        char[] name = new char[to - from];
+        for (int i = from; i < to; i++) {
+            int c = buffer[i] & 0xFF;
+            if (c <= ' ' || c == 127) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            name[i - from] = (char) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        return new String(name);
+    }
+}
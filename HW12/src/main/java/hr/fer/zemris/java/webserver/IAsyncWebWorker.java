@@ -0,0 +1,48 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Represents a web worker which completes its requests asynchronously. Instead of blocking a worker thread
+ * while it waits, e.g. on a slow service, the worker starts its work and returns a stage which completes when
+ * the response is written; the server finishes the response and continues with the connection only then.
+ * <p>
+ * The worker may write to the context from any thread, but only from one thread at a time and only before the
+ * returned stage completes. Once this method returned, the worker must claim the response through
+ * {@link RequestContext#claimResponse()} before it writes to the context, and give up if the claim fails.
+ * If the worker does not complete in time, or the client disconnects while the worker is running, the server
+ * claims the response itself and completes the stage exceptionally, with a
+ * {@link java.util.concurrent.TimeoutException} or a {@link java.util.concurrent.CancellationException}; the
+ * worker should then stop its work and must no longer use the context. It learns about it through the claim
+ * or through the stage, e.g. with {@link CompletionStage#whenComplete}. A worker which claimed the response
+ * is no longer timed out or cancelled, so it must complete its stage.
+ * </p>
+ */
+public interface IAsyncWebWorker extends IWebWorker {
+
+    /**
+     * Starts processing the request.
+     *
+     * @param context the request context.
+     * @return the stage which completes when the response is written.
+     * @throws Exception if an error occurred while starting to process the request.
+     */
+    CompletionStage<Void> processRequestAsync(RequestContext context) throws Exception;
+
+    /**
+     * Processes the request, waiting until the stage returned by {@link #processRequestAsync(RequestContext)}
+     * completes.
+     *
+     * @param context the request context.
+     * @throws Exception if an error occurred while processing request.
+     */
+    @Override
+    default void processRequest(RequestContext context) throws Exception {
+        try {
+            processRequestAsync(context).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents a lock-free histogram of latencies in microseconds. Like an HDR histogram, it has log-linear
+ * buckets: every power of two is split into {@value #SUB_BUCKETS} equal buckets, so a recorded value is known
+ * with a relative error of about 3% over the whole range, while a recording costs one atomic increment.
+ * Values up to {@value #SUB_BUCKETS} microseconds are recorded exactly; values above about 38 hours are
+ * recorded as the maximum.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a sub-bucket index.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets into which every power of two is split.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest shift of a recorded value.
+     */
+    private static final int MAX_SHIFT = 31;
+
+    /**
+     * The largest recorded value.
+     */
+    private static final long MAX_VALUE = (2L * SUB_BUCKETS << MAX_SHIFT) - 1;
+
+    /**
+     * The number of recorded values in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records the given value.
+     *
+     * @param micros the value in microseconds.
+     */
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the given value, correcting for coordinated omission. If the value is larger than the interval at
+     * which values are expected, the values which a client would have seen had it kept sending at that interval
+     * are recorded as well (value - interval, value - 2 * interval, ... down to the interval).
+     *
+     * @param micros                 the value in microseconds.
+     * @param expectedIntervalMicros the expected interval between values in microseconds; 0 disables the
+     *                               correction.
+     */
+    public void recordWithExpectedInterval(long micros, long expectedIntervalMicros) {
+        record(micros);
+        if (expectedIntervalMicros <= 0) {
+            return;
+        }
+        for (long missing = micros - expectedIntervalMicros; missing >= expectedIntervalMicros;
+             missing -= expectedIntervalMicros) {
+            record(missing);
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of recorded values.
+     *
+     * @return the sum of recorded values in microseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values lies. The values recorded
+     * concurrently with this call may or may not be taken into account.
+     *
+     * @param quantile the fraction, between 0 and 1.
+     * @return the value in microseconds, or 0 if no value is recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * Returns the index of the bucket of the given value.
+     *
+     * @param value the value.
+     * @return the index of the bucket.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value which is recorded in the given bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the highest value of the bucket.
+     */
+    private static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,28 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * The built-in worker which exports the metrics of the server in the Prometheus text format.
+ */
+public class MetricsWorker implements IWebWorker {
+
+    /**
+     * The metrics.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Creates an instance of {@link MetricsWorker}.
+     *
+     * @param metrics the metrics.
+     */
+    public MetricsWorker(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void processRequest(RequestContext context) throws Exception {
+        context.setMimeType("text/plain; version=0.0.4");
+        context.setHeader("Cache-Control", "no-store");
+        context.write(metrics.toPrometheus());
+    }
+}
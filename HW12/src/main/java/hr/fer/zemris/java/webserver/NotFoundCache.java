@@ -0,0 +1,109 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents a bounded cache of url paths which were recently found not to exist, so that repeated requests for
+ * them (typically by scanners) are answered without touching the file system. A path is remembered for a
+ * configured time, after which the file system is checked again; this way files which are created later are
+ * still found.
+ * <p>
+ * Looking a path up, which every request for a file does, is a lock-free read of a {@link ConcurrentHashMap}.
+ * The bound is kept only approximately and only when a path is added: when the cache is full, the expired paths
+ * are removed, and if that is not enough, arbitrary paths are removed until an eighth of the capacity is free.
+ * </p>
+ */
+public class NotFoundCache {
+
+    /**
+     * The maximum number of remembered paths.
+     */
+    private final int capacity;
+
+    /**
+     * The time in milliseconds for which a path is remembered.
+     */
+    private final long ttlMillis;
+
+    /**
+     * The remembered paths with the times at which they expire.
+     */
+    private final Map<String, Long> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance of {@link NotFoundCache}.
+     *
+     * @param capacity  the maximum number of remembered paths; if it is 0, no path is remembered.
+     * @param ttlMillis the time in milliseconds for which a path is remembered.
+     */
+    public NotFoundCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Checks whether the given path was recently found not to exist.
+     *
+     * @param path the url path.
+     * @return true if the path is known not to exist.
+     */
+    public boolean contains(String path) {
+        Long expires = entries.get(path);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            entries.remove(path, expires);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers that the given path does not exist.
+     *
+     * @param path the url path.
+     */
+    public void add(String path) {
+        if (capacity <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (entries.size() >= capacity && !entries.containsKey(path)) {
+            evict(now);
+        }
+        entries.put(path, now + ttlMillis);
+    }
+
+    /**
+     * Makes room for new paths: removes the expired paths and then, while the cache is still fuller than seven
+     * eighths of its capacity, arbitrary paths.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void evict(long now) {
+        int target = capacity - Math.max(1, capacity / 8);
+        int size = entries.size();
+        for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() < now) {
+                it.remove();
+                size--;
+            }
+        }
+        for (Iterator<String> it = entries.keySet().iterator(); size > target && it.hasNext(); size--) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of remembered paths, including the expired ones which were not removed yet.
+     *
+     * @return the number of paths.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
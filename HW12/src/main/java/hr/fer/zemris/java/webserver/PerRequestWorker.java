@@ -0,0 +1,17 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link IWebWorker} which is not thread-safe. {@link WorkerRegistry} creates a new instance of such
+ * a worker for every request instead of sharing one instance among concurrent requests.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PerRequestWorker {
+}
@@ -0,0 +1,903 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the body of a request, decoded incrementally as its bytes arrive: the transport hands the received
+ * bytes to {@link #feed(byte[], int, int)} until the body is complete, so the whole body never has to be in memory
+ * at once. The body is framed either by "Content-Length" or by chunked transfer encoding; the bytes which follow
+ * it belong to the next request and are not consumed.
+ * <p>
+ * The content is decoded by its type. The fields of an <code>application/x-www-form-urlencoded</code> body become
+ * parameters. The fields of a <code>multipart/form-data</code> body become parameters as well, while its files
+ * become {@link BodyPart}s which are kept in memory up to a threshold and in temporary files above it. Any other
+ * body is kept as a single {@link BodyPart} the same way.
+ * </p>
+ * <p>
+ * A body larger than the maximum body size is rejected with "413 Payload Too Large", and so are form fields which
+ * together are larger than the maximum form size, because they are held in memory. A malformed body is rejected
+ * with "400 Bad request". When the request is done, {@link #delete()} removes the temporary files.
+ * </p>
+ */
+public class RequestBody {
+
+    /**
+     * The maximum length of a chunk size line, a trailer line or the headers of a multipart part.
+     */
+    private static final int MAX_LINE = 8192;
+
+    /**
+     * The state of a chunked body: reading the size line of a chunk.
+     */
+    private static final int CHUNK_SIZE = 0;
+
+    /**
+     * The state of a chunked body: reading the data of a chunk.
+     */
+    private static final int CHUNK_DATA = 1;
+
+    /**
+     * The state of a chunked body: reading the line terminator after the data of a chunk.
+     */
+    private static final int CHUNK_END = 2;
+
+    /**
+     * The state of a chunked body: reading the trailer after the last chunk.
+     */
+    private static final int TRAILER = 3;
+
+    /**
+     * The flag indicating whether the body uses chunked transfer encoding.
+     */
+    private final boolean chunked;
+
+    /**
+     * The flag indicating whether the end of the body is signalled by the transport through {@link #end()}, as in
+     * HTTP/2, instead of by its framing.
+     */
+    private boolean delimited;
+
+    /**
+     * The number of bytes left in the body, or in the current chunk of a chunked body.
+     */
+    private long remaining;
+
+    /**
+     * The state of a chunked body.
+     */
+    private int chunkState = CHUNK_SIZE;
+
+    /**
+     * The current size or trailer line of a chunked body.
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * The number of received content bytes.
+     */
+    private long received;
+
+    /**
+     * The maximum number of content bytes.
+     */
+    private final long maxBodySize;
+
+    /**
+     * The decoder of the content.
+     */
+    private final ContentDecoder decoder;
+
+    /**
+     * The flag indicating whether the whole body was received.
+     */
+    private boolean complete;
+
+    /**
+     * The parameters decoded from form fields.
+     */
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    /**
+     * The parts which are not form fields.
+     */
+    private final List<BodyPart> parts = new ArrayList<>();
+
+    /**
+     * Creates an instance of {@link RequestBody}.
+     *
+     * @param chunked         the flag indicating whether the body uses chunked transfer encoding.
+     * @param length          the length of a body which is not chunked.
+     * @param contentType     the value of the "Content-Type" header, or null.
+     * @param maxBodySize     the maximum number of content bytes.
+     * @param maxFormSize     the maximum number of bytes of form fields.
+     * @param memoryThreshold the number of bytes of a part which are kept in memory.
+     * @param tempDir         the directory of temporary files, or null for the default one.
+     * @throws HttpRequestException if the content type is malformed.
+     */
+    private RequestBody(boolean chunked, long length, String contentType, long maxBodySize, int maxFormSize,
+                        int memoryThreshold, Path tempDir) {
+        this.chunked = chunked;
+        this.remaining = length;
+        this.maxBodySize = maxBodySize;
+
+        String mime = contentType == null ? "" : contentType.split(";")[0].trim().toLowerCase();
+        if (mime.equals("application/x-www-form-urlencoded")) {
+            decoder = new FormDecoder(maxFormSize);
+        } else if (mime.equals("multipart/form-data")) {
+            String boundary = parameter(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            decoder = new MultipartDecoder(boundary, maxFormSize, memoryThreshold, tempDir);
+        } else {
+            BodyPart part = new BodyPart(null, null, contentType, memoryThreshold, tempDir);
+            parts.add(part);
+            decoder = new ContentDecoder() {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    part.write(b, off, len);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    part.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Creates the body of the given request from its headers. The only expectation which can be met is
+     * "100-continue".
+     *
+     * @param request         the request.
+     * @param maxBodySize     the maximum number of content bytes.
+     * @param maxFormSize     the maximum number of bytes of form fields.
+     * @param memoryThreshold the number of bytes of a part which are kept in memory.
+     * @param tempDir         the directory of temporary files, or null for the default one.
+     * @return the body, or null if the request has no body.
+     * @throws HttpRequestException if the framing of the body is invalid or not supported, if the body is
+     *                              known to be too large, or if the expectation can not be met.
+     */
+    public static RequestBody open(HttpRequest request, long maxBodySize, int maxFormSize, int memoryThreshold,
+                                   Path tempDir) {
+        String expect = request.getHeader("expect");
+        if (expect != null && !expect.trim().equalsIgnoreCase("100-continue")) {
+            throw new HttpRequestException(417, "Expectation Failed");
+        }
+        String transferEncoding = request.getHeader("transfer-encoding");
+        String contentLength = request.getHeader("content-length");
+        boolean chunked = false;
+        long length = 0;
+        if (transferEncoding != null) {
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new HttpRequestException(501, "Not Implemented");
+            }
+            if (contentLength != null) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            chunked = true;
+        } else if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            if (length < 0) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            if (length > maxBodySize) {
+                throw new HttpRequestException(413, "Payload Too Large");
+            }
+        }
+        if (!chunked && length == 0) {
+            return null;
+        }
+        return new RequestBody(chunked, length, request.getHeader("content-type"), maxBodySize, maxFormSize,
+                memoryThreshold, tempDir);
+    }
+
+    /**
+     * Creates the body of the given request whose end is signalled by the transport through {@link #end()}, as a
+     * stream of HTTP/2 does with its last frame. A "Content-Length" header is optional, but the body must match it.
+     *
+     * @param request         the request.
+     * @param maxBodySize     the maximum number of content bytes.
+     * @param maxFormSize     the maximum number of bytes of form fields.
+     * @param memoryThreshold the number of bytes of a part which are kept in memory.
+     * @param tempDir         the directory of temporary files, or null for the default one.
+     * @return the body.
+     * @throws HttpRequestException if the length of the body is invalid or known to be too large.
+     */
+    public static RequestBody openDelimited(HttpRequest request, long maxBodySize, int maxFormSize,
+                                            int memoryThreshold, Path tempDir) {
+        String contentLength = request.getHeader("content-length");
+        long length = 0;
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            if (length < 0) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            if (length > maxBodySize) {
+                throw new HttpRequestException(413, "Payload Too Large");
+            }
+        }
+        RequestBody body = new RequestBody(false, length, request.getHeader("content-type"), maxBodySize,
+                maxFormSize, memoryThreshold, tempDir);
+        body.delimited = contentLength == null;
+        return body;
+    }
+
+    /**
+     * Decodes the given received bytes. The bytes which follow the end of the body are not consumed.
+     *
+     * @param b   the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @return the number of consumed bytes.
+     * @throws IOException          if a temporary file can not be written.
+     * @throws HttpRequestException if the body is malformed or too large.
+     */
+    public int feed(byte[] b, int off, int len) throws IOException {
+        int pos = off;
+        int end = off + len;
+        while (pos < end && !complete) {
+            if (delimited) {
+                content(b, pos, end - pos);
+                pos = end;
+                continue;
+            }
+            if (!chunked) {
+                int n = (int) Math.min(remaining, end - pos);
+                content(b, pos, n);
+                pos += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    finish();
+                }
+                continue;
+            }
+            switch (chunkState) {
+                case CHUNK_DATA:
+                    int n = (int) Math.min(remaining, end - pos);
+                    content(b, pos, n);
+                    pos += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        chunkState = CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    byte c = b[pos++];
+                    if (c == '\n') {
+                        chunkState = CHUNK_SIZE;
+                    } else if (c != '\r') {
+                        throw new HttpRequestException(400, "Bad request");
+                    }
+                    break;
+                default:
+                    if (!appendLine(b[pos++])) {
+                        break;
+                    }
+                    if (chunkState == CHUNK_SIZE) {
+                        remaining = chunkSize(line.toString());
+                        chunkState = remaining == 0 ? TRAILER : CHUNK_DATA;
+                    } else if (line.length() == 0) {
+                        finish();
+                    }
+                    line.setLength(0);
+                    break;
+            }
+        }
+        return pos - off;
+    }
+
+    /**
+     * Completes a body whose end is signalled by the transport, see
+     * {@link #openDelimited(HttpRequest, long, int, int, Path)}.
+     *
+     * @throws IOException          if a temporary file can not be written.
+     * @throws HttpRequestException if the body is shorter than its "Content-Length" or its content is malformed.
+     */
+    public void end() throws IOException {
+        if (complete) {
+            return;
+        }
+        if (chunked || !delimited && remaining > 0) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+        finish();
+    }
+
+    /**
+     * Returns true if the whole body was received.
+     *
+     * @return true if the whole body was received.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the parameters decoded from form fields.
+     *
+     * @return the parameters.
+     */
+    public Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * Returns the parts which are not form fields: the uploaded files of a multipart form, or the whole body if it
+     * is not a form.
+     *
+     * @return the parts.
+     */
+    public List<BodyPart> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * Returns the first part with the given field name.
+     *
+     * @param name the field name, or null for the whole body.
+     * @return the part, or null if there is no such part.
+     */
+    public BodyPart getPart(String name) {
+        for (BodyPart part : parts) {
+            if (name == null ? part.getName() == null : name.equals(part.getName())) {
+                return part;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the temporary files of the parts which were not saved.
+     */
+    public void delete() {
+        for (BodyPart part : parts) {
+            part.delete();
+        }
+    }
+
+    /**
+     * Decodes the given content bytes.
+     *
+     * @param b   the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @throws IOException          if a temporary file can not be written.
+     * @throws HttpRequestException if the body is malformed or too large.
+     */
+    private void content(byte[] b, int off, int len) throws IOException {
+        received += len;
+        if (received > maxBodySize) {
+            throw new HttpRequestException(413, "Payload Too Large");
+        }
+        decoder.write(b, off, len);
+    }
+
+    /**
+     * Completes the body after its last byte.
+     *
+     * @throws IOException          if a temporary file can not be written.
+     * @throws HttpRequestException if the content is malformed.
+     */
+    private void finish() throws IOException {
+        decoder.finish();
+        complete = true;
+    }
+
+    /**
+     * Appends the given byte to the current line of a chunked body.
+     *
+     * @param c the byte.
+     * @return true if the line is complete.
+     * @throws HttpRequestException if the line is too long.
+     */
+    private boolean appendLine(byte c) {
+        if (c == '\n') {
+            return true;
+        }
+        if (line.length() >= MAX_LINE) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+        if (c != '\r') {
+            line.append((char) (c & 0xFF));
+        }
+        return false;
+    }
+
+    /**
+     * Parses the size of a chunk from its size line, ignoring chunk extensions.
+     *
+     * @param sizeLine the size line.
+     * @return the size of the chunk.
+     * @throws HttpRequestException if the size is malformed.
+     */
+    private static long chunkSize(String sizeLine) {
+        int semicolon = sizeLine.indexOf(';');
+        String size = (semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim();
+        if (size.isEmpty() || size.length() > 15) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+        try {
+            return Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+    }
+
+    /**
+     * Returns the value of the given parameter of a header value such as
+     * <code>form-data; name="file"; filename="a.txt"</code>.
+     *
+     * @param value the header value.
+     * @param name  the name of the parameter, in lower case.
+     * @return the value of the parameter without quotes, or null if there is no such parameter.
+     */
+    private static String parameter(String value, String name) {
+        int i = value.indexOf(';');
+        while (i != -1 && i < value.length()) {
+            int nameStart = i + 1;
+            int eq = value.indexOf('=', nameStart);
+            if (eq == -1) {
+                return null;
+            }
+            String parameterName = value.substring(nameStart, eq).trim().toLowerCase();
+            int valueStart = eq + 1;
+            while (valueStart < value.length() && value.charAt(valueStart) == ' ') {
+                valueStart++;
+            }
+            String parameterValue;
+            if (valueStart < value.length() && value.charAt(valueStart) == '"') {
+                StringBuilder sb = new StringBuilder();
+                int j = valueStart + 1;
+                for (; j < value.length() && value.charAt(j) != '"'; j++) {
+                    char c = value.charAt(j);
+                    if (c == '\\' && j + 1 < value.length()) {
+                        c = value.charAt(++j);
+                    }
+                    sb.append(c);
+                }
+                parameterValue = sb.toString();
+                i = value.indexOf(';', j);
+            } else {
+                i = value.indexOf(';', valueStart);
+                parameterValue = value.substring(valueStart, i == -1 ? value.length() : i).trim();
+            }
+            if (parameterName.equals(name)) {
+                return parameterValue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the given form-urlencoded text.
+     *
+     * @param text the text.
+     * @return the decoded text.
+     * @throws HttpRequestException if the text is malformed.
+     */
+    private static String urlDecode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            throw new HttpRequestException(400, "Bad request");
+        }
+    }
+
+    /**
+     * Represents a decoder of the content of a body.
+     */
+    private interface ContentDecoder {
+
+        /**
+         * Decodes the given content bytes.
+         *
+         * @param b   the bytes.
+         * @param off the offset of the first byte.
+         * @param len the number of bytes.
+         * @throws IOException if a temporary file can not be written.
+         */
+        void write(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * Completes the content after its last byte.
+         *
+         * @throws IOException if a temporary file can not be written.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Represents the decoder of an <code>application/x-www-form-urlencoded</code> body. Every field is decoded as
+     * soon as its separator arrives.
+     */
+    private class FormDecoder implements ContentDecoder {
+
+        /**
+         * The bytes of the current field.
+         */
+        private final ByteArrayOutputStream field = new ByteArrayOutputStream();
+
+        /**
+         * The maximum number of bytes of the form.
+         */
+        private final int maxFormSize;
+
+        /**
+         * The number of bytes of the form.
+         */
+        private long size;
+
+        /**
+         * Creates an instance of {@link FormDecoder}.
+         *
+         * @param maxFormSize the maximum number of bytes of the form.
+         */
+        public FormDecoder(int maxFormSize) {
+            this.maxFormSize = maxFormSize;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+            if (size > maxFormSize) {
+                throw new HttpRequestException(413, "Payload Too Large");
+            }
+            int run = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '&') {
+                    field.write(b, run, i - run);
+                    addField();
+                    run = i + 1;
+                }
+            }
+            field.write(b, run, off + len - run);
+        }
+
+        @Override
+        public void finish() {
+            addField();
+        }
+
+        /**
+         * Decodes the current field into a parameter. Like in a query string, a field without a value becomes
+         * a parameter with a null value.
+         */
+        private void addField() {
+            String text = new String(field.toByteArray(), StandardCharsets.ISO_8859_1);
+            field.reset();
+            if (text.isEmpty()) {
+                return;
+            }
+            int eq = text.indexOf('=');
+            if (eq == -1) {
+                parameters.put(urlDecode(text), null);
+            } else {
+                parameters.put(urlDecode(text.substring(0, eq)), urlDecode(text.substring(eq + 1)));
+            }
+        }
+    }
+
+    /**
+     * Represents the decoder of a <code>multipart/form-data</code> body. The delimiters are searched for while the
+     * bytes arrive, so the data of a part is passed on without being buffered.
+     *
+     * @see <a href="https://www.rfc-editor.org/rfc/rfc7578">Returning Values from Forms: multipart/form-data</a>
+     */
+    private class MultipartDecoder implements ContentDecoder {
+
+        /**
+         * The state: before the first delimiter.
+         */
+        private static final int PREAMBLE = 0;
+
+        /**
+         * The state: on the line which follows a delimiter.
+         */
+        private static final int DELIMITER_LINE = 1;
+
+        /**
+         * The state: in the headers of a part.
+         */
+        private static final int HEADERS = 2;
+
+        /**
+         * The state: in the data of a part.
+         */
+        private static final int DATA = 3;
+
+        /**
+         * The state: after the last delimiter.
+         */
+        private static final int EPILOGUE = 4;
+
+        /**
+         * The delimiter which precedes every part: CRLF, two dashes and the boundary. The only carriage return in
+         * it is its first byte, which keeps the search simple.
+         */
+        private final byte[] delimiter;
+
+        /**
+         * The maximum number of bytes of form fields.
+         */
+        private final int maxFormSize;
+
+        /**
+         * The number of bytes of a part which are kept in memory.
+         */
+        private final int memoryThreshold;
+
+        /**
+         * The directory of temporary files, or null for the default one.
+         */
+        private final Path tempDir;
+
+        /**
+         * The state.
+         */
+        private int state = PREAMBLE;
+
+        /**
+         * The number of bytes of the delimiter which were matched by the last received bytes.
+         */
+        private int matched = 2;
+
+        /**
+         * The flag indicating whether the last search found the delimiter.
+         */
+        private boolean found;
+
+        /**
+         * The bytes of the current line or of the headers of the current part.
+         */
+        private final byte[] head = new byte[MAX_LINE];
+
+        /**
+         * The number of bytes in {@link #head}.
+         */
+        private int headSize;
+
+        /**
+         * The name of the current form field, or null if the current part is a file.
+         */
+        private String fieldName;
+
+        /**
+         * The bytes of the current form field.
+         */
+        private final ByteArrayOutputStream fieldValue = new ByteArrayOutputStream();
+
+        /**
+         * The number of bytes of form fields.
+         */
+        private long formSize;
+
+        /**
+         * The current file, or null if the current part is a form field.
+         */
+        private BodyPart file;
+
+        /**
+         * Creates an instance of {@link MultipartDecoder}.
+         *
+         * @param boundary        the boundary.
+         * @param maxFormSize     the maximum number of bytes of form fields.
+         * @param memoryThreshold the number of bytes of a part which are kept in memory.
+         * @param tempDir         the directory of temporary files, or null for the default one.
+         */
+        public MultipartDecoder(String boundary, int maxFormSize, int memoryThreshold, Path tempDir) {
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.maxFormSize = maxFormSize;
+            this.memoryThreshold = memoryThreshold;
+            this.tempDir = tempDir;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int pos = off;
+            int end = off + len;
+            while (pos < end) {
+                switch (state) {
+                    case PREAMBLE:
+                    case DATA:
+                        pos = search(b, pos, end);
+                        if (found) {
+                            if (state == DATA) {
+                                endPart();
+                            }
+                            state = DELIMITER_LINE;
+                        }
+                        break;
+                    case DELIMITER_LINE:
+                        byte c = b[pos++];
+                        if (c != '\n') {
+                            appendHead(c);
+                            break;
+                        }
+                        boolean last = headSize >= 2 && head[0] == '-' && head[1] == '-';
+                        headSize = 0;
+                        state = last ? EPILOGUE : HEADERS;
+                        break;
+                    case HEADERS:
+                        appendHead(b[pos++]);
+                        if (endsWithBlankLine()) {
+                            startPart(new String(head, 0, headSize, StandardCharsets.UTF_8));
+                            headSize = 0;
+                            state = DATA;
+                        }
+                        break;
+                    default:
+                        // the epilogue is ignored
+                        return;
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+            if (state != EPILOGUE) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+        }
+
+        /**
+         * Searches the given bytes for the delimiter, passing the bytes before it on as data of the current part.
+         * Bytes which may be the beginning of a delimiter are held back until the next bytes tell.
+         *
+         * @param b     the bytes.
+         * @param pos   the position of the first byte.
+         * @param end   the position after the last byte.
+         * @return the position after the delimiter if it was found, or the end.
+         * @throws IOException if a temporary file can not be written.
+         */
+        private int search(byte[] b, int pos, int end) throws IOException {
+            found = false;
+            int run = pos;
+            for (int i = pos; i < end; i++) {
+                byte c = b[i];
+                if (matched > 0) {
+                    if (c == delimiter[matched]) {
+                        if (++matched == delimiter.length) {
+                            matched = 0;
+                            found = true;
+                            return i + 1;
+                        }
+                        continue;
+                    }
+                    data(delimiter, 0, matched);
+                    matched = 0;
+                    run = i;
+                }
+                if (c == '\r') {
+                    data(b, run, i - run);
+                    matched = 1;
+                }
+            }
+            if (matched == 0) {
+                data(b, run, end - run);
+            }
+            return end;
+        }
+
+        /**
+         * Passes the given bytes on as data of the current part. Data before the first delimiter is ignored.
+         *
+         * @param b   the bytes.
+         * @param off the offset of the first byte.
+         * @param len the number of bytes.
+         * @throws IOException if a temporary file can not be written.
+         */
+        private void data(byte[] b, int off, int len) throws IOException {
+            if (state != DATA || len == 0) {
+                return;
+            }
+            if (file != null) {
+                file.write(b, off, len);
+                return;
+            }
+            formSize += len;
+            if (formSize > maxFormSize) {
+                throw new HttpRequestException(413, "Payload Too Large");
+            }
+            fieldValue.write(b, off, len);
+        }
+
+        /**
+         * Appends the given byte to the current line or headers.
+         *
+         * @param c the byte.
+         * @throws HttpRequestException if the headers are too long.
+         */
+        private void appendHead(byte c) {
+            if (headSize >= MAX_LINE) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            head[headSize++] = c;
+        }
+
+        /**
+         * Checks whether the headers of the current part are complete.
+         *
+         * @return true if the headers end with a blank line.
+         */
+        private boolean endsWithBlankLine() {
+            int n = headSize;
+            if (head[n - 1] != '\n') {
+                return false;
+            }
+            if (n == 1 || n == 2 && head[0] == '\r') {
+                return true;
+            }
+            return head[n - 2] == '\n' || n >= 3 && head[n - 2] == '\r' && head[n - 3] == '\n';
+        }
+
+        /**
+         * Starts a part with the given headers.
+         *
+         * @param headers the headers of the part.
+         * @throws HttpRequestException if the part has no name.
+         */
+        private void startPart(String headers) {
+            String disposition = null;
+            String type = null;
+            for (String headerLine : headers.split("\r?\n")) {
+                int colon = headerLine.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String headerName = headerLine.substring(0, colon).trim().toLowerCase();
+                if (headerName.equals("content-disposition")) {
+                    disposition = headerLine.substring(colon + 1).trim();
+                } else if (headerName.equals("content-type")) {
+                    type = headerLine.substring(colon + 1).trim();
+                }
+            }
+            String name = disposition == null ? null : parameter(disposition, "name");
+            if (name == null) {
+                throw new HttpRequestException(400, "Bad request");
+            }
+            String fileName = parameter(disposition, "filename");
+            if (fileName != null) {
+                file = new BodyPart(name, fileName, type, memoryThreshold, tempDir);
+                parts.add(file);
+            } else {
+                fieldName = name;
+            }
+        }
+
+        /**
+         * Completes the current part.
+         *
+         * @throws IOException if a temporary file can not be written.
+         */
+        private void endPart() throws IOException {
+            if (file != null) {
+                file.close();
+                file = null;
+                return;
+            }
+            parameters.put(fieldName, new String(fieldValue.toByteArray(), StandardCharsets.UTF_8));
+            fieldValue.reset();
+            fieldName = null;
+        }
+    }
+}
@@ -1,15 +1,51 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents server request and its context , ie it represents the server response to the client.
  */
 public class RequestContext {
 
+    /**
+     * The last chunk which terminates a chunked body.
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The line terminator.
+     */
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The hexadecimal digits of chunk sizes.
+     */
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The content length of a body whose length is not known.
+     */
+    private static final long UNKNOWN_LENGTH = -1;
+
+    /**
+     * The capacity above which a header buffer is not kept for the next response.
+     */
+    private static final int MAX_RETAINED_HEADER_CAPACITY = 16 * 1024;
+
+    /**
+     * The buffer in which headers are built, one per thread, so that it is reused by all responses written by
+     * the thread.
+     */
+    private static final ThreadLocal<HeaderBuffer> HEADER_BUFFER = ThreadLocal.withInitial(HeaderBuffer::new);
+
     /**
      * The output stream.
      */
@@ -23,31 +59,31 @@ public class RequestContext {
     /**
      * The used encoding.
      */
-    private String encoding = "UTF-8";
+    private String encoding;
 
     /**
      * The status code.
      *
      * @see <a href="https://en.wikipedia.org/wiki/List_of_HTTP_status_codes">Status code</a>
      */
-    private int statusCode = 200;
+    private int statusCode;
 
     /**
      * The status text.
      */
-    private String statusText = "OK";
+    private String statusText;
 
     /**
      * The mime type.
      *
      * @see <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Basics_of_HTTP/MIME_types">Mime types</a>
      */
-    private String mimeType = "text/html";
+    private String mimeType;
 
     /**
-     * The content length.
+     * The content length, or {@link #UNKNOWN_LENGTH} if it is not known.
      */
-    private Long contentLength = null;
+    private long contentLength;
 
     /**
      * The parameters.
@@ -72,13 +108,102 @@ public class RequestContext {
     /**
      * The flag indicating whether the  header is generated.
      */
-    private boolean headerGenerated = false;
+    private boolean headerGenerated;
 
     /**
      * The request dispatcher.
      */
     private IDispatcher dispatcher;
 
+    /**
+     * The body of the request, or null if the request has no body.
+     */
+    private RequestBody requestBody;
+
+    /**
+     * The names of the additional headers, in the order in which they were first set. Names and values are kept
+     * in lists, which keep their capacity when the context is reset, instead of a map which allocates an entry
+     * for every header of every response.
+     */
+    private final List<String> headerNames = new ArrayList<>();
+
+    /**
+     * The values of the additional headers, at the indices of their names.
+     */
+    private final List<String> headerValues = new ArrayList<>();
+
+    /**
+     * The flag indicating whether the connection stays open after this response.
+     */
+    private boolean keepAlive;
+
+    /**
+     * The flag indicating whether the client accepts chunked transfer encoding.
+     */
+    private boolean chunkingAllowed;
+
+    /**
+     * The flag indicating whether the client accepts gzip compressed bodies.
+     */
+    private boolean gzipAllowed;
+
+    /**
+     * The minimum size in bytes of a body which is compressed.
+     */
+    private int compressionThreshold;
+
+    /**
+     * The size in bytes of the buffer in which a body of unknown length is aggregated; 0 if it is not.
+     */
+    private int bufferSize;
+
+    /**
+     * The body bytes which are held back until it is known whether the body fits into the buffer and whether
+     * it is compressed.
+     */
+    private ByteArrayOutputStream pending;
+
+    /**
+     * The stream to which the body is written once the header is generated.
+     */
+    private OutputStream body;
+
+    /**
+     * The stream which frames the body in chunks, or null if chunked transfer encoding is not used.
+     */
+    private ChunkedOutputStream chunkedStream;
+
+    /**
+     * The stream which frames bodies in chunks, kept together with its buffer for the next response when the
+     * context is reset, or null if no body was chunked yet.
+     */
+    private ChunkedOutputStream spareChunkedStream;
+
+    /**
+     * The stream which compresses the body, or null if the body is not compressed.
+     */
+    private GZIPOutputStream gzipStream;
+
+    /**
+     * The flag indicating whether the context was released by the server and may not be used any more.
+     */
+    private boolean released;
+
+    /**
+     * The flag indicating whether the response was aborted after its header was generated.
+     */
+    private boolean aborted;
+
+    /**
+     * The flag indicating whether an asynchronous worker or the server took over writing the response.
+     */
+    private final AtomicBoolean responseClaimed = new AtomicBoolean();
+
+    /**
+     * The trace whose phases are sent in a "Server-Timing" header, or null.
+     */
+    private RequestTrace serverTiming;
+
     /**
      * Creates an instance of {@link RequestContext}.
      *
@@ -92,9 +217,7 @@ public class RequestContext {
     public RequestContext(OutputStream outputStream, Map<String, String> parameters,
                           Map<String, String> persistentParameters, List<RCCookie> outputCookies,
                           Map<String, String> temporaryParameters, IDispatcher dispatcher) {
-        this(outputStream, parameters, persistentParameters, outputCookies);
-        this.temporaryParameters = temporaryParameters == null ? new HashMap<>() : temporaryParameters;
-        this.dispatcher = dispatcher;
+        reset(outputStream, parameters, persistentParameters, outputCookies, temporaryParameters, dispatcher);
     }
 
 
@@ -108,11 +231,119 @@ public class RequestContext {
      */
     public RequestContext(OutputStream outputStream, Map<String, String> parameters,
                           Map<String, String> persistentParameters, List<RCCookie> outputCookies) {
+        this(outputStream, parameters, persistentParameters, outputCookies, null, null);
+    }
+
+    /**
+     * Prepares the context for a new request, as if it was just created with the given arguments. This lets the
+     * server reuse one context for the requests of a connection.
+     *
+     * @param outputStream         the output stream.
+     * @param parameters           the parameters.
+     * @param persistentParameters the persistent parameters.
+     * @param outputCookies        the output cookies.
+     * @param temporaryParameters  the temporary parameters.
+     * @param dispatcher           the request dispatcher.
+     */
+    void reset(OutputStream outputStream, Map<String, String> parameters, Map<String, String> persistentParameters,
+               List<RCCookie> outputCookies, Map<String, String> temporaryParameters, IDispatcher dispatcher) {
         this.outputStream = Objects.requireNonNull(outputStream, "Output stream must not be null!");
         this.parameters = parameters == null ? new HashMap<>() : parameters;
         this.persistentParameters = persistentParameters == null ? new HashMap<>() : persistentParameters;
-        this.temporaryParameters = new HashMap<>();
+        this.temporaryParameters = temporaryParameters == null ? new HashMap<>() : temporaryParameters;
         this.outputCookies = outputCookies == null ? new ArrayList<>() : outputCookies;
+        this.dispatcher = dispatcher;
+        charset = null;
+        encoding = "UTF-8";
+        statusCode = 200;
+        statusText = "OK";
+        mimeType = "text/html";
+        contentLength = UNKNOWN_LENGTH;
+        headerGenerated = false;
+        requestBody = null;
+        headerNames.clear();
+        headerValues.clear();
+        keepAlive = false;
+        chunkingAllowed = false;
+        gzipAllowed = false;
+        compressionThreshold = 1024;
+        bufferSize = 0;
+        pending = null;
+        body = null;
+        chunkedStream = null;
+        gzipStream = null;
+        released = false;
+        aborted = false;
+        responseClaimed.set(false);
+        serverTiming = null;
+    }
+
+    /**
+     * Sets the trace whose phases timed until the header is generated are sent in a "Server-Timing" header.
+     *
+     * @param serverTiming the trace, or null for no header.
+     */
+    void setServerTiming(RequestTrace serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    /**
+     * Marks the context as released once the server completed its request. Until it is reset for another
+     * request, every use of the context fails, which reveals workers that keep using a context after their
+     * request is over.
+     */
+    void release() {
+        released = true;
+        responseClaimed.set(true);
+        requestBody = null;
+        pending = null;
+    }
+
+    /**
+     * Aborts the response after its header was generated, e.g. because an error occurred which can no longer be
+     * reported with a status code. Unlike {@link #setKeepAlive(boolean)}, it may be called at any time: the
+     * connection is closed after the response, and {@link #finish()} does not complete the body, so that the
+     * client can tell that the body is incomplete.
+     */
+    void abort() {
+        keepAlive = false;
+        aborted = true;
+    }
+
+    /**
+     * Claims the response of the request for the caller. An asynchronous worker must claim the response before
+     * it writes to the context after {@link IAsyncWebWorker#processRequestAsync(RequestContext)} returned; the
+     * server claims it when the worker does not complete in time or the client disconnects, before it answers
+     * or abandons the request. Only the first claim succeeds, so the worker and the server never write the
+     * response at the same time.
+     * <p>
+     * Unlike the other methods, it may be called after the request was completed; it then returns false.
+     * </p>
+     *
+     * @return true if the caller may write the response, false if it was already claimed, e.g. because the
+     * server answered the request itself.
+     */
+    public boolean claimResponse() {
+        return responseClaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Drops the body bytes which are held back, so that an error response can replace a response whose header
+     * is not generated yet.
+     */
+    void discardBody() {
+        pending = null;
+    }
+
+    /**
+     * Checks that the context was not released.
+     *
+     * @throws IllegalStateException if the context was released.
+     */
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The request context is used after its request was completed.");
+        }
     }
 
     /**
@@ -234,6 +465,7 @@ public class RequestContext {
      * @throws RuntimeException if the header is already generated.
      */
     public void setContentLength(long contentLength) {
+        checkReleased();
         checkHeader();
         this.contentLength = contentLength;
     }
@@ -245,6 +477,7 @@ public class RequestContext {
      * @throws RuntimeException if the header is already generated.
      */
     public void setEncoding(String encoding) {
+        checkReleased();
         checkHeader();
         this.encoding = encoding;
     }
@@ -256,10 +489,21 @@ public class RequestContext {
      * @throws RuntimeException if the header is already generated.
      */
     public void setStatusCode(int statusCode) {
+        checkReleased();
         checkHeader();
         this.statusCode = statusCode;
     }
 
+    /**
+     * Returns the status code.
+     *
+     * @return the status code.
+     */
+    public int getStatusCode() {
+        checkReleased();
+        return statusCode;
+    }
+
     /**
      * Returns the status text.
      *
@@ -267,6 +511,7 @@ public class RequestContext {
      * @throws RuntimeException if the header is already generated.
      */
     public void setStatusText(String statusText) {
+        checkReleased();
         checkHeader();
         this.statusText = statusText;
     }
@@ -278,10 +523,140 @@ public class RequestContext {
      * @throws RuntimeException if the header is already generated.
      */
     public void setMimeType(String mimeType) {
+        checkReleased();
         checkHeader();
         this.mimeType = mimeType;
     }
 
+    /**
+     * Sets an additional header. A header with the same name which was set before is replaced.
+     *
+     * @param name  the header name.
+     * @param value the header value.
+     * @throws NullPointerException if the name or value is a null reference.
+     * @throws RuntimeException     if the header is already generated.
+     */
+    public void setHeader(String name, String value) {
+        checkReleased();
+        checkHeader();
+        putHeader(Objects.requireNonNull(name, "Name must not be null."),
+                Objects.requireNonNull(value, "Value must not be null."));
+    }
+
+    /**
+     * Sets an additional header, replacing a header with the same name.
+     *
+     * @param name  the header name.
+     * @param value the header value.
+     */
+    private void putHeader(String name, String value) {
+        int index = headerNames.indexOf(name);
+        if (index < 0) {
+            headerNames.add(name);
+            headerValues.add(value);
+        } else {
+            headerValues.set(index, value);
+        }
+    }
+
+    /**
+     * Sets the flag indicating whether the connection should stay open after this response. If the
+     * length of the body is unknown and chunking is not allowed, the connection is closed anyway.
+     *
+     * @param keepAlive the flag indicating whether the connection should stay open.
+     * @throws RuntimeException if the header is already generated.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        checkReleased();
+        checkHeader();
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns true if the connection stays open after this response.
+     *
+     * @return true if the connection stays open after this response.
+     */
+    public boolean isKeepAlive() {
+        checkReleased();
+        return keepAlive;
+    }
+
+    /**
+     * Sets the flag indicating whether the client accepts chunked transfer encoding (HTTP/1.1).
+     *
+     * @param chunkingAllowed the flag indicating whether chunked transfer encoding may be used.
+     * @throws RuntimeException if the header is already generated.
+     */
+    public void setChunkingAllowed(boolean chunkingAllowed) {
+        checkReleased();
+        checkHeader();
+        this.chunkingAllowed = chunkingAllowed;
+    }
+
+    /**
+     * Sets the flag indicating whether the client accepts gzip compressed bodies. If it does, a body of unknown
+     * length is held back until it reaches the compression threshold; a body of a compressible mime type which
+     * reaches it is compressed, a smaller one is sent as it is with its exact length.
+     *
+     * @param gzipAllowed the flag indicating whether gzip may be used.
+     * @throws RuntimeException if the header is already generated.
+     */
+    public void setGzipAllowed(boolean gzipAllowed) {
+        checkReleased();
+        checkHeader();
+        this.gzipAllowed = gzipAllowed;
+    }
+
+    /**
+     * Sets the minimum size in bytes of a body which is compressed.
+     *
+     * @param compressionThreshold the minimum size of a compressed body.
+     * @throws RuntimeException if the header is already generated.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        checkReleased();
+        checkHeader();
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sets the size in bytes of the buffer in which a body of unknown length is aggregated. A body which fits
+     * into the buffer is sent with its exact length, so the connection can stay open without chunked transfer
+     * encoding; a larger body is streamed, in chunks of the buffer size if chunked transfer encoding is used.
+     * A body which is compressed is held back at least until it reaches the compression threshold.
+     *
+     * @param bufferSize the size of the buffer, or 0 to send the body as it is written.
+     * @throws RuntimeException if the header is already generated.
+     */
+    public void setBufferSize(int bufferSize) {
+        checkReleased();
+        checkHeader();
+        this.bufferSize = Math.max(0, bufferSize);
+    }
+
+    /**
+     * Returns true if bodies of the given mime type are worth compressing.
+     *
+     * @param mimeType the mime type.
+     * @return true if bodies of the given mime type are worth compressing.
+     */
+    public static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.equals("application/javascript")
+                || mimeType.equals("application/json") || mimeType.equals("application/xml")
+                || mimeType.equals("image/svg+xml");
+    }
+
+    /**
+     * Returns true if the header is already generated.
+     *
+     * @return true if the header is already generated.
+     */
+    public boolean isHeaderGenerated() {
+        checkReleased();
+        return headerGenerated;
+    }
+
     /**
      * Checks if the header is already generated.
      *
@@ -299,15 +674,38 @@ public class RequestContext {
      * @return the request dispatcher.
      */
     public IDispatcher getDispatcher() {
+        checkReleased();
         return dispatcher;
     }
 
+    /**
+     * Returns the body of the request. Its form fields are already among the parameters; the body gives access
+     * to uploaded files and to a body which is not a form.
+     *
+     * @return the body of the request, or null if the request has no body.
+     */
+    public RequestBody getRequestBody() {
+        checkReleased();
+        return requestBody;
+    }
+
+    /**
+     * Sets the body of the request.
+     *
+     * @param requestBody the body of the request, or null if the request has no body.
+     */
+    public void setRequestBody(RequestBody requestBody) {
+        checkReleased();
+        this.requestBody = requestBody;
+    }
+
     /**
      * Returns the parameters.
      *
      * @return the parameters.
      */
     public Map<String, String> getParameters() {
+        checkReleased();
         return parameters;
     }
 
@@ -317,6 +715,7 @@ public class RequestContext {
      * @return the temporary parameters.
      */
     public Map<String, String> getTemporaryParameters() {
+        checkReleased();
         return temporaryParameters;
     }
 
@@ -326,6 +725,7 @@ public class RequestContext {
      * @param temporaryParameters the temporary parameters.
      */
     public void setTemporaryParameters(Map<String, String> temporaryParameters) {
+        checkReleased();
         this.temporaryParameters = temporaryParameters;
     }
 
@@ -335,6 +735,7 @@ public class RequestContext {
      * @return the persistent parameters.
      */
     public Map<String, String> getPersistentParameters() {
+        checkReleased();
         return persistentParameters;
     }
 
@@ -344,6 +745,7 @@ public class RequestContext {
      * @param persistentParameters the persistent parameters.
      */
     public void setPersistentParameters(Map<String, String> persistentParameters) {
+        checkReleased();
         this.persistentParameters = persistentParameters;
     }
 
@@ -354,6 +756,7 @@ public class RequestContext {
      * @return names of all parameters in parameters map.
      */
     public Set<String> getParameterNames() {
+        checkReleased();
         return Collections.unmodifiableSet(parameters.keySet());
     }
 
@@ -364,6 +767,7 @@ public class RequestContext {
      * @return the parameter  associated with the given name or null.
      */
     public String getPersistentParameter(String name) {
+        checkReleased();
         return persistentParameters.get(name);
     }
 
@@ -374,6 +778,7 @@ public class RequestContext {
      * @return the parameter  associated with the given name or null.
      */
     public String getParameter(String name) {
+        checkReleased();
         return parameters.get(name);
     }
 
@@ -383,6 +788,7 @@ public class RequestContext {
      * @return names of all parameters in persistent parameters map.
      */
     public Set<String> getPersistentParameterNames() {
+        checkReleased();
         return Collections.unmodifiableSet(persistentParameters.keySet());
     }
 
@@ -393,6 +799,7 @@ public class RequestContext {
      * @param value the value.
      */
     public void setPersistentParameter(String name, String value) {
+        checkReleased();
         Objects.requireNonNull(name, "Name must not be null!");
         persistentParameters.put(name, value);
     }
@@ -404,6 +811,7 @@ public class RequestContext {
      * @throws NullPointerException if the name is a null reference.
      */
     public void removePersistentParameter(String name) {
+        checkReleased();
         Objects.requireNonNull(name, "Name must not be  null.");
         persistentParameters.remove(name);
     }
@@ -415,6 +823,7 @@ public class RequestContext {
      * @return values from temporary parameters map or null if no association exists.
      */
     public String getTemporaryParameter(String name) {
+        checkReleased();
         return temporaryParameters.get(name);
     }
 
@@ -424,6 +833,7 @@ public class RequestContext {
      * @return names of all parameters in temporary parameters map.
      */
     public Set<String> getTemporaryParameterNames() {
+        checkReleased();
         return Collections.unmodifiableSet(temporaryParameters.keySet());
     }
 
@@ -435,6 +845,7 @@ public class RequestContext {
      * @throws NullPointerException if the name is a null reference.
      */
     public void setTemporaryParameter(String name, String value) {
+        checkReleased();
         Objects.requireNonNull(name, "Name must not be null reference");
         temporaryParameters.put(name, value);
     }
@@ -446,6 +857,7 @@ public class RequestContext {
      * @throws NullPointerException if the name is a null reference.
      */
     public void removeTemporaryParameter(String name) {
+        checkReleased();
         Objects.requireNonNull(name, "Name must not be null.");
         temporaryParameters.remove(name);
     }
@@ -457,6 +869,7 @@ public class RequestContext {
      * @throws NullPointerException if the given cookie is a null reference.
      */
     public void addRCCookie(RCCookie rcCookie) {
+        checkReleased();
         Objects.requireNonNull(rcCookie, "Cookie must not be null");
         outputCookies.add(rcCookie);
     }
@@ -469,11 +882,7 @@ public class RequestContext {
      * @throws IOException if an error occurred while writing.
      */
     public RequestContext write(byte[] data) throws IOException {
-        if (!headerGenerated) {
-            generateHeader();
-        }
-        outputStream.write(data);
-        return this;
+        return write(data, 0, data.length);
     }
 
     /**
@@ -484,11 +893,7 @@ public class RequestContext {
      * @throws IOException if an error occurred while writing.
      */
     public RequestContext write(String text) throws IOException {
-        if (!headerGenerated) {
-            generateHeader();
-        }
-        outputStream.write(text.getBytes(encoding));
-        return this;
+        return write(text.getBytes(encoding));
     }
 
     /**
@@ -501,13 +906,145 @@ public class RequestContext {
      * @throws IOException if an error occurred while writing.
      */
     public RequestContext write(byte[] data, int offset, int len) throws IOException {
+        checkReleased();
         if (!headerGenerated) {
+            int holdBack = holdBack();
+            if (holdBack > 0) {
+                if (pending == null) {
+                    pending = new ByteArrayOutputStream(Math.min(holdBack, 4096));
+                }
+                pending.write(data, offset, len);
+                if (pending.size() > holdBack) {
+                    startBody();
+                }
+                return this;
+            }
             generateHeader();
         }
-        outputStream.write(data, offset, len);
+        body.write(data, offset, len);
         return this;
     }
 
+    /**
+     * Sends everything written so far to the client. The header is generated, so a body of unknown length is
+     * streamed from now on, in chunks if chunked transfer encoding is allowed.
+     *
+     * @throws IOException if an error occurred while writing.
+     */
+    public void flush() throws IOException {
+        checkReleased();
+        if (!headerGenerated) {
+            startBody();
+        }
+        body.flush();
+    }
+
+    /**
+     * Returns the number of body bytes of unknown length which are held back before the header is generated.
+     *
+     * @return the number of bytes, or 0 if the body is written as it is.
+     */
+    private int holdBack() {
+        if (contentLength != UNKNOWN_LENGTH || headerNames.contains("Content-Encoding")) {
+            return 0;
+        }
+        return Math.max(bufferSize, gzipAllowed ? compressionThreshold : 0);
+    }
+
+    /**
+     * Generates the header of a body which is streamed and writes the bytes held back so far. The body is
+     * compressed if the client accepts it and enough of it was held back.
+     *
+     * @throws IOException if an error occurred while writing.
+     */
+    private void startBody() throws IOException {
+        boolean compress = pending != null && shouldCompress(pending.size());
+        generateHeader();
+        if (compress) {
+            body = gzipStream = new GZIPOutputStream(body, 8192, true);
+        }
+        if (pending != null) {
+            pending.writeTo(body);
+            pending = null;
+        }
+    }
+
+    /**
+     * Checks whether a body of the given size is compressed, adding the headers of a compressed body if it is.
+     *
+     * @param size the size of the body, or of its part which is known.
+     * @return true if the body is compressed.
+     */
+    private boolean shouldCompress(int size) {
+        if (!gzipAllowed || size < compressionThreshold || !isCompressible(mimeType)
+                || headerNames.contains("Content-Encoding")) {
+            return false;
+        }
+        putHeader("Content-Encoding", "gzip");
+        putHeader("Vary", "Accept-Encoding");
+        return true;
+    }
+
+    /**
+     * Writes the header and flushes the output stream, so the body can be written directly to the connection
+     * instead of through this context. The content length must be set, because the body is not framed.
+     *
+     * @throws IOException      if an error occurred while writing.
+     * @throws RuntimeException if the header is already generated or the content length is not set.
+     */
+    public void commitHeader() throws IOException {
+        checkReleased();
+        checkHeader();
+        if (contentLength == UNKNOWN_LENGTH) {
+            throw new RuntimeException("The content length is not set.");
+        }
+        generateHeader();
+        outputStream.flush();
+    }
+
+    /**
+     * Completes the response. If nothing was written, an empty response is generated; if the body was
+     * sent in chunks, the last chunk is written. The output stream is not flushed. An aborted response is
+     * left as it is.
+     *
+     * @throws IOException if an error occurred while writing.
+     */
+    public void finish() throws IOException {
+        checkReleased();
+        if (aborted) {
+            return;
+        }
+        if (!headerGenerated) {
+            if (pending != null) {
+                ByteArrayOutputStream content = pending;
+                pending = null;
+                if (shouldCompress(content.size())) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.size() / 2 + 64);
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+                        content.writeTo(gzip);
+                    }
+                    content = compressed;
+                }
+                contentLength = content.size();
+                generateHeader();
+                content.writeTo(body);
+            } else {
+                if (contentLength == UNKNOWN_LENGTH) {
+                    contentLength = 0;
+                }
+                generateHeader();
+            }
+        }
+        if (gzipStream != null) {
+            gzipStream.finish();
+            gzipStream = null;
+        }
+        if (chunkedStream != null) {
+            chunkedStream.finish();
+            chunkedStream = null;
+        }
+    }
+
     /**
      * Generates the message header.
      *
@@ -515,62 +1052,327 @@ public class RequestContext {
      */
     private void generateHeader() throws IOException {
         charset = Charset.forName(encoding);
-        String sb = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
-                "Content-Type: " + mimeType + resolveMime() + "\r\n" +
-                generateCookieRecords();
-        if (contentLength != null) {
-            sb += "Content-Length: " + contentLength + "\r\n";
-        }
-        sb += "\r\n";
-        outputStream.write(sb.getBytes(charset));
+        boolean bodyless = statusCode == 204 || statusCode == 304;
+        boolean chunked = false;
+        if (bodyless) {
+            contentLength = UNKNOWN_LENGTH;
+        } else if (contentLength == UNKNOWN_LENGTH && keepAlive) {
+            if (chunkingAllowed) {
+                chunked = true;
+            } else {
+                keepAlive = false;
+            }
+        }
+        HeaderBuffer sb = HEADER_BUFFER.get();
+        sb.reset(charset);
+        sb.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusText).crlf();
+        sb.append("Content-Type: ").append(mimeType);
+        if (mimeType.startsWith("text/")) {
+            sb.append("; charset=").append(encoding);
+        }
+        sb.crlf();
+        appendCookieRecords(sb);
+        for (int i = 0, n = headerNames.size(); i < n; i++) {
+            sb.append(headerNames.get(i)).append(": ").append(headerValues.get(i)).crlf();
+        }
+        if (serverTiming != null) {
+            sb.append("Server-Timing: ").append(serverTiming.toServerTiming()).crlf();
+        }
+        if (contentLength != UNKNOWN_LENGTH) {
+            sb.append("Content-Length: ").append(contentLength).crlf();
+        } else if (chunked) {
+            sb.append("Transfer-Encoding: chunked").crlf();
+        }
+        sb.append(keepAlive ? "Connection: keep-alive" : "Connection: close").crlf();
+        sb.crlf();
+        sb.writeTo(outputStream);
         headerGenerated = true;
 
+        body = outputStream;
+        if (chunked) {
+            if (spareChunkedStream == null) {
+                spareChunkedStream = new ChunkedOutputStream(body, bufferSize);
+            } else {
+                spareChunkedStream.reset(body, bufferSize);
+            }
+            body = chunkedStream = spareChunkedStream;
+        }
+
     }
 
     /**
-     * Generates cookie records.
+     * Appends the cookie records to the given header buffer.
      *
-     * @return cookie records.
+     * @param sb the header buffer.
      */
-    private String generateCookieRecords() {
-        if (outputCookies.size() == 0) {
-            return "";
-        }
-        StringBuilder sb = new StringBuilder();
-        for (RCCookie cookie : outputCookies) {
+    private void appendCookieRecords(HeaderBuffer sb) {
+        for (int i = 0, n = outputCookies.size(); i < n; i++) {
+            RCCookie cookie = outputCookies.get(i);
             sb.append("Set-Cookie: ");
+            String separator = "";
             if (cookie.getValue() != null) {
-                sb.append(cookie.getName()).append("=\"").append(cookie.getValue()).append("\"; ");
+                sb.append(cookie.getName()).append("=\"").append(cookie.getValue()).append("\"");
+                separator = "; ";
             }
             if (cookie.getDomain() != null) {
-                sb.append("Domain=").append(cookie.getDomain()).append("; ");
+                sb.append(separator).append("Domain=").append(cookie.getDomain());
+                separator = "; ";
             }
             if (cookie.getPath() != null) {
-                sb.append("Path=").append(cookie.getPath()).append("; ");
+                sb.append(separator).append("Path=").append(cookie.getPath());
+                separator = "; ";
             }
             if (cookie.getMaxAge() != null) {
-                sb.append("Max-Age=").append(cookie.getMaxAge()).append("; ");
+                sb.append(separator).append("Max-Age=").append(cookie.getMaxAge());
             }
-            sb.replace(sb.toString().length() - 2, sb.toString().length(), "");
-
             if (cookie.isHttpOnly()) {
                 sb.append("; HttpOnly");
             }
-            sb.append("\r\n");
+            sb.crlf();
+        }
+    }
+
+    /**
+     * Represents a stream which frames everything written to it as chunks of chunked transfer encoding. Small
+     * writes are aggregated into a buffer, so that a body written in many small pieces is not sent as many
+     * small chunks.
+     */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+
+        /**
+         * The buffer of bytes which are not yet sent, or null if every write is sent as a chunk.
+         */
+        private byte[] buffer;
 
+        /**
+         * The buffer in which the size line of a chunk is formatted.
+         */
+        private final byte[] sizeLine = new byte[10];
+
+        /**
+         * The number of bytes in the buffer.
+         */
+        private int count;
+
+        /**
+         * Creates an instance of {@link ChunkedOutputStream}.
+         *
+         * @param out        the underlying output stream.
+         * @param bufferSize the size of the buffer, or 0 to send every write as a chunk.
+         */
+        public ChunkedOutputStream(OutputStream out, int bufferSize) {
+            super(out);
+            this.buffer = bufferSize > 0 ? new byte[bufferSize] : null;
+        }
+
+        /**
+         * Prepares the stream for another body, keeping its buffer if it has the given size.
+         *
+         * @param out        the underlying output stream.
+         * @param bufferSize the size of the buffer, or 0 to send every write as a chunk.
+         */
+        public void reset(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.count = 0;
+            if (bufferSize <= 0) {
+                buffer = null;
+            } else if (buffer == null || buffer.length != bufferSize) {
+                buffer = new byte[bufferSize];
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer != null && count < buffer.length) {
+                buffer[count++] = (byte) b;
+                return;
+            }
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer == null) {
+                writeChunk(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                writeBuffer();
+                if (len >= buffer.length) {
+                    writeChunk(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+            out.flush();
+        }
+
+        /**
+         * Writes the buffered bytes and the last chunk which terminates the body.
+         *
+         * @throws IOException if an error occurred while writing.
+         */
+        public void finish() throws IOException {
+            writeBuffer();
+            out.write(LAST_CHUNK);
+        }
+
+        /**
+         * Writes the buffered bytes as a chunk.
+         *
+         * @throws IOException if an error occurred while writing.
+         */
+        private void writeBuffer() throws IOException {
+            if (count > 0) {
+                writeChunk(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        /**
+         * Writes the given bytes as a chunk.
+         *
+         * @param b   the bytes.
+         * @param off the offset of the first byte.
+         * @param len the number of bytes.
+         * @throws IOException if an error occurred while writing.
+         */
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            int pos = sizeLine.length - 2;
+            sizeLine[pos] = '\r';
+            sizeLine[pos + 1] = '\n';
+            for (int size = len; size != 0; size >>>= 4) {
+                sizeLine[--pos] = HEX_DIGITS[size & 0xF];
+            }
+            out.write(sizeLine, pos, sizeLine.length - pos);
+            out.write(b, off, len);
+            out.write(CRLF);
         }
-        return sb.toString();
     }
 
     /**
-     * Resolves mime type.
-     *
-     * @return the resolved mime type.
+     * Represents a growable buffer in which the header of a response is built. Text which consists of ASCII
+     * characters only, which is almost all of a header, is copied into the buffer without being encoded.
      */
-    private String resolveMime() {
-        if (mimeType.startsWith("text/")) {
-            return "; charset=" + encoding;
+    private static class HeaderBuffer {
+
+        /**
+         * The bytes.
+         */
+        private byte[] bytes = new byte[512];
+
+        /**
+         * The number of bytes.
+         */
+        private int size;
+
+        /**
+         * The charset of text which is not ASCII.
+         */
+        private Charset charset;
+
+        /**
+         * Empties the buffer.
+         *
+         * @param charset the charset of text which is not ASCII.
+         */
+        public void reset(Charset charset) {
+            this.size = 0;
+            this.charset = charset;
+        }
+
+        /**
+         * Appends the given text.
+         *
+         * @param text the text.
+         * @return this buffer.
+         */
+        public HeaderBuffer append(String text) {
+            int length = text.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    size -= i;
+                    byte[] encoded = text.getBytes(charset);
+                    ensureCapacity(encoded.length);
+                    System.arraycopy(encoded, 0, bytes, size, encoded.length);
+                    size += encoded.length;
+                    return this;
+                }
+                bytes[size++] = (byte) c;
+            }
+            return this;
+        }
+
+        /**
+         * Appends the given number.
+         *
+         * @param number the number.
+         * @return this buffer.
+         */
+        public HeaderBuffer append(long number) {
+            if (number < 0) {
+                return append(Long.toString(number));
+            }
+            int digits = 1;
+            for (long n = number; n >= 10; n /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = size + digits - 1; i >= size; i--) {
+                bytes[i] = (byte) ('0' + number % 10);
+                number /= 10;
+            }
+            size += digits;
+            return this;
+        }
+
+        /**
+         * Appends a line terminator.
+         *
+         * @return this buffer.
+         */
+        public HeaderBuffer crlf() {
+            ensureCapacity(2);
+            bytes[size++] = '\r';
+            bytes[size++] = '\n';
+            return this;
+        }
+
+        /**
+         * Writes the bytes to the given stream. A buffer which grew very large is dropped afterwards, so that
+         * one large header does not stay in memory for the lifetime of the thread.
+         *
+         * @param out the stream.
+         * @throws IOException if an error occurred while writing.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            if (bytes.length > MAX_RETAINED_HEADER_CAPACITY) {
+                bytes = new byte[512];
+            }
+            size = 0;
+        }
+
+        /**
+         * Makes room for the given number of bytes.
+         *
+         * @param n the number of bytes.
+         */
+        private void ensureCapacity(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
         }
-        return "";
     }
 }
@@ -0,0 +1,165 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * Represents the phase timers of one request. A phase may be timed several times, e.g. once for each write,
+ * and its durations add up. Phases may overlap: the writes of a script are timed in both phases. The timers are
+ * read as the value of a "Server-Timing" header and as the phases of a slow-request log line.
+ */
+public class RequestTrace {
+
+    /**
+     * Represents a phase of a request.
+     */
+    public enum Phase {
+        /**
+         * Receiving and parsing the request head, from the arrival of its first byte.
+         */
+        PARSE("parse"),
+        /**
+         * Restoring or creating the session.
+         */
+        SESSION("session"),
+        /**
+         * Looking up the requested file.
+         */
+        FS("fs"),
+        /**
+         * Lexing and parsing a smart script, or fetching it from the cache.
+         */
+        COMPILE("compile"),
+        /**
+         * Executing a smart script.
+         */
+        SCRIPT("script"),
+        /**
+         * Running a worker, or starting an asynchronous one.
+         */
+        WORKER("worker"),
+        /**
+         * Writing the response to the output of the request.
+         */
+        WRITE("write");
+
+        /**
+         * The name of the phase in the "Server-Timing" header and in the log.
+         */
+        private final String label;
+
+        /**
+         * Creates a phase.
+         *
+         * @param label the name of the phase in the "Server-Timing" header and in the log.
+         */
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The phases, in the order in which they are reported.
+     */
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * The durations of the phases in nanoseconds, indexed by the ordinals of the phases.
+     */
+    private final long[] nanos = new long[PHASES.length];
+
+    /**
+     * The time in nanoseconds when the request started.
+     */
+    private long start;
+
+    /**
+     * Prepares the trace for a new request.
+     *
+     * @param start the time in nanoseconds when the request started.
+     * @return this trace.
+     */
+    public RequestTrace reset(long start) {
+        this.start = start;
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Adds the time elapsed since the given moment to the given phase.
+     *
+     * @param phase the phase.
+     * @param begin the time in nanoseconds when the phase began.
+     */
+    public void end(Phase phase, long begin) {
+        nanos[phase.ordinal()] += System.nanoTime() - begin;
+    }
+
+    /**
+     * Adds the given duration to the given phase.
+     *
+     * @param phase    the phase.
+     * @param duration the duration in nanoseconds.
+     */
+    public void add(Phase phase, long duration) {
+        nanos[phase.ordinal()] += duration;
+    }
+
+    /**
+     * Returns the time elapsed since the request started.
+     *
+     * @return the elapsed time in nanoseconds.
+     */
+    public long elapsed() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the value of a "Server-Timing" header with the phases timed so far and the total time so far,
+     * e.g. <code>session;dur=0.012, script;dur=1.250, total;dur=1.410</code>.
+     *
+     * @return the header value.
+     */
+    public String toServerTiming() {
+        StringBuilder sb = new StringBuilder(128);
+        for (Phase phase : PHASES) {
+            long duration = nanos[phase.ordinal()];
+            if (duration > 0) {
+                appendMillis(sb.append(phase.label).append(";dur="), duration).append(", ");
+            }
+        }
+        return appendMillis(sb.append("total;dur="), elapsed()).toString();
+    }
+
+    /**
+     * Appends the timed phases to the given builder, e.g. <code> parse=0.080ms script=1.250ms</code>.
+     *
+     * @param sb the builder.
+     * @return the given builder.
+     */
+    public StringBuilder appendPhases(StringBuilder sb) {
+        for (Phase phase : PHASES) {
+            long duration = nanos[phase.ordinal()];
+            if (duration > 0) {
+                appendMillis(sb.append(' ').append(phase.label).append('='), duration).append("ms");
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Appends the given duration in milliseconds with three decimals to the given builder.
+     *
+     * @param sb    the builder.
+     * @param nanos the duration in nanoseconds.
+     * @return the given builder.
+     */
+    static StringBuilder appendMillis(StringBuilder sb, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        sb.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            sb.append(fraction < 10 ? "00" : "0");
+        }
+        return sb.append(fraction);
+    }
+}
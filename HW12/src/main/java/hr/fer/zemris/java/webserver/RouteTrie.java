@@ -0,0 +1,238 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Represents a table of routes which maps url paths to values. A route pattern consists of segments separated
+ * by slashes, where a segment is one of:
+ * <p><code>name</code> ; matches exactly that segment.</p>
+ * <p><code>{name}</code> ; matches any single segment, which is reported as the path parameter
+ * <code>name</code>.</p>
+ * <p><code>*</code> ; allowed only as the last segment, matches the rest of the path (one or more
+ * segments).</p>
+ * Routes without parameters and wildcards are kept in a hash map as well, so the common case is resolved by a
+ * single lookup. Other routes are matched by walking a trie of segments, where an exact segment is preferred to
+ * a parameter and a parameter to a wildcard.
+ *
+ * @param <T> the type of values.
+ */
+public class RouteTrie<T> {
+
+    /**
+     * The values of the routes without parameters and wildcards.
+     */
+    private final Map<String, T> exactRoutes = new HashMap<>();
+
+    /**
+     * The root of the trie.
+     */
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Adds the route with the given pattern.
+     *
+     * @param pattern the pattern, starting with a slash.
+     * @param value   the value.
+     * @return false if a route with the same pattern was already defined; the route is not added then.
+     * @throws IllegalArgumentException if the pattern is invalid.
+     */
+    public boolean add(String pattern, T value) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with a slash: " + pattern);
+        }
+        String[] segments = pattern.substring(1).split("/", -1);
+        Node<T> node = root;
+        boolean exact = true;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                if (node.prefixValue != null) {
+                    return false;
+                }
+                node.prefixValue = value;
+                return true;
+            }
+            if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.parameterChild == null) {
+                    node.parameterChild = new Node<>();
+                    node.parameterName = name;
+                } else if (!node.parameterName.equals(name)) {
+                    throw new IllegalArgumentException("Conflicting parameter names in route: " + pattern);
+                }
+                node = node.parameterChild;
+                exact = false;
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node<>());
+            }
+        }
+        if (node.value != null) {
+            return false;
+        }
+        node.value = value;
+        if (exact) {
+            exactRoutes.put(pattern, value);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the route which matches the given path.
+     *
+     * @param path the url path, starting with a slash.
+     * @return the match, or null if no route matches the path.
+     */
+    public Match<T> find(String path) {
+        T value = exactRoutes.get(path);
+        if (value != null) {
+            return new Match<>(value, Collections.emptyMap(), null);
+        }
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        return find(root, path, 1, null);
+    }
+
+    /**
+     * Matches the rest of the path against the given node.
+     *
+     * @param node       the node.
+     * @param path       the url path.
+     * @param start      the index at which the rest of the path starts.
+     * @param parameters the path parameters matched so far, or null.
+     * @return the match, or null if no route matches the rest of the path.
+     */
+    private Match<T> find(Node<T> node, String path, int start, Map<String, String> parameters) {
+        if (start > path.length()) {
+            return node.value == null ? null : new Match<>(node.value,
+                    parameters == null ? Collections.emptyMap() : parameters, null);
+        }
+        int end = path.indexOf('/', start);
+        if (end == -1) {
+            end = path.length();
+        }
+        String segment = path.substring(start, end);
+
+        Node<T> child = node.children.get(segment);
+        if (child != null) {
+            Match<T> match = find(child, path, end + 1, parameters);
+            if (match != null) {
+                return match;
+            }
+        }
+        if (node.parameterChild != null) {
+            Map<String, String> extended = parameters == null ? new HashMap<>() : new HashMap<>(parameters);
+            extended.put(node.parameterName, segment);
+            Match<T> match = find(node.parameterChild, path, end + 1, extended);
+            if (match != null) {
+                return match;
+            }
+        }
+        if (node.prefixValue != null) {
+            return new Match<>(node.prefixValue, parameters == null ? Collections.emptyMap() : parameters,
+                    path.substring(start));
+        }
+        return null;
+    }
+
+    /**
+     * Represents a node of the trie.
+     *
+     * @param <T> the type of values.
+     */
+    private static class Node<T> {
+
+        /**
+         * The children reached by exact segments.
+         */
+        private final Map<String, Node<T>> children = new HashMap<>();
+
+        /**
+         * The child reached by a parameter segment, or null.
+         */
+        private Node<T> parameterChild;
+
+        /**
+         * The name of the parameter segment.
+         */
+        private String parameterName;
+
+        /**
+         * The value of the route which ends in this node, or null.
+         */
+        private T value;
+
+        /**
+         * The value of the wildcard route which ends in this node, or null.
+         */
+        private T prefixValue;
+    }
+
+    /**
+     * Represents a route which matches a path.
+     *
+     * @param <T> the type of values.
+     */
+    public static class Match<T> {
+
+        /**
+         * The value of the route.
+         */
+        private final T value;
+
+        /**
+         * The path parameters.
+         */
+        private final Map<String, String> parameters;
+
+        /**
+         * The part of the path matched by a wildcard, or null.
+         */
+        private final String remainder;
+
+        /**
+         * Creates an instance of {@link Match}.
+         *
+         * @param value      the value of the route.
+         * @param parameters the path parameters.
+         * @param remainder  the part of the path matched by a wildcard, or null.
+         */
+        public Match(T value, Map<String, String> parameters, String remainder) {
+            this.value = value;
+            this.parameters = parameters;
+            this.remainder = remainder;
+        }
+
+        /**
+         * Returns the value of the route.
+         *
+         * @return the value of the route.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the path parameters.
+         *
+         * @return the path parameters.
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Returns the part of the path matched by a wildcard.
+         *
+         * @return the part of the path matched by a wildcard, or null if the route has no wildcard.
+         */
+        public String getRemainder() {
+            return remainder;
+        }
+    }
+}
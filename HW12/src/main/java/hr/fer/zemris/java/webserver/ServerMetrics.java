@@ -0,0 +1,266 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Represents the metrics of a {@link SmartHttpServer}. For every route the number of requests by status code,
+ * the number of sent bytes and a {@link LatencyHistogram} of request durations are kept; the server as a whole
+ * keeps the number of connections and any number of gauges which are read when the metrics are exported.
+ * All counters are lock-free, so recording a request costs a few atomic additions.
+ * <p>
+ * The metrics are exported in the Prometheus text format.
+ * </p>
+ *
+ * @see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Exposition formats</a>
+ */
+public class ServerMetrics {
+
+    /**
+     * The prefix of the names of all metrics.
+     */
+    private static final String PREFIX = "smarthttp_";
+
+    /**
+     * The quantiles of request durations which are exported.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * The boxed status codes, so that recording a response does not box its status code.
+     */
+    private static final Integer[] STATUS_CODES = new Integer[600];
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = i;
+        }
+    }
+
+    /**
+     * The metrics of the routes.
+     */
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    /**
+     * The number of open connections.
+     */
+    private final LongAdder activeConnections = new LongAdder();
+
+    /**
+     * The number of accepted connections.
+     */
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    /**
+     * The gauges.
+     */
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records that a connection was accepted.
+     */
+    public void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    /**
+     * Records that a connection was closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Records a served request.
+     *
+     * @param route      the route which served the request.
+     * @param statusCode the status code of the response.
+     * @param micros     the duration of the request in microseconds.
+     * @param bytes      the number of sent bytes.
+     */
+    public void record(String route, int statusCode, long micros, long bytes) {
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null) {
+            metrics = routes.computeIfAbsent(route, r -> new RouteMetrics());
+        }
+        metrics.latency.record(micros);
+        metrics.bytes.add(bytes);
+        Integer code = statusCode >= 0 && statusCode < STATUS_CODES.length
+                ? STATUS_CODES[statusCode] : Integer.valueOf(statusCode);
+        LongAdder responses = metrics.responses.get(code);
+        if (responses == null) {
+            responses = metrics.responses.computeIfAbsent(code, c -> new LongAdder());
+        }
+        responses.increment();
+    }
+
+    /**
+     * Forgets the requests recorded so far, e.g. the ones made while the server warmed up.
+     */
+    public void clearRoutes() {
+        routes.clear();
+    }
+
+    /**
+     * Adds a gauge which is read whenever the metrics are exported.
+     *
+     * @param name  the name of the gauge, without the common prefix.
+     * @param help  the description of the gauge.
+     * @param value the supplier of the value.
+     */
+    public void addGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Exports the metrics in the Prometheus text format.
+     *
+     * @return the metrics.
+     */
+    public String toPrometheus() {
+        Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+        StringBuilder sb = new StringBuilder(1024);
+
+        header(sb, "requests_total", "counter", "The number of served requests.");
+        sorted.forEach((route, metrics) -> sample(sb, "requests_total", label(route), metrics.latency.getCount()));
+
+        header(sb, "responses_total", "counter", "The number of responses by status code.");
+        sorted.forEach((route, metrics) -> new TreeMap<>(metrics.responses).forEach((code, count) ->
+                sample(sb, "responses_total", label(route) + ",code=\"" + code + "\"", count.sum())));
+
+        header(sb, "response_bytes_total", "counter", "The number of bytes sent in responses.");
+        sorted.forEach((route, metrics) -> sample(sb, "response_bytes_total", label(route), metrics.bytes.sum()));
+
+        header(sb, "request_duration_seconds", "summary", "The duration of requests.");
+        sorted.forEach((route, metrics) -> {
+            for (double quantile : QUANTILES) {
+                sample(sb, "request_duration_seconds", label(route) + ",quantile=\"" + quantile + "\"",
+                        seconds(metrics.latency.getValueAtQuantile(quantile)));
+            }
+            sample(sb, "request_duration_seconds_sum", label(route), seconds(metrics.latency.getSum()));
+            sample(sb, "request_duration_seconds_count", label(route), metrics.latency.getCount());
+        });
+
+        header(sb, "connections_total", "counter", "The number of accepted connections.");
+        sample(sb, "connections_total", null, acceptedConnections.sum());
+        header(sb, "active_connections", "gauge", "The number of open connections.");
+        sample(sb, "active_connections", null, activeConnections.sum());
+        for (Gauge gauge : gauges) {
+            header(sb, gauge.name, "gauge", gauge.help);
+            sample(sb, gauge.name, null, gauge.value.getAsLong());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the header of a metric.
+     *
+     * @param sb   the builder.
+     * @param name the name of the metric, without the common prefix.
+     * @param type the type of the metric.
+     * @param help the description of the metric.
+     */
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends a sample of a metric.
+     *
+     * @param sb     the builder.
+     * @param name   the name of the metric, without the common prefix.
+     * @param labels the labels, or null.
+     * @param value  the value.
+     */
+    private static void sample(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(PREFIX).append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Returns the route label.
+     *
+     * @param route the route.
+     * @return the route label.
+     */
+    private static String label(String route) {
+        return "route=\"" + route.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Converts microseconds to seconds.
+     *
+     * @param micros the microseconds.
+     * @return the seconds.
+     */
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    /**
+     * Represents the metrics of one route.
+     */
+    private static class RouteMetrics {
+
+        /**
+         * The durations of requests.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * The number of sent bytes.
+         */
+        private final LongAdder bytes = new LongAdder();
+
+        /**
+         * The number of responses by status code.
+         */
+        private final ConcurrentMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Represents a gauge.
+     */
+    private static class Gauge {
+
+        /**
+         * The name, without the common prefix.
+         */
+        private final String name;
+
+        /**
+         * The description.
+         */
+        private final String help;
+
+        /**
+         * The supplier of the value.
+         */
+        private final LongSupplier value;
+
+        /**
+         * Creates an instance of {@link Gauge}.
+         *
+         * @param name  the name, without the common prefix.
+         * @param help  the description.
+         * @param value the supplier of the value.
+         */
+        public Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
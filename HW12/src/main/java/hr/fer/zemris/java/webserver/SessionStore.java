@@ -0,0 +1,340 @@
+package hr.fer.zemris.java.webserver;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores the sessions of the server. The sessions are split into shards by their identifiers; looking a
+ * session up is a lock-free read of a {@link ConcurrentHashMap}, and only creating a session takes the lock
+ * of its shard.
+ * <p>
+ * Every shard keeps its sessions in a {@link TimingWheel}, so expired sessions are removed in constant time
+ * per session by a timer which advances the wheels once per tick. Using a session only pushes its deadline
+ * back; the wheel takes care of the new deadline when the session's slot comes around.
+ * <p>
+ * The number of sessions is bounded. When a shard is full, the session which expires soonest is evicted to
+ * make room for the new one, so clients which never send the session cookie back can not exhaust memory.
+ */
+public class SessionStore {
+
+    /**
+     * The number of shards.
+     */
+    private static final int SHARD_COUNT = 16;
+
+    /**
+     * The number of slots of each timing wheel.
+     */
+    private static final int WHEEL_SLOTS = 512;
+
+    /**
+     * The duration of one tick of the timing wheels in milliseconds.
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    /**
+     * The letters used in session identifiers.
+     */
+    private static final String ALPHABET = "QWERTZUIOPLKJHGFDSAYXCVBNM";
+
+    /**
+     * The length of session identifiers.
+     */
+    private static final int SID_LENGTH = 20;
+
+    /**
+     * The random number generator used for session identifiers. It is created and seeded once and shared by
+     * all threads; a DRBG is thread-safe, so this holds with virtual threads, which are created per connection.
+     */
+    private static final SecureRandom RANDOM = createRandom();
+
+    /**
+     * The shards.
+     */
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    /**
+     * The time in milliseconds a session lasts since it was last used.
+     */
+    private final long timeoutMillis;
+
+    /**
+     * The maximum number of sessions in one shard.
+     */
+    private final int maxShardSize;
+
+    /**
+     * The timer which advances the timing wheels.
+     */
+    private final Timer timer = new Timer("session-expiry", true);
+
+    /**
+     * Creates an instance of {@link SessionStore} and starts expiring sessions.
+     *
+     * @param timeoutSeconds the time in seconds a session lasts since it was last used.
+     * @param maxSessions    the maximum number of sessions.
+     * @throws IllegalArgumentException if any of the arguments is not positive.
+     */
+    public SessionStore(int timeoutSeconds, int maxSessions) {
+        if (timeoutSeconds < 1 || maxSessions < 1) {
+            throw new IllegalArgumentException("Session timeout and maximum number of sessions must be positive.");
+        }
+        this.timeoutMillis = timeoutSeconds * 1000L;
+        this.maxShardSize = (maxSessions + SHARD_COUNT - 1) / SHARD_COUNT;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(now);
+        }
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, TICK_MILLIS, TICK_MILLIS);
+    }
+
+    /**
+     * Returns the session with the given identifier and prolongs it. A session is only returned to the host
+     * for which it was created.
+     *
+     * @param sid  the session identifier.
+     * @param host the host of the request.
+     * @return the session, or null if there is no such valid session.
+     */
+    public Session get(String sid, String host) {
+        Shard shard = shardOf(sid);
+        Session session = shard.sessions.get(sid);
+        if (session == null || !session.host.equals(host)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (session.validUntil <= now) {
+            shard.sessions.remove(sid, session);
+            return null;
+        }
+        session.validUntil = now + timeoutMillis;
+        return session;
+    }
+
+    /**
+     * Creates a new session for the given host.
+     *
+     * @param host the host of the request.
+     * @return the new session.
+     */
+    public Session create(String host) {
+        Session session;
+        Shard shard;
+        do {
+            String sid = generateSessionId();
+            session = new Session(sid, host, System.currentTimeMillis() + timeoutMillis);
+            shard = shardOf(sid);
+        } while (shard.sessions.putIfAbsent(session.sid, session) != null);
+
+        shard.lock.lock();
+        try {
+            while (shard.wheel.size() >= maxShardSize) {
+                Session evicted = shard.wheel.pollEarliest();
+                shard.sessions.remove(evicted.sid, evicted);
+            }
+            shard.wheel.schedule(session);
+        } finally {
+            shard.lock.unlock();
+        }
+        return session;
+    }
+
+    /**
+     * Removes the given session. It is left in its timing wheel, which drops it in the next tick.
+     *
+     * @param session the session.
+     */
+    public void remove(Session session) {
+        session.validUntil = 0;
+        shardOf(session.sid).sessions.remove(session.sid, session);
+    }
+
+    /**
+     * Returns the number of sessions, including the expired ones which were not removed yet.
+     *
+     * @return the number of sessions.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.sessions.size();
+        }
+        return size;
+    }
+
+    /**
+     * Stops expiring sessions.
+     */
+    public void close() {
+        timer.cancel();
+    }
+
+    /**
+     * Removes the expired sessions of all shards.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.wheel.advance(now, s -> shard.sessions.remove(s.sid, s));
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the shard of the given session identifier.
+     *
+     * @param sid the session identifier.
+     * @return the shard.
+     */
+    private Shard shardOf(String sid) {
+        int h = sid.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * Generates a session identifier as a 20-character long string of capital letters. Random bytes are
+     * mapped to letters without bias by rejecting the bytes above the largest multiple of the alphabet size.
+     *
+     * @return the generated session identifier.
+     */
+    private static String generateSessionId() {
+        byte[] bytes = new byte[SID_LENGTH + SID_LENGTH / 2];
+        int limit = 256 - 256 % ALPHABET.length();
+        char[] sid = new char[SID_LENGTH];
+        int length = 0;
+        while (length < SID_LENGTH) {
+            RANDOM.nextBytes(bytes);
+            for (int i = 0; i < bytes.length && length < SID_LENGTH; i++) {
+                int b = bytes[i] & 0xFF;
+                if (b < limit) {
+                    sid[length++] = ALPHABET.charAt(b % ALPHABET.length());
+                }
+            }
+        }
+        return new String(sid);
+    }
+
+    /**
+     * Creates the random number generator used for session identifiers, preferring a DRBG.
+     *
+     * @return the random number generator.
+     */
+    private static SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    /**
+     * Represents one session.
+     */
+    public static class Session {
+
+        /**
+         * The session identifier.
+         */
+        private final String sid;
+
+        /**
+         * The host.
+         */
+        private final String host;
+
+        /**
+         * The time in milliseconds until which the session is valid.
+         */
+        private volatile long validUntil;
+
+        /**
+         * The map of client data.
+         */
+        private final Map<String, String> map = new ConcurrentHashMap<>();
+
+        /**
+         * Creates a new instance of {@link Session}.
+         *
+         * @param sid        the session identifier.
+         * @param host       the host.
+         * @param validUntil the time in milliseconds until which the session is valid.
+         */
+        private Session(String sid, String host, long validUntil) {
+            this.sid = sid;
+            this.host = host;
+            this.validUntil = validUntil;
+        }
+
+        /**
+         * Returns the session identifier.
+         *
+         * @return the session identifier.
+         */
+        public String getSid() {
+            return sid;
+        }
+
+        /**
+         * Returns the host for which the session was created.
+         *
+         * @return the host.
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Returns the map of client data.
+         *
+         * @return the map of client data.
+         */
+        public Map<String, String> getMap() {
+            return map;
+        }
+    }
+
+    /**
+     * Represents one shard of the sessions.
+     */
+    private static class Shard {
+
+        /**
+         * The sessions of the shard.
+         */
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+        /**
+         * The lock guarding the timing wheel.
+         */
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * The timing wheel which expires the sessions.
+         */
+        private final TimingWheel<Session> wheel;
+
+        /**
+         * Creates an instance of {@link Shard}.
+         *
+         * @param now the current time in milliseconds.
+         */
+        private Shard(long now) {
+            this.wheel = new TimingWheel<>(WHEEL_SLOTS, TICK_MILLIS, s -> s.validUntil, now);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents the log of slow requests. The lines are written by a thread of the log, so that a slow request
+ * does not also wait for the disk. When the log falls behind, new lines are dropped and counted instead of
+ * making the requests wait.
+ */
+public class SlowRequestLog {
+
+    /**
+     * The number of lines which may wait to be written.
+     */
+    private static final int CAPACITY = 1024;
+
+    /**
+     * The lines which wait to be written.
+     */
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(CAPACITY);
+
+    /**
+     * The number of dropped lines.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The writer of the log.
+     */
+    private final Writer writer;
+
+    /**
+     * Creates an instance of {@link SlowRequestLog} which appends to the given file, or writes to the standard
+     * error stream if no file is given, and starts its thread.
+     *
+     * @param file the log file, or null.
+     * @throws IOException if the file can not be opened.
+     */
+    public SlowRequestLog(Path file) throws IOException {
+        this.writer = file == null
+                ? new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        Thread thread = new Thread(this::drain, "slow-request-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the given line to be written.
+     *
+     * @param line the line, without the line separator.
+     */
+    public void log(String line) {
+        if (!lines.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the number of lines which were dropped because the log fell behind.
+     *
+     * @return the number of dropped lines.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the queued lines until the thread is interrupted. The writer is flushed whenever no more lines
+     * are waiting.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                String line = lines.take();
+                try {
+                    writer.write(line);
+                    writer.write(System.lineSeparator());
+                    if (lines.isEmpty()) {
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,28 +1,85 @@
 package hr.fer.zemris.java.webserver;
 
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.webserver.workers.UploadWorker;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 /**
  * This class represents a simple HTTP server.
  */
 public class SmartHttpServer {
 
+    /**
+     * The time in milliseconds for which a rejected client is still read from before its connection is
+     * closed, so that the error response is not lost to a connection reset.
+     */
+    private static final int LINGER_MILLIS = 1000;
+
+    /**
+     * The interim response which tells a client to send the body of its request.
+     */
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The largest number of files under the document root which are requested during the warm-up.
+     */
+    private static final int MAX_WARMUP_FILES = 256;
+
+    /**
+     * For how many milliseconds the server warms itself up when it only warms up and the configuration does
+     * not say.
+     */
+    private static final long DEFAULT_WARMUP_MILLIS = 5000;
+
+    /**
+     * The duration in nanoseconds of a warm-up request after which its target is not requested again, because
+     * it mostly waits, e.g. on a delay, instead of running the request path.
+     */
+    private static final long SLOW_WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
     /**
      * The address of the server.
      */
@@ -43,11 +100,136 @@ public class SmartHttpServer {
      */
     private int workerThreads;
 
+    /**
+     * The kind of executor which runs the client workers.
+     *
+     * @see WorkerExecutors#newExecutor(String, int, int)
+     */
+    private String executorType;
+
+    /**
+     * The maximum number of tasks waiting for a worker thread; 0 for no limit.
+     */
+    private int queueDepth;
+
+    /**
+     * The time in milliseconds a task may wait for a worker thread before it is answered with
+     * "503 Service Unavailable" instead of being processed; 0 for no limit.
+     */
+    private long queueTimeout;
+
+    /**
+     * The number of seconds sent in the "Retry-After" header of "503 Service Unavailable" responses.
+     */
+    private int retryAfter;
+
+    /**
+     * The maximum number of concurrent requests of the routes which are limited, by route pattern.
+     */
+    private Map<String, Integer> routeConcurrency = new HashMap<>();
+
+    /**
+     * The time in milliseconds an asynchronous worker may take to complete a request; 0 for no limit.
+     *
+     * @see IAsyncWebWorker
+     */
+    private long asyncTimeout;
+
     /**
      * The session timeout.
      */
     private int sessionTimeout;
 
+    /**
+     * The time in milliseconds an idle persistent connection is kept open.
+     */
+    private int keepAliveTimeout;
+
+    /**
+     * The time in milliseconds a client may take to send a request head, from its first byte.
+     */
+    private long headerTimeout;
+
+    /**
+     * The time in milliseconds a client may take to send a request body.
+     */
+    private long bodyTimeout;
+
+    /**
+     * The time in milliseconds a client may take to accept a response, or the part of it which is being written.
+     */
+    private long writeTimeout;
+
+    /**
+     * The number of bytes per second at which a client extends its timeouts: each such amount it has
+     * transferred adds one second. 0 if the timeouts are not extended.
+     */
+    private long minDataRate;
+
+    /**
+     * The limit on the number of connections of one client address, or null if there is none.
+     */
+    private ConnectionLimiter connectionLimiter;
+
+    /**
+     * The outputs of the connections of the blocking transport, whose writes are watched by a single thread.
+     */
+    private final Set<DeadlineOutputStream> watchedOutputs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The maximum number of requests served over one persistent connection.
+     */
+    private int keepAliveMaxRequests;
+
+    /**
+     * The maximum size of a request head in bytes.
+     */
+    private int maxHeaderSize;
+
+    /**
+     * The maximum number of headers in a request.
+     */
+    private int maxHeaderCount;
+
+    /**
+     * The maximum size of a request body in bytes.
+     */
+    private long maxBodySize;
+
+    /**
+     * The maximum size in bytes of the form fields of a request body, which are held in memory.
+     */
+    private int maxFormSize;
+
+    /**
+     * The number of bytes of an uploaded file which are kept in memory before it is moved to a temporary file.
+     */
+    private int uploadMemoryThreshold;
+
+    /**
+     * The directory of temporary files of uploads, or null for the default one.
+     */
+    private Path uploadDir;
+
+    /**
+     * The flag indicating whether the demo upload worker is served, on <code>/upload</code> and through
+     * <code>/ext/</code>; it accepts bodies up to the maximum body size and stores their files.
+     */
+    private boolean uploads;
+
+    /**
+     * The flag indicating whether clients may speak HTTP/2 over cleartext connections (h2c), either with prior
+     * knowledge or after an upgrade.
+     *
+     * @see Http2Connection
+     */
+    private boolean http2;
+
+    /**
+     * The maximum number of concurrent streams of an HTTP/2 connection.
+     */
+    private int http2MaxStreams;
+
     /**
      * The map of mime types.
      *
@@ -56,14 +238,30 @@ public class SmartHttpServer {
     private Map<String, String> mimeTypes = new HashMap<>();
 
     /**
-     * The map of web workers.
+     * The routes of the server, built from the configured workers and the built-in "/private" and "/ext/" routes.
+     */
+    private RouteTrie<Route> routes = new RouteTrie<>();
+
+    /**
+     * The cache of paths which were recently found not to exist.
+     */
+    private NotFoundCache notFoundCache;
+
+    /**
+     * The registry of workers which are requested by name through "/ext/".
+     */
+    private WorkerRegistry workerRegistry;
+
+    /**
+     * The number of reactor threads used by the non-blocking transport.
      */
-    private Map<String, IWebWorker> workersMap = new HashMap<>();
+    private int reactorThreads;
 
     /**
-     * The server thread.
+     * The server thread; either {@link ServerThread} or {@link NioServerThread}, depending on the
+     * configured transport.
      */
-    private ServerThread serverThread;
+    private Thread serverThread;
 
     /**
      * The thread pool for processing requests.
@@ -76,15 +274,104 @@ public class SmartHttpServer {
     private Path documentRoot;
 
     /**
-     * The map of sessions. Each session lasts for 10 minutes and is then removed(
-     * if there was no activity at that time).
+     * The cache of parsed smart scripts.
+     */
+    private SmartScriptCache scriptCache;
+
+    /**
+     * The cache of static files.
+     */
+    private StaticContentCache staticCache;
+
+    /**
+     * The value of the "Cache-Control" header sent with static files.
+     */
+    private String staticCacheControl;
+
+    /**
+     * The flag indicating whether responses are compressed for clients which accept gzip.
+     */
+    private boolean compression;
+
+    /**
+     * The minimum size in bytes of a compressed response.
+     */
+    private int compressionMinSize;
+
+    /**
+     * The size in bytes of the buffer in which a response body of unknown length is aggregated.
+     *
+     * @see RequestContext#setBufferSize(int)
+     */
+    private int responseBufferSize;
+
+    /**
+     * The flag indicating whether request contexts are never reused, so that a worker which uses its context
+     * after the request is completed fails instead of touching the context of another request.
+     */
+    private boolean poolDebug;
+
+    /**
+     * The store of sessions.
+     */
+    private SessionStore sessionStore;
+
+    /**
+     * The metrics of the server, or null if metrics are disabled.
+     */
+    private ServerMetrics metrics;
+
+    /**
+     * The path of the built-in metrics worker, or an empty string if it is disabled.
+     */
+    private String metricsPath;
+
+    /**
+     * The flag indicating whether the metrics worker answers clients on other hosts; if not, it only answers
+     * the clients on the loopback address.
+     */
+    private boolean metricsPublic;
+
+    /**
+     * For how many milliseconds the server warms itself up before it accepts connections, 0 if it does not.
+     */
+    private long warmupMillis;
+
+    /**
+     * The targets which are requested during the warm-up: the configured routes, which must be safe to
+     * request repeatedly, followed by the static files under the document root.
+     */
+    private final List<String> warmupTargets = new ArrayList<>();
+
+    /**
+     * The fraction of requests whose phases are timed, 0 if none are.
+     */
+    private double traceSampleRate;
+
+    /**
+     * The flag indicating whether timed requests send their phases in a "Server-Timing" header.
+     */
+    private boolean serverTiming;
+
+    /**
+     * The duration in nanoseconds after which a timed request is logged as slow.
+     */
+    private long slowRequestNanos;
+
+    /**
+     * The log of slow requests, or null if requests are not timed.
+     */
+    private SlowRequestLog slowLog;
+
+    /**
+     * The access log, or null if requests are not logged.
      */
-    private Map<String, SessionMapEntry> sessions = new HashMap<>();
+    private AccessLog accessLog;
 
     /**
-     * The session identifier generator.
+     * The flag indicating whether the server is warming up; the requests of the warm-up are not logged.
      */
-    private Random sessionRandom = new Random();
+    private volatile boolean warmingUp;
 
 
     /**
@@ -94,65 +381,170 @@ public class SmartHttpServer {
      * @param configFileName the name of configuration file.
      */
     public SmartHttpServer(String configFileName) {
-        init(configFileName);
-        initTimerTask();
-    }
-
-    /**
-     * Represents a thread(timer task) that cleans sessions every 5 minutes to prevent accumulating
-     * unnecessary data in the memory.
-     */
-    private void initTimerTask() {
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run() {
-                sessions = sessions.entrySet().stream().filter(s -> s.getValue().validUntil > getCurrentTime())
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-            }
-        };
-        Timer t = new Timer(true);
-        t.scheduleAtFixedRate(timerTask, 0, 300_000);
+        Properties properties = new Properties();
+        try {
+            properties.load(Files.newInputStream(Paths.get("config", configFileName)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        init(properties);
     }
 
     /**
-     * Returns the current time in seconds.
+     * Creates an instance of {@link SmartHttpServer} configured with the given properties, which are the same as
+     * the ones of the configuration file.
      *
-     * @return the current time in seconds,
+     * @param properties the configuration.
      */
-    private long getCurrentTime() {
-        return System.currentTimeMillis() / 1000;
+    public SmartHttpServer(Properties properties) {
+        init(properties);
     }
 
     /**
      * Initiates server settings ie :sets the server address, domain name, port , number of worker threads,
      * session timeout, document root, server thread ,  loads available mime types...
      *
-     * @param configFileName the name of configuration file.
+     * @param properties the configuration.
      */
-    private void init(String configFileName) {
-        Properties properties = new Properties();
+    private void init(Properties properties) {
         try {
-            properties.load(Files.newInputStream(Paths.get("config", configFileName)));
             this.address = properties.getProperty("server.address");
             this.domainName = properties.getProperty("server.domainName");
             this.port = Integer.valueOf(properties.getProperty("server.port"));
             this.workerThreads = Integer.valueOf(properties.getProperty("server.workerThreads"));
+            this.executorType = properties.getProperty("server.executor", "fixed").trim();
+            this.queueDepth = Integer.parseInt(properties.getProperty("server.queueDepth", "0").trim());
+            this.queueTimeout = Long.parseLong(properties.getProperty("server.queueTimeout", "0").trim());
+            this.retryAfter = Integer.parseInt(properties.getProperty("server.retryAfter", "1").trim());
+            parseRouteConcurrency(properties.getProperty("server.routeConcurrency", ""));
+            this.asyncTimeout = Long.parseLong(properties.getProperty("server.asyncTimeout", "30000").trim());
             this.sessionTimeout = Integer.parseInt(properties.getProperty("session.timeout"));
+            this.sessionStore = new SessionStore(sessionTimeout,
+                    Integer.parseInt(properties.getProperty("session.maxSessions", "100000")));
+            this.keepAliveTimeout = Integer.parseInt(properties.getProperty("server.keepAliveTimeout", "5")) * 1000;
+            this.keepAliveMaxRequests = Integer.parseInt(properties.getProperty("server.keepAliveMaxRequests", "100"));
+            this.headerTimeout = TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(properties.getProperty("server.headerTimeout", "10").trim()));
+            this.bodyTimeout = TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(properties.getProperty("server.bodyTimeout", "30").trim()));
+            this.writeTimeout = TimeUnit.SECONDS.toMillis(
+                    Long.parseLong(properties.getProperty("server.writeTimeout", "30").trim()));
+            this.minDataRate = Long.parseLong(properties.getProperty("server.minDataRate", "500").trim());
+            int maxConnectionsPerIp = Integer.parseInt(
+                    properties.getProperty("server.maxConnectionsPerIp", "0").trim());
+            this.connectionLimiter = maxConnectionsPerIp > 0 ? new ConnectionLimiter(maxConnectionsPerIp) : null;
+            this.maxHeaderSize = Integer.parseInt(properties.getProperty("server.maxHeaderSize", "16384"));
+            this.maxHeaderCount = Integer.parseInt(properties.getProperty("server.maxHeaderCount", "100"));
+            this.maxBodySize = Long.parseLong(properties.getProperty("server.maxBodySize", "10485760").trim());
+            this.maxFormSize = Integer.parseInt(properties.getProperty("server.maxFormSize", "1048576").trim());
+            this.uploadMemoryThreshold = Integer.parseInt(
+                    properties.getProperty("server.uploadMemoryThreshold", "65536").trim());
+            String uploadDirectory = properties.getProperty("server.uploadDir", "").trim();
+            this.uploadDir = uploadDirectory.isEmpty() ? null : Files.createDirectories(Paths.get(uploadDirectory));
+            this.uploads = Boolean.parseBoolean(properties.getProperty("server.uploads", "false").trim());
+            this.http2 = Boolean.parseBoolean(properties.getProperty("server.http2", "false").trim());
+            this.http2MaxStreams = Integer.parseInt(properties.getProperty("server.http2MaxStreams", "100").trim());
+            this.reactorThreads = Integer.parseInt(properties.getProperty("server.reactorThreads", "1"));
+            String transport = properties.getProperty("server.transport", "blocking").trim();
             this.documentRoot = Paths.get(properties.getProperty("server.documentRoot"));
+            this.scriptCache = new SmartScriptCache(
+                    Integer.parseInt(properties.getProperty("server.scriptCacheSize", "64")));
+            this.warmupMillis = Long.parseLong(properties.getProperty("server.warmupMillis", "0").trim());
+            for (String target : properties.getProperty("server.warmupRoutes", "").split(",")) {
+                if (!target.trim().isEmpty()) {
+                    warmupTargets.add(target.trim());
+                }
+            }
+            if (Boolean.parseBoolean(properties.getProperty("server.precompileScripts", "false"))
+                    || warmupMillis > 0) {
+                scriptCache.precompile(documentRoot);
+            }
+            this.compression = Boolean.parseBoolean(properties.getProperty("server.compression", "true"));
+            this.compressionMinSize = Integer.parseInt(properties.getProperty("server.compressionMinSize", "1024"));
+            this.responseBufferSize = Integer.parseInt(
+                    properties.getProperty("server.responseBufferSize", "8192").trim());
+            this.poolDebug = Boolean.parseBoolean(properties.getProperty("server.poolDebug", "false").trim());
+            this.traceSampleRate = Double.parseDouble(properties.getProperty("server.traceSampleRate", "0").trim());
+            this.serverTiming = Boolean.parseBoolean(properties.getProperty("server.serverTiming", "false").trim());
+            this.slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(
+                    Long.parseLong(properties.getProperty("server.slowRequestMillis", "1000").trim()));
+            String accessLogFile = properties.getProperty("server.accessLog", "").trim();
+            if (!accessLogFile.isEmpty()) {
+                this.accessLog = new AccessLog(Paths.get(accessLogFile),
+                        !properties.getProperty("server.accessLogFormat", "combined").trim().equals("common"),
+                        Integer.parseInt(properties.getProperty("server.accessLogBuffer", "8192").trim()),
+                        properties.getProperty("server.accessLogWhenFull", "drop").trim().equals("block"),
+                        Long.parseLong(properties.getProperty("server.accessLogMaxSize", "104857600").trim()),
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(
+                                properties.getProperty("server.accessLogRollInterval", "86400").trim())),
+                        Long.parseLong(properties.getProperty("server.accessLogFsyncInterval", "1000").trim()));
+            }
+            if (traceSampleRate > 0) {
+                String slowLogFile = properties.getProperty("server.slowRequestLog", "").trim();
+                this.slowLog = new SlowRequestLog(slowLogFile.isEmpty() ? null : Paths.get(slowLogFile));
+            }
+            this.staticCache = new StaticContentCache(
+                    Long.parseLong(properties.getProperty("server.staticCacheSize", "33554432")),
+                    Long.parseLong(properties.getProperty("server.staticCacheMaxFileSize", "1048576")),
+                    Long.parseLong(properties.getProperty("server.staticCacheRevalidate", "2000")),
+                    p -> compression && RequestContext.isCompressible(determineMime(p.getFileName().toString())),
+                    compressionMinSize);
+            this.staticCacheControl = "public, max-age=" + properties.getProperty("server.staticMaxAge", "60").trim();
             String mime = properties.getProperty("server.mimeConfig");
             String workersPath = properties.getProperty("server.workers");
+            if (Boolean.parseBoolean(properties.getProperty("server.metrics", "false"))) {
+                this.metrics = new ServerMetrics();
+                this.metricsPath = properties.getProperty("server.metricsPath", "/metrics").trim();
+                this.metricsPublic = Boolean.parseBoolean(properties.getProperty("server.metricsPublic", "false"));
+                metrics.addGauge("executor_queue_length", "The number of requests waiting for a worker thread.",
+                        () -> threadPool instanceof ThreadPoolExecutor
+                                ? ((ThreadPoolExecutor) threadPool).getQueue().size() : 0);
+                metrics.addGauge("sessions", "The number of sessions.", () -> sessionStore.size());
+                if (accessLog != null) {
+                    metrics.addGauge("access_log_dropped", "The number of requests which were not logged.",
+                            () -> accessLog.getDropped());
+                }
+                if (slowLog != null) {
+                    metrics.addGauge("slow_requests_dropped", "The number of slow requests which were not logged.",
+                            () -> slowLog.getDropped());
+                }
+            }
+            this.notFoundCache = new NotFoundCache(
+                    Integer.parseInt(properties.getProperty("server.notFoundCacheSize", "4096")),
+                    Long.parseLong(properties.getProperty("server.notFoundCacheTtl", "2000")));
+            this.workerRegistry = new WorkerRegistry(getClass().getClassLoader(),
+                    "hr.fer.zemris.java.webserver.workers",
+                    Integer.parseInt(properties.getProperty("server.workerMissCacheSize", "1024")));
             parseWorkers(workersPath);
-            properties.clear();
-            properties.load(Files.newInputStream(Paths.get(mime)));
-            properties.forEach((k, v) -> mimeTypes.put((String) k, (String) v));
-            this.serverThread = new ServerThread();
+            Properties mimeProperties = new Properties();
+            mimeProperties.load(Files.newInputStream(Paths.get(mime)));
+            mimeProperties.forEach((k, v) -> mimeTypes.put((String) k, (String) v));
+            this.serverThread = transport.equals("nio") ? new NioServerThread() : new ServerThread();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Loads workers to the map of all available workers.
+     * Parses the concurrency limits of routes, given as a comma separated list of
+     * <code>pattern=limit</code> entries, e.g. <code>/cw=2, /ext/*=16</code>.
+     *
+     * @param value the value of the "server.routeConcurrency" setting.
+     */
+    private void parseRouteConcurrency(String value) {
+        for (String entry : value.split(",")) {
+            int eq = entry.lastIndexOf('=');
+            if (eq == -1) {
+                continue;
+            }
+            routeConcurrency.put(entry.substring(0, eq).trim(), Integer.parseInt(entry.substring(eq + 1).trim()));
+        }
+    }
+
+    /**
+     * Builds the routes: the built-in routes followed by the workers from the given file. A worker path may
+     * contain path parameters (e.g. <code>/calc/{a}/{b}</code>) and may end with a wildcard
+     * (e.g. <code>/files/*</code>), see {@link RouteTrie}.
      *
      * @param workersPath the path to file with workers.
      * @see hr.fer.zemris.java.webserver.workers.Home
@@ -162,48 +554,172 @@ public class SmartHttpServer {
      * @see hr.fer.zemris.java.webserver.workers.SumWorker
      */
     private void parseWorkers(String workersPath) {
+        routes.add("/private", new Route("/private", Route.Kind.FILES, null, true));
+        routes.add("/private/*", new Route("/private/*", Route.Kind.FILES, null, true));
+        routes.add("/ext/*", new Route("/ext/*", Route.Kind.EXTENSION, null, false,
+                routeConcurrency.getOrDefault("/ext/*", 0)));
+        if (metrics != null && !metricsPath.isEmpty()) {
+            routes.add(metricsPath, new Route(metricsPath, Route.Kind.WORKER, new MetricsWorker(metrics), false,
+                    0, !metricsPublic));
+        }
+        if (uploads) {
+            routes.add("/upload", new Route("/upload", Route.Kind.WORKER, new UploadWorker(), false,
+                    routeConcurrency.getOrDefault("/upload", 0)));
+        }
         try (BufferedReader br = new BufferedReader(new FileReader(Paths.get(workersPath).toString()))) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] parts = line.split("=");
                 String path = parts[0].trim();
                 String fqcn = parts[1].trim();
-                if (workersMap.get(path) != null) {
+                IWebWorker iww = workerRegistry.instantiate(fqcn);
+                boolean hidden = path.equals("/private") || path.startsWith("/private/");
+                if (!routes.add(path, new Route(path, Route.Kind.WORKER, iww, hidden,
+                        routeConcurrency.getOrDefault(path, 0)))) {
                     throw new IllegalStateException("Worker was previously defined.");
                 }
-                IWebWorker iww = getIWebWorker(fqcn);
-                workersMap.put(path, iww);
             }
-        } catch (IOException | ClassNotFoundException | InstantiationException | IllegalAccessException
-                | IllegalStateException e) {
+        } catch (IOException | ReflectiveOperationException | IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds the static files under the document root, except the private ones, to the targets of the warm-up.
+     * Smart scripts are left out, because they may change the state of the session; they are warmed up only
+     * when configured as warm-up routes.
+     *
+     * @throws IOException if an error occurred while walking the document root.
+     */
+    private void addWarmupFiles() throws IOException {
+        Path privateRoot = documentRoot.resolve("private");
+        try (Stream<Path> files = Files.walk(documentRoot)) {
+            files.filter(p -> Files.isRegularFile(p) && !p.startsWith(privateRoot)
+                    && !p.getFileName().toString().endsWith(".smscr"))
+                    .limit(MAX_WARMUP_FILES)
+                    .forEach(p -> warmupTargets.add("/" + documentRoot.relativize(p).toString().replace('\\', '/')));
+        }
+    }
+
+    /**
+     * Warms the server up before it accepts connections. Every worker thread drives requests for the warm-up
+     * targets, with and without compression, through {@link #serve(HttpRequest, OutputStream)} until the
+     * warm-up time is over, so that the classes are loaded, the caches are filled and the request path is
+     * compiled before the first client arrives. A target which is still slow on its second request is dropped.
+     * All requests share one session, which is removed afterwards, and the metrics they leave are cleared.
+     *
+     * @param millis for how many milliseconds the server warms up.
+     */
+    private void warmUp(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            addWarmupFiles();
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        if (warmupTargets.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + millis;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", domainName);
+        SessionStore.Session session = sessionStore.create(domainName);
+        headers.put("cookie", "sid=" + session.getSid());
+        Map<String, String> gzipHeaders = new HashMap<>(headers);
+        gzipHeaders.put("accept-encoding", "gzip");
+
+        warmingUp = true;
+        List<Future<?>> passes = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, workerThreads); i++) {
+            int offset = i;
+            passes.add(threadPool.submit(() -> {
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                int[] served = new int[warmupTargets.size()];
+                int live = served.length;
+                for (int t = offset; live > 0 && System.currentTimeMillis() < deadline; t++) {
+                    int index = t % served.length;
+                    if (served[index] < 0) {
+                        continue;
+                    }
+                    sink.reset();
+                    long begin = System.nanoTime();
+                    try {
+                        serve(new HttpRequest("GET", warmupTargets.get(index), "HTTP/1.1",
+                                t / served.length % 2 == 0 ? headers : gzipHeaders), sink);
+                    } catch (Exception ignorable) {
+                        // a failing target is still warm
+                    }
+                    if (served[index]++ > 0 && System.nanoTime() - begin > SLOW_WARMUP_NANOS) {
+                        served[index] = -1;
+                        live--;
+                    }
+                }
+            }));
+        }
+        for (Future<?> pass : passes) {
+            try {
+                pass.get();
+            } catch (InterruptedException e) {
+                warmingUp = false;
+                sessionStore.remove(session);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        warmingUp = false;
+        sessionStore.remove(session);
+        if (metrics != null) {
+            metrics.clearRoutes();
+        }
+    }
+
+    /**
+     * Determines the mime type from the given name.
+     * If it is not possible to determine the type of method returns "application/octet-stream".
+     *
+     * @param name the name of type content.
+     * @return the mime type from the given name.
+     */
+    private String determineMime(String name) {
+        name = name.substring(name.lastIndexOf(".") + 1);
+        return mimeTypes.get(name) != null ? mimeTypes.get(name) : "application/octet-stream";
     }
 
     /**
-     * Loads and creates a new instance of workers.
+     * Serves one request without a connection and writes the whole response, including a file body, to the
+     * given stream. It is meant for tests and benchmarks which exercise the request path without sockets.
      *
-     * @param fqcn the fully qualified class name
-     * @return a new instance of {@link IWebWorker}
-     * @throws ClassNotFoundException if an error occurred while loading the class.
-     * @throws InstantiationException if an error occurred while instantiation.
-     * @throws IllegalAccessException if an error occurred while accessing.
+     * @param request the request.
+     * @param os      the stream to which the response is written.
+     * @return true if the connection would stay open for the next request.
+     * @throws Exception if an error occurred while processing the request.
      */
-    private IWebWorker getIWebWorker(String fqcn) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
-        Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-        Object newObject = referenceToClass.newInstance();
-        return (IWebWorker) newObject;
+    public boolean serve(HttpRequest request, OutputStream os) throws Exception {
+        ClientWorker worker = new ClientWorker();
+        boolean keepAlive = worker.serve(request, null, os, true);
+        if (worker.pendingWork != null) {
+            keepAlive = worker.awaitRequest();
+        }
+        if (worker.fileBody != null) {
+            try {
+                worker.fileBody.copyTo(os);
+            } finally {
+                worker.fileBody.close();
+            }
+        }
+        return keepAlive;
     }
 
     /**
      * Creates a thread pool listening to client requests and starts a server thread.
      */
     protected synchronized void start() {
-        threadPool = Executors.newFixedThreadPool(workerThreads, r -> {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            return t;
-        });
+        threadPool = WorkerExecutors.newExecutor(executorType, workerThreads, queueDepth);
+        warmUp(warmupMillis);
         if (!serverThread.isAlive()) {
             serverThread.run();
         }
@@ -217,8 +733,11 @@ public class SmartHttpServer {
             try {
                 Thread.sleep(10);
             } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
                 threadPool.shutdown();
+                if (accessLog != null) {
+                    accessLog.close();
+                }
+                Thread.currentThread().interrupt();
                 break;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -233,14 +752,31 @@ public class SmartHttpServer {
 
         @Override
         public void run() {
-            ServerSocket serverSocket;
             try {
-                serverSocket = new ServerSocket();
-                serverSocket.bind(new InetSocketAddress((InetAddress) null, port));
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress((InetAddress) null, port));
+                new Timer("write-watchdog", true).scheduleAtFixedRate(new TimerTask() {
+                    @Override
+                    public void run() {
+                        long now = System.currentTimeMillis();
+                        for (DeadlineOutputStream output : watchedOutputs) {
+                            output.check(now);
+                        }
+                    }
+                }, 1000, 1000);
                 while (true) {
-                    Socket client = serverSocket.accept();
+                    Socket client = serverChannel.accept().socket();
+                    if (connectionLimiter != null && !connectionLimiter.tryAcquire(client.getInetAddress())) {
+                        shed(client);
+                        continue;
+                    }
                     ClientWorker cw = new ClientWorker(client);
-                    threadPool.submit(cw);
+                    try {
+                        threadPool.submit(cw);
+                    } catch (RejectedExecutionException e) {
+                        shed(client);
+                        releaseConnection(client.getInetAddress());
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -249,509 +785,2971 @@ public class SmartHttpServer {
     }
 
     /**
-     * Represents a job that must be done when a client submits a request to the server.
+     * The thread which accepts connections on a non-blocking transport. Accepted channels are distributed
+     * among the reactors which read requests without blocking; only complete requests are handed to the
+     * thread pool, so idle connections do not occupy worker threads.
      */
-    private class ClientWorker implements Runnable, IDispatcher {
+    protected class NioServerThread extends Thread {
+
+        @Override
+        public void run() {
+            try {
+                Reactor[] reactors = new Reactor[reactorThreads];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new Reactor();
+                    reactors[i].start();
+                }
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress((InetAddress) null, port));
+                for (int next = 0; ; next = (next + 1) % reactors.length) {
+                    SocketChannel client = serverChannel.accept();
+                    if (connectionLimiter != null
+                            && !connectionLimiter.tryAcquire(client.socket().getInetAddress())) {
+                        shed(client.socket());
+                        continue;
+                    }
+                    client.configureBlocking(false);
+                    reactors[next].register(client);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Represents a thread which performs all reads and writes of its connections using a {@link Selector}.
+     */
+    private class Reactor extends Thread {
 
         /**
-         * The client socket.
+         * The selector.
          */
-        private Socket csocket;
+        private Selector selector;
 
         /**
-         * The input stream.
+         * The tasks which must be executed on the reactor thread.
          */
-        private PushbackInputStream istream;
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 
         /**
-         * The output stream.
+         * The buffer into which the connections of this reactor which are lingering read the bytes they discard.
          */
-        private OutputStream ostream;
+        private final ByteBuffer discard = ByteBuffer.allocate(4096);
 
         /**
-         * The HTTP version.
+         * Creates an instance of {@link Reactor}.
+         *
+         * @throws IOException if the selector can not be opened.
          */
-        private String version;
+        public Reactor() throws IOException {
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
 
         /**
-         * The method. The currently supported method is GET(for now).
+         * Schedules the given task for execution on the reactor thread.
          *
-         * @see <a href="https://www.w3.org/Protocols/rfc2616/rfc2616-sec9.html">Methods</a>
+         * @param task the task.
          */
-        private String method;
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
 
         /**
-         * The host.
+         * Registers the given channel with this reactor.
+         *
+         * @param channel the non-blocking client channel.
+         */
+        public void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    if (metrics != null) {
+                        metrics.connectionOpened();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= 1000) {
+                        lastIdleCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ((NioConnection) key.attachment()).checkTimeouts(now);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Represents the state of one connection of the non-blocking transport. All methods are called on the
+     * reactor thread, except the request processing itself which runs in the thread pool.
+     */
+    private class NioConnection {
+
+        /**
+         * The client channel.
+         */
+        private SocketChannel channel;
+
+        /**
+         * The reactor which owns this connection.
+         */
+        private Reactor reactor;
+
+        /**
+         * The selection key.
+         */
+        private SelectionKey key;
+
+        /**
+         * The parser which holds the received bytes which are not yet processed.
+         */
+        private HttpRequestParser parser = new HttpRequestParser(maxHeaderSize, maxHeaderCount);
+
+        /**
+         * The response which is being written.
+         */
+        private ByteBuffer output;
+
+        /**
+         * The file region which is sent after the response bytes, or null.
+         */
+        private FileRegion body;
+
+        /**
+         * The worker which processes the requests of this connection.
+         */
+        private ClientWorker worker = new ClientWorker();
+
+        /**
+         * The buffer into which the responses of this connection are written, reused for every request.
+         */
+        private ResponseBuffer responseBuffer = new ResponseBuffer();
+
+        /**
+         * The number of requests served over this connection.
+         */
+        private int served;
+
+        /**
+         * The flag indicating whether a request is being processed or its response is being written.
+         */
+        private boolean busy;
+
+        /**
+         * The flag indicating whether the connection should stay open after the current response.
+         */
+        private boolean keepAlive;
+
+        /**
+         * The flag indicating whether the request head was rejected and the connection is being closed.
+         */
+        private boolean lingering;
+
+        /**
+         * The time of the last activity in milliseconds.
+         */
+        private long lastActive = System.currentTimeMillis();
+
+        /**
+         * The work of the asynchronous worker which is serving the current request, or null. While it runs,
+         * the connection is read so that the work can be cancelled if the client disconnects.
+         */
+        private CompletableFuture<Void> awaiting;
+
+        /**
+         * The request whose body is being received, or null.
+         */
+        private HttpRequest receivingRequest;
+
+        /**
+         * The body which is being received, or null.
+         */
+        private RequestBody receiving;
+
+        /**
+         * The HTTP/2 protocol of the connection, or null while it speaks HTTP/1.
+         */
+        private Http2Connection http2Connection;
+
+        /**
+         * The buffer into which an HTTP/2 connection is read.
+         */
+        private ByteBuffer http2Input;
+
+        /**
+         * The time in milliseconds when the first byte of the request head which is being received arrived, 0 if
+         * no head is being received.
+         */
+        private long headStart;
+
+        /**
+         * The time in milliseconds when the body which is being received started.
+         */
+        private long bodyStart;
+
+        /**
+         * The number of bytes received since the body which is being received started.
+         */
+        private long bodyBytes;
+
+        /**
+         * The time in milliseconds when the response which is being written was handed to the connection.
+         */
+        private long writeStart;
+
+        /**
+         * The number of bytes of the response which is being written that were written so far.
+         */
+        private long writeBytes;
+
+        /**
+         * Creates an instance of {@link NioConnection}.
+         *
+         * @param channel the client channel.
+         * @param reactor the reactor which owns this connection.
+         */
+        public NioConnection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+            parser.setTimed(traceSampleRate > 0);
+            worker.clientAddress = clientAddress(channel);
+        }
+
+        /**
+         * Reads the available bytes and dispatches the request if it is complete.
+         *
+         * @throws IOException if an error occurred while reading.
+         */
+        private void onReadable() throws IOException {
+            if (lingering) {
+                reactor.discard.clear();
+                if (channel.read(reactor.discard) == -1) {
+                    close();
+                }
+                return;
+            }
+            if (http2Connection != null) {
+                readHttp2();
+                return;
+            }
+            int r = parser.read(channel);
+            if (r == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (busy) {
+                if (parser.buffered() >= maxHeaderSize) {
+                    key.interestOps(0);
+                }
+                return;
+            }
+            if (receiving != null) {
+                bodyBytes += r;
+                receiveBody();
+                return;
+            }
+            tryDispatch();
+        }
+
+        /**
+         * Closes the connection if its client is too slow: if it has been idle for longer than the keep-alive
+         * timeout, or takes too long to accept the response. A client which takes too long to send the head or
+         * the body of a request is answered with "408 Request Timeout" first. The connections which are lingering
+         * after an error are closed after a short time. An HTTP/2 connection is closed when it is idle without
+         * open streams, or when its client stops accepting its output.
+         *
+         * @param now the current time in milliseconds.
+         */
+        private void checkTimeouts(long now) {
+            if (http2Connection != null) {
+                boolean stalled = output != null && output.hasRemaining() && now - lastActive > writeTimeout;
+                if (stalled || !busy && now - lastActive > keepAliveTimeout) {
+                    close();
+                }
+            } else if (output != null || body != null) {
+                if (now > deadline(writeStart, writeTimeout, writeBytes)) {
+                    close();
+                }
+            } else if (busy) {
+                return;
+            } else if (lingering) {
+                if (now - lastActive > LINGER_MILLIS) {
+                    close();
+                }
+            } else if (receiving != null) {
+                if (now > deadline(bodyStart, bodyTimeout, bodyBytes)) {
+                    timeOut();
+                }
+            } else if (headStart != 0) {
+                if (now > deadline(headStart, headerTimeout, parser.buffered())) {
+                    timeOut();
+                }
+            } else if (now - lastActive > keepAliveTimeout) {
+                close();
+            }
+        }
+
+        /**
+         * Answers the request which is being received with "408 Request Timeout" and closes the connection.
+         */
+        private void timeOut() {
+            discardBody();
+            headStart = 0;
+            lingering = true;
+            respond(errorResponse(408, "Request Timeout"), null, false);
+        }
+
+        /**
+         * Parses the first buffered request head and, once the request is complete with its body, hands it to the
+         * thread pool.
+         */
+        private void tryDispatch() {
+            HttpRequest request;
+            try {
+                request = parser.parse();
+            } catch (HttpRequestException e) {
+                lingering = true;
+                respond(errorResponse(e.getStatusCode(), e.getStatusText()), null, false);
+                return;
+            }
+            if (request == null) {
+                if (headStart == 0 && parser.buffered() > 0) {
+                    headStart = System.currentTimeMillis();
+                }
+                return;
+            }
+            headStart = 0;
+            if (http2 && (Http2Connection.isPreface(request) || Http2Connection.isUpgrade(request))) {
+                startHttp2(request);
+                return;
+            }
+            RequestBody body;
+            try {
+                body = openBody(request);
+            } catch (HttpRequestException e) {
+                lingering = true;
+                respond(errorResponse(e.getStatusCode(), e.getStatusText()), null, false);
+                return;
+            }
+            if (body == null) {
+                dispatch(request, null);
+                return;
+            }
+            receivingRequest = request;
+            receiving = body;
+            bodyStart = System.currentTimeMillis();
+            bodyBytes = parser.buffered();
+            if (expectsContinue(request) && parser.buffered() == 0) {
+                try {
+                    channel.write(ByteBuffer.wrap(CONTINUE));
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+            }
+            receiveBody();
+        }
+
+        /**
+         * Switches the connection to HTTP/2. The bytes which follow the given request are the first bytes of
+         * the HTTP/2 connection.
+         *
+         * @param request the start of the client preface, or the request which asks for the upgrade.
+         */
+        private void startHttp2(HttpRequest request) {
+            StreamHandler handler = new StreamHandler(() -> reactor.execute(this::flushHttp2),
+                    worker.clientAddress);
+            http2Connection = handler.getConnection();
+            http2Connection.start(request);
+            byte[] rest = parser.takeBuffered();
+            http2Connection.feed(rest, 0, rest.length);
+            flushHttp2();
+        }
+
+        /**
+         * Reads the available bytes of an HTTP/2 connection and writes what the connection answers.
+         *
+         * @throws IOException if an error occurred while reading.
+         */
+        private void readHttp2() throws IOException {
+            if (http2Input == null) {
+                http2Input = ByteBuffer.allocate(16 * 1024);
+            }
+            http2Input.clear();
+            int r = channel.read(http2Input);
+            if (r == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            http2Connection.feed(http2Input.array(), 0, r);
+            flushHttp2();
+        }
+
+        /**
+         * Writes the output of an HTTP/2 connection as far as possible without blocking. The connection is kept
+         * busy, and so not closed as idle, while some of its streams are open.
+         */
+        private void flushHttp2() {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (output == null || !output.hasRemaining()) {
+                        byte[] next = http2Connection.takeOutput();
+                        if (next == null) {
+                            output = null;
+                            break;
+                        }
+                        output = ByteBuffer.wrap(next);
+                    }
+                    channel.write(output);
+                    lastActive = System.currentTimeMillis();
+                    if (output.hasRemaining()) {
+                        busy = true;
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                busy = http2Connection.hasOpenStreams();
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException | CancelledKeyException e) {
+                close();
+                return;
+            }
+            if (http2Connection.isClosed()) {
+                close();
+            }
+        }
+
+        /**
+         * Hands the received bytes to the body which is being received and dispatches its request once the body
+         * is complete. The body is decoded on the reactor thread while it arrives, so a slow upload does not
+         * occupy a worker thread.
+         */
+        private void receiveBody() {
+            try {
+                parser.transferTo(receiving);
+            } catch (HttpRequestException e) {
+                discardBody();
+                lingering = true;
+                respond(errorResponse(e.getStatusCode(), e.getStatusText()), null, false);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                discardBody();
+                lingering = true;
+                respond(errorResponse(500, "Internal Server Error"), null, false);
+                return;
+            }
+            if (receiving.isComplete()) {
+                HttpRequest request = receivingRequest;
+                RequestBody body = receiving;
+                receivingRequest = null;
+                receiving = null;
+                dispatch(request, body);
+            }
+        }
+
+        /**
+         * Drops the body which is being received and deletes its temporary files.
+         */
+        private void discardBody() {
+            if (receiving != null) {
+                receiving.delete();
+                receiving = null;
+                receivingRequest = null;
+            }
+        }
+
+        /**
+         * Hands a complete request to the thread pool. Reading is suspended until the response is written, so
+         * pipelined requests are answered in order.
+         *
+         * @param request the request.
+         * @param body    the body of the request, or null if it has none.
+         */
+        private void dispatch(HttpRequest request, RequestBody body) {
+            busy = true;
+            key.interestOps(0);
+            boolean mayKeepAlive = ++served < keepAliveMaxRequests;
+            long enqueued = System.currentTimeMillis();
+            long headNanos = parser.getHeadNanos();
+            try {
+                threadPool.submit(() -> {
+                    if (isQueuedTooLong(enqueued)) {
+                        if (body != null) {
+                            body.delete();
+                        }
+                        reactor.execute(this::shed);
+                        return;
+                    }
+                    worker.headNanos = headNanos;
+                    process(request, body, mayKeepAlive);
+                });
+            } catch (RejectedExecutionException e) {
+                if (body != null) {
+                    body.delete();
+                }
+                shed();
+            }
+        }
+
+        /**
+         * Answers the current request with "503 Service Unavailable" and closes the connection.
+         */
+        private void shed() {
+            if (metrics != null) {
+                metrics.record("rejected", 503, 0, 0);
+            }
+            lingering = true;
+            respond(unavailableResponse(), null, false);
+        }
+
+        /**
+         * Processes a request in the thread pool and hands the response to the reactor.
+         *
+         * @param request      the request.
+         * @param body         the body of the request, or null if it has none.
+         * @param mayKeepAlive flag indicating whether another request may follow this one.
+         */
+        private void process(HttpRequest request, RequestBody body, boolean mayKeepAlive) {
+            ResponseBuffer bos = responseBuffer;
+            bos.recycle();
+            boolean keep = false;
+            try {
+                keep = worker.serve(request, body, bos, mayKeepAlive);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            CompletableFuture<Void> work = worker.pendingWork;
+            if (work != null) {
+                reactor.execute(() -> watch(work));
+                work.whenComplete((v, failure) -> {
+                    boolean keepAlive = false;
+                    try {
+                        keepAlive = worker.completeRequest(failure);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    respondLater(bos, keepAlive);
+                });
+                return;
+            }
+            respondLater(bos, keep);
+        }
+
+        /**
+         * Hands the response of the current request to the reactor.
+         *
+         * @param bos       the stream holding the response bytes.
+         * @param keepAlive flag indicating whether the connection stays open after the response.
+         */
+        private void respondLater(ResponseBuffer bos, boolean keepAlive) {
+            ByteBuffer response = bos.toByteBuffer();
+            FileRegion fileBody = worker.fileBody;
+            worker.fileBody = null;
+            reactor.execute(() -> {
+                awaiting = null;
+                respond(response, fileBody, keepAlive);
+            });
+        }
+
+        /**
+         * Reads the connection while an asynchronous worker is serving the current request, so that its work
+         * is cancelled when the client disconnects. Pipelined requests are buffered, but not dispatched.
+         *
+         * @param work the work of the asynchronous worker.
+         */
+        private void watch(CompletableFuture<Void> work) {
+            if (!work.isDone() && key.isValid()) {
+                awaiting = work;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Starts writing the response.
+         *
+         * @param response  the response bytes.
+         * @param body      the file region sent after the response bytes, or null.
+         * @param keepAlive flag indicating whether the connection stays open after the response.
+         */
+        private void respond(byte[] response, FileRegion body, boolean keepAlive) {
+            respond(ByteBuffer.wrap(response), body, keepAlive);
+        }
+
+        /**
+         * Starts writing the response.
+         *
+         * @param response  the buffer with the response bytes.
+         * @param body      the file region sent after the response bytes, or null.
+         * @param keepAlive flag indicating whether the connection stays open after the response.
+         */
+        private void respond(ByteBuffer response, FileRegion body, boolean keepAlive) {
+            this.body = body;
+            if (!key.isValid()) {
+                close();
+                return;
+            }
+            this.busy = true;
+            this.keepAlive = keepAlive;
+            this.output = response;
+            this.writeStart = System.currentTimeMillis();
+            this.writeBytes = 0;
+            try {
+                onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the response as possible without blocking.
+         *
+         * @throws IOException if an error occurred while writing.
+         */
+        private void onWritable() throws IOException {
+            if (http2Connection != null) {
+                flushHttp2();
+                return;
+            }
+            writeBytes += channel.write(output);
+            lastActive = System.currentTimeMillis();
+            if (output.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (body != null) {
+                long remaining = body.remaining();
+                boolean sent = body.transferTo(channel);
+                writeBytes += remaining - body.remaining();
+                if (!sent) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            output = null;
+            if (body != null) {
+                body.close();
+                body = null;
+            }
+            if (lingering) {
+                channel.shutdownOutput();
+                busy = false;
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            busy = false;
+            key.interestOps(SelectionKey.OP_READ);
+            tryDispatch();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            if (channel.isOpen()) {
+                if (metrics != null) {
+                    metrics.connectionClosed();
+                }
+                releaseConnection(channel.socket().getInetAddress());
+            }
+            if (awaiting != null) {
+                awaiting.cancel(false);
+                awaiting = null;
+            }
+            if (http2Connection != null) {
+                http2Connection.close();
+            }
+            discardBody();
+            try {
+                if (key != null) {
+                    key.cancel();
+                }
+                if (body != null) {
+                    body.close();
+                    body = null;
+                }
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Represents the serving of the streams of an HTTP/2 connection. Each stream is served in the thread pool by a
+     * client worker of its own, through the same request path as an HTTP/1 request, and its response is handed
+     * back to the connection; the transport then writes the output of the connection.
+     */
+    private class StreamHandler implements Http2Connection.Handler {
+
+        /**
+         * The connection whose streams are served.
+         */
+        private final Http2Connection connection;
+
+        /**
+         * The task which makes the transport write the output of the connection.
+         */
+        private final Runnable flush;
+
+        /**
+         * The address of the client, as it is written to the access log, or null if unknown.
+         */
+        private final String clientAddress;
+
+        /**
+         * Creates an instance of {@link StreamHandler} together with its connection.
+         *
+         * @param flush         the task which makes the transport write the output of the connection; it is run
+         *                      by the threads which serve the streams.
+         * @param clientAddress the address of the client, or null if unknown.
+         */
+        public StreamHandler(Runnable flush, String clientAddress) {
+            this.flush = flush;
+            this.clientAddress = clientAddress;
+            this.connection = new Http2Connection(this, http2MaxStreams, maxHeaderSize);
+        }
+
+        /**
+         * Returns the connection whose streams are served.
+         *
+         * @return the connection.
+         */
+        public Http2Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public RequestBody openBody(HttpRequest request) {
+            String method = request.getMethod();
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("POST")) {
+                return null;
+            }
+            return RequestBody.openDelimited(request, maxBodySize, maxFormSize, uploadMemoryThreshold, uploadDir);
+        }
+
+        @Override
+        public void handle(Http2Connection.Stream stream, HttpRequest request, RequestBody body) {
+            long enqueued = System.currentTimeMillis();
+            try {
+                threadPool.submit(() -> {
+                    if (isQueuedTooLong(enqueued)) {
+                        refuse(stream, body);
+                        flush.run();
+                        return;
+                    }
+                    serve(stream, request, body);
+                });
+            } catch (RejectedExecutionException e) {
+                refuse(stream, body);
+            }
+        }
+
+        /**
+         * Refuses a stream because the server is saturated.
+         *
+         * @param stream the stream.
+         * @param body   the body of its request, or null.
+         */
+        private void refuse(Http2Connection.Stream stream, RequestBody body) {
+            if (metrics != null) {
+                metrics.record("rejected", 503, 0, 0);
+            }
+            if (body != null) {
+                body.delete();
+            }
+            connection.refuse(stream);
+        }
+
+        /**
+         * Serves the request of a stream and hands its response to the connection. The response of an
+         * asynchronous worker is handed over once the worker is done.
+         *
+         * @param stream  the stream.
+         * @param request the request.
+         * @param body    the body of the request, or null.
+         */
+        private void serve(Http2Connection.Stream stream, HttpRequest request, RequestBody body) {
+            ClientWorker worker = new ClientWorker();
+            worker.http2Stream = true;
+            worker.clientAddress = clientAddress;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try {
+                worker.serve(request, body, bos, true);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            CompletableFuture<Void> work = worker.pendingWork;
+            if (work != null) {
+                stream.setWork(work);
+                work.whenComplete((v, failure) -> {
+                    try {
+                        worker.completeRequest(failure);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        worker.aborted = true;
+                    }
+                    respond(stream, bos, worker);
+                });
+                return;
+            }
+            respond(stream, bos, worker);
+        }
+
+        /**
+         * Hands the response written by the given worker to the connection and writes it. An aborted response
+         * resets the stream instead, since it would otherwise look complete to the client.
+         *
+         * @param stream the stream.
+         * @param bos    the stream holding the response bytes.
+         * @param worker the worker which wrote the response.
+         */
+        private void respond(Http2Connection.Stream stream, ByteArrayOutputStream bos, ClientWorker worker) {
+            FileRegion fileBody = worker.fileBody;
+            worker.fileBody = null;
+            if (worker.aborted) {
+                if (fileBody != null) {
+                    try {
+                        fileBody.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                connection.abort(stream);
+            } else {
+                connection.respond(stream, bos.toByteArray(), fileBody);
+            }
+            flush.run();
+        }
+    }
+
+    /**
+     * Returns the time until which a client may take for a phase of its connection: the timeout of the phase,
+     * extended by one second for every {@link #minDataRate} bytes the client has transferred in it.
+     *
+     * @param start   the time in milliseconds when the phase started.
+     * @param timeout the timeout of the phase in milliseconds.
+     * @param bytes   the number of bytes transferred in the phase so far.
+     * @return the deadline in milliseconds.
+     */
+    private long deadline(long start, long timeout, long bytes) {
+        return start + timeout + (minDataRate > 0 ? bytes * 1000 / minDataRate : 0);
+    }
+
+    /**
+     * Counts off a closed connection of the given client address, if connections are limited per address.
+     *
+     * @param address the client address, or null if unknown.
+     */
+    private void releaseConnection(InetAddress address) {
+        if (connectionLimiter != null && address != null) {
+            connectionLimiter.release(address);
+        }
+    }
+
+    /**
+     * Returns the address of the client on the other end of the given channel, as it is written to the access log.
+     *
+     * @param channel the channel, or null.
+     * @return the address of the client, or null if it is unknown.
+     */
+    private static String clientAddress(SocketChannel channel) {
+        try {
+            SocketAddress address = channel == null ? null : channel.getRemoteAddress();
+            return address instanceof InetSocketAddress
+                    ? ((InetSocketAddress) address).getAddress().getHostAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the given client address is a loopback address. A request without an address was handed
+     * to the server in the same process, e.g. by a test, and is treated as local.
+     *
+     * @param address the address of the client as returned by {@link #clientAddress(SocketChannel)}, or null.
+     * @return true if the client is on this host.
+     */
+    private static boolean isLoopback(String address) {
+        return address == null || address.startsWith("127.") || address.equals("0:0:0:0:0:0:0:1")
+                || address.equals("::1");
+    }
+
+    /**
+     * Checks whether a task waited for a worker thread longer than allowed. Its client has most likely given
+     * up already, so the task is answered with "503 Service Unavailable" instead of being processed.
+     *
+     * @param enqueued the time in milliseconds when the task was submitted.
+     * @return true if the task waited too long.
+     */
+    private boolean isQueuedTooLong(long enqueued) {
+        return queueTimeout > 0 && System.currentTimeMillis() - enqueued > queueTimeout;
+    }
+
+    /**
+     * Creates the "503 Service Unavailable" response which is sent when the server is saturated.
+     *
+     * @return the bytes of the response.
+     */
+    private byte[] unavailableResponse() {
+        return ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Server: simple java server\r\n" +
+                "Content-Type: text/plain;charset=UTF-8\r\n" +
+                "Content-Length: 0\r\n" +
+                "Retry-After: " + retryAfter + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Answers a connection of the blocking transport with "503 Service Unavailable" and closes it. The request
+     * is not read; what the client has already sent is skipped without waiting for more, so the acceptor is
+     * never blocked by a slow client.
+     *
+     * @param client the client socket.
+     */
+    private void shed(Socket client) {
+        if (metrics != null) {
+            metrics.record("rejected", 503, 0, 0);
+        }
+        try {
+            client.getOutputStream().write(unavailableResponse());
+            client.shutdownOutput();
+            InputStream in = client.getInputStream();
+            in.skip(in.available());
+        } catch (IOException ignorable) {
+            // the client is dropped anyway
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates the body of the given request, if it has one, and checks its expectation. The body is read only for
+     * the methods which are served; the others are rejected before their body matters.
+     *
+     * @param request the request.
+     * @return the body, or null if the request has no body.
+     * @throws HttpRequestException if the framing of the body is invalid, the body is too large or the
+     *                              expectation can not be met.
+     */
+    private RequestBody openBody(HttpRequest request) {
+        String method = request.getMethod();
+        if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("POST")) {
+            return null;
+        }
+        return RequestBody.open(request, maxBodySize, maxFormSize, uploadMemoryThreshold, uploadDir);
+    }
+
+    /**
+     * Checks whether the client waits for "100 Continue" before it sends the body of the given request.
+     *
+     * @param request the request.
+     * @return true if the client waits for "100 Continue".
+     */
+    private static boolean expectsContinue(HttpRequest request) {
+        return "100-continue".equalsIgnoreCase(request.getHeader("expect"))
+                && request.getVersion().equalsIgnoreCase("HTTP/1.1");
+    }
+
+    /**
+     * Creates a response without body which reports the given error and closes the connection. It is used
+     * when the request can not be processed through a {@link RequestContext}.
+     *
+     * @param statusCode the status code.
+     * @param statusText the status text.
+     * @return the bytes of the response.
+     */
+    private static byte[] errorResponse(int statusCode, String statusText) {
+        return ("HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
+                "Server: simple java server\r\n" +
+                "Content-Type: text/plain;charset=UTF-8\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Represents a job that must be done when a client submits a request to the server. The connection
+     * is kept open (HTTP/1.1 by default, HTTP/1.0 on "Connection: keep-alive") and requests are served
+     * in the order in which they arrive, so pipelined requests are supported as well.
+     */
+    private class ClientWorker implements Runnable, IDispatcher {
+
+        /**
+         * The client socket.
+         */
+        private Socket csocket;
+
+        /**
+         * The input stream.
+         */
+        private InputStream istream;
+
+        /**
+         * The output stream.
+         */
+        private OutputStream ostream;
+
+        /**
+         * The HTTP version.
+         */
+        private String version;
+
+        /**
+         * The method. The currently supported method is GET(for now).
+         *
+         * @see <a href="https://www.w3.org/Protocols/rfc2616/rfc2616-sec9.html">Methods</a>
+         */
+        private String method;
+
+        /**
+         * The host.
+         */
+        private String host;
+
+        /**
+         * The map of parameters.
+         */
+        private Map<String, String> params = new HashMap<>();
+
+        /**
+         * The map of temporary parameters.
+         */
+        private Map<String, String> tempParams = new HashMap<>();
+
+        /**
+         * The map of permanent parameters.
+         */
+        private Map<String, String> permParams = new HashMap<>();
+
+        /**
+         * The list of output cookies.
+         */
+        private List<RequestContext.RCCookie> outputCookies = new ArrayList<>();
+
+        /**
+         * The session identifier(20 characters long string).
+         */
+        private String SID;
+
+        /**
+         * The request context.
+         */
+        private RequestContext context = null;
+
+        /**
+         * The released context of the previous request, which is reset for the next one, or null.
+         */
+        private RequestContext spareContext;
+
+        /**
+         * The "Cookie" header of the previous request on this connection, or null.
+         */
+        private String lastCookies;
+
+        /**
+         * The session identifier found in {@link #lastCookies}, or null.
+         */
+        private String lastSidCandidate;
+
+        /**
+         * The URL path of the previous file request on this connection, or null.
+         */
+        private String lastUrlPath;
+
+        /**
+         * The file to which {@link #lastUrlPath} resolved.
+         */
+        private Path lastRequestedFile;
+
+        /**
+         * The static file which was sent last on this connection, or null.
+         */
+        private StaticContentCache.CachedFile lastFile;
+
+        /**
+         * The mime type of {@link #lastFile}.
+         */
+        private String lastMime;
+
+        /**
+         * The flag indicating whether the connection should stay open after the current request.
+         */
+        private boolean keepAlive;
+
+        /**
+         * The current request.
+         */
+        private HttpRequest request;
+
+        /**
+         * The body of the current request, or null if it has none.
+         */
+        private RequestBody requestBody;
+
+        /**
+         * The flag indicating whether the client accepts gzip compressed responses.
+         */
+        private boolean gzipAccepted;
+
+        /**
+         * The flag indicating whether file bodies are left to the transport instead of being written
+         * by this worker.
+         */
+        private boolean deferFileBody;
+
+        /**
+         * The file region which the transport must send after the response written to the output stream.
+         */
+        private FileRegion fileBody;
+
+        /**
+         * The stream which counts the bytes of responses, wrapping the output stream.
+         */
+        private CountingOutputStream counter;
+
+        /**
+         * The number of bytes of the current response sent from files, past the output stream.
+         */
+        private long fileBytes;
+
+        /**
+         * The route which serves the current request, used as the label of its metrics.
+         */
+        private String routeLabel;
+
+        /**
+         * The status code of an error sent before the request context was created.
+         */
+        private int errorStatus;
+
+        /**
+         * The time in milliseconds when the connection was submitted to the thread pool.
+         */
+        private long enqueued;
+
+        /**
+         * The work of the asynchronous worker which is serving the current request, or null. The request is
+         * completed through {@link #completeRequest(Throwable)} once the work is done.
+         */
+        private CompletableFuture<Void> pendingWork;
+
+        /**
+         * The flag indicating whether the response of the current request was aborted.
+         */
+        private boolean aborted;
+
+        /**
+         * The time in nanoseconds when the current request started, used for its metrics.
+         */
+        private long requestStart;
+
+        /**
+         * The flag indicating whether the worker serves a stream of an HTTP/2 connection.
+         */
+        private boolean http2Stream;
+
+        /**
+         * The HTTP/2 connection which this worker reads, or null while the connection speaks HTTP/1.
+         */
+        private Http2Connection http2Connection;
+
+        /**
+         * The lock under which the output of the HTTP/2 connection is taken and written, or null while the
+         * connection speaks HTTP/1.
+         */
+        private Lock http2Output;
+
+        /**
+         * The number of bytes written to the output stream before the current request, used for its metrics.
+         */
+        private long requestWritten;
+
+        /**
+         * The time in nanoseconds it took to receive and parse the head of the current request, 0 if unknown.
+         */
+        private long headNanos;
+
+        /**
+         * The phase timers of the current request, or null if it is not timed.
+         */
+        private RequestTrace trace;
+
+        /**
+         * The phase timers which are reused for the timed requests of this worker, or null.
+         */
+        private RequestTrace spareTrace;
+
+        /**
+         * The address of the client, as it is written to the access log, or null if unknown.
+         */
+        private String clientAddress;
+
+        /**
+         * The input of the connection, which enforces the read timeouts, or null if not bound to a socket.
+         */
+        private DeadlineInputStream input;
+
+        /**
+         * The output of the connection, whose writes are watched, or null if not bound to a socket.
+         */
+        private DeadlineOutputStream output;
+
+        /**
+         * Creates an instance of {@link ClientWorker}.
+         *
+         * @param csocket the client socket.
+         */
+        public ClientWorker(Socket csocket) {
+            this.csocket = csocket;
+            this.enqueued = System.currentTimeMillis();
+        }
+
+        /**
+         * Creates an instance of {@link ClientWorker} which is not bound to a socket. Requests are handed to
+         * it one at a time through {@link #serve(HttpRequest, OutputStream, boolean)}.
+         */
+        public ClientWorker() {
+        }
+
+        @Override
+        public void run() {
+            if (isQueuedTooLong(enqueued)) {
+                shed(csocket);
+                releaseConnection(csocket.getInetAddress());
+                return;
+            }
+            if (metrics != null) {
+                metrics.connectionOpened();
+            }
+            clientAddress = clientAddress(csocket.getChannel());
+            InetAddress address = csocket.getInetAddress();
+            try {
+                istream = input = new DeadlineInputStream(csocket);
+                output = new DeadlineOutputStream(csocket);
+                watchedOutputs.add(output);
+                ostream = counter = new CountingOutputStream(new BufferedOutputStream(output));
+                HttpRequestParser parser = new HttpRequestParser(maxHeaderSize, maxHeaderCount);
+                parser.setTimed(traceSampleRate > 0);
+
+                for (int served = 1; ; served++) {
+                    resetRequestState();
+                    HttpRequest request;
+                    try {
+                        input.expectHead();
+                        request = parser.readRequest(istream);
+                        if (request == null) {
+                            break;
+                        }
+                        if (http2 && (Http2Connection.isPreface(request) || Http2Connection.isUpgrade(request))) {
+                            input.expectNothing();
+                            serveHttp2(parser, request);
+                            break;
+                        }
+                        headNanos = parser.getHeadNanos();
+                        requestBody = readBody(parser, request);
+                    } catch (HttpRequestException e) {
+                        sendError(e.getStatusCode(), e.getStatusText());
+                        discardInput();
+                        break;
+                    }
+                    boolean keep = serveRequest(request, served < keepAliveMaxRequests);
+                    if (pendingWork != null) {
+                        keep = awaitRequest();
+                    }
+                    if (!keep) {
+                        break;
+                    }
+                    if (parser.buffered() == 0 && istream.available() == 0) {
+                        ostream.flush();
+                    }
+                }
+                ostream.flush();
+            } catch (SocketTimeoutException | EOFException ignorable) {
+                // the connection was idle for too long or the client is gone
+            } catch (Exception ex) {
+                if (output == null || !output.isExpired()) {
+                    ex.printStackTrace();
+                }
+            } finally {
+                if (metrics != null) {
+                    metrics.connectionClosed();
+                }
+                if (output != null) {
+                    watchedOutputs.remove(output);
+                }
+                releaseConnection(address);
+                try {
+                    csocket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Serves the connection over HTTP/2 until it is closed. This thread reads the connection, while the
+         * streams are served by other threads of the pool; whichever thread has output writes it. An idle
+         * connection is shut down after the keep-alive timeout.
+         *
+         * @param parser  the parser which read the given request; the bytes it holds after the request belong to
+         *                the HTTP/2 connection.
+         * @param request the start of the client preface, or the request which asks for the upgrade.
+         * @throws IOException if an error occurred while reading or writing.
+         */
+        private void serveHttp2(HttpRequestParser parser, HttpRequest request) throws IOException {
+            Http2Connection connection = new StreamHandler(this::flushHttp2, clientAddress).getConnection();
+            http2Connection = connection;
+            http2Output = new ReentrantLock();
+            try {
+                connection.start(request);
+                byte[] rest = parser.takeBuffered();
+                connection.feed(rest, 0, rest.length);
+                writeHttp2(connection);
+                byte[] buffer = new byte[16 * 1024];
+                while (!connection.isClosed()) {
+                    int r;
+                    try {
+                        r = istream.read(buffer);
+                    } catch (SocketTimeoutException e) {
+                        if (connection.hasOpenStreams()) {
+                            continue;
+                        }
+                        connection.shutdown();
+                        writeHttp2(connection);
+                        break;
+                    }
+                    if (r == -1) {
+                        break;
+                    }
+                    connection.feed(buffer, 0, r);
+                    writeHttp2(connection);
+                }
+            } finally {
+                connection.close();
+            }
+        }
+
+        /**
+         * Writes the output of the HTTP/2 connection from the thread which served a stream. If the connection
+         * is broken, it is closed, so that the reading thread stops as well.
+         */
+        private void flushHttp2() {
+            try {
+                writeHttp2(http2Connection);
+            } catch (IOException e) {
+                try {
+                    csocket.close();
+                } catch (IOException ignorable) {
+                    // the connection is gone anyway
+                }
+            }
+        }
+
+        /**
+         * Writes the output of the given HTTP/2 connection. The output is taken and written under one lock, so
+         * that the frames written by different threads keep their order.
+         *
+         * @param connection the connection.
+         * @throws IOException if an error occurred while writing.
+         */
+        private void writeHttp2(Http2Connection connection) throws IOException {
+            http2Output.lock();
+            try {
+                byte[] bytes;
+                while ((bytes = connection.takeOutput()) != null) {
+                    ostream.write(bytes);
+                }
+                ostream.flush();
+            } finally {
+                http2Output.unlock();
+            }
+        }
+
+        /**
+         * Reads the body of the given request, if it has one, through the parser which read its head. The body is
+         * decoded while it arrives; if the client waits for "100 Continue", it is sent first.
+         *
+         * @param parser  the parser which read the head of the request.
+         * @param request the request.
+         * @return the body, or null if the request has none.
+         * @throws IOException          if an error occurred while reading or the client is gone.
+         * @throws HttpRequestException if the body is malformed or too large.
+         */
+        private RequestBody readBody(HttpRequestParser parser, HttpRequest request) throws IOException {
+            RequestBody body = openBody(request);
+            if (body == null) {
+                return null;
+            }
+            try {
+                input.expectBody();
+                if (expectsContinue(request) && parser.buffered() == 0) {
+                    ostream.write(CONTINUE);
+                    ostream.flush();
+                }
+                parser.transferTo(body);
+                while (!body.isComplete()) {
+                    if (parser.read(istream) == -1) {
+                        throw new EOFException("The client closed the connection before the body was received.");
+                    }
+                    parser.transferTo(body);
+                }
+                return body;
+            } catch (IOException | RuntimeException e) {
+                body.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Deletes the temporary files of the body of the current request.
+         */
+        private void releaseBody() {
+            if (requestBody != null) {
+                requestBody.delete();
+                requestBody = null;
+            }
+        }
+
+        /**
+         * Shuts the output down and reads what the client is still sending for a short time, so that the
+         * error response is not lost to a connection reset when the socket is closed with unread data.
+         *
+         * @throws IOException if an error occurred while reading.
+         */
+        private void discardInput() throws IOException {
+            input.expectNothing();
+            csocket.shutdownOutput();
+            csocket.setSoTimeout(LINGER_MILLIS);
+            byte[] discard = new byte[4096];
+            long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+            while (istream.read(discard) != -1 && System.currentTimeMillis() < deadline) {
+                // the rest of the rejected request is ignored
+            }
+        }
+
+        /**
+         * Clears the state left over from the previous request on this connection.
+         */
+        private void resetRequestState() {
+            params.clear();
+            tempParams.clear();
+            permParams = null;
+            outputCookies.clear();
+            SID = null;
+            context = null;
+            keepAlive = false;
+            request = null;
+            gzipAccepted = false;
+            fileBytes = 0;
+            routeLabel = "none";
+            errorStatus = 0;
+            aborted = false;
+            pendingWork = null;
+            requestBody = null;
+        }
+
+        /**
+         * Releases the context of the completed request. The context and the maps it holds are reset for the
+         * next request, unless a worker may still be using them or request contexts are not reused at all; then
+         * new maps are created and every later use of the released context fails.
+         *
+         * @param reusable flag indicating whether nothing uses the context any more.
+         */
+        private void releaseContext(boolean reusable) {
+            if (context == null) {
+                return;
+            }
+            context.release();
+            if (reusable && !poolDebug) {
+                spareContext = context;
+            } else {
+                spareContext = null;
+                params = new HashMap<>();
+                tempParams = new HashMap<>();
+                outputCookies = new ArrayList<>();
+            }
+            context = null;
+        }
+
+        /**
+         * Processes one request which was already read by the non-blocking transport. If an asynchronous worker
+         * is still serving the request when this method returns, {@link #pendingWork} is set and the request
+         * must be completed through {@link #completeRequest(Throwable)}.
+         *
+         * @param request      the request.
+         * @param body         the body of the request, or null if it has none.
+         * @param ostream      the stream to which the response is written.
+         * @param mayKeepAlive flag indicating whether another request may follow this one.
+         * @return true if the connection should stay open for the next request; meaningless while the
+         * request is pending.
+         * @throws Exception if an error occurred while processing client request.
+         */
+        private boolean serve(HttpRequest request, RequestBody body, OutputStream ostream, boolean mayKeepAlive)
+                throws Exception {
+            if (counter == null || counter.getOut() != ostream) {
+                counter = new CountingOutputStream(ostream);
+            }
+            this.ostream = counter;
+            this.deferFileBody = true;
+            resetRequestState();
+            this.requestBody = body;
+            boolean keep = serveRequest(request, mayKeepAlive);
+            ostream.flush();
+            return keep;
+        }
+
+        /**
+         * Processes one request from the connection and records its metrics.
+         *
+         * @param request      the request.
+         * @param mayKeepAlive flag indicating whether another request may follow this one.
+         * @return true if the connection should stay open for the next request.
+         * @throws Exception if an error occurred while processing client request.
+         */
+        private boolean serveRequest(HttpRequest request, boolean mayKeepAlive) throws Exception {
+            if (metrics != null || traceSampleRate > 0 || accessLog != null) {
+                requestStart = System.nanoTime();
+                requestWritten = counter.getCount();
+            }
+            startTrace();
+            boolean completed = false;
+            try {
+                boolean keep = handleRequest(request, mayKeepAlive);
+                completed = true;
+                return keep;
+            } finally {
+                if (!completed || pendingWork == null) {
+                    if (metrics != null || trace != null || accessLog != null) {
+                        int status = !completed ? 500 : context != null ? context.getStatusCode() : errorStatus;
+                        if (metrics != null) {
+                            recordMetrics(status);
+                        }
+                        if (trace != null) {
+                            finishTrace(status);
+                        }
+                        if (accessLog != null) {
+                            logAccess(status);
+                        }
+                    }
+                    releaseBody();
+                    releaseContext(true);
+                }
+            }
+        }
+
+        /**
+         * Decides whether the current request is timed, sampling the requests at the configured rate, and starts
+         * its trace with the time its head took.
+         */
+        private void startTrace() {
+            trace = null;
+            if (traceSampleRate > 0
+                    && (traceSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < traceSampleRate)) {
+                if (spareTrace == null) {
+                    spareTrace = new RequestTrace();
+                }
+                trace = spareTrace.reset(requestStart - headNanos);
+                trace.add(RequestTrace.Phase.PARSE, headNanos);
+                counter.setTrace(trace);
+            }
+            headNanos = 0;
+        }
+
+        /**
+         * Returns the time when a phase of the current request begins.
+         *
+         * @return the time in nanoseconds, or 0 if the request is not timed.
+         */
+        private long phaseStart() {
+            return trace == null ? 0 : System.nanoTime();
+        }
+
+        /**
+         * Adds the time elapsed since the given moment to the given phase of the current request, if it is
+         * timed.
+         *
+         * @param phase the phase.
+         * @param begin the time in nanoseconds when the phase began.
+         * @return the time in nanoseconds when the phase ended, which is when the next phase begins, or 0 if
+         * the request is not timed.
+         */
+        private long phaseEnd(RequestTrace.Phase phase, long begin) {
+            if (trace == null) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            trace.add(phase, now - begin);
+            return now;
+        }
+
+        /**
+         * Completes the trace of the current request and logs the request if it was slow.
+         *
+         * @param status the status code of the response.
+         */
+        private void finishTrace(int status) {
+            counter.setTrace(null);
+            long total = trace.elapsed();
+            if (total >= slowRequestNanos) {
+                StringBuilder sb = new StringBuilder(192);
+                sb.append(Instant.now()).append(" slow request ");
+                if (request != null) {
+                    sb.append(request.getMethod()).append(' ').append(request.getTarget()).append(' ');
+                }
+                sb.append("route=").append(routeLabel).append(" status=").append(status).append(" total=");
+                RequestTrace.appendMillis(sb, total).append("ms");
+                slowLog.log(trace.appendPhases(sb).toString());
+            }
+            trace = null;
+        }
+
+        /**
+         * Logs the current request to the access log, unless it is a request of the warm-up.
+         *
+         * @param status the status code of the response.
+         */
+        private void logAccess(int status) {
+            if (request != null && !warmingUp) {
+                accessLog.log(clientAddress, request, status, counter.getCount() - requestWritten + fileBytes,
+                        (System.nanoTime() - requestStart) / 1000);
+            }
+        }
+
+        /**
+         * Records the metrics of the current request.
+         *
+         * @param status the status code of the response.
+         */
+        private void recordMetrics(int status) {
+            metrics.record(routeLabel, status, (System.nanoTime() - requestStart) / 1000,
+                    counter.getCount() - requestWritten + fileBytes);
+        }
+
+        /**
+         * Waits until the asynchronous worker serving the current request is done and completes the request.
+         *
+         * @return true if the connection should stay open for the next request.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private boolean awaitRequest() throws InterruptedException {
+            Throwable failure = null;
+            try {
+                pendingWork.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (CancellationException e) {
+                failure = e;
+            }
+            return completeRequest(failure);
+        }
+
+        /**
+         * Completes the request which was served by an asynchronous worker. If the worker did not complete in
+         * time, "504 Gateway Timeout" is sent; if it failed, "500 Internal Server Error" is sent; if it was
+         * cancelled because the client is gone, the connection is closed and the request is recorded with the
+         * status 499 (client closed request). An error which can not be reported
+         * because the response is already started, or which occurs while completing the response, aborts the
+         * response and closes the connection as well.
+         *
+         * @param failure the exception with which the work completed, or null if it completed normally.
+         * @return true if the connection should stay open for the next request.
+         */
+        private boolean completeRequest(Throwable failure) {
+            pendingWork = null;
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            int status = 500;
+            try {
+                if (failure == null) {
+                    status = context.getStatusCode();
+                } else if (failure instanceof CancellationException) {
+                    status = 499;
+                    abortResponse();
+                } else if (failure instanceof TimeoutException) {
+                    status = 504;
+                    sendError(504, "Gateway Timeout");
+                } else {
+                    failure.printStackTrace();
+                    sendError(500, "Internal Server Error");
+                }
+                context.finish();
+                return context.isKeepAlive();
+            } catch (IOException e) {
+                return false;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                abortResponse();
+                return false;
+            } finally {
+                if (metrics != null) {
+                    recordMetrics(status);
+                }
+                if (trace != null) {
+                    finishTrace(status);
+                }
+                if (accessLog != null) {
+                    logAccess(status);
+                }
+                releaseBody();
+                releaseContext(failure == null);
+            }
+        }
+
+        /**
+         * Processes one request from the connection. A worker or a script which fails is answered with
+         * "500 Internal Server Error", or its response is aborted if it was already started.
+         *
+         * @param request      the request.
+         * @param mayKeepAlive flag indicating whether another request may follow this one.
+         * @return true if the connection should stay open for the next request.
+         * @throws Exception if an error occurred while processing client request.
+         */
+        private boolean handleRequest(HttpRequest request, boolean mayKeepAlive) throws Exception {
+            this.request = request;
+
+            method = request.getMethod().toUpperCase();
+            if (!method.equals("GET") && !method.equals("POST")) {
+                sendError(405, "Method Not Allowed");
+                return false;
+            }
+
+            version = request.getVersion().toUpperCase();
+            if (!version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")
+                    && !(http2Stream && version.equals("HTTP/2.0"))) {
+                sendError(505, "HTTP Version Not Supported");
+                return false;
+            }
+
+            String connection = request.getHeader("connection");
+            connection = connection == null ? "" : connection.toLowerCase();
+            if (http2Stream) {
+                keepAlive = true;
+            } else if (version.equals("HTTP/1.1")) {
+                keepAlive = mayKeepAlive && !connection.contains("close");
+            } else {
+                keepAlive = mayKeepAlive && connection.contains("keep-alive");
+            }
+
+            gzipAccepted = compression && acceptsGzip(request.getHeader("accept-encoding"));
+
+            String requestedPath = request.getTarget();
+
+            String hostStr = request.getHeader("host");
+            if (hostStr != null) {
+                if (hostStr.contains(":")) {
+                    this.host = hostStr.substring(0, hostStr.indexOf(":"));
+                } else {
+                    this.host = hostStr;
+                }
+            } else {
+                this.host = domainName;
+            }
+
+            String path;
+            String paramString = null;
+
+            long begin = phaseStart();
+            checkSession(request.getHeader("cookie"));
+            phaseEnd(RequestTrace.Phase.SESSION, begin);
+
+            int query = requestedPath.indexOf('?');
+            if (query < 0) {
+                path = requestedPath;
+            } else {
+                path = requestedPath.substring(0, query);
+                paramString = requestedPath.substring(query + 1);
+            }
+            if (paramString != null) {
+                parseParameters(paramString);
+            }
+            if (requestBody != null) {
+                params.putAll(requestBody.getParameters());
+            }
+
+            try {
+                internalDispatchRequest(path, true);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(500, "Internal Server Error");
+            }
+            if (context == null || pendingWork != null) {
+                return false;
+            }
+            context.finish();
+            return context.isKeepAlive();
+        }
+
+        /**
+         * Checks whether the given "Accept-Encoding" header value accepts gzip.
+         *
+         * @param acceptEncoding the header value, or null.
+         * @return true if gzip is accepted.
+         */
+        private boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim();
+                if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                    continue;
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    try {
+                        if (parameter.startsWith("q=") && Double.parseDouble(parameter.substring(2)) == 0) {
+                            return false;
+                        }
+                    } catch (NumberFormatException ignorable) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Checks if there is a valid cookie in the request and if it does not exist
+         * , it creates a new session and otherwise restores the current.
+         *
+         * @param cookies the value of the "Cookie" header, or null.
+         */
+        private void checkSession(String cookies) {
+            String sidCandidate = null;
+
+            if (cookies != null && cookies.equals(lastCookies)) {
+                sidCandidate = lastSidCandidate;
+            } else if (cookies != null) {
+                for (String keyValue : cookies.split(";")) {
+                    int eq = keyValue.indexOf('=');
+                    if (eq > 0 && keyValue.substring(0, eq).trim().equals("sid")) {
+                        sidCandidate = keyValue.substring(eq + 1).trim();
+                        if (sidCandidate.length() >= 2 && sidCandidate.startsWith("\"")
+                                && sidCandidate.endsWith("\"")) {
+                            sidCandidate = sidCandidate.substring(1, sidCandidate.length() - 1);
+                        }
+                        break;
+                    }
+                }
+                lastCookies = cookies;
+                lastSidCandidate = sidCandidate;
+            }
+            if (sidCandidate == null) {
+                createSession();
+
+            } else {
+                SessionStore.Session session = sessionStore.get(sidCandidate, host);
+                if (session == null) {
+                    createSession();
+                    return;
+                }
+                permParams = session.getMap();
+                SID = sidCandidate;
+            }
+        }
+
+        /**
+         * Creates a new session.
          */
-        private String host;
+        private void createSession() {
+            SessionStore.Session session = sessionStore.create(host);
+            this.SID = session.getSid();
+
+            RequestContext.RCCookie cookie = new RequestContext.RCCookie("sid", this.SID,
+                    null, host, "/", true);
+            outputCookies.add(cookie);
+            permParams = session.getMap();
+        }
 
         /**
-         * The map of parameters.
+         * Parses the query string.
+         *
+         * @param paramString the query string.
          */
-        private Map<String, String> params = new HashMap<>();
+        private void parseParameters(String paramString) {
+            String[] keyValues = paramString.split("&");
+            for (String keyValue : keyValues) {
+                if (keyValue.endsWith("=")) {
+                    params.put(keyValue.substring(0, keyValue.indexOf("=")), "");
+                    continue;
+                }
+                String[] parameters = keyValue.split("=");
+                if (parameters.length == 1) {
+                    params.put(parameters[0], null);
+                } else if (parameters.length == 2) {
+                    params.put(parameters[0], parameters[1]);
+                }
+            }
+        }
 
         /**
-         * The map of temporary parameters.
+         * Sends a response to the client that a certain error has occurred. Once the request context exists
+         * the error is sent through it, replacing the body written so far, so the connection may stay open; if
+         * the response has already been started, the error can not be reported and the response is aborted
+         * instead, which closes the connection.
+         *
+         * @param statusCode the status code.
+         * @param statusText the status text.
+         * @throws IOException if an error occurred while writing response.
          */
-        private Map<String, String> tempParams = new HashMap<>();
+        private void sendError(
+                int statusCode, String statusText) throws IOException {
+            if (context != null) {
+                if (context.isHeaderGenerated()) {
+                    abortResponse();
+                    return;
+                }
+                context.discardBody();
+                context.setStatusCode(statusCode);
+                context.setStatusText(statusText);
+                context.setMimeType("text/plain");
+                context.setContentLength(0);
+                context.finish();
+                return;
+            }
+            errorStatus = statusCode;
+            ostream.write(errorResponse(statusCode, statusText));
+            ostream.flush();
+        }
 
         /**
-         * The map of permanent parameters.
+         * Aborts the response of the current request, so that the connection is closed after it, or its stream
+         * reset on an HTTP/2 connection, and the client can tell that it is incomplete.
+         */
+        private void abortResponse() {
+            aborted = true;
+            if (context != null) {
+                context.abort();
+            }
+        }
+
+        @Override
+        public void dispatchRequest(String urlPath) throws Exception {
+            internalDispatchRequest(urlPath, false);
+        }
+
+        /**
+         * The method processes client requests(represents "the heart" of our server).
+         *
+         * @param urlPath    the url path.
+         * @param directCall flag indicating whether this is a direct call.
+         * @throws Exception if an error occurred while processing client request.
+         */
+        private void internalDispatchRequest(String urlPath, boolean directCall)
+                throws Exception {
+
+            if (context == null) {
+                if (spareContext != null) {
+                    context = spareContext;
+                    spareContext = null;
+                    context.reset(ostream, params, permParams, outputCookies, tempParams, this);
+                } else {
+                    context = new RequestContext(ostream, params, permParams, outputCookies, tempParams, this);
+                }
+                context.setKeepAlive(keepAlive);
+                context.setChunkingAllowed(version.equals("HTTP/1.1"));
+                context.setGzipAllowed(gzipAccepted);
+                context.setCompressionThreshold(compressionMinSize);
+                context.setBufferSize(responseBufferSize);
+                context.setRequestBody(requestBody);
+                if (serverTiming) {
+                    context.setServerTiming(trace);
+                }
+            }
+
+            RouteTrie.Match<Route> match = routes.find(urlPath);
+            if (directCall) {
+                routeLabel = match != null ? match.getValue().pattern
+                        : urlPath.endsWith(".smscr") ? "script" : "static";
+            }
+            if (match != null) {
+                Route route = match.getValue();
+                if ((route.hidden && directCall) || (route.local && !isLoopback(clientAddress))) {
+                    sendError(404, "File not found.");
+                    return;
+                }
+                if (route.kind == Route.Kind.EXTENSION || route.kind == Route.Kind.WORKER) {
+                    // like before the trie, an extension is named by the last segment of the path
+                    String remainder = match.getRemainder();
+                    IWebWorker worker = route.kind == Route.Kind.WORKER
+                            ? route.worker : workerRegistry.get(remainder.substring(remainder.lastIndexOf('/') + 1));
+                    if (worker == null || (worker instanceof UploadWorker && !uploads)) {
+                        sendError(404, "File not found");
+                        return;
+                    }
+                    if (route.limit != null && !route.limit.tryAcquire()) {
+                        context.setHeader("Retry-After", String.valueOf(retryAfter));
+                        sendError(503, "Service Unavailable");
+                        return;
+                    }
+                    Semaphore limit = route.limit;
+                    try {
+                        params.putAll(match.getParameters());
+                        long begin = phaseStart();
+                        if (!(worker instanceof IAsyncWebWorker)) {
+                            worker.processRequest(context);
+                            phaseEnd(RequestTrace.Phase.WORKER, begin);
+                            return;
+                        }
+                        CompletableFuture<Void> work = startWork((IAsyncWebWorker) worker);
+                        phaseEnd(RequestTrace.Phase.WORKER, begin);
+                        if (limit != null) {
+                            work.whenComplete((v, failure) -> route.limit.release());
+                            limit = null;
+                        }
+                        if (directCall) {
+                            pendingWork = work;
+                        } else {
+                            try {
+                                work.get();
+                            } catch (ExecutionException e) {
+                                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                            }
+                        }
+                    } finally {
+                        if (limit != null) {
+                            limit.release();
+                        }
+                    }
+                    return;
+                }
+            }
+
+            long begin = phaseStart();
+            if (notFoundCache.contains(urlPath)) {
+                sendError(404, "File not found");
+                return;
+            }
+
+            Path requestedFile;
+            if (urlPath.equals(lastUrlPath)) {
+                requestedFile = lastRequestedFile;
+            } else {
+                requestedFile = documentRoot.resolve(urlPath.substring(1));
+                lastUrlPath = urlPath;
+                lastRequestedFile = requestedFile;
+            }
+
+            if (!requestedFile.startsWith(documentRoot)) {
+                sendError(404, "File not found");
+                return;
+            }
+
+            if (urlPath.endsWith(".smscr")) {
+                if (!Files.isRegularFile(requestedFile) || !Files.isReadable(requestedFile)) {
+                    notFoundCache.add(urlPath);
+                    sendError(404, "File not found");
+                    return;
+                }
+                begin = phaseEnd(RequestTrace.Phase.FS, begin);
+                DocumentNode document = scriptCache.get(requestedFile);
+                begin = phaseEnd(RequestTrace.Phase.COMPILE, begin);
+                new SmartScriptEngine(
+                        document,
+                        context
+                ).execute();
+                phaseEnd(RequestTrace.Phase.SCRIPT, begin);
+
+            } else {
+                if (method.equals("POST")) {
+                    context.setHeader("Allow", "GET");
+                    sendError(405, "Method Not Allowed");
+                    return;
+                }
+                StaticContentCache.CachedFile file = staticCache.get(requestedFile);
+                phaseEnd(RequestTrace.Phase.FS, begin);
+                if (file == null) {
+                    notFoundCache.add(urlPath);
+                    sendError(404, "File not found");
+                    return;
+                }
+                sendStaticFile(file);
+            }
+        }
+
+        /**
+         * Starts the given asynchronous worker on the current request. If the worker does not complete at once,
+         * the returned work is owned by the server: it is completed exceptionally with a
+         * {@link TimeoutException} if the worker does not complete in time, and it is cancelled if the client
+         * disconnects, unless the worker already claimed the response.
+         *
+         * @param worker the worker.
+         * @return the work of the worker.
+         * @throws Exception if the worker failed to start.
+         */
+        private CompletableFuture<Void> startWork(IAsyncWebWorker worker) throws Exception {
+            CompletionStage<Void> stage = worker.processRequestAsync(context);
+            CompletableFuture<Void> work = stage == null
+                    ? CompletableFuture.completedFuture(null) : stage.toCompletableFuture();
+            if (work.isDone()) {
+                return work;
+            }
+            AsyncWork asyncWork = new AsyncWork(context, work);
+            if (asyncTimeout > 0) {
+                asyncWork.timeOutAfter(asyncTimeout);
+            }
+            return asyncWork;
+        }
+
+        /**
+         * Sends a static file together with its validators. If the client already has the current version of
+         * the file, only "304 Not Modified" is sent; if the client asks for ranges of the file, only those
+         * ranges are sent.
+         *
+         * @param file the file.
+         * @throws IOException if an error occurred while sending the file.
+         */
+        private void sendStaticFile(StaticContentCache.CachedFile file) throws IOException {
+            List<ByteRange> ranges = requestedRanges(file);
+            boolean gzip = ranges == null && gzipAccepted && file.getGzipContent() != null;
+            String eTag = gzip ? file.getGzipETag() : file.getETag();
+            if (file != lastFile) {
+                lastMime = determineMime(file.getPath().getFileName().toString());
+                lastFile = file;
+            }
+            String mime = lastMime;
+            context.setMimeType(mime);
+            context.setHeader("ETag", eTag);
+            context.setHeader("Last-Modified", file.getLastModifiedDate());
+            context.setHeader("Cache-Control", staticCacheControl);
+            context.setHeader("Accept-Ranges", "bytes");
+            if (file.getGzipContent() != null) {
+                context.setHeader("Vary", "Accept-Encoding");
+            }
+            if (isNotModified(file, eTag)) {
+                context.setStatusCode(304);
+                context.setStatusText("Not Modified");
+                return;
+            }
+            if (ranges != null) {
+                sendRanges(file, mime, ranges);
+                return;
+            }
+            context.setStatusCode(200);
+            if (gzip) {
+                context.setHeader("Content-Encoding", "gzip");
+                context.setContentLength(file.getGzipContent().length);
+                context.write(file.getGzipContent());
+            } else if (file.getContent() != null) {
+                context.setContentLength(file.getLength());
+                context.write(file.getContent());
+            } else {
+                sendFile(file.getPath());
+            }
+        }
+
+        /**
+         * Returns the ranges of the file which the client asks for. The "Range" header is ignored if it is
+         * invalid, or if the "If-Range" header names a different version of the file than the current one.
+         *
+         * @param file the requested file.
+         * @return the satisfiable ranges (an empty list if none of them is satisfiable), or null if the whole
+         * file should be sent.
+         */
+        private List<ByteRange> requestedRanges(StaticContentCache.CachedFile file) {
+            String range = request.getHeader("range");
+            if (range == null) {
+                return null;
+            }
+            String ifRange = request.getHeader("if-range");
+            if (ifRange != null) {
+                ifRange = ifRange.trim();
+                if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                    if (!ifRange.equals(file.getETag())) {
+                        return null;
+                    }
+                } else {
+                    try {
+                        long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                .toEpochSecond();
+                        if (file.getLastModified() / 1000 != date) {
+                            return null;
+                        }
+                    } catch (DateTimeParseException ignorable) {
+                        return null;
+                    }
+                }
+            }
+            return ByteRange.parse(range, file.getLength());
+        }
+
+        /**
+         * Sends the given ranges of a file. A single range is sent as the body of "206 Partial Content"; several
+         * ranges are sent as a "multipart/byteranges" body. If none of the ranges is satisfiable,
+         * "416 Range Not Satisfiable" is sent.
+         *
+         * @param file   the file.
+         * @param mime   the mime type of the file.
+         * @param ranges the satisfiable ranges.
+         * @throws IOException if an error occurred while sending the file.
+         */
+        private void sendRanges(StaticContentCache.CachedFile file, String mime, List<ByteRange> ranges)
+                throws IOException {
+            long length = file.getLength();
+            if (ranges.isEmpty()) {
+                context.setStatusCode(416);
+                context.setStatusText("Range Not Satisfiable");
+                context.setHeader("Content-Range", "bytes */" + length);
+                context.setMimeType("text/plain");
+                context.setContentLength(0);
+                return;
+            }
+            context.setStatusCode(206);
+            context.setStatusText("Partial Content");
+            byte[] content = file.getContent();
+
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                context.setHeader("Content-Range", range.toContentRange(length));
+                context.setContentLength(range.getLength());
+                if (content != null) {
+                    context.write(content, (int) range.getStart(), (int) range.getLength());
+                } else {
+                    FileChannel fc = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+                    sendRegion(new FileRegion(fc, range.getStart(), range.getLength()));
+                }
+                return;
+            }
+
+            String boundary = "SmartHttpServer" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            byte[][] partHeaders = new byte[ranges.size()][];
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            long contentLength = closing.length;
+            for (int i = 0; i < partHeaders.length; i++) {
+                ByteRange range = ranges.get(i);
+                partHeaders[i] = ("\r\n--" + boundary + "\r\n" +
+                        "Content-Type: " + mime + "\r\n" +
+                        "Content-Range: " + range.toContentRange(length) + "\r\n" +
+                        "\r\n").getBytes(StandardCharsets.US_ASCII);
+                contentLength += partHeaders[i].length + range.getLength();
+            }
+            context.setMimeType("multipart/byteranges; boundary=" + boundary);
+            context.setContentLength(contentLength);
+
+            if (content != null) {
+                for (int i = 0; i < partHeaders.length; i++) {
+                    ByteRange range = ranges.get(i);
+                    context.write(partHeaders[i]);
+                    context.write(content, (int) range.getStart(), (int) range.getLength());
+                }
+                context.write(closing);
+                return;
+            }
+            FileChannel fc = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+            FileRegion first = new FileRegion(fc, ranges.get(0).getStart(), ranges.get(0).getLength(),
+                    partHeaders[0]);
+            FileRegion last = first;
+            for (int i = 1; i < partHeaders.length; i++) {
+                ByteRange range = ranges.get(i);
+                last = last.setNext(new FileRegion(fc, range.getStart(), range.getLength(), partHeaders[i]));
+            }
+            last.setNext(new FileRegion(fc, 0, 0, closing));
+            sendRegion(first);
+        }
+
+        /**
+         * Checks the conditional headers of the request. "If-None-Match" takes precedence over
+         * "If-Modified-Since".
+         *
+         * @param file the requested file.
+         * @param eTag the entity tag of the variant which would be sent.
+         * @return true if the client already has the current version of the file.
+         */
+        private boolean isNotModified(StaticContentCache.CachedFile file, String eTag) {
+            String ifNoneMatch = request.getHeader("if-none-match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.startsWith("W/")) {
+                        tag = tag.substring(2);
+                    }
+                    if (tag.equals("*") || tag.equals(eTag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.getHeader("if-modified-since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toEpochSecond();
+                    return file.getLastModified() / 1000 <= since;
+                } catch (DateTimeParseException ignorable) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sends the given file as the body of the response.
+         *
+         * @param file the file.
+         * @throws IOException if an error occurred while sending the file.
+         */
+        private void sendFile(Path file) throws IOException {
+            FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+            sendRegion(new FileRegion(fc, 0, fc.size()));
+        }
+
+        /**
+         * Sends the given file region as the body of the response. The header is written once and the body is
+         * then transferred from the file straight to the socket. Without a socket channel the region is copied
+         * to the output stream, unless the transport sends the body itself. The region is closed once it is
+         * sent.
+         *
+         * @param region the file region.
+         * @throws IOException if an error occurred while sending the region.
+         */
+        private void sendRegion(FileRegion region) throws IOException {
+            boolean deferred = false;
+            try {
+                context.setContentLength(region.remaining());
+                context.commitHeader();
+                fileBytes += region.remaining();
+                SocketChannel channel = csocket == null ? null : csocket.getChannel();
+                if (deferFileBody) {
+                    fileBody = region;
+                    deferred = true;
+                } else if (channel != null) {
+                    long begin = phaseStart();
+                    output.watch(region.remaining());
+                    try {
+                        region.transferTo(channel);
+                    } finally {
+                        output.unwatch();
+                    }
+                    phaseEnd(RequestTrace.Phase.WRITE, begin);
+                } else {
+                    region.copyTo(ostream);
+                }
+            } finally {
+                if (!deferred) {
+                    region.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Represents a stream which counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * The number of written bytes.
+         */
+        private long count;
+
+        /**
+         * The trace to whose write phase the writes are added, or null.
+         */
+        private RequestTrace trace;
+
+        /**
+         * Creates an instance of {@link CountingOutputStream}.
+         *
+         * @param out the underlying output stream.
+         */
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (trace == null) {
+                out.write(b, off, len);
+            } else {
+                long begin = System.nanoTime();
+                out.write(b, off, len);
+                trace.end(RequestTrace.Phase.WRITE, begin);
+            }
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (trace == null) {
+                out.flush();
+            } else {
+                long begin = System.nanoTime();
+                out.flush();
+                trace.end(RequestTrace.Phase.WRITE, begin);
+            }
+        }
+
+        /**
+         * Sets the trace to whose write phase the writes are added.
+         *
+         * @param trace the trace, or null.
+         */
+        public void setTrace(RequestTrace trace) {
+            this.trace = trace;
+        }
+
+        /**
+         * Returns the number of written bytes.
+         *
+         * @return the number of written bytes.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the underlying output stream.
+         *
+         * @return the underlying output stream.
+         */
+        public OutputStream getOut() {
+            return out;
+        }
+    }
+
+    /**
+     * Represents the input of a client socket which enforces the read timeouts of the current phase of the
+     * connection: the keep-alive timeout while it waits for a request, the header timeout from the first byte of
+     * the request head and the body timeout while the body is read. The head and body timeouts are extended by
+     * the bytes received so far, see {@link #deadline(long, long, long)}, so a client which keeps sending slowly
+     * does not keep its worker any longer than one which sends nothing.
+     */
+    private class DeadlineInputStream extends FilterInputStream {
+
+        /**
+         * The client socket.
+         */
+        private final Socket socket;
+
+        /**
+         * Whether the connection waits for the first byte of a request.
+         */
+        private boolean idle;
+
+        /**
+         * The timeout of the current phase in milliseconds, or 0 if the reads are not limited by this stream.
+         */
+        private long timeout;
+
+        /**
+         * The time in milliseconds when the current phase started.
+         */
+        private long start;
+
+        /**
+         * The number of bytes received in the current phase.
          */
-        private Map<String, String> permParams = new HashMap<>();
+        private long bytes;
 
         /**
-         * The list of output cookies.
+         * Creates an instance of {@link DeadlineInputStream}.
+         *
+         * @param socket the client socket.
+         * @throws IOException if the input of the socket can not be opened.
          */
-        private List<RequestContext.RCCookie> outputCookies = new ArrayList<>();
+        public DeadlineInputStream(Socket socket) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+        }
 
         /**
-         * The session identifier(20 characters long string).
+         * Starts waiting for a request: the keep-alive timeout applies until its first byte arrives, and the
+         * header timeout from then on.
          */
-        private String SID;
+        public void expectHead() {
+            idle = true;
+            begin(keepAliveTimeout);
+        }
 
         /**
-         * The request context.
+         * Starts reading the body of a request, under the body timeout.
          */
-        private RequestContext context = null;
+        public void expectBody() {
+            idle = false;
+            begin(bodyTimeout);
+        }
 
         /**
-         * The current time in seconds.
+         * Stops limiting the reads by phase; from now on, each read may only wait for the keep-alive timeout.
+         *
+         * @throws SocketException if the socket timeout can not be set.
          */
-        private long currentTime;
+        public void expectNothing() throws SocketException {
+            idle = false;
+            timeout = 0;
+            socket.setSoTimeout(keepAliveTimeout);
+        }
 
         /**
-         * Creates an instance of {@link ClientWorker}.
+         * Starts a phase with the given timeout.
          *
-         * @param csocket the client socket.
+         * @param timeout the timeout of the phase in milliseconds.
          */
-        public ClientWorker(Socket csocket) {
-            this.csocket = csocket;
+        private void begin(long timeout) {
+            this.timeout = timeout;
+            this.start = System.currentTimeMillis();
+            this.bytes = 0;
         }
 
         @Override
-        public void run() {
-            try {
-                istream = new PushbackInputStream(csocket.getInputStream());
-                ostream = new BufferedOutputStream(csocket.getOutputStream());
-
-                List<String> request = readRequest();
-                if (request == null || request.size() == 0) {
-                    sendError(400, "Bad request");
-                    return;
-                }
-
-                List<String> headers = extractHeaders(request);
-
-                String[] firstLine = headers.isEmpty() ? null : headers.get(0).split(" ");
-                if (firstLine == null || firstLine.length != 3) {
-                    sendError(400, "Bad request");
-                    return;
-                }
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
 
-                method = firstLine[0].toUpperCase();
-                if (!method.equals("GET")) {
-                    sendError(405, "Method Not Allowed");
-                    return;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (timeout <= 0) {
+                return in.read(b, off, len);
+            }
+            long left = (idle ? start + timeout : deadline(start, timeout, bytes)) - System.currentTimeMillis();
+            if (left <= 0) {
+                throw timedOut();
+            }
+            socket.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+            int r;
+            try {
+                r = in.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                throw timedOut();
+            }
+            if (r > 0) {
+                if (idle) {
+                    idle = false;
+                    begin(headerTimeout);
                 }
+                bytes += r;
+            }
+            return r;
+        }
 
-                version = firstLine[2].toUpperCase();
-                if (!version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")) {
-                    sendError(505, "HTTP Version Not Supported");
-                    return;
-                }
+        /**
+         * Returns the exception for a read which missed the deadline of the current phase: an idle connection is
+         * simply closed, while a client in the middle of a request is answered with "408 Request Timeout".
+         *
+         * @return the exception to throw for an idle connection.
+         * @throws HttpRequestException if the connection is in the middle of a request.
+         */
+        private IOException timedOut() {
+            if (idle) {
+                return new SocketTimeoutException("The connection was idle for too long.");
+            }
+            throw new HttpRequestException(408, "Request Timeout");
+        }
+    }
 
-                String requestedPath = firstLine[1];
+    /**
+     * Represents the output of a client socket whose writes are watched by the write watchdog of the server. A
+     * write which is not done by its deadline, see {@link #deadline(long, long, long)}, closes the socket, which
+     * fails the blocked write.
+     */
+    private class DeadlineOutputStream extends FilterOutputStream {
 
-                Optional<String> host = headers.stream().filter(s -> s.toUpperCase().startsWith("HOST:")).findAny();
-                if (host.isPresent()) {
-                    String hostStr = host.get();
-                    hostStr = hostStr.substring(hostStr.indexOf(":") + 1);
-                    if (hostStr.contains(":")) {
-                        this.host = hostStr.substring(0, hostStr.indexOf(":"));
-                    } else {
-                        this.host = hostStr;
-                    }
-                } else {
-                    this.host = domainName;
-                }
+        /**
+         * The client socket.
+         */
+        private final Socket socket;
 
-                String path;
-                String paramString = null;
+        /**
+         * The time in milliseconds by which the current write must be done, or 0 if nothing is being written.
+         */
+        private volatile long deadline;
 
-                checkSession(headers);
+        /**
+         * Whether the socket was closed because a write missed its deadline.
+         */
+        private volatile boolean expired;
 
-                String[] parts = requestedPath.split("\\?");
-                if (parts.length == 1) {
-                    path = requestedPath;
-                } else {
-                    path = parts[0];
-                    paramString = parts[1];
-                }
-                if (paramString != null) {
-                    parseParameters(paramString);
-                }
+        /**
+         * Creates an instance of {@link DeadlineOutputStream}.
+         *
+         * @param socket the client socket.
+         * @throws IOException if the output of the socket can not be opened.
+         */
+        public DeadlineOutputStream(Socket socket) throws IOException {
+            super(socket.getOutputStream());
+            this.socket = socket;
+        }
 
-                internalDispatchRequest(path, true);
+        @Override
+        public void write(int b) throws IOException {
+            watch(1);
+            try {
+                out.write(b);
+            } finally {
+                unwatch();
+            }
+        }
 
-            } catch (Exception ex) {
-                ex.printStackTrace();
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            watch(len);
+            try {
+                out.write(b, off, len);
             } finally {
-                try {
-                    csocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                unwatch();
             }
         }
 
+        @Override
+        public void flush() throws IOException {
+            watch(0);
+            try {
+                out.flush();
+            } finally {
+                unwatch();
+            }
+        }
 
         /**
-         * Checks if there is a valid cookie in the request and if it does not exist
-         * , it creates a new session and otherwise restores the current.
+         * Starts watching a write of the given number of bytes, which may also be written past this stream.
          *
-         * @param headers the list of headers.
+         * @param bytes the number of bytes to write.
          */
-        private synchronized void checkSession(List<String> headers) {
-            String sidCandidate = null;
-
-            for (String header : headers) {
-                if (header.startsWith("Cookie: ")) {
-                    String temp = header.substring(header.indexOf(":") + 1).trim();
-                    String items[] = temp.split(";");
-                    for (String keyValue : items) {
-                        String[] parts = keyValue.split("=");
-                        if (parts[0].equals("sid")) {
-                            sidCandidate = parts[1].substring(1, parts[1].length() - 1);
-                            break;
-                        }
-                    }
-                }
-            }
-            if (sidCandidate == null) {
-                createSession();
-
-            } else {
-                SessionMapEntry entry = sessions.get(sidCandidate);
-                if (entry == null || !entry.host.equals(this.host)) {
-                    createSession();
-                    return;
-                } else if (entry.validUntil < getCurrentTime()) {
-                    sessions.remove(sidCandidate);
-                    createSession();
-                    return;
-                } else {
-                    currentTime = getCurrentTime();
-                    entry.validUntil = currentTime + sessionTimeout;
-                }
-                permParams = entry.map;
-                SID = sidCandidate;
-            }
+        public void watch(long bytes) {
+            deadline = deadline(System.currentTimeMillis(), writeTimeout, bytes);
         }
 
         /**
-         * Creates a new session.
+         * Stops watching the current write.
          */
-        private synchronized void createSession() {
-            this.SID = generateSessionId();
-            SessionMapEntry entry = new SessionMapEntry(SID, host, getCurrentTime() + sessionTimeout,
-                    new ConcurrentHashMap<>());
-
-            sessions.put(SID, entry);
-
-            RequestContext.RCCookie cookie = new RequestContext.RCCookie("sid", this.SID,
-                    null, host, "/", true);
-            outputCookies.add(cookie);
-            permParams = entry.map;
+        public void unwatch() {
+            deadline = 0;
         }
 
         /**
-         * Generates session ID as a 20-character long string of capital letters.
+         * Closes the socket if the current write missed its deadline.
          *
-         * @return the generated session id.
+         * @param now the current time in milliseconds.
          */
-        private synchronized String generateSessionId() {
-            String alphabet = "QWERTZUIOPLKJHGFDSAYXCVBNM";
-            StringBuilder sid = new StringBuilder();
-            for (int i = 0; i < 20; i++) {
-                sid.append(alphabet.charAt(sessionRandom.nextInt(alphabet.length())));
+        public void check(long now) {
+            long deadline = this.deadline;
+            if (deadline != 0 && now > deadline) {
+                expired = true;
+                try {
+                    socket.close();
+                } catch (IOException ignorable) {
+                    // the write fails either way
+                }
             }
-            return sid.toString();
         }
 
         /**
-         * Determines the mime type from the given name.
-         * If it is not possible to determine the type of method returns "application/octet-stream".
+         * Returns whether the socket was closed because a write missed its deadline.
          *
-         * @param name the name of type content.
-         * @return the mime type from the given name.
+         * @return true if a write missed its deadline.
          */
-        private String determineMime(String name) {
-            name = name.substring(name.lastIndexOf(".") + 1);
-            return mimeTypes.get(name) != null ? mimeTypes.get(name) : "application/octet-stream";
+        public boolean isExpired() {
+            return expired;
         }
+    }
+
+    /**
+     * Represents a buffer of response bytes which is reused for the responses of one connection. Its bytes are
+     * written to the connection straight from the buffer, without copying them.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
 
         /**
-         * Parses the query string.
-         *
-         * @param paramString the query string.
+         * The capacity above which the buffer is not kept for the next response.
          */
-        private void parseParameters(String paramString) {
-            String[] keyValues = paramString.split("&");
-            for (String keyValue : keyValues) {
-                if (keyValue.endsWith("=")) {
-                    params.put(keyValue.substring(0, keyValue.indexOf("=")), "");
-                    continue;
-                }
-                String[] parameters = keyValue.split("=");
-                if (parameters.length == 1) {
-                    params.put(parameters[0], null);
-                } else if (parameters.length == 2) {
-                    params.put(parameters[0], parameters[1]);
-                }
-            }
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        /**
+         * Creates an instance of {@link ResponseBuffer}.
+         */
+        public ResponseBuffer() {
+            super(1024);
         }
 
         /**
-         * Reads the request from the client and returns it as a list of strings.
-         *
-         * @return the request from the client.
-         * @throws IOException if an error occurred while reading client request.
+         * Empties the buffer for the next response, releasing its memory if a large response made it grow.
          */
-        private List<String> readRequest() throws IOException {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int state = 0;
-            l:
-            while (true) {
-                int b = istream.read();
-                if (b == -1) return null;
-                if (b != 13) {
-                    bos.write(b);
-                }
-                switch (state) {
-                    case 0:
-                        if (b == 13) {
-                            state = 1;
-                        } else if (b == 10) {
-                            state = 4;
-                        }
-                        break;
-                    case 1:
-                        if (b == 10) {
-                            state = 2;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                    case 2:
-                        if (b == 13) {
-                            state = 3;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                    case 3:
-                        if (b == 10) {
-                            break l;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                    case 4:
-                        if (b == 10) {
-                            break l;
-                        } else {
-                            state = 0;
-                        }
-                        break;
-                }
+        public void recycle() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[1024];
             }
-            String[] rows = new String(bos.toByteArray(), StandardCharsets.US_ASCII).split("\\n");
-            return new ArrayList<>(Arrays.asList(rows));
+            count = 0;
         }
 
         /**
-         * Sends a response to the client that a certain error has occurred.
+         * Returns a view of the bytes in the buffer. The view is valid until the buffer is recycled.
          *
-         * @param statusCode the status code.
-         * @param statusText the status text.
-         * @throws IOException if an error occurred while writing response.
+         * @return the view.
          */
-        private void sendError(
-                int statusCode, String statusText) throws IOException {
-            ostream.write(
-                    ("HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
-                            "Server: simple java server\r\n" +
-                            "Content-Type: text/plain;charset=UTF-8\r\n" +
-                            "Content-Length: 0\r\n" +
-                            "Connection: close\r\n" +
-                            "\r\n").getBytes(StandardCharsets.US_ASCII)
-            );
-            ostream.flush();
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
         }
+    }
+
+    /**
+     * Represents the work of an asynchronous worker as seen by the server. It completes together with the stage
+     * of the worker, but it can also be given up on: when the worker does not complete in time or its client
+     * disconnects, the server claims the response through {@link RequestContext#claimResponse()} and, if the
+     * worker did not claim it first, completes this work and the stage of the worker exceptionally. The worker
+     * learns about it through its stage, and the server alone writes what is left of the response.
+     */
+    private static class AsyncWork extends CompletableFuture<Void> {
+
+        /**
+         * The context of the request.
+         */
+        private final RequestContext context;
+
+        /**
+         * The stage returned by the worker.
+         */
+        private final CompletableFuture<Void> stage;
 
         /**
-         * Extracts headers from one client request.
+         * Creates an instance of {@link AsyncWork}.
          *
-         * @param request client request.
-         * @return the extracted headers as a list of strings
+         * @param context the context of the request.
+         * @param stage   the stage returned by the worker.
          */
-        private List<String> extractHeaders(List<String> request) {
-            List<String> headers = new ArrayList<>();
-            StringBuilder currentLine = new StringBuilder();
-            for (String s : request) {
-                if (s.isEmpty()) break;
-                char c = s.charAt(0);
-                if (c == 9 || c == 32) {
-                    currentLine.append(s);
+        public AsyncWork(RequestContext context, CompletableFuture<Void> stage) {
+            this.context = context;
+            this.stage = stage;
+            stage.whenComplete((v, failure) -> {
+                if (failure == null) {
+                    complete(null);
                 } else {
-                    if (currentLine.length() > 0) {
-                        headers.add(currentLine.toString());
-                    }
-                    currentLine.delete(0, currentLine.toString().length());
-                    currentLine.append(s);
+                    completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure);
                 }
+            });
+        }
+
+        /**
+         * Gives up on the worker, unless it is done or it claimed the response.
+         *
+         * @param reason the exception with which the work and the stage of the worker are completed.
+         * @return true if the server took over the response.
+         */
+        public boolean abandon(Throwable reason) {
+            if (isDone() || !context.claimResponse()) {
+                return false;
             }
-            if (currentLine.length() > 0) {
-                headers.add(currentLine.toString());
-            }
-            return headers;
+            stage.completeExceptionally(reason);
+            completeExceptionally(reason);
+            return true;
         }
 
+        /**
+         * Gives up on the worker because its client disconnected, unless it is done or it claimed the response.
+         *
+         * @param mayInterruptIfRunning ignored, the worker is never interrupted.
+         * @return true if the work was cancelled.
+         */
         @Override
-        public void dispatchRequest(String urlPath) throws Exception {
-            internalDispatchRequest(urlPath, false);
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return abandon(new CancellationException());
         }
 
         /**
-         * The method processes client requests(represents "the heart" of our server).
+         * Gives up on the worker with a {@link TimeoutException} if it does not complete in the given time.
          *
-         * @param urlPath    the url path.
-         * @param directCall flag indicating whether this is a direct call.
-         * @throws Exception if an error occurred while processing client request.
+         * @param millis the time in milliseconds.
          */
-        private void internalDispatchRequest(String urlPath, boolean directCall)
-                throws Exception {
-
-            if (context == null) {
-                context = new RequestContext(ostream, params, permParams,
-                        outputCookies, tempParams, this);
-            }
-
-            if (urlPath.startsWith("/private") && directCall) {
-                sendError(404, "File not found.");
-                return;
-            }
-
-
-            if (urlPath.startsWith("/ext/")) {
-                String worker = urlPath.substring(urlPath.lastIndexOf("/") + 1);
-                try {
-                    getIWebWorker("hr.fer.zemris.java.webserver.workers." + worker).processRequest(context);
-                } catch (Exception e) {
-                    sendError(404, "File not found");
+        public void timeOutAfter(long millis) {
+            CompletableFuture<Void> timer = new CompletableFuture<>();
+            timer.orTimeout(millis, TimeUnit.MILLISECONDS).whenComplete((v, failure) -> {
+                if (failure != null) {
+                    abandon(failure);
                 }
-                ostream.flush();
-                return;
-
-            }
-
-            if (workersMap.containsKey(urlPath)) {
-                workersMap.get(urlPath).processRequest(context);
-                ostream.flush();
-                return;
-            }
+            });
+            whenComplete((v, failure) -> timer.complete(null));
+        }
+    }
 
-            Path requestedFile = documentRoot.resolve(urlPath.substring(1));
+    /**
+     * Represents the target of a route of the server.
+     */
+    private static class Route {
 
-            if (!requestedFile.startsWith(documentRoot)) {
-                sendError(404, "File not found");
-                return;
-            }
+        /**
+         * The kinds of routes.
+         */
+        private enum Kind {
+            /**
+             * The route is served by a configured worker.
+             */
+            WORKER,
+            /**
+             * The route is served by the worker named by the rest of the path.
+             */
+            EXTENSION,
+            /**
+             * The route is served from the document root.
+             */
+            FILES
+        }
 
-            if (!Files.isRegularFile(requestedFile) || !Files.isReadable(requestedFile)) {
-                sendError(404, "File not found");
-                return;
-            }
+        /**
+         * The pattern of the route.
+         */
+        private final String pattern;
 
-            if (urlPath.endsWith(".smscr")) {
-                String documentBody;
-                documentBody = new String(Files.readAllBytes(requestedFile), StandardCharsets.UTF_8);
-                new SmartScriptEngine(
-                        new SmartScriptParser(documentBody).getDocumentNode(),
-                        context
-                ).execute();
-                ostream.flush();
+        /**
+         * The kind of the route.
+         */
+        private final Kind kind;
 
-            } else {
-                String mimeType = determineMime(requestedFile.getFileName().toString());
-                context.setMimeType(mimeType);
-                context.setStatusCode(200);
-                if (mimeTypes.values().contains(mimeType)) {
-                    context.setContentLength(Files.size(requestedFile));
-                }
-                try (InputStream fis = Files.newInputStream(requestedFile)) {
-                    byte[] buf = new byte[1024];
-                    while (true) {
-                        int r = fis.read(buf);
-                        if (r < 1) {
-                            break;
-                        }
-                        context.write(buf, 0, r);
-                    }
-                }
-                ostream.flush();
-            }
-        }
-    }
+        /**
+         * The worker of the route, or null if the route is not served by a configured worker.
+         */
+        private final IWebWorker worker;
 
-    /**
-     * Represents an session map entry.
-     */
-    private static class SessionMapEntry {
+        /**
+         * The flag indicating whether the route can only be reached through the dispatcher.
+         */
+        private final boolean hidden;
 
         /**
-         * The session identifier.
+         * The permits of concurrent requests of the route, or null if they are not limited.
          */
-        private String sid;
+        private final Semaphore limit;
 
         /**
-         * The host.
+         * The flag indicating whether the route can only be reached from the loopback address.
          */
-        private String host;
+        private final boolean local;
 
         /**
-         * Time in seconds indicating how long the session lasts.
+         * Creates an instance of {@link Route}.
+         *
+         * @param pattern the pattern of the route.
+         * @param kind    the kind of the route.
+         * @param worker  the worker of the route, or null.
+         * @param hidden  flag indicating whether the route can only be reached through the dispatcher.
          */
-        private long validUntil;
+        public Route(String pattern, Kind kind, IWebWorker worker, boolean hidden) {
+            this(pattern, kind, worker, hidden, 0);
+        }
 
         /**
-         * The map of client data.
+         * Creates an instance of {@link Route} which serves a limited number of requests at the same time.
+         * Requests over the limit are answered with "503 Service Unavailable" at once, so a slow route can not
+         * occupy all worker threads.
+         *
+         * @param pattern     the pattern of the route.
+         * @param kind        the kind of the route.
+         * @param worker      the worker of the route, or null.
+         * @param hidden      flag indicating whether the route can only be reached through the dispatcher.
+         * @param concurrency the maximum number of concurrent requests; 0 for no limit.
          */
-        private Map<String, String> map;
+        public Route(String pattern, Kind kind, IWebWorker worker, boolean hidden, int concurrency) {
+            this(pattern, kind, worker, hidden, concurrency, false);
+        }
 
         /**
-         * Creates a new instance of {@link SessionMapEntry}.
+         * Creates an instance of {@link Route} which may be reachable only from this host.
          *
-         * @param sid        the session identifier.
-         * @param host       the host.
-         * @param validUntil time in seconds indicating how long the session lasts.
-         * @param map        the client data.
+         * @param pattern     the pattern of the route.
+         * @param kind        the kind of the route.
+         * @param worker      the worker of the route, or null.
+         * @param hidden      flag indicating whether the route can only be reached through the dispatcher.
+         * @param concurrency the maximum number of concurrent requests; 0 for no limit.
+         * @param local       flag indicating whether the route can only be reached from the loopback address.
          */
-        public SessionMapEntry(String sid, String host, long validUntil, Map<String, String> map) {
-            this.sid = sid;
-            this.host = host;
-            this.validUntil = validUntil;
-            this.map = map;
+        public Route(String pattern, Kind kind, IWebWorker worker, boolean hidden, int concurrency,
+                     boolean local) {
+            this.pattern = pattern;
+            this.kind = kind;
+            this.worker = worker;
+            this.hidden = hidden;
+            this.limit = concurrency > 0 ? new Semaphore(concurrency) : null;
+            this.local = local;
+        }
+    }
+
+    /**
+     * Warms the server up and stops it without binding the socket. It is used to record the classes a warm
+     * server has loaded, e.g. into a class data sharing archive.
+     */
+    protected synchronized void warmUpOnly() {
+        threadPool = WorkerExecutors.newExecutor(executorType, workerThreads, queueDepth);
+        warmUp(warmupMillis > 0 ? warmupMillis : DEFAULT_WARMUP_MILLIS);
+        threadPool.shutdown();
+        if (accessLog != null) {
+            accessLog.close();
         }
+        sessionStore.close();
     }
 
     /**
-     * Method invoked when running the program.
+     * Method invoked when running the program. The optional argument "--warmup-only" makes the server warm
+     * itself up and exit instead of accepting connections.
      *
      * @param args command-line arguments.
      */
     public static void main(String[] args) {
-        new SmartHttpServer("server.properties").start();
+        SmartHttpServer server = new SmartHttpServer("server.properties");
+        if (Arrays.asList(args).contains("--warmup-only")) {
+            server.warmUpOnly();
+            System.exit(0);
+        }
+        server.start();
     }
 }
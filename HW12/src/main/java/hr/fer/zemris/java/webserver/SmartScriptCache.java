@@ -0,0 +1,158 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Represents a bounded cache of parsed smart scripts, keyed by the path and the last-modified time of the
+ * script. When the cache is full, the least recently used script is evicted.
+ * <p>
+ * The cached trees are shared by concurrent requests. This is safe because {@link
+ * hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine} only reads the tree and keeps all execution
+ * state (the object multistack and the temporary stacks) in its own instance.
+ * </p>
+ */
+public class SmartScriptCache {
+
+    /**
+     * The maximum number of cached scripts.
+     */
+    private final int capacity;
+
+    /**
+     * The cached scripts in access order.
+     */
+    private final Map<Path, CacheEntry> entries;
+
+    /**
+     * The lock guarding the cached scripts.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Creates an instance of {@link SmartScriptCache}.
+     *
+     * @param capacity the maximum number of cached scripts; if it is 0, every script is parsed on each request.
+     */
+    public SmartScriptCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Path, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CacheEntry> eldest) {
+                return size() > SmartScriptCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the parsed script. The script is parsed again if it is not cached or if it was modified since it
+     * was cached.
+     *
+     * @param script the path to the script.
+     * @return the root node of the parsed script.
+     * @throws IOException                if an error occurred while reading the script.
+     * @throws SmartScriptParserException if the script can not be parsed.
+     */
+    public DocumentNode get(Path script) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(script);
+        CacheEntry entry;
+        lock.lock();
+        try {
+            entry = entries.get(script);
+        } finally {
+            lock.unlock();
+        }
+        if (entry != null && entry.lastModified.equals(lastModified)) {
+            return entry.document;
+        }
+
+        String documentBody = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+        DocumentNode document = new SmartScriptParser(documentBody).getDocumentNode();
+        if (capacity > 0) {
+            lock.lock();
+            try {
+                entries.put(script, new CacheEntry(lastModified, document));
+            } finally {
+                lock.unlock();
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Parses and caches all scripts (files with the extension ".smscr") under the given directory. Scripts which
+     * can not be parsed are reported and skipped; they fail again when requested.
+     *
+     * @param root the root directory.
+     * @throws IOException if an error occurred while walking the directory.
+     */
+    public void precompile(Path root) throws IOException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.walk(root)) {
+            scripts = files.filter(p -> p.toString().endsWith(".smscr") && Files.isRegularFile(p))
+                    .collect(Collectors.toList());
+        }
+        for (Path script : scripts) {
+            try {
+                get(script);
+            } catch (SmartScriptParserException e) {
+                System.err.println("Unable to precompile " + script + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached scripts.
+     *
+     * @return the number of cached scripts.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Represents a cached script.
+     */
+    private static class CacheEntry {
+
+        /**
+         * The last-modified time of the script when it was parsed.
+         */
+        private final FileTime lastModified;
+
+        /**
+         * The root node of the parsed script.
+         */
+        private final DocumentNode document;
+
+        /**
+         * Creates an instance of {@link CacheEntry}.
+         *
+         * @param lastModified the last-modified time of the script.
+         * @param document     the root node of the parsed script.
+         */
+        public CacheEntry(FileTime lastModified, DocumentNode document) {
+            this.lastModified = lastModified;
+            this.document = document;
+        }
+    }
+}
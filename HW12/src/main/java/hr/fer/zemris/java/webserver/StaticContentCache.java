@@ -0,0 +1,379 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Represents an in-memory cache of static files, bounded by the total number of cached bytes. When the cache
+ * is full, the least recently used files are evicted. A cached file is trusted for a configured time; after
+ * that its size and last-modified time are checked again and the file is reloaded if it has changed.
+ * <p>
+ * Files larger than the maximum entry size are not cached, but are still described by a {@link CachedFile}
+ * without content, so that the validators can be sent for them as well.
+ * </p>
+ * <p>
+ * For compressible files a gzip compressed variant is created when the file is loaded, so the compression is
+ * done once per version of the file and not once per request.
+ * </p>
+ */
+public class StaticContentCache {
+
+    /**
+     * The format of dates in HTTP headers (IMF-fixdate).
+     */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * The maximum number of cached bytes.
+     */
+    private final long capacity;
+
+    /**
+     * The maximum size of a cached file.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The time in milliseconds during which a cached file is not checked for changes.
+     */
+    private final long revalidateMillis;
+
+    /**
+     * The predicate which tells which files are worth compressing.
+     */
+    private final Predicate<Path> compressible;
+
+    /**
+     * The minimum size in bytes of a compressed file.
+     */
+    private final int compressionThreshold;
+
+    /**
+     * The cached files in access order.
+     */
+    private final Map<Path, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of cached bytes.
+     */
+    private long size;
+
+    /**
+     * The lock guarding the cached files.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Creates an instance of {@link StaticContentCache}.
+     *
+     * @param capacity         the maximum number of cached bytes.
+     * @param maxFileSize      the maximum size of a cached file.
+     * @param revalidateMillis the time in milliseconds during which a cached file is not checked for changes.
+     */
+    public StaticContentCache(long capacity, long maxFileSize, long revalidateMillis) {
+        this(capacity, maxFileSize, revalidateMillis, p -> false, 0);
+    }
+
+    /**
+     * Creates an instance of {@link StaticContentCache} which also keeps gzip compressed variants.
+     *
+     * @param capacity             the maximum number of cached bytes.
+     * @param maxFileSize          the maximum size of a cached file.
+     * @param revalidateMillis     the time in milliseconds during which a cached file is not checked for changes.
+     * @param compressible         the predicate which tells which files are worth compressing.
+     * @param compressionThreshold the minimum size in bytes of a compressed file.
+     */
+    public StaticContentCache(long capacity, long maxFileSize, long revalidateMillis,
+                              Predicate<Path> compressible, int compressionThreshold) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+        this.revalidateMillis = revalidateMillis;
+        this.compressible = compressible;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns the given file, loading it into the cache if needed.
+     *
+     * @param file the path to the file.
+     * @return the file, or null if it is not a readable regular file.
+     * @throws IOException if an error occurred while reading the file.
+     */
+    public CachedFile get(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        CachedFile cached;
+        lock.lock();
+        try {
+            cached = entries.get(file);
+        } finally {
+            lock.unlock();
+        }
+        if (cached != null && now - cached.validated < revalidateMillis) {
+            return cached;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile() || !Files.isReadable(file)) {
+            if (cached != null) {
+                remove(file);
+            }
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (cached != null && cached.length == attributes.size() && cached.lastModified == lastModified) {
+            cached.validated = now;
+            return cached;
+        }
+
+        if (attributes.size() > maxFileSize) {
+            if (cached != null) {
+                remove(file);
+            }
+            return new CachedFile(file, attributes.size(), lastModified, null, now);
+        }
+        byte[] content = Files.readAllBytes(file);
+        CachedFile loaded = new CachedFile(file, content.length, lastModified, content, now);
+        if (content.length >= compressionThreshold && compressible.test(file)) {
+            loaded.gzipContent = compress(content);
+        }
+        put(loaded);
+        return loaded;
+    }
+
+    /**
+     * Compresses the given content.
+     *
+     * @param content the content.
+     * @return the compressed content, or null if compression does not make it smaller.
+     * @throws IOException if an error occurred while compressing.
+     */
+    private static byte[] compress(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos, 8192)) {
+            gzip.write(content);
+        }
+        return bos.size() < content.length ? bos.toByteArray() : null;
+    }
+
+    /**
+     * Returns the number of cached bytes.
+     *
+     * @return the number of cached bytes.
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the given file and evicts the least recently used files until the cache fits its capacity.
+     *
+     * @param file the file.
+     */
+    private void put(CachedFile file) {
+        lock.lock();
+        try {
+            CachedFile previous = entries.put(file.path, file);
+            if (previous != null) {
+                size -= previous.weight();
+            }
+            size += file.weight();
+            Iterator<CachedFile> it = entries.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                CachedFile eldest = it.next();
+                it.remove();
+                size -= eldest.weight();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given file from the cache.
+     *
+     * @param file the path to the file.
+     */
+    private void remove(Path file) {
+        lock.lock();
+        try {
+            CachedFile previous = entries.remove(file);
+            if (previous != null) {
+                size -= previous.weight();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Represents one version of a static file together with its validators.
+     */
+    public static class CachedFile {
+
+        /**
+         * The path to the file.
+         */
+        private final Path path;
+
+        /**
+         * The length of the file in bytes.
+         */
+        private final long length;
+
+        /**
+         * The last-modified time in milliseconds.
+         */
+        private final long lastModified;
+
+        /**
+         * The content of the file, or null if the file is too large to be cached.
+         */
+        private final byte[] content;
+
+        /**
+         * The gzip compressed content, or null if there is no compressed variant.
+         */
+        private byte[] gzipContent;
+
+        /**
+         * The entity tag.
+         */
+        private final String eTag;
+
+        /**
+         * The last-modified time formatted for the "Last-Modified" header.
+         */
+        private final String lastModifiedDate;
+
+        /**
+         * The time in milliseconds when the file was last checked for changes.
+         */
+        private volatile long validated;
+
+        /**
+         * Creates an instance of {@link CachedFile}.
+         *
+         * @param path         the path to the file.
+         * @param length       the length of the file in bytes.
+         * @param lastModified the last-modified time in milliseconds.
+         * @param content      the content of the file, or null.
+         * @param validated    the time in milliseconds when the file was checked.
+         */
+        public CachedFile(Path path, long length, long lastModified, byte[] content, long validated) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.validated = validated;
+            this.eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            this.lastModifiedDate = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+        }
+
+        /**
+         * Returns the path to the file.
+         *
+         * @return the path to the file.
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the length of the file in bytes.
+         *
+         * @return the length of the file in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the last-modified time in milliseconds.
+         *
+         * @return the last-modified time in milliseconds.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the content of the file, or null if the file is too large to be cached.
+         *
+         * @return the content of the file or null.
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Returns the gzip compressed content, or null if there is no compressed variant.
+         *
+         * @return the gzip compressed content or null.
+         */
+        public byte[] getGzipContent() {
+            return gzipContent;
+        }
+
+        /**
+         * Returns the entity tag.
+         *
+         * @return the entity tag.
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * Returns the entity tag of the gzip compressed variant.
+         *
+         * @return the entity tag of the gzip compressed variant.
+         */
+        public String getGzipETag() {
+            return eTag.substring(0, eTag.length() - 1) + "-gz\"";
+        }
+
+        /**
+         * Returns the last-modified time formatted for the "Last-Modified" header.
+         *
+         * @return the formatted last-modified time.
+         */
+        public String getLastModifiedDate() {
+            return lastModifiedDate;
+        }
+
+        /**
+         * Returns the number of cached bytes this file occupies.
+         *
+         * @return the number of cached bytes.
+         */
+        private long weight() {
+            return (content == null ? 0 : content.length) + (gzipContent == null ? 0 : gzipContent.length);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hashed timing wheel which expires items in O(1) per item. The wheel is an array of slots, each
+ * covering one tick; an item is put into the slot of the tick in which its deadline falls.
+ * <p>
+ * Items due later than the end of the current revolution are kept in a second level of as many slots, each
+ * covering a whole revolution. When a revolution begins, its slot of the second level is emptied into the
+ * wheel; deadlines further away than the second level reaches are kept in its last slot and looked at again
+ * when it comes around.
+ * <p>
+ * The deadline of an item is read through a function given to the wheel, so an item whose deadline is
+ * pushed back does not have to be moved: when its slot comes around and the deadline has not been reached,
+ * the item is simply put into the slot of its new deadline.
+ * <p>
+ * The wheel is not thread-safe; callers must guard it with their own lock.
+ *
+ * @param <T> the type of items.
+ */
+class TimingWheel<T> {
+
+    /**
+     * The slots; each slot holds the items which are looked at in its tick.
+     */
+    private final List<ArrayDeque<T>> slots;
+
+    /**
+     * The slots of the second level; each slot holds the items which are due in its revolution.
+     */
+    private final List<ArrayDeque<T>> overflow;
+
+    /**
+     * The duration of one tick in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * The function returning the current deadline of an item in milliseconds.
+     */
+    private final ToLongFunction<T> deadline;
+
+    /**
+     * The number of items in the wheel.
+     */
+    private int size;
+
+    /**
+     * The last tick which was processed.
+     */
+    private long currentTick;
+
+    /**
+     * Creates an instance of {@link TimingWheel}.
+     *
+     * @param slotCount  the number of slots.
+     * @param tickMillis the duration of one tick in milliseconds.
+     * @param deadline   the function returning the current deadline of an item in milliseconds.
+     * @param now        the current time in milliseconds.
+     */
+    TimingWheel(int slotCount, long tickMillis, ToLongFunction<T> deadline, long now) {
+        if (slotCount < 1 || tickMillis < 1) {
+            throw new IllegalArgumentException("Slot count and tick duration must be positive.");
+        }
+        this.slots = new ArrayList<>(slotCount);
+        this.overflow = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayDeque<>());
+            overflow.add(new ArrayDeque<>());
+        }
+        this.tickMillis = tickMillis;
+        this.deadline = deadline;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Puts the given item into the slot of its current deadline. Items which are already due are looked at
+     * in the next tick.
+     *
+     * @param item the item.
+     */
+    void schedule(T item) {
+        place(item, tickOf(item));
+        size++;
+    }
+
+    /**
+     * Processes all ticks up to the given time. Items whose deadline has passed are removed and handed to
+     * the given consumer; the other items of the processed slots are moved to the slots of their deadlines.
+     *
+     * @param now     the current time in milliseconds.
+     * @param expired the consumer of expired items.
+     */
+    void advance(long now, Consumer<T> expired) {
+        long nowTick = now / tickMillis;
+        if (nowTick - currentTick > slots.size()) {
+            rebuild(now, expired);
+            return;
+        }
+        for (long tick = currentTick + 1; tick <= nowTick; tick++) {
+            currentTick = tick;
+            if (tick % slots.size() == 0) {
+                ArrayDeque<T> due = overflowOf(revolutionOf(tick));
+                for (int n = due.size(); n > 0; n--) {
+                    T item = due.poll();
+                    place(item, Math.max(deadline.applyAsLong(item) / tickMillis, tick));
+                }
+            }
+            ArrayDeque<T> slot = slotOf(tick);
+            for (int n = slot.size(); n > 0; n--) {
+                T item = slot.poll();
+                size--;
+                if (deadline.applyAsLong(item) <= now) {
+                    expired.accept(item);
+                } else {
+                    schedule(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the item which is due soonest. Items whose deadline was pushed back are moved to
+     * their new slots while looking for it. Of the items due in a later revolution, the first one scheduled
+     * in the earliest such revolution is returned, so each call looks at only a few items.
+     *
+     * @return the item or null if the wheel is empty.
+     */
+    T pollEarliest() {
+        if (size == 0) {
+            return null;
+        }
+        long current = revolutionOf(currentTick);
+        for (long tick = currentTick + 1; revolutionOf(tick) == current; tick++) {
+            ArrayDeque<T> slot = slotOf(tick);
+            long slotEnd = (tick + 1) * tickMillis;
+            for (int n = slot.size(); n > 0; n--) {
+                T item = slot.poll();
+                long itemTick = tickOf(item);
+                if (itemTick * tickMillis < slotEnd) {
+                    size--;
+                    return item;
+                }
+                place(item, itemTick);
+            }
+        }
+        for (long revolution = current + 1; revolution <= lastRevolution(current); revolution++) {
+            ArrayDeque<T> slot = overflowOf(revolution);
+            while (!slot.isEmpty()) {
+                T item = slot.poll();
+                long itemRevolution = Math.min(revolutionOf(tickOf(item)), lastRevolution(current));
+                if (itemRevolution <= revolution) {
+                    size--;
+                    return item;
+                }
+                overflowOf(itemRevolution).add(item);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes all items out of the wheel and schedules them anew from the given time. Used when the time has
+     * moved on by more than one revolution since the wheel was last advanced.
+     *
+     * @param now     the current time in milliseconds.
+     * @param expired the consumer of expired items.
+     */
+    private void rebuild(long now, Consumer<T> expired) {
+        List<T> items = new ArrayList<>(size);
+        for (int i = 0; i < slots.size(); i++) {
+            items.addAll(slots.get(i));
+            items.addAll(overflow.get(i));
+            slots.get(i).clear();
+            overflow.get(i).clear();
+        }
+        size = 0;
+        currentTick = now / tickMillis;
+        for (T item : items) {
+            if (deadline.applyAsLong(item) <= now) {
+                expired.accept(item);
+            } else {
+                schedule(item);
+            }
+        }
+    }
+
+    /**
+     * Puts the given item into the slot of the given tick if it falls into the current revolution, otherwise
+     * into the second level.
+     *
+     * @param item the item.
+     * @param tick the tick in which the item is due.
+     */
+    private void place(T item, long tick) {
+        long current = revolutionOf(currentTick);
+        long revolution = revolutionOf(tick);
+        if (revolution <= current) {
+            slotOf(tick).add(item);
+        } else {
+            overflowOf(Math.min(revolution, lastRevolution(current))).add(item);
+        }
+    }
+
+    /**
+     * Returns the tick in which the given item is due, but not before the next tick.
+     *
+     * @param item the item.
+     * @return the tick.
+     */
+    private long tickOf(T item) {
+        return Math.max(deadline.applyAsLong(item) / tickMillis, currentTick + 1);
+    }
+
+    /**
+     * Returns the revolution of the given tick.
+     *
+     * @param tick the tick.
+     * @return the revolution.
+     */
+    private long revolutionOf(long tick) {
+        return tick / slots.size();
+    }
+
+    /**
+     * Returns the last revolution the second level can hold apart from the given current one.
+     *
+     * @param current the current revolution.
+     * @return the last revolution.
+     */
+    private long lastRevolution(long current) {
+        return current + Math.max(1, slots.size() - 1);
+    }
+
+    /**
+     * Returns the slot of the given tick.
+     *
+     * @param tick the tick.
+     * @return the slot.
+     */
+    private ArrayDeque<T> slotOf(long tick) {
+        return slots.get((int) (tick % slots.size()));
+    }
+
+    /**
+     * Returns the slot of the second level for the given revolution.
+     *
+     * @param revolution the revolution.
+     * @return the slot.
+     */
+    private ArrayDeque<T> overflowOf(long revolution) {
+        return overflow.get((int) (revolution % slots.size()));
+    }
+
+    /**
+     * Returns the number of items in the wheel.
+     *
+     * @return the number of items.
+     */
+    int size() {
+        return size;
+    }
+}
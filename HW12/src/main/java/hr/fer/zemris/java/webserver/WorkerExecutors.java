@@ -0,0 +1,105 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates executors which run the client workers of {@link SmartHttpServer}. Supported kinds are:
+ * <p><code>fixed</code> ; a fixed pool of daemon threads, the size of which is given by
+ * <code>server.workerThreads</code>. Its queue may be bounded, in which case tasks submitted to a full queue are
+ * rejected with a {@link RejectedExecutionException}.</p>
+ * <p><code>virtual</code> ; a new virtual thread for every task, so blocking workers scale without tuning the
+ * pool size. Virtual threads are looked up at run time; on a JVM which does not provide them, the fixed pool
+ * is used instead, with its bounded queue, and the fallback is reported on the standard error stream.</p>
+ */
+public final class WorkerExecutors {
+
+    /**
+     * The factory of daemon platform threads.
+     */
+    private static final ThreadFactory DAEMON_FACTORY = r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    };
+
+    /**
+     * Prevents instantiation.
+     */
+    private WorkerExecutors() {
+    }
+
+    /**
+     * Creates a new executor of the given kind.
+     *
+     * @param type    the kind of executor ("fixed" or "virtual").
+     * @param threads the number of threads of the fixed pool.
+     * @return a new executor.
+     * @throws IllegalArgumentException if the kind of executor is not supported.
+     */
+    public static ExecutorService newExecutor(String type, int threads) {
+        return newExecutor(type, threads, 0);
+    }
+
+    /**
+     * Creates a new executor of the given kind, with a bounded queue if it is a fixed pool. Virtual threads are
+     * started at once, so their executor has no queue to bound.
+     *
+     * @param type       the kind of executor ("fixed" or "virtual").
+     * @param threads    the number of threads of the fixed pool.
+     * @param queueDepth the maximum number of tasks waiting for a thread of the fixed pool; 0 for no limit.
+     * @return a new executor.
+     * @throws IllegalArgumentException if the kind of executor is not supported.
+     */
+    public static ExecutorService newExecutor(String type, int threads, int queueDepth) {
+        switch (type) {
+            case "fixed":
+                return newFixedPool(threads, queueDepth);
+            case "virtual":
+                return newVirtualThreadPerTaskExecutor(threads, queueDepth);
+            default:
+                throw new IllegalArgumentException("Unsupported executor: " + type);
+        }
+    }
+
+    /**
+     * Creates a fixed pool of daemon threads whose queue may be bounded.
+     *
+     * @param threads    the number of threads.
+     * @param queueDepth the maximum number of tasks waiting for a thread; 0 for no limit.
+     * @return a new executor.
+     */
+    private static ExecutorService newFixedPool(int threads, int queueDepth) {
+        BlockingQueue<Runnable> queue = queueDepth > 0
+                ? new ArrayBlockingQueue<>(queueDepth) : new LinkedBlockingQueue<>();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, DAEMON_FACTORY,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for every task, or the fixed pool if the JVM does
+     * not provide virtual threads.
+     *
+     * @param threads    the number of threads of the fixed pool.
+     * @param queueDepth the maximum number of tasks waiting for a thread of the fixed pool; 0 for no limit.
+     * @return a new executor.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(int threads, int queueDepth) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported by this JVM, the fixed pool of " + threads
+                    + " threads is used instead.");
+            return newFixedPool(threads, queueDepth);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Represents a registry of workers which are resolved by naming convention, i.e. the worker named
+ * <code>Name</code> is the class <code>Name</code> in the workers package. A worker class is loaded only
+ * once, on the first request for it:
+ * <p>a worker is instantiated once and the instance is shared by all requests, unless its class is annotated
+ * with {@link PerRequestWorker}; for such workers a constructor is bound to a {@link Supplier} through
+ * {@link LambdaMetafactory} and a new instance is created for every request.</p>
+ * <p>names which do not resolve to a worker are remembered in a bounded, least recently used set, so
+ * repeated requests for them fail without a class loader lookup.</p>
+ */
+public class WorkerRegistry {
+
+    /**
+     * The class loader which loads the workers.
+     */
+    private final ClassLoader loader;
+
+    /**
+     * The package of the workers, followed by a dot.
+     */
+    private final String packagePrefix;
+
+    /**
+     * The maximum number of remembered names which do not resolve to a worker.
+     */
+    private final int missCapacity;
+
+    /**
+     * The factories of the resolved workers.
+     */
+    private final ConcurrentMap<String, Supplier<IWebWorker>> workers = new ConcurrentHashMap<>();
+
+    /**
+     * The names which do not resolve to a worker, in access order.
+     */
+    private final Map<String, Boolean> misses;
+
+    /**
+     * The lock guarding the names which do not resolve to a worker.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Creates an instance of {@link WorkerRegistry}.
+     *
+     * @param loader        the class loader which loads the workers.
+     * @param workerPackage the package of the workers.
+     * @param missCapacity  the maximum number of remembered names which do not resolve to a worker.
+     */
+    public WorkerRegistry(ClassLoader loader, String workerPackage, int missCapacity) {
+        this.loader = loader;
+        this.packagePrefix = workerPackage + ".";
+        this.missCapacity = missCapacity;
+        this.misses = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > WorkerRegistry.this.missCapacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the worker with the given name.
+     *
+     * @param name the simple class name of the worker.
+     * @return the worker, or null if there is no worker with the given name.
+     */
+    public IWebWorker get(String name) {
+        Supplier<IWebWorker> factory = workers.get(name);
+        if (factory != null) {
+            return factory.get();
+        }
+        if (isMiss(name)) {
+            return null;
+        }
+        factory = workers.computeIfAbsent(name, this::resolve);
+        if (factory == null) {
+            lock.lock();
+            try {
+                misses.put(name, Boolean.TRUE);
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+        return factory.get();
+    }
+
+    /**
+     * Checks whether the given name is known not to resolve to a worker.
+     *
+     * @param name the name.
+     * @return true if the name is known not to resolve to a worker.
+     */
+    private boolean isMiss(String name) {
+        lock.lock();
+        try {
+            return misses.get(name) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resolves the given name to the factory of a worker.
+     *
+     * @param name the simple class name of the worker.
+     * @return the factory, or null if the name does not resolve to a worker.
+     */
+    private Supplier<IWebWorker> resolve(String name) {
+        if (!isIdentifier(name)) {
+            return null;
+        }
+        try {
+            return factoryOf(loader.loadClass(packagePrefix + name));
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new instance of the worker with the given fully qualified class name. It is used for the workers
+     * which are mapped to fixed paths, which are all created at startup.
+     *
+     * @param fqcn the fully qualified class name.
+     * @return a new instance of the worker.
+     * @throws ReflectiveOperationException if the class can not be loaded or instantiated, or if it is not a
+     *                                      worker.
+     */
+    public IWebWorker instantiate(String fqcn) throws ReflectiveOperationException {
+        return factoryOf(loader.loadClass(fqcn)).get();
+    }
+
+    /**
+     * Creates the factory of the given worker class.
+     *
+     * @param type the worker class.
+     * @return the factory.
+     * @throws ReflectiveOperationException if the class is not a worker or if it has no accessible constructor
+     *                                      without arguments.
+     */
+    private static Supplier<IWebWorker> factoryOf(Class<?> type) throws ReflectiveOperationException {
+        if (!IWebWorker.class.isAssignableFrom(type) || Modifier.isAbstract(type.getModifiers())) {
+            throw new InstantiationException(type.getName() + " is not a worker.");
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle constructor = lookup.findConstructor(type, MethodType.methodType(void.class));
+        Supplier<IWebWorker> factory = bind(lookup, type, constructor);
+        if (type.isAnnotationPresent(PerRequestWorker.class)) {
+            return factory;
+        }
+        IWebWorker instance = factory.get();
+        return () -> instance;
+    }
+
+    /**
+     * Binds the given constructor to a {@link Supplier}. A lambda is generated where possible, so a call costs
+     * the same as a direct constructor call; otherwise the constructor is invoked through the method handle.
+     *
+     * @param lookup      the lookup which found the constructor.
+     * @param type        the worker class.
+     * @param constructor the constructor.
+     * @return the factory.
+     */
+    @SuppressWarnings("unchecked")
+    private static Supplier<IWebWorker> bind(MethodHandles.Lookup lookup, Class<?> type, MethodHandle constructor) {
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                    MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+                    constructor, MethodType.methodType(type));
+            return (Supplier<IWebWorker>) site.getTarget().invoke();
+        } catch (Throwable e) {
+            MethodHandle typed = constructor.asType(MethodType.methodType(IWebWorker.class));
+            return () -> {
+                try {
+                    return (IWebWorker) typed.invokeExact();
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    throw new IllegalStateException("Unable to create worker " + type.getName(), ex);
+                }
+            };
+        }
+    }
+
+    /**
+     * Checks whether the given name is a Java identifier, so that it can only name a class directly in the
+     * workers package.
+     *
+     * @param name the name.
+     * @return true if the name is a Java identifier.
+     */
+    private static boolean isIdentifier(String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.HttpRequest;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+import hr.fer.zemris.java.webserver.WorkerExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the executors which can run the client workers of {@link SmartHttpServer}. Every task dispatches a
+ * request through the request path of the server, {@link SmartHttpServer#serve(HttpRequest, OutputStream)},
+ * which holds its thread until the response is written, like the blocking transport does; so a request for an
+ * asynchronous worker, e.g. <code>/ext/DelayWorker?ms=50</code>, holds it while the worker waits. The server
+ * is configured by <code>config/server.properties</code>, so the benchmark is run from the HW12 directory, like
+ * the server.
+ * <p>
+ * Arguments (all optional): number of requests, request target, fixed pool size. For example
+ * <code>20000 /ext/DelayWorker?ms=50 10</code> or <code>200000 /index.html 4</code>.
+ * </p>
+ */
+public class ExecutorBenchmark {
+
+    /**
+     * Method invoked when running the program.
+     *
+     * @param args command-line arguments.
+     * @throws Exception if the session could not be created or if interrupted while waiting for the tasks.
+     */
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String target = args.length > 1 ? args[1] : "/ext/DelayWorker?ms=50";
+        int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        SmartHttpServer server = new SmartHttpServer("server.properties");
+        String sid = createSession(server);
+        System.out.printf("%d requests of %s, fixed pool of %d threads%n", requests, target, poolSize);
+        for (String type : new String[]{"fixed", "virtual"}) {
+            run(server, type, Math.min(requests, 1000), target, sid, poolSize);
+            long nanos = run(server, type, requests, target, sid, poolSize);
+            double seconds = nanos / 1e9;
+            System.out.printf("%-8s %8.2f s %12.0f requests/s%n", type, seconds, requests / seconds);
+        }
+    }
+
+    /**
+     * Serves the given number of requests through the server on a new executor of the given kind.
+     *
+     * @param server   the server.
+     * @param type     the kind of executor.
+     * @param requests the number of requests.
+     * @param target   the request target.
+     * @param sid      the session identifier sent with the requests.
+     * @param poolSize the size of the fixed pool.
+     * @return the elapsed time in nanoseconds.
+     * @throws InterruptedException if interrupted while waiting for the tasks.
+     */
+    private static long run(SmartHttpServer server, String type, int requests, String target, String sid,
+                            int poolSize) throws InterruptedException {
+        ExecutorService executor = WorkerExecutors.newExecutor(type, poolSize);
+        CountDownLatch done = new CountDownLatch(requests);
+        LongAdder failures = new LongAdder();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                try {
+                    server.serve(request(target, sid), new ByteArrayOutputStream(1024));
+                } catch (Exception e) {
+                    failures.increment();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (failures.sum() > 0) {
+            System.out.printf("%-8s %d requests failed%n", type, failures.sum());
+        }
+        return elapsed;
+    }
+
+    /**
+     * Serves a request without a session and returns the identifier of the session which was created for it,
+     * so that the measured requests do not each create a session.
+     *
+     * @param server the server.
+     * @return the session identifier.
+     * @throws Exception if an error occurred while serving the request.
+     */
+    private static String createSession(SmartHttpServer server) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        server.serve(request("/index.html", null), bos);
+        String response = new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+        int start = response.indexOf("sid=\"") + 5;
+        return response.substring(start, response.indexOf('"', start));
+    }
+
+    /**
+     * Creates a GET request for the given target.
+     *
+     * @param target the request target.
+     * @param sid    the session identifier sent in a cookie, or null.
+     * @return the request.
+     */
+    private static HttpRequest request(String target, String sid) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost");
+        headers.put("accept", "*/*");
+        if (sid != null) {
+            headers.put("cookie", "sid=\"" + sid + "\"");
+        }
+        return new HttpRequest("GET", target, "HTTP/1.1", headers);
+    }
+}
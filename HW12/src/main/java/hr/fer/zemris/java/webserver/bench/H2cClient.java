@@ -0,0 +1,456 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.Hpack;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A test client for the HTTP/2 cleartext (h2c) support of {@link hr.fer.zemris.java.webserver.SmartHttpServer}.
+ * It opens one connection, either with prior knowledge or by upgrading an HTTP/1.1 request, and sends a number
+ * of GET requests at once, each on a stream of its own. The responses are read as they arrive; for every stream
+ * the status and the size of the body are printed, together with the largest number of bodies which were being
+ * received at the same time, which shows whether the responses were multiplexed. The server must already be
+ * running.
+ * <p>
+ * Arguments (all optional): request target, number of streams, mode (<code>prior</code> or
+ * <code>upgrade</code>), host, port. For example <code>/index.html 20 prior 127.0.0.1 5721</code>.
+ * </p>
+ */
+public class H2cClient {
+
+    /**
+     * The client preface.
+     */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The flow control window which the client grants to the server.
+     */
+    private static final int WINDOW = 1 << 24;
+
+    /**
+     * The type of data frames.
+     */
+    private static final int DATA = 0x0;
+
+    /**
+     * The type of header frames.
+     */
+    private static final int HEADERS = 0x1;
+
+    /**
+     * The type of frames which reset a stream.
+     */
+    private static final int RST_STREAM = 0x3;
+
+    /**
+     * The type of settings frames.
+     */
+    private static final int SETTINGS = 0x4;
+
+    /**
+     * The type of ping frames.
+     */
+    private static final int PING = 0x6;
+
+    /**
+     * The type of frames which shut the connection down.
+     */
+    private static final int GOAWAY = 0x7;
+
+    /**
+     * The type of frames which widen a flow control window.
+     */
+    private static final int WINDOW_UPDATE = 0x8;
+
+    /**
+     * The type of frames which continue a header block.
+     */
+    private static final int CONTINUATION = 0x9;
+
+    /**
+     * The flag of the frame which ends a stream, also the flag of acknowledgements.
+     */
+    private static final int FLAG_END_STREAM = 0x1;
+
+    /**
+     * The flag of the frame which ends a header block.
+     */
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    /**
+     * The flag of padded frames.
+     */
+    private static final int FLAG_PADDED = 0x8;
+
+    /**
+     * The flag of header frames which carry a priority.
+     */
+    private static final int FLAG_PRIORITY = 0x20;
+
+    /**
+     * Represents the response of one stream.
+     */
+    private static class Response {
+
+        /**
+         * The status, or null if the headers were not received.
+         */
+        private String status;
+
+        /**
+         * The number of body bytes received.
+         */
+        private long bodySize;
+
+        /**
+         * The flag indicating whether the stream is over.
+         */
+        private boolean done;
+
+        /**
+         * The reason why the stream was reset, or null.
+         */
+        private String reset;
+    }
+
+    /**
+     * The socket.
+     */
+    private final Socket socket;
+
+    /**
+     * The input stream of the socket.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The output stream of the socket.
+     */
+    private final OutputStream out;
+
+    /**
+     * The decoder of the header blocks of the server.
+     */
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    /**
+     * The encoder of the header blocks of the client.
+     */
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    /**
+     * The responses by stream identifier.
+     */
+    private final Map<Integer, Response> responses = new TreeMap<>();
+
+    /**
+     * The header block which is being received.
+     */
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * The number of streams whose body is being received.
+     */
+    private int receiving;
+
+    /**
+     * The largest number of streams whose body was being received at the same time.
+     */
+    private int maxReceiving;
+
+    /**
+     * Creates an instance of {@link H2cClient} connected to the given server.
+     *
+     * @param host the host of the server.
+     * @param port the port of the server.
+     * @throws IOException if the connection can not be opened.
+     */
+    public H2cClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Method invoked when running the program.
+     *
+     * @param args command-line arguments.
+     * @throws IOException if the exchange with the server fails.
+     */
+    public static void main(String[] args) throws IOException {
+        String target = args.length > 0 ? args[0] : "/index.html";
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        boolean upgrade = args.length > 2 && args[2].equals("upgrade");
+        String host = args.length > 3 ? args[3] : "127.0.0.1";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 5721;
+
+        long start = System.nanoTime();
+        H2cClient client = new H2cClient(host, port);
+        try {
+            client.run(host + ":" + port, target, streams, upgrade);
+        } finally {
+            client.socket.close();
+        }
+        client.print((System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Opens the connection, sends the requests and reads the responses until every stream is over.
+     *
+     * @param authority the authority of the requests.
+     * @param target    the request target.
+     * @param streams   the number of requests.
+     * @param upgrade   the flag indicating whether the connection is opened with an upgrade.
+     * @throws IOException if the exchange with the server fails.
+     */
+    public void run(String authority, String target, int streams, boolean upgrade) throws IOException {
+        byte[] settings = new byte[6];
+        settings[1] = 0x4;
+        putInt(settings, 2, WINDOW);
+        int streamId = 1;
+        if (upgrade) {
+            String request = "GET " + target + " HTTP/1.1\r\n"
+                    + "Host: " + authority + "\r\n"
+                    + "Connection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\n"
+                    + "HTTP2-Settings: " + Base64.getUrlEncoder().withoutPadding().encodeToString(settings) + "\r\n"
+                    + "\r\n";
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            String statusLine = readHead();
+            if (!statusLine.contains(" 101 ")) {
+                throw new IOException("The server did not upgrade: " + statusLine);
+            }
+            responses.put(streamId, new Response());
+            streamId += 2;
+            streams--;
+        }
+        out.write(PREFACE);
+        writeFrame(SETTINGS, 0, 0, settings);
+        byte[] increment = new byte[4];
+        putInt(increment, 0, WINDOW - 65535);
+        writeFrame(WINDOW_UPDATE, 0, 0, increment);
+        for (int i = 0; i < streams; i++, streamId += 2) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(":method", "GET", block);
+            encoder.encode(":scheme", "http", block);
+            encoder.encode(":authority", authority, block);
+            encoder.encode(":path", target, block);
+            encoder.encode("user-agent", "h2c-client", block);
+            writeFrame(HEADERS, FLAG_END_STREAM | FLAG_END_HEADERS, streamId, block.toByteArray());
+            responses.put(streamId, new Response());
+        }
+        out.flush();
+
+        while (responses.values().stream().anyMatch(r -> !r.done)) {
+            if (!readFrame()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Prints the responses.
+     *
+     * @param millis the duration of the exchange in milliseconds.
+     */
+    private void print(long millis) {
+        long total = 0;
+        for (Map.Entry<Integer, Response> entry : responses.entrySet()) {
+            Response response = entry.getValue();
+            total += response.bodySize;
+            System.out.printf("stream %3d: %s%n", entry.getKey(), response.reset != null ? response.reset
+                    : !response.done ? "unfinished"
+                    : response.status + ", " + response.bodySize + " bytes");
+        }
+        System.out.printf("%d streams, %d body bytes, %d ms, at most %d bodies received at once%n",
+                responses.size(), total, millis, maxReceiving);
+    }
+
+    /**
+     * Reads and processes one frame.
+     *
+     * @return false if the server closed the connection.
+     * @throws IOException if the frame can not be read.
+     */
+    private boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        } catch (EOFException e) {
+            return false;
+        }
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & Integer.MAX_VALUE;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Response response = responses.get(streamId);
+
+        switch (type) {
+            case DATA:
+                if (response != null) {
+                    if (response.bodySize == 0 && length > 0) {
+                        maxReceiving = Math.max(maxReceiving, ++receiving);
+                    }
+                    response.bodySize += length - padding(flags, payload);
+                }
+                if (length > 0) {
+                    byte[] increment = new byte[4];
+                    putInt(increment, 0, length);
+                    writeFrame(WINDOW_UPDATE, 0, 0, increment);
+                    writeFrame(WINDOW_UPDATE, 0, streamId, increment);
+                    out.flush();
+                }
+                break;
+            case HEADERS:
+            case CONTINUATION:
+                int pos = 0;
+                int end = length;
+                if (type == HEADERS) {
+                    if ((flags & FLAG_PADDED) != 0) {
+                        end -= payload[pos++] & 0xFF;
+                    }
+                    if ((flags & FLAG_PRIORITY) != 0) {
+                        pos += 5;
+                    }
+                }
+                headerBlock.write(payload, pos, end - pos);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    byte[] block = headerBlock.toByteArray();
+                    headerBlock.reset();
+                    decoder.decode(block, 0, block.length, (name, value) -> {
+                        if (response != null && name.equals(":status")) {
+                            response.status = value;
+                        }
+                    });
+                }
+                break;
+            case RST_STREAM:
+                if (response != null && !response.done) {
+                    int errorCode = readInt(payload, 0);
+                    response.reset = errorCode == 0 && response.status != null
+                            ? response.status + ", " + response.bodySize + " bytes"
+                            : "reset with error " + errorCode;
+                    finish(response);
+                }
+                break;
+            case SETTINGS:
+                if ((flags & FLAG_END_STREAM) == 0) {
+                    writeFrame(SETTINGS, FLAG_END_STREAM, 0, new byte[0]);
+                    out.flush();
+                }
+                break;
+            case PING:
+                if ((flags & FLAG_END_STREAM) == 0) {
+                    writeFrame(PING, FLAG_END_STREAM, 0, payload);
+                    out.flush();
+                }
+                break;
+            case GOAWAY:
+                System.out.printf("goaway: last stream %d, error %d%n", readInt(payload, 0), readInt(payload, 4));
+                break;
+            default:
+                break;
+        }
+        if (response != null && (type == DATA || type == HEADERS) && (flags & FLAG_END_STREAM) != 0) {
+            finish(response);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a stream as over.
+     *
+     * @param response the response of the stream.
+     */
+    private void finish(Response response) {
+        if (!response.done && response.bodySize > 0) {
+            receiving--;
+        }
+        response.done = true;
+    }
+
+    /**
+     * Reads the head of an HTTP/1.1 response.
+     *
+     * @return the status line.
+     * @throws IOException if the head can not be read.
+     */
+    private String readHead() throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+            head.append((char) in.readUnsignedByte());
+        }
+        return head.substring(0, head.indexOf("\r\n"));
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param type     the frame type.
+     * @param flags    the frame flags.
+     * @param streamId the stream identifier.
+     * @param payload  the payload.
+     * @throws IOException if the frame can not be written.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (payload.length >>> 16);
+        header[1] = (byte) (payload.length >>> 8);
+        header[2] = (byte) payload.length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        out.write(header);
+        out.write(payload);
+    }
+
+    /**
+     * Returns the length of the padding of a data frame, including its length byte.
+     *
+     * @param flags   the frame flags.
+     * @param payload the payload.
+     * @return the length of the padding.
+     */
+    private static int padding(int flags, byte[] payload) {
+        return (flags & FLAG_PADDED) != 0 ? (payload[0] & 0xFF) + 1 : 0;
+    }
+
+    /**
+     * Reads a big-endian integer.
+     *
+     * @param b   the bytes.
+     * @param pos the position of the integer.
+     * @return the integer.
+     */
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | b[pos + 3] & 0xFF;
+    }
+
+    /**
+     * Writes a big-endian integer.
+     *
+     * @param b     the bytes.
+     * @param pos   the position of the integer.
+     * @param value the integer.
+     */
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,394 @@
+package hr.fer.zemris.java.webserver.bench;
+
+import hr.fer.zemris.java.webserver.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A closed-loop load generator for {@link hr.fer.zemris.java.webserver.SmartHttpServer}. A number of clients
+ * send requests over persistent connections, each client waiting for a response before it sends the next
+ * request. Like browsers, clients keep the session cookie they receive and send it back. The server must already
+ * be running.
+ * <p>
+ * Latencies are corrected for coordinated omission. With a target rate, every request has an intended start
+ * time and its latency is measured from that time, so a stalled server is charged for the requests which
+ * could not be sent. Without a rate the clients send as fast as possible and every latency longer than the
+ * mean latency of the warm-up is recorded together with the latencies the missed requests would have had.
+ * </p>
+ * <p>
+ * Scenarios are: <code>static</code> (<code>/index.html</code>), <code>echo</code>
+ * (<code>/ext/EchoParams</code> with a query string), <code>calc</code> (<code>/calc</code>, a worker which
+ * dispatches to a script) and <code>script</code> (<code>/scripts/brojPoziva.smscr</code>, which updates a
+ * counter in the session of the client).
+ * </p>
+ * <p>
+ * Arguments (all optional): scenario, number of clients, duration in seconds, target rate in requests per
+ * second (0 for as fast as possible), host, port. For example <code>static 16 10 0 127.0.0.1 5721</code>.
+ * </p>
+ */
+public class LoadGenerator {
+
+    /**
+     * The duration of the warm-up in seconds, which is not measured.
+     */
+    private static final int WARMUP_SECONDS = 3;
+
+    /**
+     * The quantiles which are reported.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    /**
+     * The latencies of all clients.
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * The number of measured responses.
+     */
+    private final LongAdder responses = new LongAdder();
+
+    /**
+     * The number of measured failures: responses with a status other than 2xx and broken connections.
+     */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * The address of the server.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * The request target.
+     */
+    private final String target;
+
+    /**
+     * The interval in nanoseconds between the requests of one client, or 0 to send as fast as possible.
+     */
+    private final long intervalNanos;
+
+    /**
+     * Creates an instance of {@link LoadGenerator}.
+     *
+     * @param address       the address of the server.
+     * @param target        the request target.
+     * @param intervalNanos the interval in nanoseconds between the requests of one client, or 0.
+     */
+    public LoadGenerator(InetSocketAddress address, String target, long intervalNanos) {
+        this.address = address;
+        this.target = target;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Method invoked when running the program.
+     *
+     * @param args command-line arguments.
+     * @throws InterruptedException if interrupted while waiting for the clients.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String scenario = args.length > 0 ? args[0] : "static";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        String host = args.length > 4 ? args[4] : "127.0.0.1";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : 5721;
+
+        String target;
+        switch (scenario) {
+            case "static":
+                target = "/index.html";
+                break;
+            case "echo":
+                target = "/ext/EchoParams?name=load&a=1&b=2&color=ff0000";
+                break;
+            case "calc":
+                target = "/calc?a=3&b=4";
+                break;
+            case "script":
+                target = "/scripts/brojPoziva.smscr";
+                break;
+            default:
+                System.err.println("Unknown scenario: " + scenario + " (static, echo, calc or script)");
+                return;
+        }
+        long interval = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+        System.out.printf("%s %s, %d clients, %d s%s%n", scenario, target, clients, seconds,
+                rate > 0 ? String.format(", %.0f requests/s", rate) : ", as fast as possible");
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port), target, interval);
+        generator.run(clients, seconds);
+    }
+
+    /**
+     * Runs the clients for the warm-up and the given duration and prints the results.
+     *
+     * @param clients the number of clients.
+     * @param seconds the measured duration in seconds.
+     * @throws InterruptedException if interrupted while waiting for the clients.
+     */
+    public void run(int clients, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+        long deadline = measureFrom + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                try {
+                    new Client().run(measureFrom, deadline);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+
+        long count = responses.sum();
+        System.out.printf("%d responses, %d errors, %.0f requests/s%n", count, errors.sum(),
+                count / (double) seconds);
+        for (double quantile : QUANTILES) {
+            System.out.printf("%-6s %10.3f ms%n", quantile == 1.0 ? "max" : "p" + quantile * 100,
+                    histogram.getValueAtQuantile(quantile) / 1000.0);
+        }
+    }
+
+    /**
+     * Represents one client with its connection.
+     */
+    private class Client {
+
+        /**
+         * The socket, or null if the client is not connected.
+         */
+        private Socket socket;
+
+        /**
+         * The input stream of the socket.
+         */
+        private InputStream in;
+
+        /**
+         * The output stream of the socket.
+         */
+        private OutputStream out;
+
+        /**
+         * The session identifier of the client, or null.
+         */
+        private String sid;
+
+        /**
+         * The flag indicating whether the server closes the connection after the current response.
+         */
+        private boolean closing;
+
+        /**
+         * The status code of the current response.
+         */
+        private int status;
+
+        /**
+         * Sends requests until the deadline. The latencies after the start of the measurement are recorded.
+         *
+         * @param measureFrom the time at which the measurement starts.
+         * @param deadline    the time at which the client stops.
+         */
+        public void run(long measureFrom, long deadline) {
+            long warmupLatency = 0;
+            long warmupCount = 0;
+            long expectedMicros = 0;
+            long intended = System.nanoTime();
+            while (true) {
+                long now = System.nanoTime();
+                if (intervalNanos > 0) {
+                    while (now < intended) {
+                        LockSupport.parkNanos(intended - now);
+                        now = System.nanoTime();
+                    }
+                } else {
+                    intended = now;
+                }
+                if (now >= deadline) {
+                    break;
+                }
+                boolean measured = intended >= measureFrom;
+                if (measured && expectedMicros == 0 && intervalNanos == 0 && warmupCount > 0) {
+                    expectedMicros = warmupLatency / warmupCount / 1000;
+                }
+
+                boolean ok = exchange();
+                long latency = System.nanoTime() - intended;
+                if (measured) {
+                    responses.increment();
+                    if (!ok) {
+                        errors.increment();
+                    }
+                    histogram.recordWithExpectedInterval(latency / 1000, expectedMicros);
+                } else {
+                    warmupLatency += latency;
+                    warmupCount++;
+                }
+                intended += intervalNanos;
+            }
+            disconnect();
+        }
+
+        /**
+         * Sends one request and reads its response, connecting first if needed.
+         *
+         * @return true if a 2xx response was received.
+         */
+        private boolean exchange() {
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(address);
+                    in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                    out = socket.getOutputStream();
+                }
+                String request = "GET " + target + " HTTP/1.1\r\n" +
+                        "Host: " + address.getHostString() + "\r\n" +
+                        (sid != null ? "Cookie: sid=\"" + sid + "\"\r\n" : "") +
+                        "\r\n";
+                out.write(request.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                readResponse();
+                if (closing) {
+                    disconnect();
+                }
+                return status >= 200 && status < 300;
+            } catch (IOException e) {
+                disconnect();
+                return false;
+            }
+        }
+
+        /**
+         * Reads one response, skipping its body.
+         *
+         * @throws IOException if an error occurred while reading or the connection was closed.
+         */
+        private void readResponse() throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ", 3);
+            status = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            closing = false;
+            long contentLength = -1;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                switch (name) {
+                    case "content-length":
+                        contentLength = Long.parseLong(value);
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.toLowerCase().contains("chunked");
+                        break;
+                    case "connection":
+                        closing = value.equalsIgnoreCase("close");
+                        break;
+                    case "set-cookie":
+                        if (value.startsWith("sid=")) {
+                            int end = value.indexOf(';');
+                            sid = (end == -1 ? value.substring(4) : value.substring(4, end)).replace("\"", "");
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (status == 204 || status == 304) {
+                return;
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+                    skip(size + 2);
+                }
+                while (!readLine().isEmpty()) {
+                    // trailer fields are ignored
+                }
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+            } else {
+                while (in.read() != -1) {
+                    // the body ends with the connection
+                }
+                closing = true;
+            }
+        }
+
+        /**
+         * Reads one line of the response head.
+         *
+         * @return the line without the line terminator.
+         * @throws IOException if an error occurred while reading or the connection was closed.
+         */
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException("The connection was closed.");
+                }
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Skips the given number of bytes of the response.
+         *
+         * @param n the number of bytes.
+         * @throws IOException if an error occurred while reading or the connection was closed.
+         */
+        private void skip(long n) throws IOException {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException("The connection was closed.");
+                    }
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+
+        /**
+         * Closes the connection, if it is open.
+         */
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignorable) {
+                    // the connection is dropped anyway
+                }
+                socket = null;
+            }
+        }
+    }
+}
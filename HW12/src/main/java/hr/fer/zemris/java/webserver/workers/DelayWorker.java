@@ -0,0 +1,49 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import hr.fer.zemris.java.webserver.IAsyncWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class that answers after the number of milliseconds given in the parameter "ms", standing in for a
+ * worker which waits on a slow service. No thread is held while it waits.
+ */
+public class DelayWorker implements IAsyncWebWorker {
+
+    /**
+     * The longest delay in milliseconds.
+     */
+    private static final long MAX_DELAY = 60_000;
+
+    @Override
+    public CompletionStage<Void> processRequestAsync(RequestContext context) {
+        long delay = getDelay(context.getParameter("ms"));
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (!context.claimResponse()) {
+                // timed out or the client is gone
+                return;
+            }
+            try {
+                context.setMimeType("text/plain");
+                context.write("Waited " + delay + " ms.");
+                done.complete(null);
+            } catch (IOException ex) {
+                done.completeExceptionally(ex);
+            }
+        });
+        return done;
+    }
+
+    private long getDelay(String ms) {
+        try {
+            return Math.max(0, Math.min(Long.parseLong(ms), MAX_DELAY));
+        } catch (NumberFormatException ignorable) {
+            return 100;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import hr.fer.zemris.java.webserver.BodyPart;
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestBody;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The class that prints the form fields and the files submitted through a form (or the size of a body which is not
+ * a form).
+ */
+public class UploadWorker implements IWebWorker {
+
+    @Override
+    public void processRequest(RequestContext context) throws Exception {
+        context.setMimeType("text/plain");
+        RequestBody body = context.getRequestBody();
+        try {
+            for (Map.Entry<String, String> entry : context.getParameters().entrySet()) {
+                context.write(entry.getKey() + " = " + entry.getValue() + "\n");
+            }
+            if (body == null) {
+                return;
+            }
+            for (BodyPart part : body.getParts()) {
+                context.write((part.getName() == null ? "body" : part.getName())
+                        + (part.getFileName() == null ? "" : " (" + part.getFileName() + ")")
+                        + ": " + part.getSize() + " bytes of " + part.getContentType()
+                        + (part.isInMemory() ? ", in memory" : ", in a temporary file") + "\n");
+            }
+        } catch (IOException ex) {
+            // Log exception to servers log...
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testParsesSingleRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-9", 100);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).getStart());
+        Assert.assertEquals(9, ranges.get(0).getEnd());
+        Assert.assertEquals(10, ranges.get(0).getLength());
+        Assert.assertEquals("bytes 0-9/100", ranges.get(0).toContentRange(100));
+    }
+
+    @Test
+    public void testParsesOpenAndSuffixRanges() {
+        ByteRange open = ByteRange.parse("bytes=90-", 100).get(0);
+        Assert.assertEquals(90, open.getStart());
+        Assert.assertEquals(99, open.getEnd());
+
+        ByteRange suffix = ByteRange.parse("bytes=-5", 100).get(0);
+        Assert.assertEquals(95, suffix.getStart());
+        Assert.assertEquals(99, suffix.getEnd());
+
+        ByteRange whole = ByteRange.parse("bytes=-500", 100).get(0);
+        Assert.assertEquals(0, whole.getStart());
+        Assert.assertEquals(99, whole.getEnd());
+    }
+
+    @Test
+    public void testClampsEndToLength() {
+        ByteRange range = ByteRange.parse("bytes=50-1000", 100).get(0);
+        Assert.assertEquals(50, range.getStart());
+        Assert.assertEquals(99, range.getEnd());
+    }
+
+    @Test
+    public void testSortsAndMergesOverlappingAndAdjacentRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=50-59, 0-9, 5-14, 15-19, 70-", 100);
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertEquals("bytes 0-19/100", ranges.get(0).toContentRange(100));
+        Assert.assertEquals("bytes 50-59/100", ranges.get(1).toContentRange(100));
+        Assert.assertEquals("bytes 70-99/100", ranges.get(2).toContentRange(100));
+    }
+
+    @Test
+    public void testDropsUnsatisfiableRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=200-300,0-0", 100);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).getEnd());
+
+        Assert.assertTrue(ByteRange.parse("bytes=100-", 100).isEmpty());
+        Assert.assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+        Assert.assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+    }
+
+    @Test
+    public void testIgnoresInvalidHeaders() {
+        Assert.assertNull(ByteRange.parse("items=0-9", 100));
+        Assert.assertNull(ByteRange.parse("bytes=9-0", 100));
+        Assert.assertNull(ByteRange.parse("bytes=a-b", 100));
+        Assert.assertNull(ByteRange.parse("bytes=10", 100));
+        Assert.assertNull(ByteRange.parse("bytes=--5", 100));
+    }
+
+    @Test
+    public void testIgnoresTooManyRanges() {
+        StringBuilder sb = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            sb.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        Assert.assertNull(ByteRange.parse(sb.toString(), 1000));
+    }
+
+    @Test
+    public void testHeaderIsCaseInsensitiveAndTrimmed() {
+        Assert.assertEquals(1, ByteRange.parse("  Bytes=0-9 ", 100).size());
+    }
+}
@@ -0,0 +1,106 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HpackTest {
+
+    private static byte[] hex(String text) {
+        text = text.replace(" ", "");
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, byte[] block) {
+        List<String> headers = new ArrayList<>();
+        decoder.decode(block, 0, block.length, (name, value) -> headers.add(name + ": " + value));
+        return headers;
+    }
+
+    private static byte[] encode(Hpack.Encoder encoder, String... headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i += 2) {
+            encoder.encode(headers[i], headers[i + 1], out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDecodesLiteralWithIndexing() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        byte[] block = hex("400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+        Assert.assertEquals(List.of("custom-key: custom-header"), decode(decoder, block));
+        // the header is now the first entry of the dynamic table, index 62
+        Assert.assertEquals(List.of("custom-key: custom-header"), decode(decoder, hex("be")));
+    }
+
+    @Test
+    public void testDecodesHuffmanCodedRequests() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        Assert.assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+        Assert.assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                "cache-control: no-cache"),
+                decode(decoder, hex("8286 84be 5886 a8eb 1064 9cbf")));
+    }
+
+    @Test
+    public void testEncodedHeadersDecodeToTheSameHeaders() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        String[] headers = {":status", "200", "content-type", "text/html; charset=UTF-8",
+                "x-custom", "value", "set-cookie", "sid=\"ABC\"; Path=/"};
+        List<String> expected = List.of(":status: 200", "content-type: text/html; charset=UTF-8",
+                "x-custom: value", "set-cookie: sid=\"ABC\"; Path=/");
+
+        byte[] first = encode(encoder, headers);
+        Assert.assertEquals(expected, decode(decoder, first));
+        byte[] second = encode(encoder, headers);
+        Assert.assertEquals(expected, decode(decoder, second));
+        Assert.assertTrue("repeated headers come from the dynamic table", second.length < first.length);
+    }
+
+    @Test
+    public void testSensitiveHeadersAreNeverIndexed() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        byte[] block = encode(encoder, "set-cookie", "sid=1");
+        Assert.assertEquals(0x10, block[0] & 0xF0);
+        Assert.assertArrayEquals(block, encode(encoder, "set-cookie", "sid=1"));
+    }
+
+    @Test
+    public void testTableSizeUpdateIsSentBeforeNextBlock() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        decode(decoder, encode(encoder, "x-custom", "value"));
+        encoder.setMaxTableSize(0);
+        byte[] block = encode(encoder, "x-custom", "value");
+        Assert.assertEquals(0x20, block[0] & 0xE0);
+        Assert.assertEquals(List.of("x-custom: value"), decode(decoder, block));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsIndexOutsideTables() {
+        new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(hex("be"), 0, 1, (name, value) -> {
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTableSizeUpdateAfterHeader() {
+        new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(hex("82 20"), 0, 2, (name, value) -> {
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTableSizeOverLimit() {
+        new Hpack.Decoder(256).decode(hex("3fe1 1f"), 0, 3, (name, value) -> {
+        });
+    }
+}
@@ -0,0 +1,257 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class Http2ConnectionTest {
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int GOAWAY = 0x7;
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n"
+            + "hello";
+
+    private final List<Http2Connection.Stream> streams = new ArrayList<>();
+    private final List<HttpRequest> requests = new ArrayList<>();
+    private final List<RequestBody> bodies = new ArrayList<>();
+
+    private Http2Connection connection;
+
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    private static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        int errorCode() {
+            int off = type == GOAWAY ? 4 : 0;
+            return (payload[off] & 0xFF) << 24 | (payload[off + 1] & 0xFF) << 16
+                    | (payload[off + 2] & 0xFF) << 8 | payload[off + 3] & 0xFF;
+        }
+    }
+
+    private class RecordingHandler implements Http2Connection.Handler {
+        @Override
+        public RequestBody openBody(HttpRequest request) {
+            return RequestBody.openDelimited(request, 1024, 256, 1024, null);
+        }
+
+        @Override
+        public void handle(Http2Connection.Stream stream, HttpRequest request, RequestBody body) {
+            streams.add(stream);
+            requests.add(request);
+            bodies.add(body);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        connection = new Http2Connection(new RecordingHandler(), 2, 16384);
+        connection.start(new HttpRequest("PRI", "*", "HTTP/2.0", Collections.emptyMap()));
+        byte[] rest = "SM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        feed(rest);
+        feed(frame(SETTINGS, 0, 0, new byte[0]));
+        List<Frame> frames = output();
+        Assert.assertEquals(SETTINGS, frames.get(0).type);
+    }
+
+    private void feed(byte[] bytes) {
+        connection.feed(bytes, 0, bytes.length);
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (streamId >>> 24);
+        frame[6] = (byte) (streamId >>> 16);
+        frame[7] = (byte) (streamId >>> 8);
+        frame[8] = (byte) streamId;
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        return frame;
+    }
+
+    private byte[] headers(int streamId, boolean endStream, String method, String path, String... extra) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(":method", method, block);
+        encoder.encode(":scheme", "http", block);
+        encoder.encode(":path", path, block);
+        encoder.encode(":authority", "localhost", block);
+        for (int i = 0; i < extra.length; i += 2) {
+            encoder.encode(extra[i], extra[i + 1], block);
+        }
+        return frame(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), streamId, block.toByteArray());
+    }
+
+    private List<Frame> output() {
+        List<Frame> frames = new ArrayList<>();
+        byte[] bytes = connection.takeOutput();
+        if (bytes == null) {
+            return frames;
+        }
+        int pos = 0;
+        while (pos < bytes.length) {
+            int length = (bytes[pos] & 0xFF) << 16 | (bytes[pos + 1] & 0xFF) << 8 | bytes[pos + 2] & 0xFF;
+            int streamId = ((bytes[pos + 5] & 0x7F) << 24) | (bytes[pos + 6] & 0xFF) << 16
+                    | (bytes[pos + 7] & 0xFF) << 8 | bytes[pos + 8] & 0xFF;
+            byte[] payload = new byte[length];
+            System.arraycopy(bytes, pos + 9, payload, 0, length);
+            frames.add(new Frame(bytes[pos + 3], bytes[pos + 4], streamId, payload));
+            pos += 9 + length;
+        }
+        return frames;
+    }
+
+    private Map<String, String> decodeHeaders(Frame frame) {
+        Map<String, String> headers = new HashMap<>();
+        decoder.decode(frame.payload, 0, frame.payload.length, headers::put);
+        return headers;
+    }
+
+    @Test
+    public void testRequestIsDispatchedAndAnswered() {
+        feed(headers(1, true, "GET", "/index.html?a=1", "accept", "*/*"));
+        Assert.assertEquals(1, requests.size());
+        HttpRequest request = requests.get(0);
+        Assert.assertEquals("GET", request.getMethod());
+        Assert.assertEquals("/index.html?a=1", request.getTarget());
+        Assert.assertEquals("localhost", request.getHeader("host"));
+        Assert.assertEquals("*/*", request.getHeader("accept"));
+        Assert.assertNull(bodies.get(0));
+
+        connection.respond(streams.get(0), RESPONSE.getBytes(StandardCharsets.US_ASCII), null);
+        List<Frame> frames = output();
+        Assert.assertEquals(2, frames.size());
+        Frame headers = frames.get(0);
+        Assert.assertEquals(HEADERS, headers.type);
+        Assert.assertEquals(1, headers.streamId);
+        Assert.assertEquals(0, headers.flags & END_STREAM);
+        Map<String, String> decoded = decodeHeaders(headers);
+        Assert.assertEquals("200", decoded.get(":status"));
+        Assert.assertEquals("text/plain", decoded.get("content-type"));
+        Assert.assertFalse("connection headers are not sent", decoded.containsKey("connection"));
+        Frame data = frames.get(1);
+        Assert.assertEquals(DATA, data.type);
+        Assert.assertEquals(END_STREAM, data.flags & END_STREAM);
+        Assert.assertEquals("hello", new String(data.payload, StandardCharsets.US_ASCII));
+        Assert.assertFalse(connection.hasOpenStreams());
+    }
+
+    @Test
+    public void testRequestBodyIsReceivedBeforeDispatch() {
+        feed(headers(1, false, "POST", "/upload", "content-type", "application/x-www-form-urlencoded"));
+        Assert.assertTrue(requests.isEmpty());
+        feed(frame(DATA, END_STREAM, 1, "a=1&b=2".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals("1", bodies.get(0).getParameters().get("a"));
+        Assert.assertEquals("2", bodies.get(0).getParameters().get("b"));
+    }
+
+    @Test
+    public void testResetStreamCancelsItsWork() {
+        feed(headers(1, true, "GET", "/delay"));
+        CompletableFuture<Void> work = new CompletableFuture<>();
+        streams.get(0).setWork(work);
+        output();
+        feed(frame(RST_STREAM, 0, 1, new byte[]{0, 0, 0, 8}));
+        Assert.assertTrue(work.isCancelled());
+        connection.respond(streams.get(0), RESPONSE.getBytes(StandardCharsets.US_ASCII), null);
+        Assert.assertTrue("nothing is sent on a reset stream", output().isEmpty());
+    }
+
+    @Test
+    public void testAbortedStreamIsResetWithInternalError() {
+        feed(headers(1, true, "GET", "/flush-throw"));
+        output();
+        connection.abort(streams.get(0));
+        List<Frame> frames = output();
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals(RST_STREAM, frames.get(0).type);
+        Assert.assertEquals(1, frames.get(0).streamId);
+        Assert.assertEquals(0x2, frames.get(0).errorCode());
+        Assert.assertFalse(connection.hasOpenStreams());
+        Assert.assertFalse(connection.isClosed());
+    }
+
+    @Test
+    public void testRefusedStreamIsReset() {
+        feed(headers(1, true, "GET", "/index.html"));
+        output();
+        connection.refuse(streams.get(0));
+        List<Frame> frames = output();
+        Assert.assertEquals(RST_STREAM, frames.get(0).type);
+        Assert.assertEquals(0x7, frames.get(0).errorCode());
+    }
+
+    @Test
+    public void testStreamsOverLimitAreRefused() {
+        feed(headers(1, true, "GET", "/a"));
+        feed(headers(3, true, "GET", "/b"));
+        feed(headers(5, true, "GET", "/c"));
+        Assert.assertEquals(2, requests.size());
+        List<Frame> frames = output();
+        Assert.assertEquals(RST_STREAM, frames.get(frames.size() - 1).type);
+        Assert.assertEquals(5, frames.get(frames.size() - 1).streamId);
+        Assert.assertEquals(0x7, frames.get(frames.size() - 1).errorCode());
+    }
+
+    @Test
+    public void testInvalidPrefaceFailsConnection() {
+        Http2Connection broken = new Http2Connection(new RecordingHandler(), 2, 16384);
+        broken.start(new HttpRequest("PRI", "*", "HTTP/2.0", Collections.emptyMap()));
+        byte[] bytes = "XX\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        broken.feed(bytes, 0, bytes.length);
+        Assert.assertTrue(broken.isClosed());
+    }
+
+    @Test
+    public void testEvenStreamIdentifierIsProtocolError() {
+        feed(headers(2, true, "GET", "/index.html"));
+        Assert.assertTrue(connection.isClosed());
+        List<Frame> frames = output();
+        Frame goAway = frames.get(frames.size() - 1);
+        Assert.assertEquals(GOAWAY, goAway.type);
+        Assert.assertEquals(0x1, goAway.errorCode());
+    }
+
+    @Test
+    public void testShutdownWaitsForOpenStreams() {
+        feed(headers(1, true, "GET", "/index.html"));
+        connection.shutdown();
+        Assert.assertFalse(connection.isClosed());
+        connection.respond(streams.get(0), RESPONSE.getBytes(StandardCharsets.US_ASCII), null);
+        Assert.assertTrue(connection.isClosed());
+    }
+}
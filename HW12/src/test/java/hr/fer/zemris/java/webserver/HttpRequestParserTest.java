@@ -0,0 +1,149 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class HttpRequestParserTest {
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static InputStream trickle(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        return new InputStream() {
+            private int pos;
+
+            @Override
+            public int read() {
+                return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (pos >= bytes.length) {
+                    return -1;
+                }
+                b[off] = bytes[pos++];
+                return 1;
+            }
+        };
+    }
+
+    private static int statusOf(String head, int maxHeaderSize, int maxHeaderCount) throws IOException {
+        try {
+            new HttpRequestParser(maxHeaderSize, maxHeaderCount).readRequest(stream(head));
+        } catch (HttpRequestException e) {
+            return e.getStatusCode();
+        }
+        return 0;
+    }
+
+    @Test
+    public void testParsesRequestLineAndHeaders() throws IOException {
+        HttpRequest request = new HttpRequestParser(16384, 100).readRequest(stream(
+                "GET /index.html?a=1 HTTP/1.1\r\nHost: localhost:5721\r\nX-Custom:   value  \r\n\r\n"));
+        Assert.assertEquals("GET", request.getMethod());
+        Assert.assertEquals("/index.html?a=1", request.getTarget());
+        Assert.assertEquals("HTTP/1.1", request.getVersion());
+        Assert.assertEquals("localhost:5721", request.getHeader("host"));
+        Assert.assertEquals("value", request.getHeader("x-custom"));
+        Assert.assertEquals(2, request.getHeaders().size());
+    }
+
+    @Test
+    public void testAcceptsBareLineFeedsAndLeadingEmptyLines() throws IOException {
+        HttpRequest request = new HttpRequestParser(16384, 100).readRequest(stream(
+                "\r\n\nGET / HTTP/1.0\nHost: a\n\n"));
+        Assert.assertEquals("/", request.getTarget());
+        Assert.assertEquals("HTTP/1.0", request.getVersion());
+        Assert.assertEquals("a", request.getHeader("host"));
+    }
+
+    @Test
+    public void testParsesHeadReceivedByteByByte() throws IOException {
+        HttpRequest request = new HttpRequestParser(16384, 100).readRequest(trickle(
+                "POST /upload HTTP/1.1\r\nContent-Length: 3\r\n\r\n"));
+        Assert.assertEquals("POST", request.getMethod());
+        Assert.assertEquals("3", request.getHeader("content-length"));
+    }
+
+    @Test
+    public void testParsesPipelinedRequests() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(16384, 100);
+        InputStream in = stream("GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b HTTP/1.1\r\nHost: x\r\n\r\nGET /c");
+        Assert.assertEquals("/a", parser.readRequest(in).getTarget());
+        Assert.assertEquals("/b", parser.parse().getTarget());
+        Assert.assertNull(parser.parse());
+        Assert.assertEquals(6, parser.buffered());
+        Assert.assertArrayEquals("GET /c".getBytes(StandardCharsets.ISO_8859_1), parser.takeBuffered());
+        Assert.assertEquals(0, parser.buffered());
+    }
+
+    @Test
+    public void testReturnsNullWhenStreamEndsBeforeHead() throws IOException {
+        Assert.assertNull(new HttpRequestParser(16384, 100).readRequest(stream("GET / HTTP/1.1\r\nHost")));
+        Assert.assertNull(new HttpRequestParser(16384, 100).readRequest(stream("")));
+    }
+
+    @Test
+    public void testCombinesRepeatedAndFoldedHeaders() throws IOException {
+        HttpRequest request = new HttpRequestParser(16384, 100).readRequest(stream(
+                "GET / HTTP/1.1\r\nAccept: a\r\nACCEPT: b\r\nCookie: x=1\r\ncookie: y=2\r\n"
+                        + "X-Long: first\r\n  second\r\n\r\n"));
+        Assert.assertEquals("a, b", request.getHeader("accept"));
+        Assert.assertEquals("x=1; y=2", request.getHeader("cookie"));
+        Assert.assertEquals("first second", request.getHeader("x-long"));
+    }
+
+    @Test
+    public void testKeepsBodyBytesBuffered() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(16384, 100);
+        parser.readRequest(stream("POST / HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody"));
+        Assert.assertEquals(4, parser.buffered());
+    }
+
+    @Test
+    public void testRejectsMalformedRequestLine() throws IOException {
+        Assert.assertEquals(400, statusOf("GET\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET /\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET  / HTTP/1.1\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET / HTTP/1.1 extra\r\n\r\n", 16384, 100));
+    }
+
+    @Test
+    public void testRejectsMalformedHeaders() throws IOException {
+        Assert.assertEquals(400, statusOf("GET / HTTP/1.1\r\nNoColon\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET / HTTP/1.1\r\n: empty name\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET / HTTP/1.1\r\nBad Name: x\r\n\r\n", 16384, 100));
+        Assert.assertEquals(400, statusOf("GET / HTTP/1.1\r\n folded: x\r\n\r\n", 16384, 100));
+    }
+
+    @Test
+    public void testRejectsTooLargeHead() throws IOException {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\nX-Big: ");
+        for (int i = 0; i < 200; i++) {
+            head.append('a');
+        }
+        Assert.assertEquals(431, statusOf(head + "\r\n\r\n", 128, 100));
+        Assert.assertEquals(431, statusOf(head.toString(), 128, 100));
+        Assert.assertEquals(0, statusOf(head + "\r\n\r\n", 1024, 100));
+    }
+
+    @Test
+    public void testRejectsTooManyHeaders() throws IOException {
+        String twoHeaders = "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\n";
+        Assert.assertEquals(0, statusOf(twoHeaders + "\r\n", 16384, 2));
+        Assert.assertEquals(431, statusOf(twoHeaders + "C: 3\r\n\r\n", 16384, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveLimits() {
+        new HttpRequestParser(0, 100);
+    }
+}
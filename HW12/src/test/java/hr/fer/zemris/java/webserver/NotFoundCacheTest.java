@@ -0,0 +1,54 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NotFoundCacheTest {
+
+    @Test
+    public void testRemembersAddedPath() {
+        NotFoundCache cache = new NotFoundCache(16, 60_000);
+        Assert.assertFalse(cache.contains("/missing.html"));
+        cache.add("/missing.html");
+        Assert.assertTrue(cache.contains("/missing.html"));
+        Assert.assertFalse(cache.contains("/other.html"));
+    }
+
+    @Test
+    public void testForgetsPathAfterTtl() throws InterruptedException {
+        NotFoundCache cache = new NotFoundCache(16, 20);
+        cache.add("/missing.html");
+        Thread.sleep(50);
+        Assert.assertFalse(cache.contains("/missing.html"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStaysWithinCapacity() {
+        NotFoundCache cache = new NotFoundCache(64, 60_000);
+        for (int i = 0; i < 1000; i++) {
+            cache.add("/missing" + i);
+            Assert.assertTrue(cache.size() <= 64);
+        }
+        Assert.assertTrue(cache.contains("/missing999"));
+    }
+
+    @Test
+    public void testEvictsExpiredPathsFirst() throws InterruptedException {
+        NotFoundCache cache = new NotFoundCache(8, 20);
+        for (int i = 0; i < 8; i++) {
+            cache.add("/old" + i);
+        }
+        Thread.sleep(50);
+        cache.add("/new");
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.contains("/new"));
+    }
+
+    @Test
+    public void testZeroCapacityRemembersNothing() {
+        NotFoundCache cache = new NotFoundCache(0, 60_000);
+        cache.add("/missing.html");
+        Assert.assertFalse(cache.contains("/missing.html"));
+    }
+}
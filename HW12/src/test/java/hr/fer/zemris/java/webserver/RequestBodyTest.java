@@ -0,0 +1,202 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RequestBodyTest {
+
+    private static final String BOUNDARY = "----boundary42";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HttpRequest post(String... headers) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+        return new HttpRequest("POST", "/upload", "HTTP/1.1", map);
+    }
+
+    private RequestBody open(HttpRequest request) {
+        return RequestBody.open(request, 1024, 256, 16, folder.getRoot().toPath());
+    }
+
+    private static int feed(RequestBody body, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return body.feed(bytes, 0, bytes.length);
+    }
+
+    private static void feedByteByByte(RequestBody body, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            Assert.assertEquals(1, body.feed(bytes, i, 1));
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void assertRejected(int status, Action action) throws IOException {
+        try {
+            action.run();
+            Assert.fail("expected " + status);
+        } catch (HttpRequestException e) {
+            Assert.assertEquals(status, e.getStatusCode());
+        }
+    }
+
+    private static String multipart() {
+        return "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "Holiday\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"photo\"; filename=\"beach.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + "sand and sea, with \r\n-- almost a delimiter\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+    }
+
+    @Test
+    public void testRequestWithoutBody() {
+        Assert.assertNull(open(post()));
+        Assert.assertNull(open(post("content-length", "0")));
+    }
+
+    @Test
+    public void testFormWithContentLength() throws IOException {
+        String form = "name=Ivo+Ivi%C4%87&empty=&flag";
+        RequestBody body = open(post("content-length", String.valueOf(form.length()),
+                "content-type", "application/x-www-form-urlencoded"));
+        Assert.assertEquals(form.length(), feed(body, form + "GET / HTTP/1.1"));
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals("Ivo Ivić", body.getParameters().get("name"));
+        Assert.assertEquals("", body.getParameters().get("empty"));
+        Assert.assertTrue(body.getParameters().containsKey("flag"));
+    }
+
+    @Test
+    public void testChunkedBodyFedByteByByte() throws IOException {
+        RequestBody body = open(post("transfer-encoding", "chunked", "content-type", "text/plain"));
+        feedByteByByte(body, "5;ext=1\r\nhello\r\n6\r\n world\r\n");
+        Assert.assertFalse(body.isComplete());
+        feedByteByByte(body, "0\r\nX-Trailer: 1\r\n\r\n");
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals("hello world", new String(body.getPart(null).getBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testChunkedBodyLeavesNextRequest() throws IOException {
+        RequestBody body = open(post("transfer-encoding", "chunked",
+                "content-type", "application/x-www-form-urlencoded"));
+        String chunked = "3\r\na=1\r\n0\r\n\r\n";
+        Assert.assertEquals(chunked.length(), feed(body, chunked + "GET / HTTP/1.1\r\n\r\n"));
+        Assert.assertEquals("1", body.getParameters().get("a"));
+    }
+
+    @Test
+    public void testMalformedChunkedBodyIsRejected() throws IOException {
+        RequestBody body = open(post("transfer-encoding", "chunked"));
+        assertRejected(400, () -> feed(body, "zz\r\n"));
+        RequestBody missingCrlf = open(post("transfer-encoding", "chunked"));
+        assertRejected(400, () -> feed(missingCrlf, "1\r\nab"));
+    }
+
+    @Test
+    public void testUnsupportedOrConflictingFraming() throws IOException {
+        assertRejected(501, () -> open(post("transfer-encoding", "gzip")));
+        assertRejected(400, () -> open(post("transfer-encoding", "chunked", "content-length", "3")));
+        assertRejected(400, () -> open(post("content-length", "-1")));
+        assertRejected(400, () -> open(post("content-length", "ten")));
+    }
+
+    @Test
+    public void testMultipartFieldsAndFiles() throws IOException {
+        String content = multipart();
+        RequestBody body = open(post("content-length", String.valueOf(content.length()),
+                "content-type", "multipart/form-data; boundary=\"" + BOUNDARY + "\""));
+        feedByteByByte(body, content);
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals("Holiday", body.getParameters().get("title"));
+        BodyPart photo = body.getPart("photo");
+        Assert.assertEquals("beach.txt", photo.getFileName());
+        Assert.assertEquals("text/plain", photo.getContentType());
+        Assert.assertEquals("sand and sea, with \r\n-- almost a delimiter",
+                new String(photo.getBytes(), StandardCharsets.UTF_8));
+        Assert.assertFalse("the file is over the memory threshold", photo.isInMemory());
+        body.delete();
+        Assert.assertEquals(0, Files.list(folder.getRoot().toPath()).count());
+    }
+
+    @Test
+    public void testUnterminatedMultipartIsRejected() throws IOException {
+        String content = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n";
+        RequestBody body = open(post("content-length", String.valueOf(content.length() + 1),
+                "content-type", "multipart/form-data; boundary=" + BOUNDARY));
+        feed(body, content);
+        assertRejected(400, () -> feed(body, "x"));
+    }
+
+    @Test
+    public void testDeclaredLengthOverLimitIsRejected() throws IOException {
+        assertRejected(413, () -> open(post("content-length", "1025")));
+    }
+
+    @Test
+    public void testChunkedBodyOverLimitIsRejected() throws IOException {
+        RequestBody body = open(post("transfer-encoding", "chunked"));
+        feed(body, "400\r\n");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 0x400; i++) {
+            sb.append('x');
+        }
+        feed(body, sb.toString() + "\r\n");
+        assertRejected(413, () -> feed(body, "1\r\nx"));
+    }
+
+    @Test
+    public void testFormOverLimitIsRejected() throws IOException {
+        StringBuilder sb = new StringBuilder("a=");
+        while (sb.length() <= 256) {
+            sb.append('x');
+        }
+        String form = sb.toString();
+        RequestBody body = open(post("content-length", String.valueOf(form.length()),
+                "content-type", "application/x-www-form-urlencoded"));
+        assertRejected(413, () -> feed(body, form));
+    }
+
+    @Test
+    public void testUnknownExpectationIsRejected() throws IOException {
+        assertRejected(417, () -> open(post("expect", "something-else", "content-length", "3")));
+        assertRejected(417, () -> open(post("expect", "something-else")));
+    }
+
+    @Test
+    public void testContinueExpectationIsAccepted() {
+        Assert.assertNotNull(open(post("expect", "100-Continue", "content-length", "3")));
+    }
+
+    @Test
+    public void testDelimitedBodyEndsWithTransport() throws IOException {
+        RequestBody body = RequestBody.openDelimited(post("content-type", "text/plain"), 1024, 256, 16, null);
+        feed(body, "streamed");
+        Assert.assertFalse(body.isComplete());
+        body.end();
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals("streamed", new String(body.getPart(null).getBytes(), StandardCharsets.UTF_8));
+
+        RequestBody shortBody = RequestBody.openDelimited(post("content-length", "10"), 1024, 256, 16, null);
+        feed(shortBody, "short");
+        assertRejected(400, () -> shortBody.end());
+    }
+}
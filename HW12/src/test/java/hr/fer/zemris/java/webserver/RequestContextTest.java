@@ -0,0 +1,270 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+public class RequestContextTest {
+
+    private static final String TEXT = "Hello, chunked and compressed world! ";
+
+    private ByteArrayOutputStream bos;
+
+    private RequestContext context;
+
+    @Before
+    public void setUp() {
+        bos = new ByteArrayOutputStream();
+        context = new RequestContext(bos, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+        context.setMimeType("text/plain");
+    }
+
+    private String response() {
+        return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private String head() {
+        String response = response();
+        return response.substring(0, response.indexOf("\r\n\r\n") + 2);
+    }
+
+    private byte[] body() {
+        byte[] bytes = bos.toByteArray();
+        int start = response().indexOf("\r\n\r\n") + 4;
+        byte[] body = new byte[bytes.length - start];
+        System.arraycopy(bytes, start, body, 0, body.length);
+        return body;
+    }
+
+    private static byte[] dechunk(byte[] body) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        int pos = 0;
+        while (true) {
+            int lineEnd = text.indexOf("\r\n", pos);
+            Assert.assertTrue("missing chunk size", lineEnd != -1);
+            int size = Integer.parseInt(text.substring(pos, lineEnd), 16);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                Assert.assertEquals("\r\n", text.substring(pos));
+                return content.toByteArray();
+            }
+            content.write(body, pos, size);
+            pos += size;
+            Assert.assertEquals("\r\n", text.substring(pos, pos + 2));
+            pos += 2;
+        }
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String repeat(int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(TEXT);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testBodyOfKnownLength() throws IOException {
+        context.setKeepAlive(true);
+        context.setContentLength(5);
+        context.write("Hello");
+        context.finish();
+        Assert.assertTrue(head().startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(head().contains("Content-Length: 5\r\n"));
+        Assert.assertTrue(head().contains("Connection: keep-alive\r\n"));
+        Assert.assertFalse(head().contains("Transfer-Encoding"));
+        Assert.assertEquals("Hello", new String(body(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEmptyResponseHasZeroLength() throws IOException {
+        context.setKeepAlive(true);
+        context.finish();
+        Assert.assertTrue(head().contains("Content-Length: 0\r\n"));
+        Assert.assertEquals(0, body().length);
+    }
+
+    @Test
+    public void testStreamedBodyIsChunked() throws IOException {
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.write("abc");
+        context.flush();
+        context.write("def");
+        context.finish();
+        Assert.assertTrue(head().contains("Transfer-Encoding: chunked\r\n"));
+        Assert.assertTrue(head().contains("Connection: keep-alive\r\n"));
+        Assert.assertFalse(head().contains("Content-Length"));
+        Assert.assertEquals("3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n", new String(body(), StandardCharsets.US_ASCII));
+        Assert.assertTrue(context.isKeepAlive());
+    }
+
+    @Test
+    public void testStreamedBodyWithoutChunkingClosesConnection() throws IOException {
+        context.setKeepAlive(true);
+        context.write("abc");
+        context.flush();
+        context.finish();
+        Assert.assertTrue(head().contains("Connection: close\r\n"));
+        Assert.assertFalse(head().contains("Transfer-Encoding"));
+        Assert.assertEquals("abc", new String(body(), StandardCharsets.US_ASCII));
+        Assert.assertFalse(context.isKeepAlive());
+    }
+
+    @Test
+    public void testSmallBodyIsAggregatedWithLength() throws IOException {
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setBufferSize(1024);
+        context.write("abc");
+        context.write("def");
+        context.finish();
+        Assert.assertTrue(head().contains("Content-Length: 6\r\n"));
+        Assert.assertFalse(head().contains("Transfer-Encoding"));
+        Assert.assertEquals("abcdef", new String(body(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testLargeBodyIsSentInChunksOfBufferSize() throws IOException {
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setBufferSize(8);
+        String content = "0123456789abcdefghij";
+        for (char c : content.toCharArray()) {
+            context.write(String.valueOf(c));
+        }
+        context.finish();
+        Assert.assertTrue(head().contains("Transfer-Encoding: chunked\r\n"));
+        String body = new String(body(), StandardCharsets.US_ASCII);
+        Assert.assertFalse("every write must not be its own chunk", body.startsWith("1\r\n"));
+        Assert.assertEquals(content, new String(dechunk(body()), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testBodyOverThresholdIsCompressed() throws IOException {
+        String content = repeat(10);
+        context.setKeepAlive(true);
+        context.setGzipAllowed(true);
+        context.setCompressionThreshold(64);
+        context.setBufferSize(4096);
+        context.write(content);
+        context.finish();
+        Assert.assertTrue(head().contains("Content-Encoding: gzip\r\n"));
+        Assert.assertTrue(head().contains("Vary: Accept-Encoding\r\n"));
+        Assert.assertTrue(head().contains("Content-Length: " + body().length + "\r\n"));
+        Assert.assertTrue(body().length < content.length());
+        Assert.assertEquals(content, gunzip(body()));
+    }
+
+    @Test
+    public void testBodyUnderThresholdIsNotCompressed() throws IOException {
+        context.setKeepAlive(true);
+        context.setGzipAllowed(true);
+        context.setCompressionThreshold(1024);
+        context.write(TEXT);
+        context.finish();
+        Assert.assertFalse(head().contains("Content-Encoding"));
+        Assert.assertTrue(head().contains("Content-Length: " + TEXT.length() + "\r\n"));
+        Assert.assertEquals(TEXT, new String(body(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamedBodyIsCompressedAndChunked() throws IOException {
+        String content = repeat(20);
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setGzipAllowed(true);
+        context.setCompressionThreshold(64);
+        context.write(content);
+        context.flush();
+        context.write(content);
+        context.finish();
+        Assert.assertTrue(head().contains("Content-Encoding: gzip\r\n"));
+        Assert.assertTrue(head().contains("Transfer-Encoding: chunked\r\n"));
+        Assert.assertEquals(content + content, gunzip(dechunk(body())));
+    }
+
+    @Test
+    public void testIncompressibleTypeIsNotCompressed() throws IOException {
+        String content = repeat(10);
+        context.setMimeType("image/png");
+        context.setKeepAlive(true);
+        context.setGzipAllowed(true);
+        context.setCompressionThreshold(64);
+        context.write(content);
+        context.finish();
+        Assert.assertFalse(head().contains("Content-Encoding"));
+        Assert.assertEquals(content, new String(body(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNotModifiedHasNoBodyFraming() throws IOException {
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setStatusCode(304);
+        context.setStatusText("Not Modified");
+        context.finish();
+        Assert.assertFalse(head().contains("Content-Length"));
+        Assert.assertFalse(head().contains("Transfer-Encoding"));
+        Assert.assertEquals(0, body().length);
+    }
+
+    @Test
+    public void testAbortedChunkedBodyIsLeftUnterminated() throws IOException {
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.write("partial");
+        context.flush();
+        context.abort();
+        context.finish();
+        Assert.assertEquals("7\r\npartial\r\n", new String(body(), StandardCharsets.US_ASCII));
+        Assert.assertFalse(context.isKeepAlive());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testHeaderCanNotChangeAfterItIsGenerated() throws IOException {
+        context.write("abc");
+        context.flush();
+        context.setKeepAlive(false);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleasedContextCanNotBeUsed() throws IOException {
+        context.release();
+        context.write("late");
+    }
+
+    @Test
+    public void testResponseCanBeClaimedOnce() {
+        Assert.assertTrue(context.claimResponse());
+        Assert.assertFalse(context.claimResponse());
+    }
+
+    @Test
+    public void testReleasedResponseCanNotBeClaimed() {
+        context.release();
+        Assert.assertFalse(context.claimResponse());
+    }
+}
@@ -0,0 +1,99 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RouteTrieTest {
+
+    private RouteTrie<String> routes;
+
+    @Before
+    public void setUp() {
+        routes = new RouteTrie<>();
+        routes.add("/hello", "hello");
+        routes.add("/calc", "calc");
+        routes.add("/calc/{a}/{b}", "calc-ab");
+        routes.add("/calc/sum/{b}", "calc-sum");
+        routes.add("/ext/*", "ext");
+        routes.add("/files/{dir}/*", "files");
+    }
+
+    @Test
+    public void testMatchesExactRoute() {
+        RouteTrie.Match<String> match = routes.find("/hello");
+        Assert.assertEquals("hello", match.getValue());
+        Assert.assertTrue(match.getParameters().isEmpty());
+        Assert.assertNull(match.getRemainder());
+    }
+
+    @Test
+    public void testMatchesPathParameters() {
+        RouteTrie.Match<String> match = routes.find("/calc/3/4");
+        Assert.assertEquals("calc-ab", match.getValue());
+        Assert.assertEquals("3", match.getParameters().get("a"));
+        Assert.assertEquals("4", match.getParameters().get("b"));
+    }
+
+    @Test
+    public void testPrefersExactSegmentToParameter() {
+        RouteTrie.Match<String> match = routes.find("/calc/sum/4");
+        Assert.assertEquals("calc-sum", match.getValue());
+        Assert.assertEquals("4", match.getParameters().get("b"));
+        Assert.assertNull(match.getParameters().get("a"));
+    }
+
+    @Test
+    public void testFallsBackToParameterWhenExactBranchFails() {
+        RouteTrie.Match<String> match = routes.find("/calc/sum/4/5");
+        Assert.assertNull(match);
+        Assert.assertEquals("calc-ab", routes.find("/calc/x/y").getValue());
+    }
+
+    @Test
+    public void testWildcardMatchesRestOfPath() {
+        RouteTrie.Match<String> match = routes.find("/ext/EchoParams");
+        Assert.assertEquals("ext", match.getValue());
+        Assert.assertEquals("EchoParams", match.getRemainder());
+        Assert.assertEquals("a/b/c", routes.find("/ext/a/b/c").getRemainder());
+    }
+
+    @Test
+    public void testWildcardAfterParameter() {
+        RouteTrie.Match<String> match = routes.find("/files/docs/2020/report.pdf");
+        Assert.assertEquals("files", match.getValue());
+        Assert.assertEquals("docs", match.getParameters().get("dir"));
+        Assert.assertEquals("2020/report.pdf", match.getRemainder());
+    }
+
+    @Test
+    public void testReturnsNullWithoutMatch() {
+        Assert.assertNull(routes.find("/index.html"));
+        Assert.assertNull(routes.find("/calc/1"));
+        Assert.assertNull(routes.find("/ext"));
+        Assert.assertNull(routes.find("relative"));
+    }
+
+    @Test
+    public void testRejectsDuplicateRoutes() {
+        Assert.assertFalse(routes.add("/hello", "other"));
+        Assert.assertFalse(routes.add("/ext/*", "other"));
+        Assert.assertFalse(routes.add("/calc/{a}/{b}", "other"));
+        Assert.assertEquals("hello", routes.find("/hello").getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsWildcardBeforeLastSegment() {
+        routes.add("/a/*/b", "x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsConflictingParameterNames() {
+        routes.add("/calc/{x}", "x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsPatternWithoutLeadingSlash() {
+        routes.add("hello", "x");
+    }
+}
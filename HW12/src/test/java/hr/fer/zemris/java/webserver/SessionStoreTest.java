@@ -0,0 +1,86 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class SessionStoreTest {
+
+    private SessionStore store;
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testCreatedSessionIsFound() {
+        store = new SessionStore(600, 1000);
+        SessionStore.Session session = store.create("localhost");
+        session.getMap().put("key", "value");
+        SessionStore.Session found = store.get(session.getSid(), "localhost");
+        Assert.assertSame(session, found);
+        Assert.assertEquals("value", found.getMap().get("key"));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testRemovedSessionIsNotFound() {
+        store = new SessionStore(600, 1000);
+        SessionStore.Session session = store.create("localhost");
+        SessionStore.Session other = store.create("localhost");
+        store.remove(session);
+        Assert.assertNull(store.get(session.getSid(), "localhost"));
+        Assert.assertSame(other, store.get(other.getSid(), "localhost"));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testSessionIsOnlyReturnedToItsHost() {
+        store = new SessionStore(600, 1000);
+        SessionStore.Session session = store.create("localhost");
+        Assert.assertNull(store.get(session.getSid(), "example.com"));
+        Assert.assertNull(store.get("NOSUCHSESSIONIDENTIF", "localhost"));
+    }
+
+    @Test
+    public void testSessionIdentifiersAreUniqueCapitalLetters() {
+        store = new SessionStore(600, 10_000);
+        Set<String> sids = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String sid = store.create("localhost").getSid();
+            Assert.assertTrue(sid, sid.matches("[A-Z]{20}"));
+            sids.add(sid);
+        }
+        Assert.assertEquals(1000, sids.size());
+    }
+
+    @Test
+    public void testNumberOfSessionsIsBounded() {
+        store = new SessionStore(600, 32);
+        SessionStore.Session last = null;
+        for (int i = 0; i < 1000; i++) {
+            last = store.create("localhost");
+        }
+        Assert.assertTrue(String.valueOf(store.size()), store.size() <= 32);
+        Assert.assertSame(last, store.get(last.getSid(), "localhost"));
+    }
+
+    @Test
+    public void testExpiredSessionIsNotReturned() throws InterruptedException {
+        store = new SessionStore(1, 1000);
+        SessionStore.Session session = store.create("localhost");
+        Thread.sleep(1100);
+        Assert.assertNull(store.get(session.getSid(), "localhost"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveTimeout() {
+        new SessionStore(0, 1000);
+    }
+}
@@ -0,0 +1,330 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class SmartHttpServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private SmartHttpServer server;
+
+    public static class FlushThenThrowWorker implements IWebWorker {
+        @Override
+        public void processRequest(RequestContext context) throws Exception {
+            context.write("partial");
+            context.flush();
+            throw new IllegalStateException("failed after the response was started");
+        }
+    }
+
+    public static class ThrowWorker implements IWebWorker {
+        @Override
+        public void processRequest(RequestContext context) throws Exception {
+            context.write("discarded");
+            throw new IllegalStateException("failed before the response was started");
+        }
+    }
+
+    public static class AsyncFlushThenFailWorker implements IAsyncWebWorker {
+        @Override
+        public CompletionStage<Void> processRequestAsync(RequestContext context) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Assert.assertTrue(context.claimResponse());
+                    context.write("partial");
+                    context.flush();
+                    done.completeExceptionally(new IllegalStateException("failed after the response was started"));
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                }
+            });
+            return done;
+        }
+    }
+
+    public static class LateWorker implements IAsyncWebWorker {
+        static volatile CompletableFuture<Throwable> stageFailure;
+        static volatile CountDownLatch claimed;
+        static volatile boolean claimSucceeded;
+
+        @Override
+        public CompletionStage<Void> processRequestAsync(RequestContext context) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            done.whenComplete((v, failure) -> stageFailure.complete(failure));
+            CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS).execute(() -> {
+                claimSucceeded = context.claimResponse();
+                claimed.countDown();
+                if (claimSucceeded) {
+                    done.complete(null);
+                }
+            });
+            return done;
+        }
+    }
+
+    public static class ClaimingSlowWorker implements IAsyncWebWorker {
+        @Override
+        public CompletionStage<Void> processRequestAsync(RequestContext context) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Assert.assertTrue(context.claimResponse());
+                    Thread.sleep(200);
+                    context.setMimeType("text/plain");
+                    context.write("slow but claimed");
+                    done.complete(null);
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                }
+            });
+            return done;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = createServer(new Properties());
+    }
+
+    private SmartHttpServer createServer(Properties overrides) throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path root = Files.createDirectories(dir.resolve("webroot"));
+        Files.write(root.resolve("index.html"), "<html><body>Hello</body></html>".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("digits.txt"), DIGITS.getBytes(StandardCharsets.US_ASCII));
+        Path mime = dir.resolve("mime.properties");
+        Files.write(mime, "html = text/html\ntxt = text/plain\n".getBytes(StandardCharsets.UTF_8));
+        Path workers = dir.resolve("workers.properties");
+        Files.write(workers, ("/flush-throw = " + FlushThenThrowWorker.class.getName() + "\n"
+                + "/throw = " + ThrowWorker.class.getName() + "\n"
+                + "/async-flush-fail = " + AsyncFlushThenFailWorker.class.getName() + "\n"
+                + "/late = " + LateWorker.class.getName() + "\n"
+                + "/claiming-slow = " + ClaimingSlowWorker.class.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+
+        Properties properties = new Properties();
+        properties.setProperty("server.address", "127.0.0.1");
+        properties.setProperty("server.domainName", "localhost");
+        properties.setProperty("server.port", "0");
+        properties.setProperty("server.workerThreads", "1");
+        properties.setProperty("session.timeout", "600");
+        properties.setProperty("server.documentRoot", root.toString());
+        properties.setProperty("server.mimeConfig", mime.toString());
+        properties.setProperty("server.workers", workers.toString());
+        properties.putAll(overrides);
+        return new SmartHttpServer(properties);
+    }
+
+    private static HttpRequest get(String target) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost");
+        return new HttpRequest("GET", target, "HTTP/1.1", headers);
+    }
+
+    private String serve(String target, boolean expectedKeepAlive) throws Exception {
+        return serve(get(target), expectedKeepAlive);
+    }
+
+    private String serve(HttpRequest request, boolean expectedKeepAlive) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Assert.assertEquals(expectedKeepAlive, server.serve(request, bos));
+        return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpRequest getRange(String target, String range) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost");
+        headers.put("range", range);
+        return new HttpRequest("GET", target, "HTTP/1.1", headers);
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static String header(String response, String name) {
+        int start = response.indexOf("\r\n" + name + ": ");
+        if (start == -1) {
+            return null;
+        }
+        start += name.length() + 4;
+        return response.substring(start, response.indexOf("\r\n", start));
+    }
+
+    private void checkMultipartRanges(String response) {
+        Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        String type = header(response, "Content-Type");
+        Assert.assertTrue(type.startsWith("multipart/byteranges; boundary="));
+        String boundary = type.substring(type.indexOf('=') + 1);
+        String body = body(response);
+        Assert.assertEquals(Integer.parseInt(header(response, "Content-Length")), body.length());
+        Assert.assertEquals("\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-3/36\r\n\r\n"
+                + "0123"
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 30-35/36\r\n\r\n"
+                + "uvwxyz"
+                + "\r\n--" + boundary + "--\r\n", body);
+    }
+
+    @Test
+    public void testStaticFileKeepsConnectionAlive() throws Exception {
+        String response = serve("/index.html", true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(response.contains("Connection: keep-alive\r\n"));
+        Assert.assertTrue(response.endsWith("<html><body>Hello</body></html>"));
+    }
+
+    @Test
+    public void testWorkerFailingAfterFlushAbortsResponse() throws Exception {
+        String response = serve("/flush-throw", false);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(response.contains("Transfer-Encoding: chunked\r\n"));
+        Assert.assertTrue(response.contains("partial"));
+        Assert.assertFalse("the body must not look complete", response.endsWith("0\r\n\r\n"));
+    }
+
+    @Test
+    public void testWorkerFailingBeforeFlushIsAnsweredWith500() throws Exception {
+        String response = serve("/throw", true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
+        Assert.assertTrue(response.contains("Content-Length: 0\r\n"));
+        Assert.assertFalse(response.contains("discarded"));
+    }
+
+    @Test
+    public void testServerStillServesAfterAbortedResponse() throws Exception {
+        serve("/flush-throw", false);
+        Assert.assertTrue(serve("/index.html", true).startsWith("HTTP/1.1 200 OK\r\n"));
+    }
+
+    @Test
+    public void testSingleRangeIsSentAsPartialContent() throws Exception {
+        String response = serve(getRange("/digits.txt", "bytes=10-15"), true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        Assert.assertEquals("bytes 10-15/36", header(response, "Content-Range"));
+        Assert.assertEquals("6", header(response, "Content-Length"));
+        Assert.assertEquals("abcdef", body(response));
+    }
+
+    @Test
+    public void testSeveralRangesAreSentAsMultipartByteranges() throws Exception {
+        checkMultipartRanges(serve(getRange("/digits.txt", "bytes=-6,0-3"), true));
+    }
+
+    @Test
+    public void testSeveralRangesOfUncachedFileAreSentAsMultipartByteranges() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.staticCacheMaxFileSize", "0");
+        server = createServer(overrides);
+        checkMultipartRanges(serve(getRange("/digits.txt", "bytes=-6,0-3"), true));
+    }
+
+    @Test
+    public void testUnsatisfiableRangeIsAnsweredWith416() throws Exception {
+        String response = serve(getRange("/digits.txt", "bytes=100-"), true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\n"));
+        Assert.assertEquals("bytes */36", header(response, "Content-Range"));
+    }
+
+    @Test
+    public void testInvalidRangeIsIgnored() throws Exception {
+        String response = serve(getRange("/digits.txt", "bytes=5-1"), true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertEquals(DIGITS, body(response));
+    }
+
+    @Test
+    public void testMetricsAreOffByDefault() throws Exception {
+        Assert.assertTrue(serve("/metrics", true).startsWith("HTTP/1.1 404 "));
+    }
+
+    @Test
+    public void testMetricsAreServedToLocalClientsWhenEnabled() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.metrics", "true");
+        server = createServer(overrides);
+        serve("/index.html", true);
+        String response = serve("/metrics", true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(header(response, "Content-Type").startsWith("text/plain; version=0.0.4"));
+    }
+
+    @Test
+    public void testExtensionIsNamedByLastPathSegment() throws Exception {
+        Assert.assertTrue(serve("/ext/EchoParams?a=1", true).startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(serve("/ext/a/EchoParams?a=1", true).startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(serve("/ext/EchoParams/", true).startsWith("HTTP/1.1 404 "));
+    }
+
+    @Test
+    public void testUploadsAreOffByDefault() throws Exception {
+        Assert.assertTrue(serve("/upload", true).startsWith("HTTP/1.1 404 "));
+        Assert.assertTrue(serve("/ext/UploadWorker", true).startsWith("HTTP/1.1 404 "));
+    }
+
+    @Test
+    public void testUploadsAreServedWhenEnabled() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.uploads", "true");
+        server = createServer(overrides);
+        Assert.assertTrue(serve("/upload?a=1", true).startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(serve("/ext/UploadWorker?a=1", true).startsWith("HTTP/1.1 200 OK\r\n"));
+    }
+
+    @Test
+    public void testAsyncWorkerFailingAfterFlushAbortsResponse() throws Exception {
+        String response = serve("/async-flush-fail", false);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(response.contains("partial"));
+        Assert.assertFalse("the body must not look complete", response.endsWith("0\r\n\r\n"));
+        Assert.assertTrue(serve("/index.html", true).startsWith("HTTP/1.1 200 OK\r\n"));
+    }
+
+    @Test
+    public void testTimedOutWorkerCanNotClaimResponse() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.asyncTimeout", "50");
+        server = createServer(overrides);
+        LateWorker.claimed = new CountDownLatch(1);
+        LateWorker.stageFailure = new CompletableFuture<>();
+
+        String response = serve("/late", true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 504 Gateway Timeout\r\n"));
+        Assert.assertTrue(LateWorker.stageFailure.get(5, TimeUnit.SECONDS) instanceof TimeoutException);
+        Assert.assertTrue(LateWorker.claimed.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(LateWorker.claimSucceeded);
+    }
+
+    @Test
+    public void testClaimedResponseIsNotTimedOut() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.asyncTimeout", "50");
+        server = createServer(overrides);
+        String response = serve("/claiming-slow", true);
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(response.endsWith("slow but claimed"));
+    }
+}
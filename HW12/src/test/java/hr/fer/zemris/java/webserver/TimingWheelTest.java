@@ -0,0 +1,177 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheelTest {
+
+    private static class Item {
+        private long deadline;
+
+        private Item(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private TimingWheel<Item> wheel;
+
+    private List<Item> expired;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel<>(8, 10, item -> item.deadline, 1000);
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void testExpiresItemsOnceTheirDeadlinePassed() {
+        Item early = new Item(1025);
+        Item late = new Item(1055);
+        wheel.schedule(early);
+        wheel.schedule(late);
+        Assert.assertEquals(2, wheel.size());
+
+        wheel.advance(1020, expired::add);
+        Assert.assertTrue(expired.isEmpty());
+        wheel.advance(1030, expired::add);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(early, expired.get(0));
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(1060, expired::add);
+        Assert.assertEquals(2, expired.size());
+        Assert.assertSame(late, expired.get(1));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPostponedItemIsNotExpired() {
+        Item item = new Item(1025);
+        wheel.schedule(item);
+        item.deadline = 1045;
+        wheel.advance(1030, expired::add);
+        Assert.assertTrue(expired.isEmpty());
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(1050, expired::add);
+        Assert.assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testHandlesDeadlinesBeyondOneRevolution() {
+        Item far = new Item(1000 + 8 * 10 * 3 + 5);
+        wheel.schedule(far);
+        for (long now = 1010; now < far.deadline; now += 10) {
+            wheel.advance(now, expired::add);
+            Assert.assertTrue("expired at " + now, expired.isEmpty());
+        }
+        wheel.advance(far.deadline + 10, expired::add);
+        Assert.assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testAdvancingFarAheadExpiresEverything() {
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule(new Item(1000 + i * 7));
+        }
+        wheel.advance(10_000, expired::add);
+        Assert.assertEquals(20, expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPollEarliestReturnsItemDueSoonest() {
+        Item late = new Item(1065);
+        Item early = new Item(1015);
+        Item middle = new Item(1035);
+        wheel.schedule(late);
+        wheel.schedule(early);
+        wheel.schedule(middle);
+        Assert.assertSame(early, wheel.pollEarliest());
+        Assert.assertSame(middle, wheel.pollEarliest());
+        Assert.assertSame(late, wheel.pollEarliest());
+        Assert.assertNull(wheel.pollEarliest());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPollEarliestSkipsPostponedItem() {
+        Item postponed = new Item(1015);
+        Item other = new Item(1035);
+        wheel.schedule(postponed);
+        wheel.schedule(other);
+        postponed.deadline = 1055;
+        Assert.assertSame(other, wheel.pollEarliest());
+        Assert.assertSame(postponed, wheel.pollEarliest());
+    }
+
+    @Test
+    public void testPollEarliestBeyondOneRevolutionDoesNotRescan() {
+        int[] reads = new int[1];
+        TimingWheel<Item> counting = new TimingWheel<>(8, 10, item -> {
+            reads[0]++;
+            return item.deadline;
+        }, 1000);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Item item = new Item(1200 + i / 4);
+            items.add(item);
+            counting.schedule(item);
+        }
+        reads[0] = 0;
+        for (Item item : items) {
+            Assert.assertSame(item, counting.pollEarliest());
+        }
+        Assert.assertNull(counting.pollEarliest());
+        Assert.assertTrue("deadlines read: " + reads[0], reads[0] <= 2 * items.size());
+    }
+
+    @Test
+    public void testPollEarliestPrefersCurrentRevolutionOverLaterOnes() {
+        Item later = new Item(1500);
+        Item farther = new Item(1300);
+        Item soon = new Item(1025);
+        wheel.schedule(later);
+        wheel.schedule(farther);
+        wheel.schedule(soon);
+        Assert.assertSame(soon, wheel.pollEarliest());
+        Assert.assertSame(farther, wheel.pollEarliest());
+        Assert.assertSame(later, wheel.pollEarliest());
+    }
+
+    @Test
+    public void testPollEarliestMovesPostponedItemToLaterRevolution() {
+        Item postponed = new Item(1200);
+        Item other = new Item(1210);
+        wheel.schedule(postponed);
+        wheel.schedule(other);
+        postponed.deadline = 1400;
+        Assert.assertSame(other, wheel.pollEarliest());
+        Assert.assertSame(postponed, wheel.pollEarliest());
+    }
+
+    @Test
+    public void testExpiresItemsDueInLaterRevolutionsInOrder() {
+        for (int i = 0; i < 50; i++) {
+            wheel.schedule(new Item(1100 + i * 13));
+        }
+        long previous = 0;
+        for (long now = 1010; now <= 1800; now += 10) {
+            wheel.advance(now, expired::add);
+            for (Item item : expired) {
+                Assert.assertTrue(item.deadline <= now && item.deadline > now - 10);
+                Assert.assertTrue(item.deadline > previous);
+                previous = item.deadline;
+            }
+            expired.clear();
+        }
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveSlotCount() {
+        new TimingWheel<Item>(0, 10, item -> item.deadline, 0);
+    }
+}